@@ -0,0 +1,127 @@
+package edu.gatech.ubicomp.glim;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import edu.gatech.ubicomp.glim.sensor.SensorTransport;
+
+/**
+ * An RFCOMM link to a paired sensor over the serial port profile, which both
+ * the Q sensor and the HxM speak.
+ *
+ * The device is looked up once and its address kept in SharedPreferences, so
+ * later sessions skip the walk over the bonded devices. A cached device that
+ * is no longer bonded is looked up again, by name among the bonded devices
+ * and then by its default address. A device that is not bonded at all is
+ * asked to pair and the attempt fails, to be retried once pairing is done.
+ */
+public class BluetoothSensorTransport implements SensorTransport {
+
+	/** Standard SerialPortServiceID. */
+	private static final UUID SERIAL_PORT_UUID = UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
+
+	private final BluetoothAdapter mAdapter;
+	private final SharedPreferences mDeviceCache;
+	private final String mNameFragment;
+	private final String mDefaultAddress;
+
+	private BluetoothDevice mDevice;
+	private volatile BluetoothSocket mSocket;
+	private volatile boolean mClosed;
+
+	/**
+	 * @param deviceCache where the address found is kept, under the name fragment
+	 * @param nameFragment part of the name the sensor advertises, e.g. "HXM"
+	 * @param defaultAddress address to pair with if no bonded device matches
+	 */
+	public BluetoothSensorTransport(BluetoothAdapter adapter, SharedPreferences deviceCache,
+			String nameFragment, String defaultAddress) {
+		mAdapter = adapter;
+		mDeviceCache = deviceCache;
+		mNameFragment = nameFragment;
+		mDefaultAddress = defaultAddress;
+	}
+
+	public InputStream open() throws IOException {
+		if (!mAdapter.isEnabled()) {
+			throw new IOException("Bluetooth is off");
+		}
+		BluetoothDevice device = findDevice();
+		BluetoothSocket socket = device.createRfcommSocketToServiceRecord(SERIAL_PORT_UUID);
+		// Discovery slows down connecting a lot.
+		mAdapter.cancelDiscovery();
+		synchronized (this) {
+			if (mClosed) {
+				throw new IOException("Closed while connecting");
+			}
+			mSocket = socket;
+		}
+		try {
+			socket.connect();
+			return socket.getInputStream();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private BluetoothDevice findDevice() throws IOException {
+		if (mDevice != null && mDevice.getBondState() == BluetoothDevice.BOND_BONDED) {
+			return mDevice;
+		}
+		String address = mDeviceCache.getString(mNameFragment, null);
+		if (address != null && BluetoothAdapter.checkBluetoothAddress(address)) {
+			BluetoothDevice device = mAdapter.getRemoteDevice(address);
+			if (device.getBondState() == BluetoothDevice.BOND_BONDED) {
+				mDevice = device;
+				return device;
+			}
+		}
+		Set<BluetoothDevice> bondedDevices = mAdapter.getBondedDevices();
+		if (bondedDevices != null) {
+			for (BluetoothDevice device : bondedDevices) {
+				String name = device.getName();
+				if (name != null && name.contains(mNameFragment)) {
+					Log.d("Sensors", "Paired " + mNameFragment + " device found " + device.getAddress());
+					mDeviceCache.edit().putString(mNameFragment, device.getAddress()).commit();
+					mDevice = device;
+					return device;
+				}
+			}
+		}
+		BluetoothDevice device = mAdapter.getRemoteDevice(mDefaultAddress);
+		if (device.getBondState() == BluetoothDevice.BOND_NONE && device.createBond()) {
+			Log.d("Sensors", "Pairing with " + mDefaultAddress);
+		}
+		throw new IOException("No paired " + mNameFragment + " device");
+	}
+
+	public synchronized void reset() {
+		mClosed = false;
+	}
+
+	public void close() {
+		BluetoothSocket socket;
+		synchronized (this) {
+			socket = mSocket;
+			mSocket = null;
+			mClosed = true;
+		}
+		if (socket == null) {
+			return;
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			Log.w("Sensors", "Cannot close " + mNameFragment + " socket: " + e.getMessage());
+		}
+	}
+}
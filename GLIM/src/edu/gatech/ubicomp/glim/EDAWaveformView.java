@@ -16,22 +16,35 @@
 
 package edu.gatech.ubicomp.glim;
 
-import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.Vector;
 
+import edu.gatech.ubicomp.glim.pipeline.LatencyTracer;
+import edu.gatech.ubicomp.glim.signal.EdaDecomposer;
+import edu.gatech.ubicomp.glim.signal.EmaTonicFilter;
+import edu.gatech.ubicomp.glim.signal.MinMaxDecimator;
+import edu.gatech.ubicomp.glim.signal.RunningStats;
+import edu.gatech.ubicomp.glim.signal.SampleHistory;
+import edu.gatech.ubicomp.glim.signal.TonicFilter;
+
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.hardware.Camera.PreviewCallback;
 import android.util.AttributeSet;
+import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
 /**
  * A view that displays audio data on the screen as a waveform.
+ * 
+ * Samples are only appended by the update methods; drawing happens on a separate
+ * render thread at no more than the target frame rate, so every frame shows all
+ * the samples that arrived since the previous one.
  */
-public class EDAWaveformView extends SurfaceView {
+public class EDAWaveformView extends SurfaceView implements SurfaceHolder.Callback {
 
 	// The number of buffer frames to keep around (for a nice fade-out
 	// visualization.
@@ -39,6 +52,11 @@ public class EDAWaveformView extends SurfaceView {
 
 	private static final int MAX_BUFFER_SIZE = 640; //keeping in mind the 640pixel wide screen
 
+	/** Channels of the sample history. */
+	private static final int RAW_EDA_CHANNEL = 0;
+	private static final int TONIC_EDA_CHANNEL = 1;
+	private static final int PHASIC_EDA_CHANNEL = 2;
+
 	// To make quieter sounds still show up well on the display, we use
 	// +/- 8192 as the amplitude that reaches the top/bottom of the view
 	// instead of +/- 32767. Any samples that have magnitude higher than this
@@ -46,23 +64,78 @@ public class EDAWaveformView extends SurfaceView {
 	private static final float MAX_AMPLITUDE_TO_DRAW = 10.0f;//8192.0f;
 	private static final float MAX_EDA_VALUE = 11.0f;
 
+	/** Sampling rate of the Q sensor, used to convert time windows into samples. */
+	public static final int EDA_SAMPLING_RATE = 32;
+
+	/** Frame rate used until setTargetFps() is called. */
+	public static final int DEFAULT_TARGET_FPS = 15;
+
+	/** Arrival of a sample that was not traced. */
+	public static final long NO_ARRIVAL = -1;
+
 	// The queue that will hold historical audio data.
 	private LinkedList<int[]> mAudioData;
-	private ArrayList<Float> mRawEdaData, mTonicEdaData, mPhasicEdaData;
+	// Raw, tonic and phasic EDA points to draw, aligned row by row. Without
+	// decimation a point is a sample, otherwise each bucket of samples adds
+	// two points (its extremes in time order).
+	private SampleHistory mEdaHistory;
+	private MinMaxDecimator mRawEdaDecimator, mTonicEdaDecimator, mPhasicEdaDecimator;
 	private Paint mPaint;
-	private int mCounter = 0;
-	private final float ALPHA = 0.02f;
+	private final float ALPHA = EdaDecomposer.DEFAULT_EMA_ALPHA;
 
-	/*
-	 * The two variables will go off limit soon as the data keeps coming in.
-	 */
-	private float runningAverage;
-	private float runningDistanceSquareSum;
-	private int runningCount;
-	private float runningDeviation;
+	/** Splits the raw signal into tonic and phasic components for updateEDADataSimple(). */
+	private EdaDecomposer mEdaDecomposer;
+
+	/** Running mean and deviation of the raw signal for updateEDAData(). */
+	private RunningStats mRawEdaStats;
 	private float lastRawEdaValue = 0.0f;
-	private float lastTonicEdaValue = 0.0f;
-	private float lastPhasicEdaValue = 0.0f;
+
+	private RenderThread mRenderThread;
+	private volatile int mTargetFps = DEFAULT_TARGET_FPS;
+
+	/** Copy of the history taken at the start of a frame, only used by the render thread. */
+	private float[] mFrameRawEda, mFrameTonicEda, mFramePhasicEda;
+	private int mFrameSize;
+	/** Number of samples ever appended, as of the current and the last drawn frame. */
+	private long mFrameTotal, mLastFrameTotal;
+	/**
+	 * Extremes of the bucket being filled, in time order, drawn after the
+	 * history in two points kept free for them while decimating.
+	 */
+	private final float[] mFramePendingTonicEda = new float[2], mFramePendingPhasicEda = new float[2];
+	private int mFramePendingSize, mFramePendingSlots;
+
+	/**
+	 * Incremental rendering keeps the trace in an offscreen bitmap. Each frame the
+	 * bitmap is scrolled by the width of the new samples and only their segment is
+	 * drawn. Two bitmaps are used because a bitmap cannot be drawn onto itself.
+	 */
+	private volatile boolean mIncrementalRendering = true;
+	private Bitmap mTraceBitmap, mScrollBitmap;
+	private Canvas mTraceCanvas, mScrollCanvas;
+	private volatile boolean mTraceValid;
+	/** Oldest sample shown in the trace bitmap, counted in samples ever appended. */
+	private long mTraceFirstSample;
+	/**
+	 * Samples ever appended as of the newest one in the trace bitmap. The next
+	 * frame draws everything after it, including samples of frames that were
+	 * dropped.
+	 */
+	private long mTraceTotal;
+	private float mTracePixelsPerPoint;
+	/** Reusable coordinates for drawLines(), four floats per segment. */
+	private float[] mLinePoints;
+
+	/** Records the waveform stage on the render thread, null if not traced. */
+	private volatile LatencyTracer mTracer;
+	/** Arrival of the newest sample, and of the newest sample in the current frame. */
+	private long mNewestArrivalNanos = NO_ARRIVAL, mFrameArrivalNanos = NO_ARRIVAL;
+
+	/** Render statistics, written by the render thread only. */
+	private volatile long mFramesRendered;
+	private volatile long mFramesSkipped;
+	private volatile long mFramesWithoutSurface;
+	private volatile long mSamplesRendered;
 
 	public EDAWaveformView(Context context) {
 		this(context, null, 0);
@@ -76,9 +149,13 @@ public class EDAWaveformView extends SurfaceView {
 		super(context, attrs, defStyle);
 
 		mAudioData = new LinkedList<int[]>();
-		mRawEdaData = new ArrayList<Float>();
-		mTonicEdaData = new ArrayList<Float>();
-		mPhasicEdaData = new ArrayList<Float>();
+		mEdaHistory = new SampleHistory(3, MAX_BUFFER_SIZE);
+		mRawEdaDecimator = new MinMaxDecimator(1);
+		mTonicEdaDecimator = new MinMaxDecimator(1);
+		mPhasicEdaDecimator = new MinMaxDecimator(1);
+		mEdaDecomposer = new EdaDecomposer(new EmaTonicFilter(ALPHA));
+		mRawEdaStats = new RunningStats();
+		getHolder().addCallback(this);
 
 		mPaint = new Paint();
 		mPaint.setStyle(Paint.Style.STROKE);
@@ -96,155 +173,487 @@ public class EDAWaveformView extends SurfaceView {
 		//    }
 	}
 
-	public synchronized void updateEDADataSimple(Float rawEdaValue) {
+	/**
+	 * Sets how many samples are kept for drawing. Defaults to one per pixel of the 640 pixel wide screen.
+	 * @param capacity
+	 */
+	public synchronized void setHistoryCapacity(int capacity) {
+		setDecimation(1);
+		mEdaHistory.setCapacity(capacity);
+	}
+
+	/**
+	 * Shows the given time span across the width of the view. Windows holding more
+	 * than two samples per pixel are decimated to the minimum and maximum of each
+	 * pixel column, so peaks stay visible in 1, 5 or 30 minute windows.
+	 * The samples already shown are discarded.
+	 * 
+	 * @param seconds length of the window
+	 */
+	public synchronized void setTimeWindow(float seconds) {
+		int columns = getWidth() > 0 ? getWidth() : MAX_BUFFER_SIZE;
+		int windowSamples = Math.max(2, (int) (seconds * EDA_SAMPLING_RATE));
+		if (windowSamples <= 2 * columns) {
+			setDecimation(1);
+			mEdaHistory.setCapacity(windowSamples);
+		} else {
+			int samplesPerBucket = (windowSamples + columns - 1) / columns;
+			int buckets = (windowSamples + samplesPerBucket - 1) / samplesPerBucket;
+			setDecimation(samplesPerBucket);
+			mEdaHistory.setCapacity(2 * buckets);
+		}
+		mEdaHistory.clear();
+		requestRender();
+	}
+
+	private void setDecimation(int samplesPerBucket) {
+		mRawEdaDecimator.setSamplesPerBucket(samplesPerBucket);
+		mTonicEdaDecimator.setSamplesPerBucket(samplesPerBucket);
+		mPhasicEdaDecimator.setSamplesPerBucket(samplesPerBucket);
+	}
+
+	/**
+	 * Adds a sample to the points to draw, through the decimators when the time window needs them.
+	 * Only the bucket being filled is updated, so this is O(1) whatever the window length.
+	 * @return true if points were added to the history
+	 */
+	private boolean appendSample(float rawEdaValue, float tonicEdaValue, float phasicEdaValue) {
+		if (mRawEdaDecimator.getSamplesPerBucket() == 1) {
+			mEdaHistory.append(rawEdaValue, tonicEdaValue, phasicEdaValue);
+			return true;
+		}
+		boolean bucketComplete = mRawEdaDecimator.add(rawEdaValue);
+		mTonicEdaDecimator.add(tonicEdaValue);
+		mPhasicEdaDecimator.add(phasicEdaValue);
+		if (!bucketComplete) {
+			return false;
+		}
+		mEdaHistory.append(mRawEdaDecimator.getFirst(), mTonicEdaDecimator.getFirst(), mPhasicEdaDecimator.getFirst());
+		mEdaHistory.append(mRawEdaDecimator.getSecond(), mTonicEdaDecimator.getSecond(), mPhasicEdaDecimator.getSecond());
+		return true;
+	}
+
+	/**
+	 * Replaces the filter used to separate the tonic level from the phasic responses.
+	 * Defaults to the EMA filter with weight ALPHA.
+	 * @param tonicFilter
+	 */
+	public synchronized void setTonicFilter(TonicFilter tonicFilter) {
+		mEdaDecomposer = new EdaDecomposer(tonicFilter);
+	}
+
+	public synchronized void updateEDADataSimple(float rawEdaValue) {
+		updateEDADataSimple(rawEdaValue, NO_ARRIVAL);
+	}
+
+	/**
+	 * @param arrivalNanos System.nanoTime() at which the sample was read, traced
+	 *        as the waveform stage once a frame showing it is posted
+	 */
+	public synchronized void updateEDADataSimple(float rawEdaValue, long arrivalNanos) {
+		mNewestArrivalNanos = arrivalNanos;
 		//Put the new value in the queue
-		float tonicEdaValue = 0.0f;
-		float phasicEdaValue = 0.0f;
-
-		if(mCounter == 0) {
-			tonicEdaValue = rawEdaValue;
-			phasicEdaValue = rawEdaValue - tonicEdaValue; 
-		} else if (mCounter < MAX_BUFFER_SIZE) {
-			tonicEdaValue = ALPHA*lastRawEdaValue + (1 - ALPHA)*lastTonicEdaValue;
-			phasicEdaValue = rawEdaValue - tonicEdaValue;
-		} else if (mCounter >= MAX_BUFFER_SIZE) {
-			tonicEdaValue = ALPHA*lastRawEdaValue + (1 - ALPHA)*lastTonicEdaValue;
-			phasicEdaValue = rawEdaValue - tonicEdaValue;
-			mRawEdaData.remove(0);
-			mTonicEdaData.remove(0);
-			mPhasicEdaData.remove(0);
-		}
-
-		mRawEdaData.add(rawEdaValue);
-		mTonicEdaData.add(tonicEdaValue);
-		mPhasicEdaData.add(phasicEdaValue);
-		lastRawEdaValue = rawEdaValue;
-		lastTonicEdaValue = tonicEdaValue;
-		lastPhasicEdaValue = phasicEdaValue;
-		mCounter++;
+		float phasicEdaValue = mEdaDecomposer.update(rawEdaValue);
+		float tonicEdaValue = mEdaDecomposer.getTonic();
 
-		// Update the display.
-		//if(mRawEdaData.size() == MAX_BUFFER_SIZE){
-			Canvas canvas = getHolder().lockCanvas();
-			if (canvas != null) {
-				drawEDASignal(canvas);
-				getHolder().unlockCanvasAndPost(canvas);
-			}
-		//}
+		// Once the history is full the oldest points are overwritten.
+		appendSample(rawEdaValue, tonicEdaValue, phasicEdaValue);
+
+		// The render thread picks the new points, or the grown bucket, up with the next frame.
+		requestRender();
 	}
 
-	public synchronized void updateEDAData(Float newValue) {
+	public synchronized void updateEDAData(float newValue) {
 		//to prevent the running average from dropping too low if the person took off the sensor mid experiment 
 		if(newValue != 0) {  
-			runningDistanceSquareSum += Math.pow(newValue - runningAverage,2); 
-			runningAverage = (float)(runningAverage*runningCount + newValue)/(runningCount+1);
-
-			runningCount++; 
-			runningDeviation = (float)Math.sqrt(runningDistanceSquareSum/runningCount);
-
-			//		  if(mRawEdaData.size() < MAX_BUFFER_SIZE) { //to check if buffer has enough data to draw
-			//		    	mRawEdaData.add((int) ((newValue - runningAverage)/runningDeviation));
-			//		    } else {
-			//		    	mRawEdaData.remove(0);
-			//		    	mRawEdaData.add((int) ((newValue - runningAverage)/runningDeviation));
-			//		    }
+			mRawEdaStats.add(newValue);
 
 			//Calculate slope for the new value
-			if(mRawEdaData.size() < MAX_BUFFER_SIZE) { //to check if buffer has enough data to draw
-				mRawEdaData.add((float)(newValue - lastRawEdaValue)*1000);
-			} else {
-				mRawEdaData.remove(0);
-				mRawEdaData.add((float)(newValue - lastRawEdaValue)*1000);
-			}
+			appendSample((float)(newValue - lastRawEdaValue)*1000, 0.0f, 0.0f);
 			lastRawEdaValue = newValue;
 		}
 
 		// Update the display.
-		if(mRawEdaData.size() == MAX_BUFFER_SIZE){
-			Canvas canvas = getHolder().lockCanvas();
-			if (canvas != null) {
-				drawEDASignal(canvas);
-				getHolder().unlockCanvasAndPost(canvas);
+		if(mEdaHistory.size() == mEdaHistory.capacity()){
+			requestRender();
+		}
+	}
+
+	/**
+	 * Marks the view dirty and wakes up the render thread. Never blocks on drawing.
+	 * Must be called while holding the view's monitor.
+	 */
+	private void requestRender() {
+		if (mRenderThread != null) {
+			mRenderThread.requestRender();
+		}
+	}
+
+	/**
+	 * Traces samples given with their arrival time up to the frame that shows
+	 * them, null to stop. The tracer's waveform stage must not be recorded by
+	 * any other thread.
+	 */
+	public void setLatencyTracer(LatencyTracer tracer) {
+		mTracer = tracer;
+	}
+
+	/**
+	 * Sets the maximum number of frames drawn per second.
+	 * @param fps
+	 */
+	public void setTargetFps(int fps) {
+		if (fps <= 0) {
+			throw new IllegalArgumentException("Invalid frame rate " + fps);
+		}
+		mTargetFps = fps;
+	}
+
+	public int getTargetFps() {
+		return mTargetFps;
+	}
+
+	/** Number of frames drawn so far. */
+	public long getFramesRendered() {
+		return mFramesRendered;
+	}
+
+	/** Number of frame slots missed because a frame overran its interval. */
+	public long getFramesSkipped() {
+		return mFramesSkipped;
+	}
+
+	/** Number of frames dropped because the surface could not be locked. Their samples go into the next frame. */
+	public long getFramesWithoutSurface() {
+		return mFramesWithoutSurface;
+	}
+
+	/** Average number of samples coalesced into one frame. */
+	public float getSamplesPerFrame() {
+		long frames = mFramesRendered;
+		return frames == 0 ? 0.0f : (float) mSamplesRendered / frames;
+	}
+
+	@Override
+	public synchronized void surfaceCreated(SurfaceHolder holder) {
+		mRenderThread = new RenderThread(holder);
+		mRenderThread.start();
+		if (mEdaHistory.size() > 0) {
+			mRenderThread.requestRender();
+		}
+	}
+
+	/**
+	 * Switches between drawing only the newly arrived segment over a scrolled
+	 * offscreen trace (the default) and redrawing the whole history every frame.
+	 */
+	public void setIncrementalRendering(boolean incremental) {
+		mIncrementalRendering = incremental;
+		mTraceValid = false;
+	}
+
+	@Override
+	public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+		mTraceValid = false;
+		RenderThread renderThread = mRenderThread;
+		if (renderThread != null) {
+			renderThread.requestRender();
+		}
+	}
+
+	@Override
+	public void surfaceDestroyed(SurfaceHolder holder) {
+		RenderThread renderThread;
+		synchronized (this) {
+			renderThread = mRenderThread;
+			mRenderThread = null;
+		}
+		if (renderThread != null) {
+			// The surface must not be drawn on after this method returns.
+			renderThread.quit();
+			boolean interrupted = false;
+			while (renderThread.isAlive()) {
+				try {
+					renderThread.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/** Copies the history for the frame about to be drawn. */
+	private synchronized void takeFrameSnapshot() {
+		int capacity = mEdaHistory.capacity();
+		if (mFrameRawEda == null || mFrameRawEda.length != capacity) {
+			mFrameRawEda = new float[capacity];
+			mFrameTonicEda = new float[capacity];
+			mFramePhasicEda = new float[capacity];
+		}
+		mFrameSize = mEdaHistory.copyChannel(RAW_EDA_CHANNEL, mFrameRawEda, 0);
+		mEdaHistory.copyChannel(TONIC_EDA_CHANNEL, mFrameTonicEda, 0);
+		mEdaHistory.copyChannel(PHASIC_EDA_CHANNEL, mFramePhasicEda, 0);
+		boolean decimating = mRawEdaDecimator.getSamplesPerBucket() > 1;
+		mFramePendingSlots = decimating ? 2 : 0;
+		mFramePendingSize = decimating && mRawEdaDecimator.getPendingCount() > 0 ? 2 : 0;
+		if (mFramePendingSize > 0) {
+			mFramePendingTonicEda[0] = mTonicEdaDecimator.getPendingFirst();
+			mFramePendingTonicEda[1] = mTonicEdaDecimator.getPendingSecond();
+			mFramePendingPhasicEda[0] = mPhasicEdaDecimator.getPendingFirst();
+			mFramePendingPhasicEda[1] = mPhasicEdaDecimator.getPendingSecond();
+		}
+		mFrameArrivalNanos = mNewestArrivalNanos;
+		mNewestArrivalNanos = NO_ARRIVAL;
+		mFrameTotal = mEdaHistory.getTotalAppended();
+	}
+
+	/**
+	 * Draws a frame whenever new samples arrived, but no more often than the target frame rate.
+	 * Sleeps while nothing changed.
+	 */
+	private class RenderThread extends Thread {
+		private final SurfaceHolder mSurfaceHolder;
+		private boolean mDirty;
+		private boolean mRunning = true;
+
+		RenderThread(SurfaceHolder surfaceHolder) {
+			super("EDA waveform renderer");
+			mSurfaceHolder = surfaceHolder;
+		}
+
+		synchronized void requestRender() {
+			mDirty = true;
+			notify();
+		}
+
+		synchronized void quit() {
+			mRunning = false;
+			notify();
+		}
+
+		@Override
+		public void run() {
+			long lastFrameNanos = 0;
+			while (true) {
+				synchronized (this) {
+					while (mRunning && !mDirty) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if (!mRunning) {
+						return;
+					}
+				}
+
+				// Let the samples arriving during the rest of the frame interval pile up.
+				long frameIntervalNanos = 1000000000L / mTargetFps;
+				long now = System.nanoTime();
+				long nextFrameNanos = lastFrameNanos + frameIntervalNanos;
+				if (lastFrameNanos != 0 && now < nextFrameNanos) {
+					try {
+						Thread.sleep((nextFrameNanos - now) / 1000000L, (int) ((nextFrameNanos - now) % 1000000L));
+					} catch (InterruptedException e) {
+						return;
+					}
+					now = System.nanoTime();
+				}
+				lastFrameNanos = now;
+
+				synchronized (this) {
+					mDirty = false;
+				}
+				takeFrameSnapshot();
+				Canvas canvas = mSurfaceHolder.lockCanvas();
+				if (canvas == null) {
+					mFramesWithoutSurface++;
+					continue;
+				}
+				try {
+					drawEDASignal(canvas);
+				} finally {
+					mSurfaceHolder.unlockCanvasAndPost(canvas);
+				}
+				// The frame is on its way to the display; the compositor shows it with the next vsync.
+				LatencyTracer tracer = mTracer;
+				if (tracer != null && mFrameArrivalNanos != NO_ARRIVAL) {
+					tracer.recordSince(LatencyTracer.STAGE_WAVEFORM, mFrameArrivalNanos);
+				}
+				mSamplesRendered += mFrameTotal - mLastFrameTotal;
+				mLastFrameTotal = mFrameTotal;
+				mFramesRendered++;
+				// A frame that takes longer than the interval costs the following frame slots.
+				long frameNanos = System.nanoTime() - now;
+				if (frameNanos > frameIntervalNanos) {
+					mFramesSkipped += frameNanos / frameIntervalNanos;
+				}
 			}
 		}
 	}
 
 
 	/**
-	 * Repaints the view's surface.
+	 * Repaints the view's surface from the snapshot taken for the current frame.
+	 * Called on the render thread only.
 	 * 
 	 * @param canvas the {@link Canvas} object on which to draw.
 	 */
 	private void drawEDASignal(Canvas canvas) {
-		// Clear the screen each time because SurfaceView won't do this for us.
-		canvas.drawColor(Color.BLACK);
-
-		float width = getWidth();
-		float height = getHeight();
-		int numPixelsPerPoint = (int)width/MAX_BUFFER_SIZE;
-		float centerY = height / 2;
+		int width = getWidth();
+		int height = getHeight();
 		float xAxisPos = (3* height) / 4;
+		// Horizontal distance between two samples; the history and the pending bucket span the whole width.
+		float pixelsPerPoint = (float)width/(mFrameRawEda.length + mFramePendingSlots);
 
-		// We draw the history from oldest to newest so that the older audio
-		// data is further back and darker than the most recent data.
-		int colorDelta = 255 / (HISTORY_SIZE + 1);
-		int brightness = colorDelta;
+		if (mLinePoints == null || mLinePoints.length < 4 * mFrameRawEda.length) {
+			mLinePoints = new float[4 * mFrameRawEda.length];
+		}
 
+		if (!mIncrementalRendering) {
+			// Clear the screen each time because SurfaceView won't do this for us.
+			canvas.drawColor(Color.BLACK);
+			drawSegments(canvas, 0, pixelsPerPoint, xAxisPos, mFrameTotal - mFrameSize);
+			drawPending(canvas, pixelsPerPoint, xAxisPos, mFrameTotal - mFrameSize);
+			drawAxis(canvas, width, xAxisPos);
+			return;
+		}
 
-		//mPaint.setColor(Color.argb(brightness, 128, 255, 192));
-		mPaint.setARGB(120, 255, 0, 0);	
+		if (mTraceBitmap == null || mTraceBitmap.getWidth() != width || mTraceBitmap.getHeight() != height) {
+			mTraceBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			mScrollBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			mTraceCanvas = new Canvas(mTraceBitmap);
+			mScrollCanvas = new Canvas(mScrollBitmap);
+			mTraceValid = false;
+		}
 
+		long firstSample = mFrameTotal - mFrameSize;
+		long newSamples = mFrameTotal - mTraceTotal;
+		// A frame with more new samples than the history holds has nothing left to scroll.
+		if (!mTraceValid || newSamples >= mFrameSize || mTraceFirstSample > firstSample
+				|| mTracePixelsPerPoint != pixelsPerPoint) {
+			mTraceCanvas.drawColor(Color.BLACK);
+			drawSegments(mTraceCanvas, 0, pixelsPerPoint, xAxisPos, firstSample);
+			mTraceValid = true;
+		} else {
+			int shift = pixelOffset(firstSample, pixelsPerPoint) - pixelOffset(mTraceFirstSample, pixelsPerPoint);
+			if (shift > 0) {
+				mScrollCanvas.drawColor(Color.BLACK);
+				mScrollCanvas.drawBitmap(mTraceBitmap, -shift, 0, null);
+				Bitmap bitmap = mTraceBitmap;
+				mTraceBitmap = mScrollBitmap;
+				mScrollBitmap = bitmap;
+				Canvas bitmapCanvas = mTraceCanvas;
+				mTraceCanvas = mScrollCanvas;
+				mScrollCanvas = bitmapCanvas;
+			}
+			// Start one sample early so the new segment joins the existing trace.
+			drawSegments(mTraceCanvas, Math.max(0, mFrameSize - (int) newSamples - 1), pixelsPerPoint, xAxisPos, firstSample);
+		}
+		mTraceFirstSample = firstSample;
+		mTraceTotal = mFrameTotal;
+		mTracePixelsPerPoint = pixelsPerPoint;
+
+		canvas.drawBitmap(mTraceBitmap, 0, 0, null);
+		// Not final, so drawn on the frame rather than into the trace.
+		drawPending(canvas, pixelsPerPoint, xAxisPos, firstSample);
+		drawAxis(canvas, width, xAxisPos);
+	}
+
+	private void drawAxis(Canvas canvas, int width, float xAxisPos) {
 		mPaint.setARGB(255, 80, 80, 80);
 		canvas.drawLine(0,xAxisPos, width-1,xAxisPos, mPaint); //xAxis
-		
-		
-		float lastX = -1;
-		float lastRawEdaY = -1;
-		float lastTonicEdaY = -1;
-		float lastPhasicEdaY = -1;
-
-		// For efficiency, we don't draw all of the samples in the buffer,
-		// but only the ones that align with pixel boundaries.
-		for (int index = 0; index < mRawEdaData.size(); index++) {
-			//int index = (int) ((x / width) * MAX_BUFFER_SIZE);
-			int x = index*numPixelsPerPoint ;
-			Float rawEdaSample = mRawEdaData.get(index);
-			Float tonicEdaSample = mTonicEdaData.get(index);
-			Float phasicEdaSample = mPhasicEdaData.get(index);
-			float rawEdaY = xAxisPos - (rawEdaSample / MAX_EDA_VALUE) * xAxisPos;
-			if(rawEdaY < 0.0f) { //Clipping of the wave when it goes beyond the prescribed limits
-				rawEdaY = 0.1f;
-			}
+	}
 
-			float tonicEdaY = xAxisPos - (tonicEdaSample / MAX_EDA_VALUE) * xAxisPos;
-			if(tonicEdaY < 0.0f) { //Clipping of the wave when it goes beyond the prescribed limits
-				tonicEdaY = 0.1f;
-			}
-			
-			float phasicEdaY = xAxisPos - (phasicEdaSample / MAX_EDA_VALUE) * xAxisPos;
-			if(phasicEdaY < 0.0f) { //Clipping of the wave when it goes beyond the prescribed limits
-				phasicEdaY = 0.1f;
-			}
-			
-			if (lastX != -1) {
-				//canvas.drawLine(lastX, lastY, x, y, mPaint);
-				//        	mPaint.setARGB(120, 0, 120, 0);
-				//        	canvas.drawLine(0, runningAverage + centerY, width-1, runningAverage + centerY, mPaint); //running average
-				/*mPaint.setColor(Color.YELLOW);
-				canvas.drawLine(lastX, lastRawEdaY,x,rawEdaY, mPaint); //Raw EDA Signal 
-*/				mPaint.setColor(Color.GREEN); 
-				canvas.drawLine(lastX, lastTonicEdaY,x,tonicEdaY, mPaint); //Tonic EDA Signal 
-				mPaint.setColor(Color.MAGENTA); 
-				canvas.drawLine(lastX, lastPhasicEdaY,x,phasicEdaY, mPaint); //Phasic EDA Signal 
-			}
+	/**
+	 * Draws the tonic and phasic traces from snapshot index start to the newest
+	 * sample, with one drawLines() call per channel.
+	 * 
+	 * @param firstSample number of samples appended before snapshot index 0, used to
+	 *        place samples at stable pixel positions while the trace scrolls
+	 */
+	private void drawSegments(Canvas canvas, int start, float pixelsPerPoint, float xAxisPos, long firstSample) {
+		if (mFrameSize - start < 2) {
+			return;
+		}
+		/*mPaint.setColor(Color.YELLOW);
+		drawChannelSegments(canvas, mFrameRawEda, start, pixelsPerPoint, xAxisPos, firstSample); //Raw EDA Signal
+*/		mPaint.setColor(Color.GREEN);
+		drawChannelSegments(canvas, mFrameTonicEda, start, pixelsPerPoint, xAxisPos, firstSample); //Tonic EDA Signal
+		mPaint.setColor(Color.MAGENTA);
+		drawChannelSegments(canvas, mFramePhasicEda, start, pixelsPerPoint, xAxisPos, firstSample); //Phasic EDA Signal
+	}
+
+	/** Draws the bucket being filled on from the newest point of the history. */
+	private void drawPending(Canvas canvas, float pixelsPerPoint, float xAxisPos, long firstSample) {
+		if (mFramePendingSize == 0) {
+			return;
+		}
+		mPaint.setColor(Color.GREEN);
+		drawPendingSegments(canvas, mFrameTonicEda, mFramePendingTonicEda, pixelsPerPoint, xAxisPos, firstSample);
+		mPaint.setColor(Color.MAGENTA);
+		drawPendingSegments(canvas, mFramePhasicEda, mFramePendingPhasicEda, pixelsPerPoint, xAxisPos, firstSample);
+	}
+
+	private void drawPendingSegments(Canvas canvas, float[] samples, float[] pending, float pixelsPerPoint,
+			float xAxisPos, long firstSample) {
+		float[] points = mLinePoints;
+		int base = pixelOffset(firstSample, pixelsPerPoint);
+		// Joins the newest point, or starts at the first pending one if the history is empty.
+		int start = mFrameSize > 0 ? mFrameSize - 1 : 0;
+		float lastX = pixelOffset(firstSample + start, pixelsPerPoint) - base;
+		float lastY = toY(mFrameSize > 0 ? samples[start] : pending[0], xAxisPos);
+		int count = 0;
+		for (int i = 0; i < mFramePendingSize; i++) {
+			float x = pixelOffset(firstSample + mFrameSize + i, pixelsPerPoint) - base;
+			float y = toY(pending[i], xAxisPos);
+			points[count++] = lastX;
+			points[count++] = lastY;
+			points[count++] = x;
+			points[count++] = y;
+			lastX = x;
+			lastY = y;
+		}
+		canvas.drawLines(points, 0, count, mPaint);
+	}
 
+	private void drawChannelSegments(Canvas canvas, float[] samples, int start, float pixelsPerPoint,
+			float xAxisPos, long firstSample) {
+		float[] points = mLinePoints;
+		int base = pixelOffset(firstSample, pixelsPerPoint);
+		float lastX = pixelOffset(firstSample + start, pixelsPerPoint) - base;
+		float lastY = toY(samples[start], xAxisPos);
+		int count = 0;
+		for (int index = start + 1; index < mFrameSize; index++) {
+			float x = pixelOffset(firstSample + index, pixelsPerPoint) - base;
+			float y = toY(samples[index], xAxisPos);
+			points[count++] = lastX;
+			points[count++] = lastY;
+			points[count++] = x;
+			points[count++] = y;
 			lastX = x;
-			lastRawEdaY = rawEdaY;
-			lastTonicEdaY = tonicEdaY;
-			lastPhasicEdaY = phasicEdaY;
+			lastY = y;
+		}
+		canvas.drawLines(points, 0, count, mPaint);
+	}
 
+	/**
+	 * Pixel position of a sample relative to the very first sample. Rounding absolute
+	 * positions keeps the scroll distance exact when pixelsPerPoint is fractional.
+	 */
+	private static int pixelOffset(long sample, float pixelsPerPoint) {
+		return (int) Math.round(sample * (double) pixelsPerPoint);
+	}
 
-			//brightness += colorDelta;
+	private static float toY(float sample, float xAxisPos) {
+		float y = xAxisPos - (sample / MAX_EDA_VALUE) * xAxisPos;
+		if(y < 0.0f) { //Clipping of the wave when it goes beyond the prescribed limits
+			y = 0.1f;
 		}
+		return y;
 	}
 }
@@ -0,0 +1,82 @@
+package edu.gatech.ubicomp.glim;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.view.Choreographer;
+
+/**
+ * Runs a drain callback on the UI thread at most once per display frame.
+ * 
+ * Sensor threads call requestDrain() after queueing a sample. Only the first
+ * request since the last drain posts a frame callback, so the UI thread sees
+ * one message per frame however fast the sensors deliver.
+ */
+public class FrameDrainScheduler implements Choreographer.FrameCallback {
+
+	/** Called on the UI thread to empty the sample queues. */
+	public interface Drain {
+		void drainQueues();
+	}
+
+	private final Choreographer mChoreographer;
+	private final Drain mDrain;
+	private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+	private final AtomicLong mRequests = new AtomicLong();
+	private volatile long mDrains;
+	/** UI thread only. */
+	private long mMaxFrameNanos;
+
+	/** Must be created on the UI thread, the Choreographer is per thread. */
+	public FrameDrainScheduler(Drain drain) {
+		mChoreographer = Choreographer.getInstance();
+		mDrain = drain;
+	}
+
+	/** Safe to call from any thread. */
+	public void requestDrain() {
+		mRequests.incrementAndGet();
+		if (mScheduled.compareAndSet(false, true)) {
+			mChoreographer.postFrameCallback(this);
+		}
+	}
+
+	/** Drops a pending drain, e.g. when the activity goes away. */
+	public void cancel() {
+		mChoreographer.removeFrameCallback(this);
+		mScheduled.set(false);
+	}
+
+	@Override
+	public void doFrame(long frameTimeNanos) {
+		// Cleared first so samples queued during the drain schedule the next frame.
+		mScheduled.set(false);
+		mDrains++;
+		mDrain.drainQueues();
+		long frameNanos = System.nanoTime() - frameTimeNanos;
+		if (frameNanos > mMaxFrameNanos) {
+			mMaxFrameNanos = frameNanos;
+		}
+	}
+
+	/**
+	 * Longest time from a frame's vsync to the end of its drain since the last
+	 * call, 0 if nothing was drained. UI thread only.
+	 */
+	public long takeMaxFrameNanos() {
+		long max = mMaxFrameNanos;
+		mMaxFrameNanos = 0;
+		return max;
+	}
+
+	/** Number of requestDrain() calls, one per queued sample. */
+	public long getRequestCount() {
+		return mRequests.get();
+	}
+
+	/** Number of times the UI thread actually ran the drain. */
+	public long getDrainCount() {
+		return mDrains;
+	}
+}
@@ -1,52 +1,57 @@
 package edu.gatech.ubicomp.glim;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
-import java.util.UUID;
-
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.json.JSONObject;
+import java.net.MalformedURLException;
+import java.net.URL;
 
 import com.google.android.glass.touchpad.Gesture;
 import com.google.android.glass.touchpad.GestureDetector;
 
-import zephyr.android.HxMBT.BTClient;
-import zephyr.android.HxMBT.ZephyrProtocol;
+import edu.gatech.ubicomp.glim.data.SessionRecorder;
+import edu.gatech.ubicomp.glim.data.UploadPipeline;
+import edu.gatech.ubicomp.glim.pipeline.EdaPipeline;
+import edu.gatech.ubicomp.glim.pipeline.GcCounter;
+import edu.gatech.ubicomp.glim.pipeline.HrmPipeline;
+import edu.gatech.ubicomp.glim.pipeline.LatencyTracer;
+import edu.gatech.ubicomp.glim.pipeline.MetricsRegistry;
+import edu.gatech.ubicomp.glim.pipeline.PhysioState;
+import edu.gatech.ubicomp.glim.pipeline.SampleQueue;
+import edu.gatech.ubicomp.glim.sensor.QSensorSample;
+import edu.gatech.ubicomp.glim.sensor.SensorConnection;
+import edu.gatech.ubicomp.glim.sensor.SensorLineReader;
+import edu.gatech.ubicomp.glim.sensor.SensorTransport;
+import edu.gatech.ubicomp.glim.signal.BandClassifier;
+import edu.gatech.ubicomp.glim.sim.HxmSource;
+import edu.gatech.ubicomp.glim.sim.QSensorSource;
+import edu.gatech.ubicomp.glim.sim.SimulatedTransport;
+import edu.gatech.ubicomp.glim.sim.TimedSource;
 
 import android.media.AudioManager;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
+import android.os.SystemClock;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothAssignedNumbers;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.graphics.Color;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.view.ViewGroup.MarginLayoutParams;
 import android.view.WindowManager;
 import android.view.animation.Animation;
@@ -86,35 +91,111 @@ public class GlimMainActivity extends Activity {
 
 	/** Bluetooth connection related variables */
 	private BluetoothAdapter mBtAdapter = null;
-	private BluetoothSocket mBtSocket;
-	private BluetoothDevice mBtDevice, mEdaBtDevice, mHrmBtDevice;
-	private String mEdaBtDeviceName, mHrmBtDeviceName;
 	private static boolean waitingForBonding = true;
 
-	/** Bluetooth communication variables for Zephyr API */
-	private BTClient mZephyrBtClient;
-	private ZephyrProtocol mZephyrProtocol;
+	/**
+	 * Keep the sensors connected, each on a thread of its own, from a two finger
+	 * tap to the next. Created on the first connect and reused after that.
+	 */
+	private SensorConnection mEdaConnection;
+	private SensorConnection mHrmConnection;
+	/** Addresses of the sensors found in earlier sessions. */
+	public static final String DEVICE_CACHE = "devices";
 
 	/** I/O related variables */
-	private OutputStream mOutputStream;
-	private InputStream mInputStream;
 	private HRMListener mHrmListener;
-	private byte[] mReadBuffer, mAnnotationMarker;
-	private ArrayList<String> mEDABuffer;
+	private byte[] mAnnotationMarker;
+	/** Reader of the current EDA link, replaced on every reconnect. */
+	private volatile SensorLineReader mEdaLineReader;
+	/**
+	 * Parses, decomposes, publishes, records and uploads every EDA line on the
+	 * reader thread, then hands the sample to mEdaSampleListener.
+	 */
+	private EdaPipeline mEdaPipeline;
+
+	/**
+	 * Sensor threads hand samples to the UI thread through these queues, which the
+	 * UI drains once per frame keeping only the newest sample. A slow UI simply
+	 * loses old samples, it never holds up the sensor threads. EDA samples are
+	 * queued with their arrival time on the System.nanoTime() clock, for tracing.
+	 */
+	private static final int EDA_QUEUE_CAPACITY = 64;
+	private static final int HRM_QUEUE_CAPACITY = 16;
+	private static final int EDA_SAMPLE_VALUE = 0;
+	private static final int EDA_SAMPLE_SCR_RATE = 1;
+	private final SampleQueue mEdaQueue = new SampleQueue(EDA_QUEUE_CAPACITY, 2, SampleQueue.OverflowPolicy.OVERWRITE_OLDEST);
+	private final SampleQueue mHrmQueue = new SampleQueue(HRM_QUEUE_CAPACITY, HRMListener.SAMPLE_WIDTH,
+			SampleQueue.OverflowPolicy.OVERWRITE_OLDEST);
+	/** Drain buffers, only used on the UI thread. */
+	private final float[] mEdaDrainSample = new float[2];
+	private final float[] mHrmDrainSample = new float[HRMListener.SAMPLE_WIDTH];
+	private FrameDrainScheduler mDrainScheduler;
+
+	/** Stage latencies of EDA samples, logged on disconnect and on a right swipe, and on the metrics overlay. */
+	private final LatencyTracer mLatencyTracer = new LatencyTracer();
+	private final RenderTrace mRenderTrace = new RenderTrace();
+	/** Arrival of the newest sample drained, drawn and on the display; UI thread only. */
+	private long mDrainedArrivalNanos = SampleQueue.EMPTY;
+	private long mDrawnArrivalNanos = SampleQueue.EMPTY;
+	private long mShownArrivalNanos = SampleQueue.EMPTY;
+
+	/**
+	 * Pipeline metrics, sampled on the UI thread every METRICS_INTERVAL_MS,
+	 * recorded with the session and shown on an overlay a left swipe toggles.
+	 */
+	private static final long METRICS_INTERVAL_MS = 1000;
+	private final MetricsRegistry mMetrics = new MetricsRegistry();
+	private final GcCounter mGcCounter = new GcCounter();
+	private MetricsRegistry.Metric mReadErrors;
+	private SessionRecorder.Channel mMetricsRecordChannel;
+	private float[] mMetricsRecordValues;
+	private View mMetricsOverlay;
+	private TextView mMetricsText;
+	private final StringBuilder mMetricsDump = new StringBuilder();
+	private final Runnable mSampleMetricsTask = new Runnable() {
+		public void run() {
+			sampleMetrics();
+			mScreenHandler.postDelayed(this, METRICS_INTERVAL_MS);
+		}
+	};
+
+	/** Session recording, one channel per producing thread. */
+	private SessionRecorder mSessionRecorder;
+	private SessionRecorder.Channel mBandRecordChannel;
+	private SessionRecorder.Channel mAnnotationRecordChannel;
+	private SessionRecorder.Channel mHrmRecordChannel;
+	public static final String SESSION_DIRECTORY = "sessions";
+
+	/**
+	 * Batches EDA samples and annotations for the server, spooling them while it
+	 * is unreachable. Null while uploads are off.
+	 */
+	private UploadPipeline mUploadPipeline;
+	/**
+	 * Ingest server the batches go to, null to keep uploads off. Batches are
+	 * gzip compressed with annotations as an array, which annotateglasseda.php
+	 * cannot parse, so this must be a LIMServer IngestServer (or StandInServer),
+	 * e.g. "http://host:8080/ingest".
+	 */
+	public static final String UPLOAD_URL = null;
+	public static final String UPLOAD_SPOOL_DIRECTORY = "upload-spool";
 
 	/** Variables to keep track of I/O */
-	private int mReadBufferPos;
-	private int mBufferSize = 0;
 	private int mCounter = 0;
 
-	/** Seven bands that we are currently using.*/
-	private final static int LOWEST_BAND = 249;
-	private final static int SECOND_LOWER_BAND = 250;
-	private final static int FIRST_LOWER_BAND = 251; 
-	private final static int BASE_BAND = 252;
-	private final static int FIRST_UPPER_BAND = 253;
-	private final static int SECOND_UPPER_BAND = 254;
-	private final static int HIGHEST_BAND = 255;
+	/**
+	 * Seven bands that we are currently using, indexed by BandClassifier band:
+	 * Dark Blue, Light Blue, Dark Green, LIGHT GREEN (BASELINE), Yellow, Orange and RED.
+	 */
+	private final static int[] BAND_BACKGROUNDS = { R.color.blue_bright, R.color.blue_dull,
+		R.color.green_bright, R.color.green_dull, R.color.yellow_bright, R.color.orange_bright,
+		R.color.red_bright };
+	private final static int[] BAND_TEXT_COLORS = { Color.WHITE, Color.WHITE, Color.WHITE,
+		Color.WHITE, Color.BLACK, Color.BLACK, Color.BLACK };
+
+	/** Extra shift steps needed to leave a band, and the least time a band stays on screen. */
+	private final static int BAND_HYSTERESIS_SHIFT = 1;
+	private final static long BAND_MIN_DWELL_TIME = 1000;
 
 	/** Base band width.*/
 	private final static float BASE_BAND_WIDTH_DP = 180f;
@@ -124,7 +205,9 @@ public class GlimMainActivity extends Activity {
 
 	/** Stores the last value of shift. Used to identify if a shift led to band change. */
 	private int lastShiftValue = 0;
-	private int lastBandValue = BASE_BAND;
+	private final BandClassifier mBandClassifier = new BandClassifier(BAND_HYSTERESIS_SHIFT, BAND_MIN_DWELL_TIME);
+	/** Indicator width of every band in pixels, computed in onCreate(). */
+	private final int[] mBandWidths = new int[BandClassifier.BAND_COUNT];
 	private boolean isBandChanging = false;
 
 	/** How long should the screen remain bright when a band changes in milliseconds*/
@@ -132,6 +215,13 @@ public class GlimMainActivity extends Activity {
 
 	/** Variable to dim and brighten the screen */
 	WindowManager.LayoutParams mWindowMgrLayoutParams;
+	/** Dims the screen SCREEN_UP_TIME after the last band change; rescheduled, never stacked. */
+	private final Handler mScreenHandler = new Handler();
+	private final Runnable mDimScreenTask = new Runnable() {
+		public void run() {
+			dimScreen();
+		}
+	};
 
 	/** Factor used to convert from dp into actual number of pixels*/
 	float dpToPixelsScale;
@@ -148,13 +238,6 @@ public class GlimMainActivity extends Activity {
 	/** Minimum percentage by which either signal has to change to jump a level*/
 	public final static float MIN_PERCENTAGE_LEVEL_SHIFT = 10; 
 
-	/** UUIDs for connecting with other devices. */
-	private static final UUID MY_UUID_FOR_ANDROID_DEVICES = UUID
-			.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
-	// Standard SerialPortServiceID
-	private static final UUID MY_UUID_FOR_NON_ANDROID_DEVICES = UUID
-			.fromString("00001101-0000-1000-8000-00805f9b34fb");
-
 	/** MAC address for all components. */
 	public static final String BT_MAC_ADD_FOR_EDA_SENSOR = "00:06:66:0A:50:04";//Ivan's Q Sensor "00:06:66:0A:50:04";//Aman's Q Sensor "00:06:66:0A:50:D5";
 	public static final String BT_MAC_ADD_FOR_GLASS = "F8:8F:CA:24:BF:32";//Ivan's Glass"F8:8F:CA:24:BF:32"; //Aman's Glass"F8:8F:CA:24:82:48";
@@ -174,14 +257,20 @@ public class GlimMainActivity extends Activity {
 	public static final String PIN = "0000";
 	public static final int MAX_BUFFER_SIZE = 32;
 	public static final int EDA_SAMPLING_RATE = 32;
-	public static final int MSG_WHAT_HEART_RATE = 0x100;
-	public static final int MSG_WHAT_INSTANT_SPEED = 0x101;
 
-	/**Stores most current value for EDA and Heart Rate*/
-	public HashMap<String, Float> mapHrEda;
+	/** Connects simulated sensors instead of the paired ones, for testing without hardware. */
+	public static final boolean USE_SIMULATED_SENSORS = false;
+
+	/** Most current value of every channel, written by the sensor threads. */
+	private final PhysioState mPhysioState = new PhysioState();
+	/** Snapshot the band logic reads from, only used on the UI thread. */
+	private final PhysioState.Snapshot mBandSnapshot = mPhysioState.newSnapshot();
 
 	/** UI related variables. */
 	private TextView edaValueTV;
+	private TextView scrRateTV;
+	/** SCR rate currently displayed, -1 before the first update. Only used on the UI thread. */
+	private int mShownScrRate = -1;
 	private EditText mTextbox;
 	private ImageView mImageView;
 	private Animation mPulseHeartAnim;
@@ -200,156 +289,241 @@ public class GlimMainActivity extends Activity {
 	TextView instantSpeedTV = null;
 
 	/** Data listener related variables. */
-	volatile boolean stopWorker;
 	boolean isConnected = false;
-	Thread mEdaSensorListenerThread;
-	final Handler mHrmMsgHandler = new Handler() {
-		public void handleMessage(Message msg) {
-			switch (msg.what) {
-			case MSG_WHAT_HEART_RATE:
-				String heartRateText = msg.getData().getString("HeartRate");
-				//System.out.println("Heart Rate Info is " + heartRateText);
-				if (hrValueTV != null) {
-					hrValueTV.setText(heartRateText);
-					float currentHR = Float.parseFloat(heartRateText);
-					mapHrEda.put("HR", currentHR);
 
-					Log.d("Heart Rate",Float.toString(currentHR));
-					updateBand();
+	/**
+	 * Runs on the UI thread once per frame while samples are arriving.
+	 * Only the newest sample of each sensor is shown.
+	 */
+	private final FrameDrainScheduler.Drain mQueueDrain = new FrameDrainScheduler.Drain() {
+		public void drainQueues() {
+			boolean changed = false;
+			long arrival = mEdaQueue.pollLatest(mEdaDrainSample);
+			if (arrival != SampleQueue.EMPTY) {
+				mLatencyTracer.recordSince(LatencyTracer.STAGE_HAND_OFF, arrival);
+				float eda = mEdaDrainSample[EDA_SAMPLE_VALUE];
+				edaValueTV.setText(Float.toString(eda));
+				int scrRate = (int) mEdaDrainSample[EDA_SAMPLE_SCR_RATE];
+				if (scrRate != mShownScrRate) {
+					scrRateTV.setText(getString(R.string.scr_rate_format, scrRate));
+					mShownScrRate = scrRate;
+				}
+				changed = true;
+			}
+			if (mHrmQueue.pollLatest(mHrmDrainSample) != SampleQueue.EMPTY) {
+				int heartRate = (int) mHrmDrainSample[HRMListener.SAMPLE_HEART_RATE];
+				if (hrValueTV != null) {
+					hrValueTV.setText(Integer.toString(heartRate));
 				}
-				break;
-			case MSG_WHAT_INSTANT_SPEED:
-				String InstantSpeedtext = msg.getData().getString(
-						"InstantSpeed");
-
 				if (instantSpeedTV != null) {
-					instantSpeedTV.setText(InstantSpeedtext);
+					instantSpeedTV.setText(Float.toString(mHrmDrainSample[HRMListener.SAMPLE_INSTANT_SPEED]));
 				}
-				break;
+				changed = true;
+			}
+			if (changed) {
+				updateBand();
+			}
+			if (arrival != SampleQueue.EMPTY) {
+				mLatencyTracer.recordSince(LatencyTracer.STAGE_CLASSIFY, arrival);
+				mDrainedArrivalNanos = arrival;
 			}
 		}
 	};
 
 	/**
-	 * Dark Blue, Light Blue, Dark Green, LIGHT GREEN (BASELINE), Yellow, Orange and RED.
-	 * @param heartRateValue
+	 * Traces when the newest drained EDA sample reaches the display: the next
+	 * draw renders it and the vsync after that shows the frame. The waveform
+	 * SurfaceView is not drawn here; it traces its own frames.
 	 */
-	public void updateBand() {
-		int shiftValue = totalShift();
-		Handler handler = new Handler();
-		int currentBandValue;
-		Log.d("Shift", Integer.toString(shiftValue));
-
-		switch(shiftValue) {
-		case -6:
-		case -5: //Lowest Band //Dark Blue
-			currentBandValue = LOWEST_BAND;
-			if(currentBandValue != lastBandValue) {
-				llSignalIndicator.setBackgroundResource(R.color.blue_bright);
-				hrValueTV.setTextColor(Color.WHITE);
-				edaValueTV.setTextColor(Color.WHITE);
+	private class RenderTrace implements ViewTreeObserver.OnDrawListener, Choreographer.FrameCallback {
+
+		@Override
+		public void onDraw() {
+			if (mDrainedArrivalNanos == SampleQueue.EMPTY || mDrawnArrivalNanos != SampleQueue.EMPTY) {
+				return;
+			}
+			mDrawnArrivalNanos = mDrainedArrivalNanos;
+			mDrainedArrivalNanos = SampleQueue.EMPTY;
+			Choreographer.getInstance().postFrameCallback(this);
+		}
+
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			mLatencyTracer.recordSince(LatencyTracer.STAGE_RENDER, mDrawnArrivalNanos);
+			mShownArrivalNanos = mDrawnArrivalNanos;
+			mDrawnArrivalNanos = SampleQueue.EMPTY;
+		}
+	}
+
+	private void registerMetrics() {
+		mMetrics.counter("bytes_read", new MetricsRegistry.Source() {
+			public long read() {
+				SensorLineReader reader = mEdaLineReader;
+				return reader == null ? 0 : reader.getBytesRead();
+			}
+		});
+		mMetrics.counter("lines_parsed", new MetricsRegistry.Source() {
+			public long read() {
+				return mEdaPipeline.getParser().getLinesParsed();
+			}
+		});
+		mMetrics.counter("parse_errors", new MetricsRegistry.Source() {
+			public long read() {
+				return mEdaPipeline.getParser().getMalformedLines();
+			}
+		});
+		mReadErrors = mMetrics.counter("read_errors");
+		mMetrics.counter("ui_dropped", new MetricsRegistry.Source() {
+			public long read() {
+				return mEdaQueue.getOverwritten() + mHrmQueue.getOverwritten();
+			}
+		});
+		mMetrics.counter("record_dropped", new MetricsRegistry.Source() {
+			public long read() {
+				return mSessionRecorder.getDropped();
+			}
+		});
+		mMetrics.counter("upload_dropped", new MetricsRegistry.Source() {
+			public long read() {
+				return mUploadPipeline == null ? 0 : mUploadPipeline.getDroppedSamples();
+			}
+		});
+		mMetrics.gauge("eda_queue", new MetricsRegistry.Source() {
+			public long read() {
+				return mEdaQueue.size();
+			}
+		});
+		mMetrics.gauge("hrm_queue", new MetricsRegistry.Source() {
+			public long read() {
+				return mHrmQueue.size();
+			}
+		});
+		mMetrics.counter("band_changes", new MetricsRegistry.Source() {
+			public long read() {
+				return mBandClassifier.getChangeCount();
+			}
+		});
+		mMetrics.counter("upload_bytes", new MetricsRegistry.Source() {
+			public long read() {
+				return mUploadPipeline == null ? 0 : mUploadPipeline.getBytesSent();
 			}
-			break;
-		case -4:
-		case -3: //Second Lower Band //Light bLue
-			currentBandValue = SECOND_LOWER_BAND;
-			if(currentBandValue != lastBandValue) {
-				llSignalIndicator.setBackgroundResource(R.color.blue_dull);
-				hrValueTV.setTextColor(Color.WHITE);
-				edaValueTV.setTextColor(Color.WHITE);
+		});
+		mMetrics.counter("upload_failures", new MetricsRegistry.Source() {
+			public long read() {
+				return mUploadPipeline == null ? 0 : mUploadPipeline.getFailedRequests();
 			}
-			break;
-		case -2:
-		case -1: //First Lower Band //Dark Green
-			currentBandValue = FIRST_LOWER_BAND;
-			if(currentBandValue != lastBandValue) {
-				llSignalIndicator.setBackgroundResource(R.color.green_bright);
-				hrValueTV.setTextColor(Color.WHITE);
-				edaValueTV.setTextColor(Color.WHITE);
+		});
+		mMetrics.gauge("spool_batches", new MetricsRegistry.Source() {
+			public long read() {
+				return mUploadPipeline == null ? 0 : mUploadPipeline.getSpoolCount();
 			}
-			break;
-		case 0:
-		case 1:// Base Condition //Light Green
-			currentBandValue = BASE_BAND;
-			if(currentBandValue != lastBandValue) {
-				llSignalIndicator.setBackgroundResource(R.color.green_dull);
-				hrValueTV.setTextColor(Color.WHITE);
-				edaValueTV.setTextColor(Color.WHITE);
+		});
+		mMetrics.gauge("spool_bytes", new MetricsRegistry.Source() {
+			public long read() {
+				return mUploadPipeline == null ? 0 : mUploadPipeline.getSpoolBytes();
 			}
-			break;
-		case 2:
-		case 3:// Active condition //Yellow
-			currentBandValue = FIRST_UPPER_BAND;
-			if(currentBandValue != lastBandValue) {
-				llSignalIndicator.setBackgroundResource(R.color.yellow_bright);
-				hrValueTV.setTextColor(Color.BLACK);
-				edaValueTV.setTextColor(Color.BLACK);
+		});
+		mMetrics.counter("gc_count", mGcCounter);
+		// Longest frame since the previous sample.
+		mMetrics.gauge("frame_us", new MetricsRegistry.Source() {
+			public long read() {
+				return mDrainScheduler.takeMaxFrameNanos() / 1000;
 			}
-			break;
-		case 4:
-		case 5: // Hyper Active condition //Orange
-			currentBandValue = SECOND_UPPER_BAND;
-			if(currentBandValue != lastBandValue) {
-				llSignalIndicator.setBackgroundResource(R.color.orange_bright);
-				hrValueTV.setTextColor(Color.BLACK);
-				edaValueTV.setTextColor(Color.BLACK);
+		});
+		mMetrics.counter("hxm_crc_errors", new MetricsRegistry.Source() {
+			public long read() {
+				HRMListener listener = mHrmListener;
+				return listener == null ? 0 : listener.getCrcFailures();
 			}
-			break;
-		case 6:
-		case 7: //Red
-			currentBandValue = HIGHEST_BAND;
-			if(currentBandValue != lastBandValue) {
-				llSignalIndicator.setBackgroundResource(R.color.red_bright);
-				hrValueTV.setTextColor(Color.BLACK);
-				edaValueTV.setTextColor(Color.BLACK);
+		});
+		mMetrics.counter("eda_link_drops", new MetricsRegistry.Source() {
+			public long read() {
+				SensorConnection connection = mEdaConnection;
+				return connection == null ? 0 : connection.getDrops();
 			}
-			break;
-		default: // Stay in hyper //Red
-			currentBandValue = HIGHEST_BAND;
-			if(currentBandValue != lastBandValue) {
-				llSignalIndicator.setBackgroundResource(R.color.red_bright);
-				hrValueTV.setTextColor(Color.WHITE);
-				edaValueTV.setTextColor(Color.WHITE);
+		});
+		mMetrics.counter("hrm_link_drops", new MetricsRegistry.Source() {
+			public long read() {
+				SensorConnection connection = mHrmConnection;
+				return connection == null ? 0 : connection.getDrops();
 			}
-			break;
+		});
+	}
+
+	private void sampleMetrics() {
+		long now = System.currentTimeMillis();
+		mMetrics.sample(now);
+		mMetrics.copyTo(mMetricsRecordValues);
+		mMetricsRecordChannel.record(now, mMetricsRecordValues);
+		if (mMetricsOverlay.getParent() != null) {
+			showMetrics();
 		}
-		if(currentBandValue != lastBandValue) {
-			llSignalIndicator.getLayoutParams().width = calculateBandWidth(currentBandValue);
-			brightScreen();
-			handler.postDelayed(new Runnable() {
-				public void run() {
-					dimScreen();
-				}
-			}, SCREEN_UP_TIME);
-			lastBandValue = currentBandValue;
+	}
+
+	private void showMetrics() {
+		mMetricsDump.setLength(0);
+		mMetrics.dump(mMetricsDump).append('\n');
+		mLatencyTracer.dump(mMetricsDump);
+		mMetricsText.setText(mMetricsDump.toString());
+	}
+
+	/** Shows or hides the metrics overlay. */
+	private void toggleMetricsOverlay() {
+		if (mMetricsOverlay.getParent() != null) {
+			mAbsoluteFrameLayout.removeView(mMetricsOverlay);
+		} else {
+			showMetrics();
+			mAbsoluteFrameLayout.addView(mMetricsOverlay);
 		}
 	}
 
+	/** Logs the stage latencies traced so far. */
+	private void logLatency() {
+		Log.i("Latency", "Sample age per stage\n" + mLatencyTracer);
+	}
+
+	/**
+	 * Moves the indicator to the band of the current shift. Only touches the views
+	 * when the classifier actually changes band.
+	 */
+	public void updateBand() {
+		int shiftValue = totalShift();
+		if (!mBandClassifier.update(shiftValue, SystemClock.uptimeMillis())) {
+			return;
+		}
+		int band = mBandClassifier.getBand();
+		llSignalIndicator.setBackgroundResource(BAND_BACKGROUNDS[band]);
+		hrValueTV.setTextColor(BAND_TEXT_COLORS[band]);
+		edaValueTV.setTextColor(BAND_TEXT_COLORS[band]);
+		llSignalIndicator.getLayoutParams().width = mBandWidths[band];
+		llSignalIndicator.requestLayout();
+		brightScreen();
+		mScreenHandler.removeCallbacks(mDimScreenTask);
+		mScreenHandler.postDelayed(mDimScreenTask, SCREEN_UP_TIME);
+		mBandRecordChannel.record(System.currentTimeMillis(), band, shiftValue);
+	}
+
 	/**
 	 * Calculating the total shift in band based on percentage increase in both EDA and HR values from base levels.
 	 * Note that either one of them can compensate for the other. Also we are interested in 10% increase only.
 	 * @return
 	 */
 	public int totalShift() {
-		float edaValue = mapHrEda.get("EDA");
-		float hrValue = mapHrEda.get("HR");
-
-		float percentageIncrEDA = ((edaValue-BASE_EDA_VALUE)/BASE_EDA_VALUE)*100; 
-		float percentageIncrHR = ((hrValue-BASE_HR_VALUE)/BASE_HR_VALUE)*100;
-
-		int shiftEDA = (int) (percentageIncrEDA/MIN_PERCENTAGE_LEVEL_SHIFT);
-		int shiftHR = (int) (percentageIncrHR/MIN_PERCENTAGE_LEVEL_SHIFT);
+		// Until a sensor reports, its channel counts as being at the base level.
+		mPhysioState.read(mBandSnapshot);
+		float edaValue = mBandSnapshot.getValue(PhysioState.EDA, BASE_EDA_VALUE);
+		float hrValue = mBandSnapshot.getValue(PhysioState.HEART_RATE, BASE_HR_VALUE);
 
-		return shiftEDA+shiftHR;
+		return BandClassifier.totalShift(edaValue, BASE_EDA_VALUE, hrValue, BASE_HR_VALUE, MIN_PERCENTAGE_LEVEL_SHIFT);
 	}
 
 	/**
 	 * Calculates the width of the band based on the band value.
-	 * @param currentBandValue
+	 * @param band BandClassifier band
 	 * @return
 	 */
-	public int calculateBandWidth(int currentBandValue) {
-		return (int) ((BASE_BAND_WIDTH_DP + (currentBandValue-BASE_BAND)*BAND_WIDTH_SHIFT_DP)*dpToPixelsScale + 0.5f);
+	public int calculateBandWidth(int band) {
+		return (int) ((BASE_BAND_WIDTH_DP + (band-BandClassifier.BASE_BAND)*BAND_WIDTH_SHIFT_DP)*dpToPixelsScale + 0.5f);
 	}
 
 	@Override
@@ -361,21 +535,19 @@ public class GlimMainActivity extends Activity {
 
 		mMainView = getLayoutInflater().inflate(R.layout.activity_main, mAbsoluteFrameLayout, false);
 		mInstructionOverlay = getLayoutInflater().inflate(R.layout.instruction_view, mAbsoluteFrameLayout, false);
+		mMetricsOverlay = getLayoutInflater().inflate(R.layout.metrics_overlay, mAbsoluteFrameLayout, false);
+		mMetricsText = (TextView) mMetricsOverlay.findViewById(R.id.metricsText);
 		mAbsoluteFrameLayout.addView(mMainView);
 		mAbsoluteFrameLayout.addView(mInstructionOverlay);
 
-		mEdaBtDeviceName = new String(); 
-		mHrmBtDeviceName = new String();
-
-		mapHrEda = new HashMap<String, Float>();
-		mapHrEda.put("EDA", BASE_EDA_VALUE);
-		mapHrEda.put("HR", BASE_HR_VALUE);
-
-		//mWaveformView = (EDAWaveformView) findViewById(R.id.waveformView);
-		mBufferSize = 0;
-		mEDABuffer = new ArrayList<String>();
+		// The waveform draws on its own render thread, which the draw listener below does not see.
+		mWaveformView = (EDAWaveformView) mMainView.findViewById(R.id.waveformView);
+		mWaveformView.setLatencyTracer(mLatencyTracer);
 
 		dpToPixelsScale = this.getBaseContext().getResources().getDisplayMetrics().density;
+		for (int band = 0; band < BandClassifier.BAND_COUNT; band++) {
+			mBandWidths[band] = calculateBandWidth(band);
+		}
 
 		mAudioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
 
@@ -387,8 +559,44 @@ public class GlimMainActivity extends Activity {
 		llSignalIndicator = ((LinearLayout) findViewById(R.id.signalIndicator));
 		hrValueTV = (TextView) findViewById(R.id.labelHrValue);
 		edaValueTV = (TextView) findViewById(R.id.labelEdaValue);
+		scrRateTV = (TextView) findViewById(R.id.labelScrRateValue);
+
+		mDrainScheduler = new FrameDrainScheduler(mQueueDrain);
+		mMainView.getViewTreeObserver().addOnDrawListener(mRenderTrace);
+
+		mEdaPipeline = new EdaPipeline(EDA_SAMPLING_RATE, mPhysioState, mLatencyTracer, mEdaSampleListener);
+		mSessionRecorder = new SessionRecorder(new File(getFilesDir(), SESSION_DIRECTORY));
+		mEdaPipeline.setRecordChannel(mSessionRecorder.openChannel(SessionRecorder.RECORD_EDA_SAMPLE,
+				EdaPipeline.RECORD_WIDTH, SessionRecorder.DEFAULT_CHANNEL_CAPACITY));
+		mHrmRecordChannel = mSessionRecorder.openChannel(SessionRecorder.RECORD_HEART_RATE,
+				HrmPipeline.RECORD_WIDTH, SessionRecorder.DEFAULT_CHANNEL_CAPACITY);
+		mBandRecordChannel = mSessionRecorder.openChannel(SessionRecorder.RECORD_BAND_CHANGE, 2, 64);
+		mAnnotationRecordChannel = mSessionRecorder.openChannel(SessionRecorder.RECORD_ANNOTATION, 1, 64);
+		registerMetrics();
+		mMetricsRecordValues = new float[mMetrics.size()];
+		mMetricsRecordChannel = mSessionRecorder.openChannel(SessionRecorder.RECORD_METRICS,
+				mMetricsRecordValues.length, 64);
+		mSessionRecorder.setLatencyTracer(mLatencyTracer, SessionRecorder.RECORD_EDA_SAMPLE);
+		if (UPLOAD_URL != null) {
+			try {
+				mUploadPipeline = new UploadPipeline(new URL(UPLOAD_URL), new File(getFilesDir(), UPLOAD_SPOOL_DIRECTORY));
+			} catch (MalformedURLException e) {
+				throw new IllegalStateException(e);
+			}
+			mUploadPipeline.setSubjectId(Build.SERIAL);
+			mUploadPipeline.setLatencyTracer(mLatencyTracer);
+			mUploadPipeline.start();
+			mEdaPipeline.setUploadPipeline(mUploadPipeline);
+		}
+		try {
+			mSessionRecorder.start();
+		} catch (IOException e) {
+			// Without storage the app still works, samples are just not kept.
+			Log.e("Recorder", "Cannot start session recording: " + e.getMessage());
+		}
 
 		mWindowMgrLayoutParams = this.getWindow().getAttributes();
+		mScreenHandler.postDelayed(mSampleMetricsTask, METRICS_INTERVAL_MS);
 	}
 
 	public void dimScreen() {
@@ -420,6 +628,23 @@ public class GlimMainActivity extends Activity {
 
 	}
 
+	@Override
+	protected void onDestroy() {
+		mScreenHandler.removeCallbacks(mDimScreenTask);
+		mScreenHandler.removeCallbacks(mSampleMetricsTask);
+		mGcCounter.stop();
+		mDrainScheduler.cancel();
+		if (mEdaConnection != null) {
+			mEdaConnection.stop();
+			mHrmConnection.stop();
+		}
+		mSessionRecorder.stop();
+		if (mUploadPipeline != null) {
+			mUploadPipeline.stop();
+		}
+		super.onDestroy();
+	}
+
 	private GestureDetector createGestureDetector(Context context) {
 		GestureDetector gestureDetector = new GestureDetector(context);
 		// Create a base listener for generic gestures
@@ -460,12 +685,12 @@ public class GlimMainActivity extends Activity {
 					}
 					return true;
 				} else if (gesture == Gesture.THREE_TAP) {
-					// saveAnnotation();
+					saveAnnotation();
 				} else if (gesture == Gesture.SWIPE_RIGHT) {
-					// do something on right (forward) swipe
+					logLatency();
 					return true;
 				} else if (gesture == Gesture.SWIPE_LEFT) {
-					// do something on left (backwards) swipe
+					toggleMetricsOverlay();
 					return true;
 				}
 				return false;
@@ -523,245 +748,116 @@ public class GlimMainActivity extends Activity {
 	}*/
 
 	/**
-	 * Create connection between Glass and other bluetooth devices.
+	 * Connects all sensors in parallel. Each connection keeps its sensor
+	 * connected until disconnectBtDevices(), reconnecting whenever the link
+	 * drops, and the pipeline carries on with what it had buffered.
 	 */
 	void connectBtDevices() throws IOException{
-		mBtAdapter = BluetoothAdapter.getDefaultAdapter();
-
-		if (mBtAdapter != null) {
-			// If bluetooth is not enabled then do so.
-			if (!mBtAdapter.isEnabled()) {
-				Intent enableBluetooth = new Intent(
-						BluetoothAdapter.ACTION_REQUEST_ENABLE);
-				startActivityForResult(enableBluetooth, 0);
-			}
+		if (mEdaConnection == null) {
+			createConnections();
+		}
+		// If bluetooth is not enabled then do so. The connections retry until it is.
+		if (mBtAdapter != null && !mBtAdapter.isEnabled()) {
+			Intent enableBluetooth = new Intent(
+					BluetoothAdapter.ACTION_REQUEST_ENABLE);
+			startActivityForResult(enableBluetooth, 0);
+		}
+		mEdaConnection.start();
+		mHrmConnection.start();
+	}
 
-			// Retrieve a list of paired devices
-			Set<BluetoothDevice> pairedDevices = mBtAdapter.getBondedDevices();
-			String edaDeviceMacId = null, hrmDeviceMacId = null;
-
-			if(pairedDevices.size() > 0) {
-				// Check if the specific devices are paired already 
-				for(BluetoothDevice device : pairedDevices) {
-					if(device.getName().contains("Affectiva")) {
-						edaDeviceMacId = device.getAddress();
-						System.out.println("Paired EDA device found "+ edaDeviceMacId);
-						mEdaBtDevice = device;
-						mEdaBtDeviceName = mEdaBtDevice.getName();
-					}
-					if(device.getName().contains("HXM")){
-						hrmDeviceMacId = device.getAddress();
-						System.out.println("Paired HRM device found "+hrmDeviceMacId);
-						mHrmBtDevice = device;
-						mHrmBtDeviceName = mHrmBtDevice.getName();
-					}
+	private void createConnections() throws IOException {
+		SensorTransport edaTransport, hrmTransport;
+		if (USE_SIMULATED_SENSORS) {
+			// Simulated sensors take the same path as real ones from the transport on.
+			long seed = System.currentTimeMillis();
+			edaTransport = new SimulatedTransport(new SimulatedTransport.SourceFactory() {
+				public TimedSource newSource(long seed) {
+					return new QSensorSource(EDA_SAMPLING_RATE, -1, seed);
+				}
+			}, 1, seed);
+			hrmTransport = new SimulatedTransport(new SimulatedTransport.SourceFactory() {
+				public TimedSource newSource(long seed) {
+					return new HxmSource(-1, seed);
 				}
+			}, 1, seed + 1);
+		} else {
+			mBtAdapter = BluetoothAdapter.getDefaultAdapter();
+			if (mBtAdapter == null) {
+				throw new IOException("No Bluetooth adapter");
 			}
-
-			// If EDA sensor is not paired already then do so
-			connectBtEdaDevice(edaDeviceMacId);
-
-			// If HRM is not paired already then do so
-			//connectBtHrmDevice(hrmDeviceMacId);
-
-			//startListeningForData();
+			SharedPreferences deviceCache = getSharedPreferences(DEVICE_CACHE, MODE_PRIVATE);
+			edaTransport = new BluetoothSensorTransport(mBtAdapter, deviceCache, "Affectiva",
+					BT_MAC_ADD_FOR_EDA_SENSOR);
+			hrmTransport = new BluetoothSensorTransport(mBtAdapter, deviceCache, "HXM",
+					BT_MAC_ADD_FOR_ZEPHYR_HRM);
 		}
+		mEdaConnection = new SensorConnection("EDA", edaTransport, mEdaStreamHandler, mConnectionListener);
+		mHrmListener = new HRMListener(mPhysioState, mHrmQueue, mDrainScheduler);
+		mHrmListener.setRecordChannel(mHrmRecordChannel);
+		mHrmConnection = new SensorConnection("HRM", hrmTransport, mHrmListener, mConnectionListener);
+		mHrmListener.setConnection(mHrmConnection);
 	}
 
-	/**
-	 * Initiate connection with EDA sensor
-	 * @param edaDeviceMacId
-	 * @throws IOException
-	 */
-	void connectBtEdaDevice(String edaDeviceMacId) throws IOException {
-		if(edaDeviceMacId == null) {
-			System.out.println("EDA device");
-			mEdaBtDevice = mBtAdapter.getRemoteDevice(BT_MAC_ADD_FOR_EDA_SENSOR);
-			mEdaBtDeviceName = mEdaBtDevice.getName();
-			pairDevice(mEdaBtDevice);
-		} 
-//		try {
-//			mBtAdapter.cancelDiscovery();
-//			mBtSocket = mEdaBtDevice
-//					.createRfcommSocketToServiceRecord(MY_UUID_FOR_NON_ANDROID_DEVICES);
-//			mBtSocket.connect();
-//		} catch (IOException e) {
-//			//e.printStackTrace();
-//			System.err.println("Could not connect to EDA Sensor.");
-//		}
-//
-//		try {
-//			mOutputStream = mBtSocket.getOutputStream();
-//			mInputStream = mBtSocket.getInputStream();
-//		} catch (IOException e) {
-//			//e.printStackTrace();
-//			System.err.println("Could not open an insput stream.");
-//		}
-
-	}
-
-	/**
-	 * Initiates connection with HRM.
-	 * @param hrmDeviceMacId
-	 * @throws IOException
-	 */
-	void connectBtHrmDevice(String hrmDeviceMacId) throws IOException {
-		if(hrmDeviceMacId == null) {
-			System.out.println("HRM device");
-			mHrmBtDevice = mBtAdapter.getRemoteDevice(BT_MAC_ADD_FOR_ZEPHYR_HRM);
-			mHrmBtDeviceName = mHrmBtDevice.getName();
-			pairDevice(mHrmBtDevice);
-		}	
-		// Next line is needed before connect to avoid "service discovery failed" error
-		mBtAdapter.cancelDiscovery();
-		mZephyrBtClient = new BTClient(mBtAdapter, BT_MAC_ADD_FOR_ZEPHYR_HRM);
-		mHrmListener = new HRMListener(mHrmMsgHandler);
-		mZephyrBtClient.addConnectedEventListener(mHrmListener);
-	}
-
-	/**
-	 * Begin listening for data from sensors.
-	 */
-	void startListeningForData() {
-		System.out.println("Listening for data..");
-
-		// Start listening for HRM data
-		listenForHrmData();
-
-		// Start listening for EDA data 
-		listenForEdaData();
-	}
+	private final SensorConnection.Listener mConnectionListener = new SensorConnection.Listener() {
+		public void onStateChanged(SensorConnection connection, int state) {
+			Log.d("Sensors", connection.getName() + " " + SensorConnection.getStateName(state));
+		}
+	};
 
 	/**
 	 * Disconnect bluetooth connection between Glass and other devices.
 	 */
 	void disconnectBtDevices() throws IOException{
-		// Stop listening for EDA data
-		try {
-			disconnectBtEdaDevice();
-		} catch (IOException e) {
-			//e.printStackTrace();
-			System.err.println("Error in closing connection to EDA Sensor.");
+		if (mEdaConnection != null) {
+			// Closing the link is not a read error.
+			SensorLineReader reader = mEdaLineReader;
+			if (reader != null) {
+				reader.stop();
+			}
+			mEdaConnection.stop();
+			mHrmConnection.stop();
+			Log.d("Sensors", mEdaConnection.toString());
+			Log.d("Sensors", mHrmConnection.toString());
 		}
 
-		// Stop listening for HRM data
-		try {
-			disconnectBtHrmDevice();
-		} catch (IOException e) {
-			//e.printStackTrace();
-			System.err.println("Error in closing connection to HRM.");
+		if (mDrainScheduler != null) {
+			Log.d("Queues", "samples " + mDrainScheduler.getRequestCount()
+					+ ", UI drains " + mDrainScheduler.getDrainCount()
+					+ ", EDA overwritten " + mEdaQueue.getOverwritten()
+					+ ", HRM overwritten " + mHrmQueue.getOverwritten());
 		}
+		logLatency();
+		// Nothing shown is current any more, see saveAnnotation().
+		mShownArrivalNanos = SampleQueue.EMPTY;
 	}
 
-
 	/**
-	 * Listens for HRM data.
+	 * Reads an EDA link on its connection's thread. Every link gets a reader of
+	 * its own, so a line cut off by a drop is not joined to the next link's.
 	 */
-	void listenForHrmData() {
-		if(mZephyrBtClient.IsConnected()) {
-			mZephyrBtClient.start();
-		}
-	}
-
-	/**
-	 * Listens for EDA data.
-	 * TODO: Clean this function
-	 */
-	void listenForEdaData() {
-		final Handler handler = new Handler();
-		final byte delimiter = 10; // This is the ASCII code for a newline
-		// character
-
-		stopWorker = false;
-		mReadBufferPos = 0;
-		mReadBuffer = new byte[1024];
-		mEdaSensorListenerThread = new Thread(new Runnable() {
-			public void run() {
-				while (!Thread.currentThread().isInterrupted() && !stopWorker) {
-					try {
-						int bytesAvailable = mInputStream.available();
-						if (bytesAvailable > 0) {
-							byte[] packetBytes = new byte[bytesAvailable];
-							mInputStream.read(packetBytes);
-							for (int i = 0; i < bytesAvailable; i++) {
-								byte b = packetBytes[i];
-								if (b == delimiter) {
-									byte[] encodedBytes = new byte[mReadBufferPos];
-									System.arraycopy(mReadBuffer, 0,
-											encodedBytes, 0,
-											encodedBytes.length);
-									// To remove <CR> that is at the end of the
-									// string
-									final String data = (new String(
-											encodedBytes, "US-ASCII"))
-											.replaceAll("\\n", "").replaceAll(
-													"\\r", "");
-
-									// TODO: Handle arrayindexoutofboundsexception when annotation is done by pressing button on Q sensor
-									final String edaSignal = data.split(",")[6];
-									final Long timestamp = System
-											.currentTimeMillis();
-									final Float fEdaSignal = Float
-											.parseFloat(edaSignal);
-									mReadBufferPos = 0;
-
-									if (mBufferSize < MAX_BUFFER_SIZE) {
-										mEDABuffer.add(mBufferSize,
-												timestamp + ","
-														+ edaSignal);
-										mBufferSize++;
-									} else if (mBufferSize == MAX_BUFFER_SIZE) {
-										// We make a copy of mEDABuffer
-										// before starting a request to
-										// server because
-										// by the time the server
-										// prepares it's request the
-										// actual copy of mEDABuffer has
-										// changed.
-										// Thus we now use the new copy
-										// we just created that
-										// preserves all values from
-										// original buffer.
-										String[] tempBufferCopy = new String[MAX_BUFFER_SIZE];
-										System.arraycopy(mEDABuffer.toArray(), 0, tempBufferCopy, 0, MAX_BUFFER_SIZE);
-										//sendDataToServer(tempBufferCopy);
-										mEDABuffer.clear();
-										mEDABuffer.add(0, timestamp
-												+ "," + edaSignal);
-										mBufferSize = 1;
-										Log.d("EDA", Float.toString(fEdaSignal));
-									}
-
-									//									handler.post(new Runnable() {
-									//										public void run() {
-									//											mWaveformView
-									//											.updateEDADataSimple(fEdaSignal);
-									//											edaValueTV.setText(fEdaSignal
-									//													.toString());
-									//										}
-									//									});
-									handler.post(new Runnable() {
-										public void run() {
-											mapHrEda.put("EDA", fEdaSignal);
-											updateBand();
-											edaValueTV.setText(fEdaSignal
-													.toString());
-										}
-									});
-								} else {
-									mReadBuffer[mReadBufferPos++] = b;
-								}
-							}
-						}
-					} catch (IOException ex) {
-						stopWorker = true;
-					}
-				}
+	private final SensorConnection.StreamHandler mEdaStreamHandler = new SensorConnection.StreamHandler() {
+		public void onStream(InputStream inputStream) throws IOException {
+			SensorLineReader reader = new SensorLineReader(inputStream, mEdaPipeline);
+			mEdaPipeline.setReader(reader);
+			mEdaLineReader = reader;
+			reader.run();
+			if (reader.getError() != null) {
+				mReadErrors.increment();
+				throw reader.getError();
 			}
-		});
+		}
+	};
 
-		mEdaSensorListenerThread.start();
-	}
+	/** Hands every EDA sample to the UI thread once the pipeline has processed it. */
+	private final EdaPipeline.SampleListener mEdaSampleListener = new EdaPipeline.SampleListener() {
+		public void onEdaSample(long arrival, QSensorSample sample, int scrRate) {
+			mEdaQueue.offer(arrival, sample.eda, scrRate);
+			mDrainScheduler.requestDrain();
+			mWaveformView.updateEDADataSimple(sample.eda, arrival);
+			mEdaConnection.markSample();
+		}
+	};
 
 	// void sendData() throws IOException
 	// {
@@ -771,99 +867,19 @@ public class GlimMainActivity extends Activity {
 	// edaValueTV.setText("Data Sent");
 	// }
 
-	void disconnectBtEdaDevice() throws IOException {
-		stopWorker = true;
-		// mOutputStream.close();
-		mInputStream.close();
-		mBtSocket.close();
-		// edaValueTV.setText("Bluetooth Closed");
-	}
-
-	void disconnectBtHrmDevice() throws IOException {
-		/*
-		 * Stopping the animation
-		 */
-		// mImageView.clearAnimation();
-
-		/*
-		 * Close the communication with the device & throw an exception if
-		 * failure
-		 */
-		mZephyrBtClient.Close();
-
-		/* This disconnects listener from acting on received messages */
-		mZephyrBtClient.removeConnectedEventListener(mHrmListener);
-
-	}
-
-	private static String convertArraytoCSV(String[] list) {
-		StringBuilder sb = new StringBuilder();
-		sb.append("{");
-		int index = 0;
-		for (String s : list) {
-			if (index != 0)
-				sb.append("\n");
-			sb.append(s);
-			index++;
-		}
-		sb.append("}");
-		return sb.toString();
-	}
-
 	/**
 	 * Save annotation for the current data
 	 */
 	private void saveAnnotation() {
-		// TODO 1. Save the annotation along with the bounds for the data
-		// 2. Communicate via bluetooth to the phone
-		// Log.d("Hola", "tap");
-		String url = "http://madeby.amanparnami.com/AnnotateEDAServer/annotateglasseda.php";
-		new HttpAsyncTask().execute(url, null, "annotation");
-	}
-
-	/*
-	 * Sends buffered data to server in JSON format
-	 */
-	private void sendDataToServer(String[] list) {
-		// TODO
-		// 1. get buffered data and make a copy (otherwise the data might change
-		// while the server request is processed) - done
-		// 2. convert data to JSON string
-		// 3. establish a connection with the server
-		// 4. send request
-
-		String url = "http://madeby.amanparnami.com/AnnotateEDAServer/annotateglasseda.php";
-		new HttpAsyncTask().execute(url, list, "data");
-	}
-
-	/**
-	 * Generates a new thread to make POST request, else the UI thread freezes
-	 * 
-	 * @author localadmin
-	 * 
-	 */
-	private class HttpAsyncTask extends AsyncTask<Object, Void, String> {
-		@Override
-		protected String doInBackground(Object... args) {
-
-			return dataPOST((String) args[0], (String[]) args[1],
-					(String) args[2]);
-
+		// TODO Communicate via bluetooth to the phone
+		long time = System.currentTimeMillis();
+		// The wearer reacts to what is on the display, which is as old as the sample shown.
+		if (mShownArrivalNanos != SampleQueue.EMPTY) {
+			time -= (System.nanoTime() - mShownArrivalNanos) / 1000000;
 		}
-
-		// onPostExecute displays the results of the AsyncTask.
-		@Override
-		protected void onPostExecute(String result) {
-			// Toast.makeText(getBaseContext(), "Data Sent!",
-			// Toast.LENGTH_LONG).show();
-		}
-
-		@Override
-		protected void onPreExecute() {
-		}
-
-		@Override
-		protected void onProgressUpdate(Void... values) {
+		mAnnotationRecordChannel.record(time, 1);
+		if (mUploadPipeline != null) {
+			mUploadPipeline.offerAnnotation(time);
 		}
 	}
 
@@ -876,83 +892,6 @@ public class GlimMainActivity extends Activity {
 			return false;
 	}
 
-	public static String dataPOST(String url, String[] list,
-			String mode) {
-		InputStream inputStream = null;
-		String result = "";
-		try {
-
-			// 1. create HttpClient
-			HttpClient httpclient = new DefaultHttpClient();
-
-			// 2. make POST request to the given URL
-			HttpPost httpPost = new HttpPost(url);
-
-			String json = "";
-
-			// 3. build jsonObject
-			JSONObject jsonObject = new JSONObject();
-			// jsonObject.accumulate("name", person.getName());
-			// jsonObject.accumulate("country", person.getCountry());
-			// jsonObject.accumulate("twitter", person.getTwitter());
-
-			// jsonObject.accumulate("edasignal", convertArraytoJSON(list));
-			if (mode == "data") {
-				jsonObject.accumulate("edasignal", convertArraytoCSV(list));
-			} else if (mode == "annotation") {
-				// TODO Empirically derive the offset used below. Currently
-				// 2000ms is half of the time taken to achieve MAX_BUFFER_SIZE
-				// of 128 used in EDAWaveformView.java
-				jsonObject.accumulate("annotation",
-						System.currentTimeMillis() - 2000); // subtracted 2000ms
-				// to adjust the
-				// annotation to
-				// match with the
-				// signal at the
-				// center of screen
-			}
-
-			// 4. convert JSONObject to JSON to String
-			json = jsonObject.toString();
-			// Log.d("JSON", json);
-
-			// ** Alternative way to convert Person object to JSON string usin
-			// Jackson Lib
-			// ObjectMapper mapper = new ObjectMapper();
-			// json = mapper.writeValueAsString(person);
-
-			// 5. set json to StringEntity
-			StringEntity se = new StringEntity(json);
-
-			// 6. set httpPost Entity
-			httpPost.setEntity(se);
-
-			// 7. Set some headers to inform server about the type of the
-			// content
-			httpPost.setHeader("Accept", "application/json");
-			httpPost.setHeader("Content-type", "application/json");
-
-			// 8. Execute POST request to the given URL
-			HttpResponse httpResponse = httpclient.execute(httpPost);
-
-			// 9. receive response as inputStream
-			inputStream = httpResponse.getEntity().getContent();
-
-			// 10. convert inputstream to string
-			if (inputStream != null)
-				result = convertInputStreamToString(inputStream);
-			else
-				result = "Did not work!";
-
-		} catch (Exception e) {
-			Log.d("InputStream", e.getLocalizedMessage());
-		}
-
-		Log.d("POST result", result);
-		// 11. return result
-		return result;
-	}
-
 	private boolean validate() {
 		// if(etName.getText().toString().trim().equals(""))
 		// return false;
@@ -963,48 +902,4 @@ public class GlimMainActivity extends Activity {
 		// else
 		return true;
 	}
-
-	private static String convertInputStreamToString(InputStream inputStream)
-			throws IOException {
-		BufferedReader bufferedReader = new BufferedReader(
-				new InputStreamReader(inputStream));
-		String line = "";
-		String result = "";
-		while ((line = bufferedReader.readLine()) != null)
-			result += line;
-
-		inputStream.close();
-		return result;
-
-	}
-
-	/**************************** Code from HxM *******************************/
-
-	private void pairDevice(BluetoothDevice device) {
-		try {
-			final String HRM_PIN = "1234";
-			final String EDA_PIN = "0000";
-			String pinString = new String();
-			String deviceMacId = device.getAddress();
-//			Log.d(TAG, "Pairing confirmation set");
-//			device.setPairingConfirmation(true);
-//			if(deviceMacId == GlimMainActivity.BT_MAC_ADD_FOR_EDA_SENSOR) {
-//				Log.d(TAG, "Pin set");
-//				device.setPin(EDA_PIN.getBytes());
-//			}
-			
-			if(device.createBond()) Log.d("EDA", "Pairing begins" );
-//			Method m = device.getClass().getMethod("createBond", (Class[])null);
-//			device.getClass().getMethod("setPairingConfirmation", boolean.class).invoke(device, true);
-//			device.getClass().getMethod("cancelPairingUserInput", boolean.class).invoke(device);
-//			m.invoke(device, (Object[])null);
-			Log.d(TAG, "Pairing finished.");
-		} catch (Exception e) {
-			Log.e(TAG, e.getMessage());
-		}
-	}
-
-
-
-
 }
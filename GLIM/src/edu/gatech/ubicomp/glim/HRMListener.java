@@ -1,69 +1,78 @@
 package edu.gatech.ubicomp.glim ;
 
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
+import java.io.IOException;
+import java.io.InputStream;
 
-import zephyr.android.HxMBT.*;
+import edu.gatech.ubicomp.glim.data.SessionRecorder;
+import edu.gatech.ubicomp.glim.pipeline.HrmPipeline;
+import edu.gatech.ubicomp.glim.pipeline.PhysioState;
+import edu.gatech.ubicomp.glim.pipeline.SampleQueue;
+import edu.gatech.ubicomp.glim.sensor.HxmFrameReader;
+import edu.gatech.ubicomp.glim.sensor.HxmPacketDecoder;
+import edu.gatech.ubicomp.glim.sensor.SensorConnection;
 
-public class HRMListener extends ConnectListenerImpl
+/**
+ * Reads the HR_SPD_DIST packets of an HxM link opened by a SensorConnection
+ * and hands heart rate and speed to the UI thread.
+ */
+public class HRMListener implements SensorConnection.StreamHandler
 {
-	private Handler mMsgHandler; 
-	private int GP_MSG_ID = 0x20;
-	private int GP_HANDLER_ID = 0x20;
-	private int HR_SPD_DIST_PACKET =0x26;
-	
-	private final int HEART_RATE = 0x100;
-	private final int INSTANT_SPEED = 0x101;
-	private HRSpeedDistPacketInfo HRSpeedDistPacket = new HRSpeedDistPacketInfo();
-	public HRMListener(Handler handler) {
-		super(handler, null);
-		mMsgHandler = handler;
+	/** Layout of the values queued for every HR_SPD_DIST packet. */
+	public static final int SAMPLE_HEART_RATE = 0;
+	public static final int SAMPLE_INSTANT_SPEED = 1;
+	public static final int SAMPLE_WIDTH = 2;
 
-	}
-	public void Connected(ConnectedEvent<BTClient> eventArgs) {
-		//System.out.println(String.format("Connected to BioHarness %s.", eventArgs.getSource().getDevice().getName()));
-
-		//Creates a new ZephyrProtocol object and passes it the BTComms object
-		ZephyrProtocol _protocol = new ZephyrProtocol(eventArgs.getSource().getComms());
+	/** Values shown on screen go to the UI thread through this queue, drained once per frame. */
+	private final SampleQueue mSampleQueue;
+	private final FrameDrainScheduler mDrainScheduler;
 
-		_protocol.addZephyrPacketEventListener(new ZephyrPacketListener() {
-			public void ReceivedPacket(ZephyrPacketEvent eventArgs) {
-				ZephyrPacketArgs msg = eventArgs.getPacket();
-				byte CRCFailStatus;
-				byte RcvdBytes;
-				
-				
-				
-				CRCFailStatus = msg.getCRCStatus();
-				RcvdBytes = msg.getNumRvcdBytes() ;
-				if (HR_SPD_DIST_PACKET==msg.getMsgID())
-				{
-					
-					
-					byte [] DataArray = msg.getBytes();
-					
-					//***************Displaying the Heart Rate********************************
-					int HRate =  HRSpeedDistPacket.GetHeartRate(DataArray);
-					Message text1 = mMsgHandler.obtainMessage(HEART_RATE);
-					Bundle b1 = new Bundle();
-					b1.putString("HeartRate", String.valueOf(HRate));
-					text1.setData(b1);
-					mMsgHandler.sendMessage(text1);
-					//System.out.println("Heart Rate is "+ HRate);
+	/** Every packet updates the shared state, HRV included, and is recorded. */
+	private final HrmPipeline mPipeline;
+	private final HxmPacketDecoder mDecoder;
+	private final HxmFrameReader mFrameReader;
+	/** Told about every packet, null if packets do not come through a SensorConnection. */
+	private volatile SensorConnection mConnection;
 
-					//***************Displaying the Instant Speed********************************
-					double InstantSpeed = HRSpeedDistPacket.GetInstantSpeed(DataArray);
-					
-					text1 = mMsgHandler.obtainMessage(INSTANT_SPEED);
-					b1.putString("InstantSpeed", String.valueOf(InstantSpeed));
-					text1.setData(b1);
-					mMsgHandler.sendMessage(text1);
-					//System.out.println("Instant Speed is "+ InstantSpeed);
-					
-				}
+	public HRMListener(PhysioState physioState, SampleQueue sampleQueue, FrameDrainScheduler drainScheduler) {
+		mSampleQueue = sampleQueue;
+		mDrainScheduler = drainScheduler;
+		mPipeline = new HrmPipeline(physioState, new HrmPipeline.SampleListener() {
+			public void onHrmSample(long timestamp, int heartRate, float instantSpeed) {
+				onHrmPacket(timestamp, heartRate, instantSpeed);
 			}
 		});
+		mDecoder = new HxmPacketDecoder(mPipeline);
+		mFrameReader = new HxmFrameReader(mDecoder);
+	}
+
+	/** Records every packet to the session, null to stop recording. */
+	public void setRecordChannel(SessionRecorder.Channel recordChannel) {
+		mPipeline.setRecordChannel(recordChannel);
+	}
+
+	public void setConnection(SensorConnection connection) {
+		mConnection = connection;
+	}
+
+	/** Reads the frames of an HxM link opened by a SensorConnection. */
+	public void onStream(InputStream inputStream) throws IOException {
+		mPipeline.resetBeats();
+		mFrameReader.read(inputStream);
+	}
+
+	/** Called on the thread packets arrive on for every good packet, once the pipeline has it. */
+	private void onHrmPacket(long timestamp, int heartRate, float instantSpeed) {
+		mSampleQueue.offer(timestamp, heartRate, instantSpeed);
+		mDrainScheduler.requestDrain();
+
+		SensorConnection connection = mConnection;
+		if (connection != null) {
+			connection.markSample();
+		}
+	}
+
+	/** Packets dropped because their CRC did not match. */
+	public long getCrcFailures() {
+		return mDecoder.getCrcFailures();
 	}
-	
 }
\ No newline at end of file
@@ -0,0 +1,104 @@
+package edu.gatech.ubicomp.glim.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the records of a recording directory in the order they were written,
+ * segment after segment, without modifying the files.
+ * 
+ * Usage: call next() until it returns false, reading the current record with
+ * getType(), getTimestamp() and getValue().
+ */
+public class RecordReader {
+
+	private final File[] mSegments;
+	private int mSegmentIndex = -1;
+	private MappedByteBuffer mBuffer;
+	private int mPosition;
+
+	private int mType;
+	private long mTimestamp;
+	private int mValueCount;
+	private final float[] mValues = new float[RecordSegment.MAX_VALUES];
+	private int mDamagedSegments;
+
+	public RecordReader(File directory) {
+		mSegments = SessionRecorder.listSegments(directory);
+	}
+
+	/**
+	 * Moves to the next record.
+	 * @return false when every segment has been read
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			if (mBuffer != null) {
+				int size = RecordSegment.recordSizeAt(mBuffer, mPosition);
+				if (size > 0) {
+					int header = mBuffer.getInt(mPosition);
+					mType = (header >>> 8) & 0xFF;
+					mValueCount = header & 0xFF;
+					mTimestamp = mBuffer.getLong(mPosition + 8);
+					for (int i = 0; i < mValueCount; i++) {
+						mValues[i] = mBuffer.getFloat(mPosition + RecordSegment.RECORD_HEADER_SIZE + i * 4);
+					}
+					mPosition += size;
+					return true;
+				}
+				if (size < 0) {
+					// Torn tail of a segment that was never reopened; the rest of it is unusable.
+					mDamagedSegments++;
+				}
+				mBuffer = null;
+			}
+			if (++mSegmentIndex >= mSegments.length) {
+				return false;
+			}
+			openSegment(mSegments[mSegmentIndex]);
+		}
+	}
+
+	private void openSegment(File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			// The mapping stays valid after the channel is closed.
+			mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		} finally {
+			randomAccessFile.close();
+		}
+		if (mBuffer.limit() < RecordSegment.HEADER_SIZE || mBuffer.getInt(0) != RecordSegment.SEGMENT_MAGIC) {
+			mBuffer = null;
+			mDamagedSegments++;
+			return;
+		}
+		mPosition = RecordSegment.HEADER_SIZE;
+	}
+
+	public int getType() {
+		return mType;
+	}
+
+	public long getTimestamp() {
+		return mTimestamp;
+	}
+
+	public int getValueCount() {
+		return mValueCount;
+	}
+
+	public float getValue(int index) {
+		return mValues[index];
+	}
+
+	/** Segments that were unreadable or ended in a damaged record. */
+	public int getDamagedSegments() {
+		return mDamagedSegments;
+	}
+}
@@ -0,0 +1,219 @@
+package edu.gatech.ubicomp.glim.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One fixed-size, memory-mapped, append-only file of session records.
+ * 
+ * The file starts with a HEADER_SIZE byte header (magic, version, segment size,
+ * index and creation time) followed by records, little endian:
+ * 
+ * <pre>
+ * int   header     RECORD_MAGIC &lt;&lt; 24 | type &lt;&lt; 8 | value count
+ * int   checksum   over header, timestamp and values
+ * long  timestamp  wall clock ms
+ * float values[value count]
+ * </pre>
+ * 
+ * The header word is stored last, so a zero word marks the end of the data.
+ * When a segment is reopened, a record with a bad header or checksum is taken
+ * to be a write interrupted by a crash; it is cleared and appending resumes there.
+ */
+public class RecordSegment {
+
+	public static final int SEGMENT_MAGIC = 0x474C5253; // "GLRS"
+	public static final short FORMAT_VERSION = 1;
+	public static final int HEADER_SIZE = 32;
+
+	public static final int RECORD_MAGIC = 0xA5;
+	public static final int RECORD_HEADER_SIZE = 16;
+	public static final int MAX_VALUES = 255;
+	public static final int MAX_RECORD_SIZE = RECORD_HEADER_SIZE + MAX_VALUES * 4;
+
+	private final File mFile;
+	private final RandomAccessFile mRandomAccessFile;
+	private final FileChannel mChannel;
+	private final MappedByteBuffer mBuffer;
+	private final long mIndex;
+	private final long mCreatedTime;
+	private int mPosition;
+	private int mRecordCount;
+	private boolean mTornTail;
+
+	private RecordSegment(File file, long index, int size, boolean create) throws IOException {
+		mFile = file;
+		mRandomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			if (create) {
+				mRandomAccessFile.setLength(size);
+			} else {
+				size = (int) mRandomAccessFile.length();
+			}
+			mChannel = mRandomAccessFile.getChannel();
+			mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (create) {
+				mIndex = index;
+				mCreatedTime = System.currentTimeMillis();
+				mBuffer.putInt(4, FORMAT_VERSION | (HEADER_SIZE << 16));
+				mBuffer.putInt(8, size);
+				mBuffer.putLong(12, mIndex);
+				mBuffer.putLong(20, mCreatedTime);
+				mBuffer.putInt(0, SEGMENT_MAGIC);
+				mPosition = HEADER_SIZE;
+			} else {
+				if (size < HEADER_SIZE || mBuffer.getInt(0) != SEGMENT_MAGIC
+						|| (mBuffer.getInt(4) & 0xFFFF) != FORMAT_VERSION || mBuffer.getInt(8) != size) {
+					throw new IOException("Not a record segment: " + file);
+				}
+				mIndex = mBuffer.getLong(12);
+				mCreatedTime = mBuffer.getLong(20);
+				recover();
+			}
+		} catch (IOException e) {
+			mRandomAccessFile.close();
+			throw e;
+		}
+	}
+
+	/** Creates a new segment file of the given size. */
+	public static RecordSegment create(File file, long index, int size) throws IOException {
+		if (size < HEADER_SIZE + MAX_RECORD_SIZE) {
+			throw new IllegalArgumentException("Segment size too small: " + size);
+		}
+		return new RecordSegment(file, index, size, true);
+	}
+
+	/** Opens an existing segment and finds the end of its valid records. */
+	public static RecordSegment open(File file) throws IOException {
+		return new RecordSegment(file, 0, 0, false);
+	}
+
+	/** Walks the records from the start, stops at the first missing or damaged one. */
+	private void recover() {
+		int position = HEADER_SIZE;
+		int count = 0;
+		while (true) {
+			int size = recordSizeAt(mBuffer, position);
+			if (size <= 0) {
+				mTornTail = size < 0;
+				break;
+			}
+			position += size;
+			count++;
+		}
+		if (mTornTail) {
+			// Appends are sequential, so nothing past one record's length was ever written.
+			int end = Math.min(mBuffer.limit(), position + MAX_RECORD_SIZE);
+			for (int i = position; i < end; i++) {
+				mBuffer.put(i, (byte) 0);
+			}
+		}
+		mPosition = position;
+		mRecordCount = count;
+	}
+
+	/**
+	 * @return the size of the record at position, 0 at the end of the data,
+	 * or -1 if the record is damaged
+	 */
+	static int recordSizeAt(ByteBuffer buffer, int position) {
+		if (position + RECORD_HEADER_SIZE > buffer.limit()) {
+			return 0;
+		}
+		int header = buffer.getInt(position);
+		if (header == 0) {
+			return 0;
+		}
+		int count = header & 0xFF;
+		int size = RECORD_HEADER_SIZE + count * 4;
+		if ((header >>> 24) != RECORD_MAGIC || position + size > buffer.limit()) {
+			return -1;
+		}
+		long timestamp = buffer.getLong(position + 8);
+		int checksum = mix(mix(mix(CHECKSUM_SEED, header), (int) timestamp), (int) (timestamp >>> 32));
+		for (int i = 0; i < count; i++) {
+			checksum = mix(checksum, buffer.getInt(position + RECORD_HEADER_SIZE + i * 4));
+		}
+		return checksum == buffer.getInt(position + 4) ? size : -1;
+	}
+
+	/**
+	 * Appends a record.
+	 * @return false if the segment has no room left for it
+	 */
+	public boolean append(int type, long timestamp, float[] values, int count) {
+		int size = RECORD_HEADER_SIZE + count * 4;
+		if (mPosition + size > mBuffer.limit()) {
+			return false;
+		}
+		int header = (RECORD_MAGIC << 24) | ((type & 0xFF) << 8) | count;
+		int checksum = mix(mix(mix(CHECKSUM_SEED, header), (int) timestamp), (int) (timestamp >>> 32));
+		int position = mPosition;
+		mBuffer.putLong(position + 8, timestamp);
+		for (int i = 0; i < count; i++) {
+			int bits = Float.floatToRawIntBits(values[i]);
+			mBuffer.putInt(position + RECORD_HEADER_SIZE + i * 4, bits);
+			checksum = mix(checksum, bits);
+		}
+		mBuffer.putInt(position + 4, checksum);
+		mBuffer.putInt(position, header);
+		mPosition = position + size;
+		mRecordCount++;
+		return true;
+	}
+
+	private static final int CHECKSUM_SEED = 0x811C9DC5;
+
+	/** FNV-1a over 32 bit words, enough to catch torn and stale records. */
+	private static int mix(int hash, int word) {
+		return (hash ^ word) * 0x01000193;
+	}
+
+	/** Writes the mapped pages out to storage. */
+	public void force() {
+		mBuffer.force();
+	}
+
+	public void close() throws IOException {
+		mBuffer.force();
+		mChannel.close();
+		mRandomAccessFile.close();
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	public long getIndex() {
+		return mIndex;
+	}
+
+	public long getCreatedTime() {
+		return mCreatedTime;
+	}
+
+	/** Offset just past the last record. */
+	public int getPosition() {
+		return mPosition;
+	}
+
+	public int getRecordCount() {
+		return mRecordCount;
+	}
+
+	public int getRemaining() {
+		return mBuffer.limit() - mPosition;
+	}
+
+	/** Whether reopening found and cleared a partly written record. */
+	public boolean hadTornTail() {
+		return mTornTail;
+	}
+}
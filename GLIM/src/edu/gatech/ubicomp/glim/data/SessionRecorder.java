@@ -0,0 +1,325 @@
+package edu.gatech.ubicomp.glim.data;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.gatech.ubicomp.glim.pipeline.LatencyTracer;
+import edu.gatech.ubicomp.glim.pipeline.SampleQueue;
+
+/**
+ * Records every sample of a session to memory-mapped {@link RecordSegment}
+ * files on the device.
+ * 
+ * Each producer thread gets its own {@link Channel}, a single producer queue
+ * the recorder's writer thread drains into the current segment, so recording
+ * never blocks a sensor thread. When a segment is full the writer moves on to
+ * the next file. On start the newest segment is reopened, any torn record at
+ * its tail is cleared, and recording continues after the last good record.
+ */
+public class SessionRecorder {
+
+	/** Record types. */
+	public static final int RECORD_SESSION_START = 1;
+	public static final int RECORD_EDA_SAMPLE = 2;
+	public static final int RECORD_HEART_RATE = 3;
+	public static final int RECORD_BAND_CHANGE = 4;
+	public static final int RECORD_ANNOTATION = 5;
+	/** Pipeline metrics, see MetricsRegistry.copyTo(). */
+	public static final int RECORD_METRICS = 6;
+
+	public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+	public static final int DEFAULT_CHANNEL_CAPACITY = 1024;
+
+	static final String SEGMENT_PREFIX = "segment-";
+	static final String SEGMENT_SUFFIX = ".rec";
+
+	/** How long the writer sleeps when every channel is empty. */
+	private static final long IDLE_PARK_NANOS = 20 * 1000 * 1000L;
+	/** How often written pages are forced to storage. */
+	private static final long FORCE_INTERVAL_MS = 5000;
+
+	private static final float[] EMPTY_VALUES = new float[0];
+
+	/** Producer end of a recorder queue, one per thread. */
+	public static class Channel {
+		private final int mType;
+		private final SampleQueue mQueue;
+		private final float[] mValues;
+
+		Channel(int type, int width, int capacity) {
+			mType = type;
+			mQueue = new SampleQueue(capacity, width, SampleQueue.OverflowPolicy.DROP_NEWEST);
+			mValues = new float[width];
+		}
+
+		/** @return false if the writer is behind and the record was dropped */
+		public boolean record(long timestamp, float value0) {
+			return mQueue.offer(timestamp, value0);
+		}
+
+		public boolean record(long timestamp, float value0, float value1) {
+			return mQueue.offer(timestamp, value0, value1);
+		}
+
+		public boolean record(long timestamp, float[] values) {
+			return mQueue.offer(timestamp, values);
+		}
+
+		public int getType() {
+			return mType;
+		}
+
+		/** Records lost because the writer fell behind. */
+		public long getDropped() {
+			return mQueue.getDropped();
+		}
+	}
+
+	private final File mDirectory;
+	private final int mSegmentSize;
+	private final List<Channel> mChannels = new ArrayList<Channel>();
+	private Channel[] mChannelArray = new Channel[0];
+
+	private LatencyTracer mTracer;
+	private int mTracedType;
+
+	private RecordSegment mSegment;
+	private Thread mWriterThread;
+	private volatile boolean mRunning;
+	private volatile IOException mError;
+
+	private volatile long mRecordsWritten;
+	private volatile long mSegmentsCreated;
+	private volatile boolean mRecoveredTornTail;
+
+	public SessionRecorder(File directory) {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	public SessionRecorder(File directory, int segmentSize) {
+		mDirectory = directory;
+		mSegmentSize = segmentSize;
+	}
+
+	/**
+	 * Adds a producer channel. Must be called before start().
+	 * @param width number of values per record
+	 */
+	public synchronized Channel openChannel(int type, int width, int capacity) {
+		if (mWriterThread != null) {
+			throw new IllegalStateException("Channels must be opened before start()");
+		}
+		Channel channel = new Channel(type, width, capacity);
+		mChannels.add(channel);
+		mChannelArray = mChannels.toArray(new Channel[mChannels.size()]);
+		return channel;
+	}
+
+	/**
+	 * Traces how old records of recordType are when they are written, as the
+	 * tracer's persist stage. Must be called before start().
+	 */
+	public synchronized void setLatencyTracer(LatencyTracer tracer, int recordType) {
+		mTracer = tracer;
+		mTracedType = recordType;
+	}
+
+	/**
+	 * Reopens the newest segment, or creates the first one, and starts the writer thread.
+	 * @throws IOException if the directory or segment cannot be used
+	 */
+	public synchronized void start() throws IOException {
+		if (mWriterThread != null) {
+			return;
+		}
+		if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+			throw new IOException("Cannot create " + mDirectory);
+		}
+		File[] segments = listSegments(mDirectory);
+		if (segments.length > 0) {
+			try {
+				mSegment = RecordSegment.open(segments[segments.length - 1]);
+				mRecoveredTornTail = mSegment.hadTornTail();
+			} catch (IOException e) {
+				// Unreadable segment, e.g. cut short by a full disk; leave it and start a new one.
+				mSegment = null;
+			}
+		}
+		if (mSegment == null) {
+			mSegment = newSegment(segments.length > 0 ? parseIndex(segments[segments.length - 1]) + 1 : 0);
+		}
+		if (!mSegment.append(RECORD_SESSION_START, System.currentTimeMillis(), EMPTY_VALUES, 0)) {
+			rotate();
+			mSegment.append(RECORD_SESSION_START, System.currentTimeMillis(), EMPTY_VALUES, 0);
+		}
+
+		mRunning = true;
+		mWriterThread = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "Session recorder");
+		mWriterThread.setPriority(Thread.MIN_PRIORITY);
+		mWriterThread.start();
+	}
+
+	/** Writes whatever is still queued, flushes and closes the segment. */
+	public void stop() {
+		Thread writer;
+		synchronized (this) {
+			writer = mWriterThread;
+			mRunning = false;
+		}
+		if (writer == null) {
+			return;
+		}
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			mWriterThread = null;
+		}
+	}
+
+	private void writeLoop() {
+		long lastForce = System.currentTimeMillis();
+		try {
+			while (mRunning) {
+				if (drainChannels() == 0) {
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+				}
+				long now = System.currentTimeMillis();
+				if (now - lastForce >= FORCE_INTERVAL_MS) {
+					mSegment.force();
+					lastForce = now;
+				}
+			}
+			drainChannels();
+		} catch (IOException e) {
+			mError = e;
+		} finally {
+			try {
+				mSegment.close();
+			} catch (IOException e) {
+				if (mError == null) {
+					mError = e;
+				}
+			}
+		}
+	}
+
+	/** @return number of records written */
+	private int drainChannels() throws IOException {
+		int written = 0;
+		Channel[] channels = mChannelArray;
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < channels.length; i++) {
+			Channel channel = channels[i];
+			int width = channel.mQueue.width();
+			LatencyTracer tracer = channel.mType == mTracedType ? mTracer : null;
+			long timestamp;
+			while ((timestamp = channel.mQueue.poll(channel.mValues)) != SampleQueue.EMPTY) {
+				if (!mSegment.append(channel.mType, timestamp, channel.mValues, width)) {
+					rotate();
+					mSegment.append(channel.mType, timestamp, channel.mValues, width);
+				}
+				if (tracer != null) {
+					tracer.recordSinceMillis(LatencyTracer.STAGE_PERSIST, timestamp, now);
+				}
+				written++;
+			}
+		}
+		if (written > 0) {
+			mRecordsWritten += written;
+		}
+		return written;
+	}
+
+	private void rotate() throws IOException {
+		long next = mSegment.getIndex() + 1;
+		mSegment.close();
+		mSegment = newSegment(next);
+	}
+
+	private RecordSegment newSegment(long index) throws IOException {
+		mSegmentsCreated++;
+		return RecordSegment.create(segmentFile(mDirectory, index), index, mSegmentSize);
+	}
+
+	static File segmentFile(File directory, long index) {
+		String digits = Long.toString(index);
+		StringBuilder name = new StringBuilder(SEGMENT_PREFIX);
+		for (int i = digits.length(); i < 8; i++) {
+			name.append('0');
+		}
+		return new File(directory, name.append(digits).append(SEGMENT_SUFFIX).toString());
+	}
+
+	static long parseIndex(File segment) {
+		String name = segment.getName();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	/** Segment files of a recording directory, oldest first. */
+	public static File[] listSegments(File directory) {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+					return false;
+				}
+				for (int i = SEGMENT_PREFIX.length(); i < name.length() - SEGMENT_SUFFIX.length(); i++) {
+					if (!Character.isDigit(name.charAt(i))) {
+						return false;
+					}
+				}
+				return true;
+			}
+		});
+		if (files == null) {
+			return new File[0];
+		}
+		// Zero padded indices sort by name.
+		Arrays.sort(files);
+		return files;
+	}
+
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	/** Error that stopped the writer thread, null while it is healthy. */
+	public IOException getError() {
+		return mError;
+	}
+
+	public long getRecordsWritten() {
+		return mRecordsWritten;
+	}
+
+	public long getSegmentsCreated() {
+		return mSegmentsCreated;
+	}
+
+	/** Records lost on every channel because the writer fell behind. */
+	public long getDropped() {
+		long dropped = 0;
+		Channel[] channels = mChannelArray;
+		for (int i = 0; i < channels.length; i++) {
+			dropped += channels[i].getDropped();
+		}
+		return dropped;
+	}
+
+	/** Whether start() found and cleared a record cut short by a crash. */
+	public boolean recoveredTornTail() {
+		return mRecoveredTornTail;
+	}
+}
@@ -0,0 +1,573 @@
+package edu.gatech.ubicomp.glim.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+import edu.gatech.ubicomp.glim.data.codec.BatchEncoder;
+import edu.gatech.ubicomp.glim.data.codec.BatchSchema;
+import edu.gatech.ubicomp.glim.data.codec.BitWriter;
+import edu.gatech.ubicomp.glim.data.codec.SampleBatch;
+import edu.gatech.ubicomp.glim.pipeline.LatencyTracer;
+import edu.gatech.ubicomp.glim.pipeline.SampleQueue;
+
+/**
+ * Uploads EDA samples and annotations to the LIM server in batches.
+ * 
+ * Producers hand samples over through single producer queues and never wait
+ * for the network. The uploader thread collects them into a batch until it
+ * holds maxBatchSamples samples or its oldest sample is maxBatchDelay old, and
+ * POSTs it in one of two wire formats. FORMAT_JSON keeps the field names of
+ * annotateglasseda.php, but sends every annotation of the batch as an array
+ * and gzip compresses the body (Content-Encoding: gzip), so only LIMServer's
+ * IngestServer and StandInServer accept it, not the PHP endpoint:
+ * 
+ * <pre>
+ * {"edasignal":"{time,eda\ntime,eda...}","annotation":[time,...]}
+ * </pre>
+ * 
+ * FORMAT_BINARY sends the EDA samples as one binary batch (see
+ * {@link BatchEncoder}), followed by a second batch of annotations if there are any.
+ * 
+ * Requests share one keep-alive connection. A batch that cannot be sent is
+ * written to a bounded spool directory and retried with exponential backoff,
+ * oldest first. Once the spool is in use, new batches go to its end so the
+ * server still receives them in order.
+ */
+public class UploadPipeline {
+
+	public static final int DEFAULT_MAX_BATCH_SAMPLES = 256;
+	public static final long DEFAULT_MAX_BATCH_DELAY_MS = 5000;
+	public static final long DEFAULT_MAX_SPOOL_BYTES = 8 * 1024 * 1024;
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+	/** Wire formats. */
+	public static final int FORMAT_JSON = 0;
+	public static final int FORMAT_BINARY = 1;
+	public static final String CONTENT_TYPE_BINARY = "application/vnd.glim.batch";
+	/** Identifies the wearer, so the server can keep every subject's data in order. */
+	public static final String HEADER_SUBJECT = "X-Glim-Subject";
+
+	/** The Q sensor reports EDA with three decimals, so this step loses nothing. */
+	public static final float EDA_QUANTIZATION_STEP = 0.001f;
+
+	public static final long MIN_BACKOFF_MS = 1000;
+	public static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+
+	private static final int CONNECT_TIMEOUT_MS = 10000;
+	private static final int READ_TIMEOUT_MS = 20000;
+	private static final long IDLE_PARK_NANOS = 100 * 1000 * 1000L;
+	/** Spooled batches sent per pass before the queues are drained again. */
+	private static final int MAX_RETRIES_PER_PASS = 16;
+
+	static final String SPOOL_PREFIX = "batch-";
+	static final String SPOOL_SUFFIX_JSON = ".json.gz";
+	static final String SPOOL_SUFFIX_BINARY = ".bin";
+
+	private final URL mEndpoint;
+	private final File mSpoolDirectory;
+	private int mMaxBatchSamples = DEFAULT_MAX_BATCH_SAMPLES;
+	private long mMaxBatchDelayMs = DEFAULT_MAX_BATCH_DELAY_MS;
+	private long mMaxSpoolBytes = DEFAULT_MAX_SPOOL_BYTES;
+	private int mWireFormat = FORMAT_JSON;
+	private String mSubjectId;
+	private LatencyTracer mTracer;
+
+	private final SampleQueue mSampleQueue;
+	private final SampleQueue mAnnotationQueue;
+
+	/** Everything below is only used on the uploader thread. */
+	private final float[] mPolled = new float[1];
+	private final SampleBatch mSampleBatch = new SampleBatch(1, DEFAULT_MAX_BATCH_SAMPLES);
+	private final SampleBatch mAnnotationBatch = new SampleBatch(1, 16);
+	private final BatchEncoder mSampleEncoder;
+	private final BatchEncoder mAnnotationEncoder;
+	private final BitWriter mBinaryBody = new BitWriter(1024);
+	private final StringBuilder mJson = new StringBuilder();
+	private final ByteArrayOutputStream mBody = new ByteArrayOutputStream();
+	private final byte[] mReadBuffer = new byte[8192];
+	private long mBatchStarted;
+	private final ArrayDeque<File> mSpool = new ArrayDeque<File>();
+	private long mNextSpoolIndex;
+	private long mBackoffMs;
+	private long mNextAttempt;
+
+	private Thread mUploaderThread;
+	private volatile boolean mRunning;
+
+	private volatile long mBatchesSent;
+	private volatile long mSamplesSent;
+	private volatile long mBytesSent;
+	private volatile long mFailedRequests;
+	private volatile long mBatchesSpooled;
+	private volatile long mBatchesEvicted;
+	private volatile int mSpoolCount;
+	private volatile long mSpoolBytes;
+	private volatile long mLastRequestMs;
+	private volatile String mLastError;
+
+	public UploadPipeline(URL endpoint, File spoolDirectory) {
+		this(endpoint, spoolDirectory, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	public UploadPipeline(URL endpoint, File spoolDirectory, int queueCapacity) {
+		mEndpoint = endpoint;
+		mSpoolDirectory = spoolDirectory;
+		mSampleQueue = new SampleQueue(queueCapacity, 1, SampleQueue.OverflowPolicy.DROP_NEWEST);
+		mAnnotationQueue = new SampleQueue(64, 1, SampleQueue.OverflowPolicy.DROP_NEWEST);
+		BatchSchema sampleSchema = new BatchSchema();
+		sampleSchema.addChannel(BatchSchema.CHANNEL_EDA, BatchSchema.ENCODING_QUANTIZED, EDA_QUANTIZATION_STEP);
+		mSampleEncoder = new BatchEncoder(sampleSchema);
+		BatchSchema annotationSchema = new BatchSchema();
+		annotationSchema.addChannel(BatchSchema.CHANNEL_ANNOTATION, BatchSchema.ENCODING_RAW, 0);
+		mAnnotationEncoder = new BatchEncoder(annotationSchema);
+	}
+
+	/** Batch limits, set before start(). */
+	public void setBatchLimits(int maxSamples, long maxDelayMs) {
+		mMaxBatchSamples = maxSamples;
+		mMaxBatchDelayMs = maxDelayMs;
+	}
+
+	/** FORMAT_JSON or FORMAT_BINARY, set before start(). */
+	public void setWireFormat(int wireFormat) {
+		mWireFormat = wireFormat;
+	}
+
+	/** Sent with every request in HEADER_SUBJECT, null for none. Set before start(). */
+	public void setSubjectId(String subjectId) {
+		mSubjectId = subjectId;
+	}
+
+	/**
+	 * Traces how old samples are when the server accepts them, as the tracer's
+	 * upload stage. Samples sent from the spool are not traced. Set before start().
+	 */
+	public void setLatencyTracer(LatencyTracer tracer) {
+		mTracer = tracer;
+	}
+
+	/** Oldest spooled batches are deleted to stay under this size. Set before start(). */
+	public void setMaxSpoolBytes(long maxSpoolBytes) {
+		mMaxSpoolBytes = maxSpoolBytes;
+	}
+
+	/**
+	 * Queues an EDA sample. Only one thread may call this.
+	 * @return false if the uploader is behind and the sample was dropped
+	 */
+	public boolean offerSample(long timestamp, float eda) {
+		return mSampleQueue.offer(timestamp, eda);
+	}
+
+	/**
+	 * Queues an annotation of the signal at the given time, which is when the
+	 * sample the wearer was looking at arrived. Only one thread may call this.
+	 */
+	public boolean offerAnnotation(long timestamp) {
+		return mAnnotationQueue.offer(timestamp, 0);
+	}
+
+	/** Picks up batches spooled by an earlier run and starts the uploader thread. */
+	public synchronized void start() {
+		if (mUploaderThread != null) {
+			return;
+		}
+		mSpoolDirectory.mkdirs();
+		loadSpool();
+		mRunning = true;
+		mUploaderThread = new Thread(new Runnable() {
+			public void run() {
+				uploadLoop();
+			}
+		}, "Uploader");
+		mUploaderThread.setPriority(Thread.MIN_PRIORITY);
+		mUploaderThread.start();
+	}
+
+	/** Stops the uploader. The batch in progress is sent or spooled. */
+	public void stop() {
+		Thread uploader;
+		synchronized (this) {
+			uploader = mUploaderThread;
+			mRunning = false;
+		}
+		if (uploader == null) {
+			return;
+		}
+		LockSupport.unpark(uploader);
+		try {
+			uploader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			mUploaderThread = null;
+		}
+	}
+
+	private void uploadLoop() {
+		while (mRunning) {
+			drainQueues();
+			long now = System.currentTimeMillis();
+			boolean full = mSampleBatch.size() >= mMaxBatchSamples;
+			if (full || (!isBatchEmpty() && now - mBatchStarted >= mMaxBatchDelayMs)) {
+				sendBatch(now);
+			}
+			for (int i = 0; i < MAX_RETRIES_PER_PASS && !mSpool.isEmpty()
+					&& System.currentTimeMillis() >= mNextAttempt; i++) {
+				if (!retrySpool()) {
+					break;
+				}
+			}
+			if (!full) {
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+			}
+		}
+		drainQueues();
+		if (!isBatchEmpty()) {
+			sendBatch(System.currentTimeMillis());
+		}
+	}
+
+	private boolean isBatchEmpty() {
+		return mSampleBatch.size() == 0 && mAnnotationBatch.size() == 0;
+	}
+
+	private void drainQueues() {
+		long timestamp;
+		while (mSampleBatch.size() < mMaxBatchSamples && (timestamp = mSampleQueue.poll(mPolled)) != SampleQueue.EMPTY) {
+			if (isBatchEmpty()) {
+				mBatchStarted = System.currentTimeMillis();
+			}
+			mSampleBatch.add(timestamp, mPolled[0]);
+		}
+		while ((timestamp = mAnnotationQueue.poll(mPolled)) != SampleQueue.EMPTY) {
+			if (isBatchEmpty()) {
+				mBatchStarted = System.currentTimeMillis();
+			}
+			mAnnotationBatch.add(timestamp, mPolled[0]);
+		}
+	}
+
+	/** Sends the current batch, or spools it if the server is unreachable or backlogged. */
+	private void sendBatch(long now) {
+		int samples = mSampleBatch.size();
+		boolean binary = mWireFormat == FORMAT_BINARY;
+		byte[] body;
+		try {
+			body = encodeBody(mSampleBatch, mAnnotationBatch, binary);
+			if (mSpool.isEmpty() && now >= mNextAttempt && post(body, binary)) {
+				mBatchesSent++;
+				mSamplesSent += samples;
+				if (mTracer != null) {
+					long accepted = System.currentTimeMillis();
+					for (int i = 0; i < samples; i++) {
+						mTracer.recordSinceMillis(LatencyTracer.STAGE_UPLOAD, mSampleBatch.getTimestamp(i), accepted);
+					}
+				}
+				return;
+			}
+		} catch (IOException e) {
+			mLastError = e.toString();
+			return;
+		} finally {
+			mSampleBatch.clear();
+			mAnnotationBatch.clear();
+		}
+		spool(body, binary);
+	}
+
+	/**
+	 * Encodes a request body in the binary or the gzipped JSON format. Only used
+	 * on the uploader thread, and by the benchmarks.
+	 */
+	byte[] encodeBody(SampleBatch samples, SampleBatch annotations, boolean binary) throws IOException {
+		return binary ? encodeBinary(samples, annotations) : gzip(encodeJson(samples, annotations));
+	}
+
+	private CharSequence encodeJson(SampleBatch samples, SampleBatch annotations) {
+		mJson.setLength(0);
+		mJson.append("{\"edasignal\":\"{");
+		for (int i = 0; i < samples.size(); i++) {
+			if (i > 0) {
+				mJson.append("\\n");
+			}
+			mJson.append(samples.getTimestamp(i)).append(',').append(samples.getValue(0, i));
+		}
+		mJson.append("}\"");
+		if (annotations.size() > 0) {
+			mJson.append(",\"annotation\":[");
+			for (int i = 0; i < annotations.size(); i++) {
+				if (i > 0) {
+					mJson.append(',');
+				}
+				mJson.append(annotations.getTimestamp(i));
+			}
+			mJson.append(']');
+		}
+		return mJson.append('}');
+	}
+
+	private byte[] encodeBinary(SampleBatch samples, SampleBatch annotations) {
+		mBinaryBody.reset();
+		mSampleEncoder.encode(samples, mBinaryBody);
+		if (annotations.size() > 0) {
+			mAnnotationEncoder.encode(annotations, mBinaryBody);
+		}
+		return mBinaryBody.toByteArray();
+	}
+
+	private byte[] gzip(CharSequence json) throws IOException {
+		mBody.reset();
+		GZIPOutputStream out = new GZIPOutputStream(mBody);
+		for (int i = 0; i < json.length(); i++) {
+			// The body is ASCII: digits, punctuation and escaped newlines.
+			out.write(json.charAt(i));
+		}
+		out.close();
+		return mBody.toByteArray();
+	}
+
+	/** @return true if the server accepted the body */
+	private boolean post(byte[] body, boolean binary) {
+		long started = System.currentTimeMillis();
+		long retryAfterMs = 0;
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) mEndpoint.openConnection();
+			connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+			connection.setReadTimeout(READ_TIMEOUT_MS);
+			connection.setDoOutput(true);
+			connection.setRequestMethod("POST");
+			connection.setFixedLengthStreamingMode(body.length);
+			if (binary) {
+				connection.setRequestProperty("Content-Type", CONTENT_TYPE_BINARY);
+			} else {
+				connection.setRequestProperty("Content-Type", "application/json");
+				connection.setRequestProperty("Content-Encoding", "gzip");
+			}
+			connection.setRequestProperty("Accept", "application/json");
+			if (mSubjectId != null) {
+				connection.setRequestProperty(HEADER_SUBJECT, mSubjectId);
+			}
+			OutputStream out = connection.getOutputStream();
+			out.write(body);
+			out.close();
+
+			int status = connection.getResponseCode();
+			// Reading the response to the end hands the socket back for the next request.
+			InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+			if (in != null) {
+				while (in.read(mReadBuffer) >= 0) {
+				}
+				in.close();
+			}
+			mLastRequestMs = System.currentTimeMillis() - started;
+			if (status >= 200 && status < 300) {
+				mBytesSent += body.length;
+				mBackoffMs = 0;
+				mNextAttempt = 0;
+				return true;
+			}
+			mLastError = "HTTP " + status;
+			// An overloaded server says when to come back; never retry sooner.
+			retryAfterMs = parseRetryAfter(connection.getHeaderField("Retry-After"));
+		} catch (IOException e) {
+			mLastError = e.toString();
+			if (connection != null) {
+				// A broken connection must not go back to the pool.
+				connection.disconnect();
+			}
+		}
+		mFailedRequests++;
+		mBackoffMs = mBackoffMs == 0 ? MIN_BACKOFF_MS : Math.min(mBackoffMs * 2, MAX_BACKOFF_MS);
+		mNextAttempt = System.currentTimeMillis() + Math.max(mBackoffMs, retryAfterMs);
+		return false;
+	}
+
+	/** @return the delay of a Retry-After header given in seconds, 0 if absent or not in seconds */
+	private static long parseRetryAfter(String value) {
+		if (value == null) {
+			return 0;
+		}
+		try {
+			return Math.min(Long.parseLong(value.trim()) * 1000, MAX_BACKOFF_MS);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Sends the oldest spooled batch.
+	 * @return true if the spool got shorter
+	 */
+	private boolean retrySpool() {
+		File file = mSpool.peekFirst();
+		byte[] body;
+		try {
+			body = readFile(file);
+		} catch (IOException e) {
+			// Unreadable spool entry, drop it rather than retry forever.
+			removeOldestSpooled();
+			return true;
+		}
+		if (post(body, file.getName().endsWith(SPOOL_SUFFIX_BINARY))) {
+			mBatchesSent++;
+			removeOldestSpooled();
+			return true;
+		}
+		return false;
+	}
+
+	private void spool(byte[] body, boolean binary) {
+		while (!mSpool.isEmpty() && mSpoolBytes + body.length > mMaxSpoolBytes) {
+			removeOldestSpooled();
+			mBatchesEvicted++;
+		}
+		File file = spoolFile(mNextSpoolIndex++, binary ? SPOOL_SUFFIX_BINARY : SPOOL_SUFFIX_JSON);
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(body);
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			mLastError = e.toString();
+			file.delete();
+			mBatchesEvicted++;
+			return;
+		}
+		mSpool.addLast(file);
+		mSpoolBytes += body.length;
+		mSpoolCount = mSpool.size();
+		mBatchesSpooled++;
+	}
+
+	private void removeOldestSpooled() {
+		File file = mSpool.pollFirst();
+		mSpoolBytes -= file.length();
+		file.delete();
+		mSpoolCount = mSpool.size();
+	}
+
+	private void loadSpool() {
+		File[] files = mSpoolDirectory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SPOOL_PREFIX)
+						&& (name.endsWith(SPOOL_SUFFIX_JSON) || name.endsWith(SPOOL_SUFFIX_BINARY));
+			}
+		});
+		mSpool.clear();
+		mSpoolBytes = 0;
+		if (files != null) {
+			Arrays.sort(files);
+			for (File file : files) {
+				mSpool.addLast(file);
+				mSpoolBytes += file.length();
+				mNextSpoolIndex = Math.max(mNextSpoolIndex, parseSpoolIndex(file) + 1);
+			}
+		}
+		mSpoolCount = mSpool.size();
+	}
+
+	private File spoolFile(long index, String suffix) {
+		String digits = Long.toString(index);
+		StringBuilder name = new StringBuilder(SPOOL_PREFIX);
+		for (int i = digits.length(); i < 12; i++) {
+			name.append('0');
+		}
+		return new File(mSpoolDirectory, name.append(digits).append(suffix).toString());
+	}
+
+	private static long parseSpoolIndex(File file) {
+		String name = file.getName();
+		try {
+			return Long.parseLong(name.substring(SPOOL_PREFIX.length(), name.indexOf('.')));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private byte[] readFile(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int read = 0;
+			while (read < data.length) {
+				int count = in.read(data, read, data.length - read);
+				if (count < 0) {
+					throw new IOException("Spooled batch truncated: " + file);
+				}
+				read += count;
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	/** Batches the server accepted, directly or from the spool. */
+	public long getBatchesSent() {
+		return mBatchesSent;
+	}
+
+	/** Samples in batches sent without going through the spool. */
+	public long getSamplesSent() {
+		return mSamplesSent;
+	}
+
+	/** Compressed bytes the server accepted. */
+	public long getBytesSent() {
+		return mBytesSent;
+	}
+
+	public long getFailedRequests() {
+		return mFailedRequests;
+	}
+
+	public long getBatchesSpooled() {
+		return mBatchesSpooled;
+	}
+
+	/** Batches deleted from the spool to keep it under its size limit. */
+	public long getBatchesEvicted() {
+		return mBatchesEvicted;
+	}
+
+	/** Batches waiting in the spool. */
+	public int getSpoolCount() {
+		return mSpoolCount;
+	}
+
+	public long getSpoolBytes() {
+		return mSpoolBytes;
+	}
+
+	/** Samples dropped because the uploader fell behind. */
+	public long getDroppedSamples() {
+		return mSampleQueue.getDropped();
+	}
+
+	/** Duration of the last request in ms. */
+	public long getLastRequestTime() {
+		return mLastRequestMs;
+	}
+
+	public String getLastError() {
+		return mLastError;
+	}
+}
@@ -0,0 +1,124 @@
+package edu.gatech.ubicomp.glim.pipeline;
+
+import edu.gatech.ubicomp.glim.data.SessionRecorder;
+import edu.gatech.ubicomp.glim.data.UploadPipeline;
+import edu.gatech.ubicomp.glim.sensor.LineFramer;
+import edu.gatech.ubicomp.glim.sensor.QSensorLineParser;
+import edu.gatech.ubicomp.glim.sensor.QSensorSample;
+import edu.gatech.ubicomp.glim.sensor.SensorLineReader;
+import edu.gatech.ubicomp.glim.signal.EdaDecomposer;
+import edu.gatech.ubicomp.glim.signal.EmaTonicFilter;
+import edu.gatech.ubicomp.glim.signal.ScrDetector;
+
+/**
+ * Processes every line of a Q sensor on its reader thread: parses it, splits
+ * off the phasic signal, detects responses, publishes the sample to
+ * PhysioState, records it and queues it for upload, then hands it on.
+ *
+ * GlimMainActivity and the soak test both run their EDA data through this
+ * class, so what is soak tested is what runs on Glass.
+ */
+public class EdaPipeline implements LineFramer.LineListener {
+
+	/** Receives every sample once it is processed. */
+	public interface SampleListener {
+		/**
+		 * Called on the reader thread.
+		 * @param arrival when the line was read, on the System.nanoTime() clock
+		 * @param sample the sample, reused for the next line
+		 * @param scrRate responses in the last minute
+		 */
+		void onEdaSample(long arrival, QSensorSample sample, int scrRate);
+	}
+
+	/** Recorded per sample: z, y, x, battery, temp, eda and event of the line. */
+	public static final int RECORD_WIDTH = 7;
+
+	private final PhysioState mPhysioState;
+	private final LatencyTracer mTracer;
+	private final SampleListener mListener;
+
+	private final QSensorLineParser mParser = new QSensorLineParser();
+	private final QSensorSample mSample = new QSensorSample();
+	private final EdaDecomposer mDecomposer = new EdaDecomposer(new EmaTonicFilter(EdaDecomposer.DEFAULT_EMA_ALPHA));
+	private final ScrDetector mScrDetector;
+	/** Only touched on the reader thread. */
+	private final float[] mRecordValues = new float[RECORD_WIDTH];
+
+	private volatile SensorLineReader mReader;
+	private volatile SessionRecorder.Channel mRecordChannel;
+	private volatile UploadPipeline mUploadPipeline;
+
+	/**
+	 * @param sampleRate lines per second the sensor sends
+	 * @param tracer records the read and parse stages of every sample
+	 * @param listener receives every sample, may be null
+	 */
+	public EdaPipeline(int sampleRate, PhysioState physioState, LatencyTracer tracer, SampleListener listener) {
+		mScrDetector = new ScrDetector(sampleRate, null);
+		mPhysioState = physioState;
+		mTracer = tracer;
+		mListener = listener;
+	}
+
+	/** Reader of the current link; the time of its last read is the arrival time of its lines. */
+	public void setReader(SensorLineReader reader) {
+		mReader = reader;
+	}
+
+	/** Records every sample to the session, null to stop recording. */
+	public void setRecordChannel(SessionRecorder.Channel recordChannel) {
+		mRecordChannel = recordChannel;
+	}
+
+	/** Uploads every sample, null to stop uploading. */
+	public void setUploadPipeline(UploadPipeline uploadPipeline) {
+		mUploadPipeline = uploadPipeline;
+	}
+
+	public void onLine(byte[] line, int offset, int length) {
+		long arrival = mReader.getReadNanos();
+		mTracer.recordSince(LatencyTracer.STAGE_READ, arrival);
+		// Lines the Q sensor sends when its button is pressed are short and get skipped.
+		if (!mParser.parse(line, offset, length, mSample)) {
+			return;
+		}
+		mTracer.recordSince(LatencyTracer.STAGE_PARSE, arrival);
+		long timestamp = System.currentTimeMillis();
+		mSample.timestamp = timestamp;
+
+		float phasic = mDecomposer.update(mSample.eda);
+		mScrDetector.update(phasic);
+		int scrRate = mScrDetector.getRatePerMinute();
+
+		mPhysioState.beginWrite();
+		mPhysioState.put(PhysioState.EDA, timestamp, mSample.eda);
+		mPhysioState.put(PhysioState.TONIC, timestamp, mDecomposer.getTonic());
+		mPhysioState.put(PhysioState.PHASIC, timestamp, phasic);
+		mPhysioState.put(PhysioState.SCR_RATE, timestamp, scrRate);
+		mPhysioState.endWrite();
+
+		SessionRecorder.Channel recordChannel = mRecordChannel;
+		if (recordChannel != null) {
+			mRecordValues[0] = mSample.z;
+			mRecordValues[1] = mSample.y;
+			mRecordValues[2] = mSample.x;
+			mRecordValues[3] = mSample.battery;
+			mRecordValues[4] = mSample.temp;
+			mRecordValues[5] = mSample.eda;
+			mRecordValues[6] = mSample.event;
+			recordChannel.record(timestamp, mRecordValues);
+		}
+		UploadPipeline uploadPipeline = mUploadPipeline;
+		if (uploadPipeline != null) {
+			uploadPipeline.offerSample(timestamp, mSample.eda);
+		}
+		if (mListener != null) {
+			mListener.onEdaSample(arrival, mSample, scrRate);
+		}
+	}
+
+	public QSensorLineParser getParser() {
+		return mParser;
+	}
+}
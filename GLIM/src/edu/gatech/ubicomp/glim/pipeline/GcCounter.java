@@ -0,0 +1,55 @@
+package edu.gatech.ubicomp.glim.pipeline;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts garbage collections on VMs that have no API for it, such as Dalvik.
+ *
+ * Only a weak reference to a sentinel object is kept. The collection that
+ * reclaims the sentinel enqueues the reference; a daemon thread waiting on
+ * the queue counts it and leaves a new sentinel, so every collection after
+ * the previous one was counted is counted. The count is a lower bound when
+ * collections follow each other faster than the thread wakes up.
+ */
+public class GcCounter implements MetricsRegistry.Source {
+
+	private final AtomicLong mCount = new AtomicLong();
+	private final ReferenceQueue<Object> mQueue = new ReferenceQueue<Object>();
+	private final Thread mThread;
+	private volatile boolean mStopped;
+
+	public GcCounter() {
+		mThread = new Thread(new Runnable() {
+			public void run() {
+				// Only this thread holds the reference, the sentinel itself is unreachable.
+				WeakReference<Object> sentinel = new WeakReference<Object>(new Object(), mQueue);
+				while (!mStopped) {
+					try {
+						if (mQueue.remove() != sentinel) {
+							continue;
+						}
+					} catch (InterruptedException e) {
+						return;
+					}
+					mCount.incrementAndGet();
+					sentinel = new WeakReference<Object>(new Object(), mQueue);
+				}
+			}
+		}, "GC counter");
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/** Collections counted so far. */
+	public long read() {
+		return mCount.get();
+	}
+
+	/** Stops counting and ends the thread. */
+	public void stop() {
+		mStopped = true;
+		mThread.interrupt();
+	}
+}
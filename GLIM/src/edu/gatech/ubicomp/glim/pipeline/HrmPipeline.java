@@ -0,0 +1,93 @@
+package edu.gatech.ubicomp.glim.pipeline;
+
+import edu.gatech.ubicomp.glim.data.SessionRecorder;
+import edu.gatech.ubicomp.glim.sensor.HxmPacket;
+import edu.gatech.ubicomp.glim.sensor.HxmPacketDecoder;
+import edu.gatech.ubicomp.glim.signal.HrvWindow;
+import edu.gatech.ubicomp.glim.signal.RrIntervalExtractor;
+
+/**
+ * Processes every HR_SPD_DIST packet of an HxM on the thread packets arrive
+ * on: derives R-R intervals and HRV from the beat timestamps, publishes heart
+ * rate, speed and HRV to PhysioState and records them, then hands the packet
+ * on.
+ *
+ * HRMListener and the soak test both run their HxM packets through this
+ * class, so what is soak tested is what runs on Glass.
+ */
+public class HrmPipeline implements HxmPacketDecoder.Listener {
+
+	/** Receives every packet once it is processed. */
+	public interface SampleListener {
+		/** Called on the thread packets arrive on. */
+		void onHrmSample(long timestamp, int heartRate, float instantSpeed);
+	}
+
+	/** Recorded per packet: heart rate, instant speed, RMSSD, SDNN and pNN50. */
+	public static final int RECORD_WIDTH = 5;
+
+	/** Number of R-R intervals HRV is computed over, about a minute at rest. */
+	public static final int HRV_WINDOW_BEATS = 60;
+
+	private final PhysioState mPhysioState;
+	private final SampleListener mListener;
+
+	private final HrvWindow mHrvWindow = new HrvWindow(HRV_WINDOW_BEATS);
+	private final RrIntervalExtractor mRrIntervalExtractor = new RrIntervalExtractor(
+			new RrIntervalExtractor.RrListener() {
+				public void onRrInterval(int beatTimestamp, int rrInterval) {
+					mHrvWindow.add(rrInterval);
+				}
+			});
+	/** Only touched on the thread packets arrive on. */
+	private final float[] mRecordValues = new float[RECORD_WIDTH];
+	private volatile SessionRecorder.Channel mRecordChannel;
+
+	/** @param listener receives every packet, may be null */
+	public HrmPipeline(PhysioState physioState, SampleListener listener) {
+		mPhysioState = physioState;
+		mListener = listener;
+	}
+
+	/** Records every packet to the session, null to stop recording. */
+	public void setRecordChannel(SessionRecorder.Channel recordChannel) {
+		mRecordChannel = recordChannel;
+	}
+
+	/**
+	 * Beat counters of a previous link do not carry over. Call before the
+	 * packets of a new link. The HRV window keeps its intervals, so a short
+	 * drop does not blank HRV for another minute.
+	 */
+	public void resetBeats() {
+		mRrIntervalExtractor.reset();
+	}
+
+	public void onHxmPacket(HxmPacket packet) {
+		int heartRate = packet.heartRate;
+		float instantSpeed = packet.instantSpeed;
+		mRrIntervalExtractor.update(packet.heartBeatNumber, packet.heartBeatTimestamps);
+
+		long timestamp = System.currentTimeMillis();
+		mPhysioState.beginWrite();
+		mPhysioState.put(PhysioState.HEART_RATE, timestamp, heartRate);
+		mPhysioState.put(PhysioState.INSTANT_SPEED, timestamp, instantSpeed);
+		mPhysioState.put(PhysioState.RMSSD, timestamp, mHrvWindow.getRmssd());
+		mPhysioState.put(PhysioState.SDNN, timestamp, mHrvWindow.getSdnn());
+		mPhysioState.put(PhysioState.PNN50, timestamp, mHrvWindow.getPnn50());
+		mPhysioState.endWrite();
+
+		SessionRecorder.Channel recordChannel = mRecordChannel;
+		if (recordChannel != null) {
+			mRecordValues[0] = heartRate;
+			mRecordValues[1] = instantSpeed;
+			mRecordValues[2] = mHrvWindow.getRmssd();
+			mRecordValues[3] = mHrvWindow.getSdnn();
+			mRecordValues[4] = mHrvWindow.getPnn50();
+			recordChannel.record(timestamp, mRecordValues);
+		}
+		if (mListener != null) {
+			mListener.onHrmSample(timestamp, heartRate, instantSpeed);
+		}
+	}
+}
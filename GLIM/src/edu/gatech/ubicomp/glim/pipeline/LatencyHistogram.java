@@ -0,0 +1,105 @@
+package edu.gatech.ubicomp.glim.pipeline;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Counts latencies in buckets that widen with the value, like HdrHistogram:
+ * every power of two is split into SUB_BUCKETS equal buckets, so a recorded
+ * value is known to within 1/SUB_BUCKETS (about 3%) from one nanosecond up
+ * to MAX_TRACKABLE_NANOS. Longer latencies are counted in the last bucket.
+ *
+ * Recording finds the bucket with a few shifts and bumps its count with an
+ * ordered store, without locks or allocation. Only one thread may record at
+ * a time; any thread may read percentiles while it does.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HIGHEST_BIT = 40;
+
+	/** About 18 minutes. */
+	public static final long MAX_TRACKABLE_NANOS = (1L << HIGHEST_BIT) - 1;
+
+	static final int BUCKET_COUNT = (HIGHEST_BIT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicIntegerArray mCounts = new AtomicIntegerArray(BUCKET_COUNT);
+	private volatile long mMax;
+
+	/** Counts one latency. Negative values, from clocks set back, count as zero. */
+	public void record(long nanos) {
+		int index = indexOf(nanos);
+		// Single writer, so no compare and set is needed.
+		mCounts.lazySet(index, mCounts.get(index) + 1);
+		if (nanos > mMax) {
+			mMax = nanos;
+		}
+	}
+
+	/** Adds the counts of other, e.g. to sum the histograms of several threads. Same rules as record(). */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			int count = other.mCounts.get(i);
+			if (count != 0) {
+				mCounts.lazySet(i, mCounts.get(i) + count);
+			}
+		}
+		if (other.mMax > mMax) {
+			mMax = other.mMax;
+		}
+	}
+
+	static int indexOf(long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return nanos < 0 ? 0 : (int) nanos;
+		}
+		if (nanos > MAX_TRACKABLE_NANOS) {
+			nanos = MAX_TRACKABLE_NANOS;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+		return ((shift + 1) << SUB_BUCKET_BITS) + (int) (nanos >>> shift) - SUB_BUCKETS;
+	}
+
+	static long lowestValueOf(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = (index >> SUB_BUCKET_BITS) - 1;
+		return (long) ((index & (SUB_BUCKETS - 1)) + SUB_BUCKETS) << shift;
+	}
+
+	/** Number of latencies recorded. */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			count += mCounts.get(i);
+		}
+		return count;
+	}
+
+	/** Longest latency recorded, exact. */
+	public long getMax() {
+		return mMax;
+	}
+
+	/**
+	 * Latency that percentile percent of the recorded ones do not exceed,
+	 * rounded up to the end of its bucket. 0 if nothing was recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += mCounts.get(i);
+			if (seen >= rank) {
+				long highest = i + 1 < BUCKET_COUNT ? lowestValueOf(i + 1) - 1 : MAX_TRACKABLE_NANOS;
+				return Math.min(highest, mMax);
+			}
+		}
+		return mMax;
+	}
+}
@@ -0,0 +1,116 @@
+package edu.gatech.ubicomp.glim.pipeline;
+
+import java.util.Locale;
+
+/**
+ * Latency histograms for the stages a sensor sample goes through, from the
+ * Bluetooth read to the display, the session recording and the server.
+ *
+ * A sample carries the System.nanoTime() at which the read that delivered
+ * it returned. Each stage records the sample's age when it is done with it,
+ * so a stage's histogram shows how stale samples are by the time they leave
+ * it, and the difference to the stage before is what the stage adds. The
+ * recording and upload stages only have the wall clock timestamp the sample
+ * got when it was parsed, and are traced to the millisecond.
+ *
+ * Every stage has its own {@link LatencyHistogram} and must be recorded by
+ * one thread at a time, which is how the pipeline runs: read and parse on the
+ * reader thread, hand-off, classify and render on the UI thread, waveform on
+ * the waveform's render thread, persist on the recorder's writer thread and
+ * upload on the uploader thread.
+ */
+public class LatencyTracer {
+
+	/** Line framed from the bytes read. */
+	public static final int STAGE_READ = 0;
+	public static final int STAGE_PARSE = 1;
+	/** Picked up by the UI thread. */
+	public static final int STAGE_HAND_OFF = 2;
+	/** Band indicator updated. */
+	public static final int STAGE_CLASSIFY = 3;
+	/** Drawn frame on the display. */
+	public static final int STAGE_RENDER = 4;
+	/** Waveform frame posted to the SurfaceView, which the UI thread does not draw. */
+	public static final int STAGE_WAVEFORM = 5;
+	/** Written to the session recording. */
+	public static final int STAGE_PERSIST = 6;
+	/** Accepted by the server. */
+	public static final int STAGE_UPLOAD = 7;
+	public static final int STAGE_COUNT = 8;
+
+	private static final String[] STAGE_NAMES = { "read", "parse", "hand-off", "classify", "render", "waveform",
+			"persist", "upload" };
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	private final LatencyHistogram[] mStages = new LatencyHistogram[STAGE_COUNT];
+	private volatile boolean mEnabled = true;
+
+	public LatencyTracer() {
+		for (int i = 0; i < STAGE_COUNT; i++) {
+			mStages[i] = new LatencyHistogram();
+		}
+	}
+
+	/** Tracing is on by default. Turning it off leaves the counts so far in place. */
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	/** Records the age of a sample that arrived at arrivalNanos, on the System.nanoTime() clock. */
+	public void recordSince(int stage, long arrivalNanos) {
+		if (mEnabled) {
+			mStages[stage].record(System.nanoTime() - arrivalNanos);
+		}
+	}
+
+	/** Records the age of a sample with a wall clock timestamp, as of nowMs. */
+	public void recordSinceMillis(int stage, long timestampMs, long nowMs) {
+		if (mEnabled) {
+			mStages[stage].record((nowMs - timestampMs) * 1000000L);
+		}
+	}
+
+	public LatencyHistogram getStage(int stage) {
+		return mStages[stage];
+	}
+
+	public static String getStageName(int stage) {
+		return STAGE_NAMES[stage];
+	}
+
+	/** Adds the counts of other, e.g. to report the tracers of several pipelines together. */
+	public void add(LatencyTracer other) {
+		for (int i = 0; i < STAGE_COUNT; i++) {
+			mStages[i].add(other.mStages[i]);
+		}
+	}
+
+	/** Appends a table of sample ages in milliseconds per stage, one line per stage that saw samples. */
+	public StringBuilder dump(StringBuilder out) {
+		out.append(String.format(Locale.US, "%-9s%10s%9s%9s%9s%9s%9s%n", "stage", "count", "p50 ms", "p90 ms",
+				"p99 ms", "p99.9 ms", "max ms"));
+		for (int i = 0; i < STAGE_COUNT; i++) {
+			LatencyHistogram histogram = mStages[i];
+			long count = histogram.getCount();
+			if (count == 0) {
+				continue;
+			}
+			out.append(String.format(Locale.US, "%-9s%10d", STAGE_NAMES[i], count));
+			for (double percentile : PERCENTILES) {
+				out.append(String.format(Locale.US, "%9.3f", histogram.getValueAtPercentile(percentile) / 1e6));
+			}
+			out.append(String.format(Locale.US, "%9.3f%n", histogram.getMax() / 1e6));
+		}
+		return out;
+	}
+
+	@Override
+	public String toString() {
+		return dump(new StringBuilder()).toString();
+	}
+}
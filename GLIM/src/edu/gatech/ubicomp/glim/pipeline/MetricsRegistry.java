@@ -0,0 +1,180 @@
+package edu.gatech.ubicomp.glim.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters and gauges of the sensor pipeline, with the rates of the
+ * counters.
+ *
+ * Metrics are registered up front. A metric either keeps its own value,
+ * updated with add() or set() from any thread, or reads a value a component
+ * already keeps through a {@link Source}, so hot paths that count anyway are
+ * not slowed down twice. Updates are a single atomic add or store, without
+ * locks or allocation.
+ *
+ * One thread calls sample() periodically. It reads every metric and works
+ * out each counter's increment and rate since the previous sample, which the
+ * same thread then reads to show or record them.
+ */
+public class MetricsRegistry {
+
+	/** Reads a value a component keeps. Called on the sampling thread, must not allocate. */
+	public interface Source {
+		long read();
+	}
+
+	public static final int TYPE_COUNTER = 0;
+	public static final int TYPE_GAUGE = 1;
+
+	/** A counter or gauge. add() and set() may be called from any thread. */
+	public static class Metric {
+		private final String mName;
+		private final int mType;
+		private final Source mSource;
+		private final AtomicLong mValue = new AtomicLong();
+
+		/** Only used on the sampling thread. */
+		private long mSampled;
+		private long mDelta;
+		private float mRate;
+
+		Metric(String name, int type, Source source) {
+			mName = name;
+			mType = type;
+			mSource = source;
+		}
+
+		public void increment() {
+			mValue.incrementAndGet();
+		}
+
+		public void add(long delta) {
+			mValue.addAndGet(delta);
+		}
+
+		public void set(long value) {
+			mValue.set(value);
+		}
+
+		/** Current value, read from the source if there is one. */
+		public long get() {
+			return mSource != null ? mSource.read() : mValue.get();
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public int getType() {
+			return mType;
+		}
+
+		/** Value at the last sample. */
+		public long getSampled() {
+			return mSampled;
+		}
+
+		/** Counters: increment between the last two samples. */
+		public long getDelta() {
+			return mDelta;
+		}
+
+		/** Counters: increment per second between the last two samples. */
+		public float getRate() {
+			return mRate;
+		}
+	}
+
+	private final List<Metric> mMetrics = new ArrayList<Metric>();
+	private volatile Metric[] mMetricArray = new Metric[0];
+	private long mLastSampleMs = -1;
+
+	/** A counter that counts with increment() and add(). */
+	public Metric counter(String name) {
+		return register(new Metric(name, TYPE_COUNTER, null));
+	}
+
+	/**
+	 * A counter that reads a count kept elsewhere. A count that goes down is
+	 * taken to have started over, as when a component is replaced on reconnect.
+	 */
+	public Metric counter(String name, Source source) {
+		return register(new Metric(name, TYPE_COUNTER, source));
+	}
+
+	/** A gauge that holds what set() stores. */
+	public Metric gauge(String name) {
+		return register(new Metric(name, TYPE_GAUGE, null));
+	}
+
+	public Metric gauge(String name, Source source) {
+		return register(new Metric(name, TYPE_GAUGE, source));
+	}
+
+	private synchronized Metric register(Metric metric) {
+		mMetrics.add(metric);
+		mMetricArray = mMetrics.toArray(new Metric[mMetrics.size()]);
+		return metric;
+	}
+
+	public int size() {
+		return mMetricArray.length;
+	}
+
+	/** Metrics in the order they were registered. */
+	public Metric get(int index) {
+		return mMetricArray[index];
+	}
+
+	/** Reads every metric and updates the increments and rates of the counters. */
+	public void sample(long nowMs) {
+		Metric[] metrics = mMetricArray;
+		float seconds = mLastSampleMs < 0 ? 0 : (nowMs - mLastSampleMs) / 1000f;
+		for (int i = 0; i < metrics.length; i++) {
+			Metric metric = metrics[i];
+			long value = metric.get();
+			if (metric.mType == TYPE_COUNTER) {
+				metric.mDelta = value >= metric.mSampled ? value - metric.mSampled : value;
+				metric.mRate = seconds > 0 ? metric.mDelta / seconds : 0;
+			}
+			metric.mSampled = value;
+		}
+		mLastSampleMs = nowMs;
+	}
+
+	/**
+	 * Copies the last sample into values, in registration order: the
+	 * increment of each counter and the value of each gauge. This is the
+	 * compact form the session recording keeps.
+	 * @return number of values
+	 */
+	public int copyTo(float[] values) {
+		Metric[] metrics = mMetricArray;
+		for (int i = 0; i < metrics.length; i++) {
+			values[i] = metrics[i].mType == TYPE_COUNTER ? metrics[i].mDelta : metrics[i].mSampled;
+		}
+		return metrics.length;
+	}
+
+	/** Appends the last sample, one metric per line, counters with their rate. */
+	public StringBuilder dump(StringBuilder out) {
+		Metric[] metrics = mMetricArray;
+		for (int i = 0; i < metrics.length; i++) {
+			Metric metric = metrics[i];
+			out.append(String.format(Locale.US, "%-16s%12d", metric.mName, metric.mSampled));
+			if (metric.mType == TYPE_COUNTER) {
+				out.append(String.format(Locale.US, "%10.1f/s", metric.mRate));
+			}
+			out.append('\n');
+		}
+		return out;
+	}
+
+	@Override
+	public String toString() {
+		return dump(new StringBuilder()).toString();
+	}
+}
@@ -0,0 +1,164 @@
+package edu.gatech.ubicomp.glim.pipeline;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latest value of every physiological channel, shared between the sensor
+ * threads that write it and the UI, recorder and upload code that read it.
+ * 
+ * Each channel holds a value, the timestamp it was measured at and a sequence
+ * number counting its updates. Writes are grouped under a version counter
+ * (a seqlock): it is odd while a write is in progress, and a reader retries
+ * its copy if the version moved, so a {@link Snapshot} never mixes two updates.
+ * Neither side locks or allocates.
+ */
+public class PhysioState {
+
+	/** Raw skin conductance, in microsiemens. */
+	public static final int EDA = 0;
+	/** Slow moving skin conductance level. */
+	public static final int TONIC = 1;
+	/** Fast skin conductance response component. */
+	public static final int PHASIC = 2;
+	/** Skin conductance responses per minute. */
+	public static final int SCR_RATE = 3;
+	/** Heart rate, in beats per minute. */
+	public static final int HEART_RATE = 4;
+	/** Instant speed from the HRM, in m/s. */
+	public static final int INSTANT_SPEED = 5;
+	/** HRV over the recent beats, in ms. */
+	public static final int RMSSD = 6;
+	public static final int SDNN = 7;
+	/** Share of successive beat differences over 50 ms, in percent (0 to 100). */
+	public static final int PNN50 = 8;
+	public static final int CHANNEL_COUNT = 9;
+
+	/** Consistent copy of every channel, reused between reads. */
+	public static class Snapshot {
+		private final float[] mValues;
+		private final long[] mTimestamps;
+		private final long[] mSequences;
+		private int mVersion;
+
+		public Snapshot(int channels) {
+			mValues = new float[channels];
+			mTimestamps = new long[channels];
+			mSequences = new long[channels];
+		}
+
+		public float getValue(int channel) {
+			return mValues[channel];
+		}
+
+		/** @return the value, or fallback if the channel was never written */
+		public float getValue(int channel, float fallback) {
+			return mSequences[channel] == 0 ? fallback : mValues[channel];
+		}
+
+		public long getTimestamp(int channel) {
+			return mTimestamps[channel];
+		}
+
+		/** Number of updates the channel had, 0 if it was never written. */
+		public long getSequence(int channel) {
+			return mSequences[channel];
+		}
+
+		/** Version of the state this snapshot was taken at. */
+		public int getVersion() {
+			return mVersion;
+		}
+	}
+
+	private final int mChannels;
+	private final AtomicInteger mVersion = new AtomicInteger();
+	private final AtomicIntegerArray mValues;
+	private final AtomicLongArray mTimestamps;
+	private final AtomicLongArray mSequences;
+
+	public PhysioState() {
+		this(CHANNEL_COUNT);
+	}
+
+	/** @param channels number of channels, for callers that add their own after CHANNEL_COUNT */
+	public PhysioState(int channels) {
+		mChannels = channels;
+		mValues = new AtomicIntegerArray(channels);
+		mTimestamps = new AtomicLongArray(channels);
+		mSequences = new AtomicLongArray(channels);
+	}
+
+	/**
+	 * Starts a group of put() calls that readers will see all at once.
+	 * Writers on different threads take turns; the critical section is a few
+	 * stores, so waiting writers just spin.
+	 */
+	public void beginWrite() {
+		while (true) {
+			int version = mVersion.get();
+			if ((version & 1) == 0 && mVersion.compareAndSet(version, version + 1)) {
+				return;
+			}
+			Thread.yield();
+		}
+	}
+
+	/** Only valid between beginWrite() and endWrite(). */
+	public void put(int channel, long timestamp, float value) {
+		mValues.set(channel, Float.floatToRawIntBits(value));
+		mTimestamps.set(channel, timestamp);
+		mSequences.set(channel, mSequences.get(channel) + 1);
+	}
+
+	public void endWrite() {
+		mVersion.incrementAndGet();
+	}
+
+	/** Updates a single channel. */
+	public void set(int channel, long timestamp, float value) {
+		beginWrite();
+		put(channel, timestamp, value);
+		endWrite();
+	}
+
+	/** Latest value of one channel, without a snapshot. */
+	public float get(int channel) {
+		return Float.intBitsToFloat(mValues.get(channel));
+	}
+
+	/** Copies every channel into out, retrying while a write overlaps the copy. */
+	public void read(Snapshot out) {
+		while (true) {
+			int version = mVersion.get();
+			if ((version & 1) != 0) {
+				Thread.yield();
+				continue;
+			}
+			for (int i = 0; i < mChannels; i++) {
+				out.mValues[i] = Float.intBitsToFloat(mValues.get(i));
+				out.mTimestamps[i] = mTimestamps.get(i);
+				out.mSequences[i] = mSequences.get(i);
+			}
+			if (mVersion.get() == version) {
+				out.mVersion = version;
+				return;
+			}
+		}
+	}
+
+	/** Snapshot sized for this state. */
+	public Snapshot newSnapshot() {
+		return new Snapshot(mChannels);
+	}
+
+	public int channels() {
+		return mChannels;
+	}
+
+	/** Number of completed writes. */
+	public int getVersion() {
+		return mVersion.get() >>> 1;
+	}
+}
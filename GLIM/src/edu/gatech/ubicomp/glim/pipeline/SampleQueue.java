@@ -0,0 +1,235 @@
+package edu.gatech.ubicomp.glim.pipeline;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded queue of primitive samples between exactly one producer thread (a
+ * sensor reader) and one consumer thread (usually the UI thread).
+ * 
+ * Each entry is a timestamp plus a fixed number of float values, stored in
+ * preallocated arrays, so nothing is allocated or boxed per sample and neither
+ * side ever takes a lock. What happens when the consumer falls behind is set by
+ * the {@link OverflowPolicy}.
+ */
+public class SampleQueue {
+
+	/** What offer() does when the queue is full. */
+	public enum OverflowPolicy {
+		/** Keep the queued samples and drop the new one. */
+		DROP_NEWEST,
+		/** Overwrite the oldest sample; the consumer skips what it missed. */
+		OVERWRITE_OLDEST
+	}
+
+	/** Returned by the poll methods when the queue is empty. */
+	public static final long EMPTY = -1;
+
+	private final int mCapacity;
+	private final int mMask;
+	private final int mWidth;
+	private final OverflowPolicy mPolicy;
+
+	/**
+	 * Slots are read and written with volatile semantics so that, in overwrite
+	 * mode, the consumer can tell whether the slot it just read was being replaced.
+	 */
+	private final AtomicLongArray mTimestamps;
+	private final AtomicIntegerArray mValues;
+
+	/** Index of the next entry to write, only advanced by the producer. */
+	private final AtomicLong mHead = new AtomicLong();
+	/** Index of the next entry to read, only advanced by the consumer. */
+	private final AtomicLong mTail = new AtomicLong();
+
+	private final AtomicLong mOffered = new AtomicLong();
+	private final AtomicLong mDropped = new AtomicLong();
+	private final AtomicLong mOverwritten = new AtomicLong();
+	private final AtomicLong mCoalesced = new AtomicLong();
+
+	/**
+	 * @param capacity number of entries, rounded up to a power of two
+	 * @param width number of float values per entry
+	 * @param policy what to do when the consumer falls behind
+	 */
+	public SampleQueue(int capacity, int width, OverflowPolicy policy) {
+		if (capacity <= 0 || capacity > (1 << 24) || width <= 0) {
+			throw new IllegalArgumentException("Invalid queue size " + capacity + "x" + width);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		mCapacity = size;
+		mMask = size - 1;
+		mWidth = width;
+		mPolicy = policy;
+		mTimestamps = new AtomicLongArray(size);
+		mValues = new AtomicIntegerArray(size * width);
+	}
+
+	/** Producer side: queues a one value sample. */
+	public boolean offer(long timestamp, float value0) {
+		long head = reserve();
+		if (head < 0) {
+			return false;
+		}
+		int base = (int) (head & mMask) * mWidth;
+		mValues.set(base, Float.floatToRawIntBits(value0));
+		return publish(head, timestamp);
+	}
+
+	/** Producer side: queues a two value sample. */
+	public boolean offer(long timestamp, float value0, float value1) {
+		long head = reserve();
+		if (head < 0) {
+			return false;
+		}
+		int base = (int) (head & mMask) * mWidth;
+		mValues.set(base, Float.floatToRawIntBits(value0));
+		mValues.set(base + 1, Float.floatToRawIntBits(value1));
+		return publish(head, timestamp);
+	}
+
+	/**
+	 * Producer side: queues a sample.
+	 * @param values the first width() values are queued
+	 * @return false if the sample was dropped because the queue was full
+	 */
+	public boolean offer(long timestamp, float[] values) {
+		long head = reserve();
+		if (head < 0) {
+			return false;
+		}
+		int base = (int) (head & mMask) * mWidth;
+		for (int i = 0; i < mWidth; i++) {
+			mValues.set(base + i, Float.floatToRawIntBits(values[i]));
+		}
+		return publish(head, timestamp);
+	}
+
+	/** @return the index to write, or -1 if the sample must be dropped */
+	private long reserve() {
+		mOffered.lazySet(mOffered.get() + 1);
+		long head = mHead.get();
+		if (mPolicy == OverflowPolicy.DROP_NEWEST && head - mTail.get() >= mCapacity) {
+			mDropped.lazySet(mDropped.get() + 1);
+			return -1;
+		}
+		return head;
+	}
+
+	private boolean publish(long head, long timestamp) {
+		mTimestamps.set((int) (head & mMask), timestamp);
+		mHead.set(head + 1);
+		return true;
+	}
+
+	/**
+	 * Consumer side: takes the oldest sample.
+	 * @param out receives the values, at least width() long
+	 * @return the sample's timestamp, or EMPTY
+	 */
+	public long poll(float[] out) {
+		while (true) {
+			long tail = mTail.get();
+			long head = mHead.get();
+			if (tail == head) {
+				return EMPTY;
+			}
+			if (head - tail > mCapacity) {
+				// Only possible when overwriting: jump to the oldest sample still held.
+				mOverwritten.addAndGet(head - tail - mCapacity);
+				tail = head - mCapacity;
+			}
+			long timestamp = read(tail, out);
+			if (lapped(tail)) {
+				// The producer lapped us while we were reading this slot; try the next one.
+				mTail.set(tail + 1);
+				mOverwritten.incrementAndGet();
+				continue;
+			}
+			mTail.set(tail + 1);
+			return timestamp;
+		}
+	}
+
+	/**
+	 * Consumer side: takes the newest sample and discards the older ones, for
+	 * consumers that only show the latest value.
+	 * @return the sample's timestamp, or EMPTY
+	 */
+	public long pollLatest(float[] out) {
+		while (true) {
+			long tail = mTail.get();
+			long head = mHead.get();
+			if (tail == head) {
+				return EMPTY;
+			}
+			long newest = head - 1;
+			if (newest > tail) {
+				mCoalesced.addAndGet(Math.min(newest - tail, mCapacity));
+			}
+			long timestamp = read(newest, out);
+			mTail.set(head);
+			if (lapped(newest)) {
+				// Overwritten while reading; the newer entries are still queued.
+				mOverwritten.incrementAndGet();
+				continue;
+			}
+			return timestamp;
+		}
+	}
+
+	/**
+	 * Whether the producer may have started overwriting the entry just read. A
+	 * full queue is normal when dropping, the producer never touches unread slots then.
+	 */
+	private boolean lapped(long index) {
+		return mPolicy == OverflowPolicy.OVERWRITE_OLDEST && mHead.get() - index >= mCapacity;
+	}
+
+	private long read(long index, float[] out) {
+		int slot = (int) (index & mMask);
+		int base = slot * mWidth;
+		for (int i = 0; i < mWidth; i++) {
+			out[i] = Float.intBitsToFloat(mValues.get(base + i));
+		}
+		return mTimestamps.get(slot);
+	}
+
+	/** Number of samples waiting, as seen by the calling thread. */
+	public int size() {
+		long size = mHead.get() - mTail.get();
+		return (int) Math.min(size, mCapacity);
+	}
+
+	public int capacity() {
+		return mCapacity;
+	}
+
+	public int width() {
+		return mWidth;
+	}
+
+	/** Samples passed to offer(), including the dropped ones. */
+	public long getOffered() {
+		return mOffered.get();
+	}
+
+	/** Samples refused because the queue was full (DROP_NEWEST). */
+	public long getDropped() {
+		return mDropped.get();
+	}
+
+	/** Samples overwritten before the consumer read them (OVERWRITE_OLDEST). */
+	public long getOverwritten() {
+		return mOverwritten.get();
+	}
+
+	/** Samples skipped by pollLatest() in favour of a newer one. */
+	public long getCoalesced() {
+		return mCoalesced.get();
+	}
+}
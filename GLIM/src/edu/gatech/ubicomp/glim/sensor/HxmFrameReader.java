@@ -0,0 +1,98 @@
+package edu.gatech.ubicomp.glim.sensor;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the byte stream of a Zephyr HxM and hands every HR_SPD_DIST frame to
+ * a {@link HxmPacketDecoder}.
+ *
+ * Frames are found by their header (STX, message id, payload length) and
+ * trailing ETX. After a lost or garbled byte the reader moves on one byte at
+ * a time until the next frame lines up, so a frame cut by a reconnect costs
+ * that frame only. All reads go into one buffer allocated up front.
+ *
+ * The reader either reads a stream itself with read(), or is fed the bytes
+ * someone else read with feed(), e.g. a {@link SensorIoScheduler}.
+ */
+public class HxmFrameReader {
+
+	private static final int READ_SIZE = 256;
+
+	private final HxmPacketDecoder mDecoder;
+	/** Room for a read after the start of a frame that is not complete yet. */
+	private final byte[] mBuffer = new byte[HxmPacketDecoder.FRAME_LENGTH - 1 + READ_SIZE];
+	private int mEnd;
+
+	private volatile long mBytesRead;
+	private volatile long mSkippedBytes;
+
+	public HxmFrameReader(HxmPacketDecoder decoder) {
+		mDecoder = decoder;
+	}
+
+	/**
+	 * Reads frames until the stream ends or fails. A frame left incomplete is
+	 * dropped, so the reader can go on with the stream of the next link.
+	 */
+	public void read(InputStream inputStream) throws IOException {
+		reset();
+		int count;
+		while ((count = inputStream.read(mBuffer, mEnd, mBuffer.length - mEnd)) >= 0) {
+			mBytesRead += count;
+			mEnd += count;
+			scan();
+		}
+	}
+
+	/** Decodes the frames completed by data, keeping a frame cut off at the end for the next call. */
+	public void feed(byte[] data, int offset, int length) {
+		while (length > 0) {
+			int count = Math.min(length, mBuffer.length - mEnd);
+			System.arraycopy(data, offset, mBuffer, mEnd, count);
+			mBytesRead += count;
+			mEnd += count;
+			offset += count;
+			length -= count;
+			scan();
+		}
+	}
+
+	/** Drops the frame in progress, e.g. before the bytes of a new link. */
+	public void reset() {
+		mEnd = 0;
+	}
+
+	private void scan() {
+		byte[] buffer = mBuffer;
+		int start = 0;
+		while (mEnd - start >= HxmPacketDecoder.FRAME_LENGTH) {
+			if (buffer[start] != HxmPacketDecoder.STX
+					|| buffer[start + 1] != HxmPacketDecoder.MSG_HR_SPD_DIST
+					|| buffer[start + 2] != HxmPacketDecoder.PAYLOAD_LENGTH
+					|| buffer[start + HxmPacketDecoder.FRAME_LENGTH - 1] != HxmPacketDecoder.ETX) {
+				start++;
+				mSkippedBytes++;
+				continue;
+			}
+			// A CRC mismatch is counted by the decoder; the frame is consumed either way.
+			mDecoder.onFrame(buffer, start, HxmPacketDecoder.FRAME_LENGTH);
+			start += HxmPacketDecoder.FRAME_LENGTH;
+		}
+		while (start < mEnd && buffer[start] != HxmPacketDecoder.STX) {
+			start++;
+			mSkippedBytes++;
+		}
+		mEnd -= start;
+		System.arraycopy(buffer, start, buffer, 0, mEnd);
+	}
+
+	public long getBytesRead() {
+		return mBytesRead;
+	}
+
+	/** Bytes that were not part of a frame, from garbling or a frame cut short. */
+	public long getSkippedBytes() {
+		return mSkippedBytes;
+	}
+}
@@ -0,0 +1,40 @@
+package edu.gatech.ubicomp.glim.sensor;
+
+/**
+ * One standard data (HR_SPD_DIST) packet of a Zephyr HxM, held in primitive
+ * fields so that the same instance can be refilled for every packet.
+ */
+public class HxmPacket {
+
+	public static final int BEAT_TIMESTAMP_COUNT = 15;
+
+	public int firmwareId;
+	/** Two ASCII characters, e.g. "9M". */
+	public final char[] firmwareVersion = new char[2];
+	public int hardwareId;
+	public final char[] hardwareVersion = new char[2];
+
+	/** Battery charge in percent. */
+	public int battery;
+
+	/** Beats per minute. */
+	public int heartRate;
+
+	/** Beat counter, wraps at 256. */
+	public int heartBeatNumber;
+
+	/** Times of the last 15 beats in ms, wrapping at 65536, newest first. */
+	public final int[] heartBeatTimestamps = new int[BEAT_TIMESTAMP_COUNT];
+
+	/** Distance covered in m, wraps at 4096 m. */
+	public float distance;
+
+	/** Speed in m/s. */
+	public float instantSpeed;
+
+	/** Stride counter, wraps at 256. */
+	public int strides;
+
+	/** Steps per minute. */
+	public float cadence;
+}
@@ -0,0 +1,182 @@
+package edu.gatech.ubicomp.glim.sensor;
+
+/**
+ * Decodes the standard data messages (HR_SPD_DIST) of a Zephyr HxM into a
+ * reusable {@link HxmPacket} and hands it to a listener.
+ *
+ * A frame is STX, message id, payload length, the 55 byte payload, a CRC-8 of
+ * the payload and ETX. Every field of the payload is read in one pass over
+ * the bytes, little endian and unsigned, without creating any objects.
+ * Frames with bad framing or a CRC mismatch are counted and dropped.
+ */
+public class HxmPacketDecoder {
+
+	public interface Listener {
+		/**
+		 * Called on the decoding thread for every good packet.
+		 * @param packet reused for the next packet
+		 */
+		void onHxmPacket(HxmPacket packet);
+	}
+
+	public static final int STX = 0x02;
+	public static final int ETX = 0x03;
+	public static final int MSG_HR_SPD_DIST = 0x26;
+	public static final int PAYLOAD_OFFSET = 3;
+	public static final int PAYLOAD_LENGTH = 55;
+	public static final int FRAME_LENGTH = PAYLOAD_OFFSET + PAYLOAD_LENGTH + 2;
+
+	/** Offsets within the payload. */
+	public static final int FIRMWARE_ID = 0;
+	public static final int FIRMWARE_VERSION = 2;
+	public static final int HARDWARE_ID = 4;
+	public static final int HARDWARE_VERSION = 6;
+	public static final int BATTERY = 8;
+	public static final int HEART_RATE = 9;
+	public static final int HEART_BEAT_NUMBER = 10;
+	public static final int HEART_BEAT_TIMESTAMPS = 11;
+	public static final int DISTANCE = 47;
+	public static final int INSTANT_SPEED = 49;
+	public static final int STRIDES = 51;
+	public static final int CADENCE = 53;
+
+	private static final int FRAME_OK = 0;
+	private static final int FRAME_BAD = 1;
+	private static final int FRAME_CRC_MISMATCH = 2;
+
+	/** CRC-8 with polynomial 0x8C, reflected, one entry per byte value. */
+	private static final int[] CRC_TABLE = new int[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x8C : crc >>> 1;
+			}
+			CRC_TABLE[i] = crc;
+		}
+	}
+
+	private final Listener mListener;
+	private final HxmPacket mPacket = new HxmPacket();
+
+	private volatile long mPackets;
+	private volatile long mBadFrames;
+	private volatile long mCrcFailures;
+
+	public HxmPacketDecoder(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Checks and decodes a whole frame as the HxM sends it.
+	 * @return true if the frame was good and handed to the listener
+	 */
+	public boolean onFrame(byte[] data, int offset, int length) {
+		int check = checkFrame(data, offset, length);
+		if (check == FRAME_BAD) {
+			mBadFrames++;
+			return false;
+		}
+		if (check == FRAME_CRC_MISMATCH) {
+			mCrcFailures++;
+			return false;
+		}
+		return deliver(data, offset + PAYLOAD_OFFSET);
+	}
+
+	/**
+	 * Decodes the payload of a frame that was already checked elsewhere, as
+	 * ZephyrProtocol does.
+	 * @param crcOk false if the frame's CRC did not match; the payload is counted and dropped
+	 * @return true if the payload was handed to the listener
+	 */
+	public boolean onPayload(byte[] payload, int offset, int length, boolean crcOk) {
+		if (!crcOk) {
+			mCrcFailures++;
+			return false;
+		}
+		if (length < PAYLOAD_LENGTH) {
+			mBadFrames++;
+			return false;
+		}
+		return deliver(payload, offset);
+	}
+
+	private boolean deliver(byte[] payload, int offset) {
+		decode(payload, offset, mPacket);
+		mPackets++;
+		mListener.onHxmPacket(mPacket);
+		return true;
+	}
+
+	/** Reads every field of a 55 byte payload into out. */
+	public static void decode(byte[] payload, int offset, HxmPacket out) {
+		int p = offset;
+		out.firmwareId = uint16(payload, p + FIRMWARE_ID);
+		out.firmwareVersion[0] = (char) (payload[p + FIRMWARE_VERSION] & 0xFF);
+		out.firmwareVersion[1] = (char) (payload[p + FIRMWARE_VERSION + 1] & 0xFF);
+		out.hardwareId = uint16(payload, p + HARDWARE_ID);
+		out.hardwareVersion[0] = (char) (payload[p + HARDWARE_VERSION] & 0xFF);
+		out.hardwareVersion[1] = (char) (payload[p + HARDWARE_VERSION + 1] & 0xFF);
+		out.battery = payload[p + BATTERY] & 0xFF;
+		out.heartRate = payload[p + HEART_RATE] & 0xFF;
+		out.heartBeatNumber = payload[p + HEART_BEAT_NUMBER] & 0xFF;
+		int[] timestamps = out.heartBeatTimestamps;
+		for (int i = 0, b = p + HEART_BEAT_TIMESTAMPS; i < HxmPacket.BEAT_TIMESTAMP_COUNT; i++, b += 2) {
+			timestamps[i] = uint16(payload, b);
+		}
+		// Distance in 1/16 m, speed in 1/256 m/s, cadence in 1/16 steps per minute.
+		out.distance = uint16(payload, p + DISTANCE) / 16f;
+		out.instantSpeed = uint16(payload, p + INSTANT_SPEED) / 256f;
+		out.strides = payload[p + STRIDES] & 0xFF;
+		out.cadence = uint16(payload, p + CADENCE) / 16f;
+	}
+
+	private static int uint16(byte[] data, int offset) {
+		return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+	}
+
+	/** CRC-8 the HxM appends to every payload: polynomial 0x8C, reflected, initial value 0. */
+	public static int crc8(byte[] data, int offset, int length) {
+		int crc = 0;
+		for (int i = offset; i < offset + length; i++) {
+			crc = CRC_TABLE[(crc ^ data[i]) & 0xFF];
+		}
+		return crc;
+	}
+
+	private static int checkFrame(byte[] data, int offset, int length) {
+		if (length != FRAME_LENGTH
+				|| data[offset] != STX
+				|| data[offset + 1] != MSG_HR_SPD_DIST
+				|| data[offset + 2] != PAYLOAD_LENGTH
+				|| data[offset + FRAME_LENGTH - 1] != ETX) {
+			return FRAME_BAD;
+		}
+		if ((data[offset + PAYLOAD_OFFSET + PAYLOAD_LENGTH] & 0xFF) != crc8(data, offset + PAYLOAD_OFFSET,
+				PAYLOAD_LENGTH)) {
+			return FRAME_CRC_MISMATCH;
+		}
+		return FRAME_OK;
+	}
+
+	/** @return true if data holds a whole HR_SPD_DIST frame with a matching CRC */
+	public static boolean isValidFrame(byte[] data, int offset, int length) {
+		return checkFrame(data, offset, length) == FRAME_OK;
+	}
+
+	/** Packets handed to the listener. */
+	public long getPackets() {
+		return mPackets;
+	}
+
+	/** Frames dropped for bad framing or length. */
+	public long getBadFrames() {
+		return mBadFrames;
+	}
+
+	/** Frames dropped because their CRC did not match. */
+	public long getCrcFailures() {
+		return mCrcFailures;
+	}
+}
@@ -0,0 +1,116 @@
+package edu.gatech.ubicomp.glim.sensor;
+
+/**
+ * Splits a byte stream into newline terminated lines as bytes arrive.
+ * 
+ * Partial lines are kept between calls to {@link #feed(byte[], int, int)} in a
+ * single line buffer that grows (up to a limit) when a line is longer than it.
+ * Lines longer than the limit are dropped whole and counted, they are never
+ * delivered truncated.
+ */
+public class LineFramer {
+
+	/** Receives every complete line. The bytes are only valid during the call. */
+	public interface LineListener {
+		/**
+		 * @param line buffer holding the line, without the newline and trailing carriage return
+		 * @param offset start of the line
+		 * @param length number of bytes in the line
+		 */
+		void onLine(byte[] line, int offset, int length);
+	}
+
+	private static final byte NEWLINE = 10;
+	private static final byte CARRIAGE_RETURN = 13;
+
+	private final LineListener mListener;
+	private final int mMaxLineLength;
+	private byte[] mLine;
+	private int mLineLength;
+	private boolean mDiscardingLine;
+
+	private volatile long mLines;
+	private volatile long mOversizedLines;
+
+	/**
+	 * @param initialCapacity initial size of the line buffer
+	 * @param maxLineLength lines longer than this are dropped
+	 * @param listener receives the complete lines
+	 */
+	public LineFramer(int initialCapacity, int maxLineLength, LineListener listener) {
+		if (initialCapacity <= 0 || maxLineLength < initialCapacity) {
+			throw new IllegalArgumentException("Invalid line buffer sizes " + initialCapacity + "/" + maxLineLength);
+		}
+		mLine = new byte[initialCapacity];
+		mMaxLineLength = maxLineLength;
+		mListener = listener;
+	}
+
+	/**
+	 * Consumes bytes read from the stream, calling the listener for each line they complete.
+	 */
+	public void feed(byte[] buffer, int offset, int length) {
+		int end = offset + length;
+		int start = offset;
+		for (int i = offset; i < end; i++) {
+			if (buffer[i] == NEWLINE) {
+				append(buffer, start, i - start);
+				completeLine();
+				start = i + 1;
+			}
+		}
+		append(buffer, start, end - start);
+	}
+
+	/**
+	 * Drops the partial line, e.g. after the stream was reconnected.
+	 */
+	public void reset() {
+		mLineLength = 0;
+		mDiscardingLine = false;
+	}
+
+	private void append(byte[] buffer, int offset, int length) {
+		if (length == 0 || mDiscardingLine) {
+			return;
+		}
+		int required = mLineLength + length;
+		if (required > mLine.length) {
+			if (required > mMaxLineLength) {
+				mDiscardingLine = true;
+				mLineLength = 0;
+				return;
+			}
+			byte[] grown = new byte[Math.min(mMaxLineLength, Math.max(required, mLine.length * 2))];
+			System.arraycopy(mLine, 0, grown, 0, mLineLength);
+			mLine = grown;
+		}
+		System.arraycopy(buffer, offset, mLine, mLineLength, length);
+		mLineLength = required;
+	}
+
+	private void completeLine() {
+		if (mDiscardingLine) {
+			mDiscardingLine = false;
+			mOversizedLines++;
+			return;
+		}
+		int length = mLineLength;
+		if (length > 0 && mLine[length - 1] == CARRIAGE_RETURN) {
+			length--;
+		}
+		mLineLength = 0;
+		mLines++;
+		mListener.onLine(mLine, 0, length);
+	}
+
+	/** Number of complete lines delivered to the listener. */
+	public long getLines() {
+		return mLines;
+	}
+
+	/** Number of lines dropped for being longer than the maximum line length. */
+	public long getOversizedLines() {
+		return mOversizedLines;
+	}
+}
@@ -0,0 +1,189 @@
+package edu.gatech.ubicomp.glim.sensor;
+
+/**
+ * Parses the comma separated lines streamed by the Q sensor directly from the
+ * read buffer into a reusable {@link QSensorSample}.
+ * 
+ * No objects are created per line: numbers are accumulated digit by digit and
+ * scaled by a power of ten from a lookup table instead of going through String and Float.parseFloat.
+ * Lines that do not carry all the numeric columns (e.g. the ones produced when
+ * the button on the Q sensor is pressed) are counted and rejected.
+ */
+public class QSensorLineParser {
+
+	/** Column positions, see GlimMainActivity.DATA_HEADER_TAGS. */
+	public static final int COLUMN_TIME = 0;
+	public static final int COLUMN_Z = 1;
+	public static final int COLUMN_Y = 2;
+	public static final int COLUMN_X = 3;
+	public static final int COLUMN_BATTERY = 4;
+	public static final int COLUMN_TEMP = 5;
+	public static final int COLUMN_EDA = 6;
+	public static final int COLUMN_EVENT = 7;
+
+	/** A line needs at least the columns up to and including EDA. */
+	public static final int MIN_COLUMNS = COLUMN_EDA + 1;
+
+	/** More digits than this cannot be held in a long and the field is rejected. */
+	private static final int MAX_DIGITS = 18;
+
+	private static final double[] POWERS_OF_TEN = new double[MAX_DIGITS + 1];
+	static {
+		double scale = 1.0;
+		for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = scale;
+			scale *= 10.0;
+		}
+	}
+
+	/** Result of the last call to parseNumber(). Only valid if it returned a position >= 0. */
+	private float mNumber;
+	private boolean mNumberIsIntegral;
+
+	private volatile long mLinesParsed;
+	private volatile long mMalformedLines;
+
+	/**
+	 * Parses one line (without its trailing newline) into the given sample.
+	 * Trailing carriage returns and spaces are ignored.
+	 * 
+	 * @param buffer bytes received from the sensor
+	 * @param offset start of the line in the buffer
+	 * @param length number of bytes in the line
+	 * @param out sample to fill; left partially written if the line is malformed
+	 * @return true if the line held every numeric column, false if it was skipped
+	 */
+	public boolean parse(byte[] buffer, int offset, int length, QSensorSample out) {
+		int end = offset + length;
+		int pos = offset;
+		int column = 0;
+
+		while (column < MIN_COLUMNS || (column == COLUMN_EVENT && pos < end)) {
+			int next = parseNumber(buffer, pos, end);
+			if (column == COLUMN_TIME) {
+				// The counter column is informative only, so a non numeric value does not reject the line.
+				out.time = (next >= 0 && mNumberIsIntegral) ? (long) mNumber : -1;
+				if (next < 0) {
+					next = skipField(buffer, pos, end);
+				}
+			} else if (next < 0) {
+				if (column == COLUMN_EVENT) {
+					break;
+				}
+				mMalformedLines++;
+				return false;
+			} else {
+				store(column, out);
+			}
+			column++;
+			pos = next;
+			if (pos < end && buffer[pos] == ',') {
+				pos++;
+			} else if (column < MIN_COLUMNS) {
+				// Ran out of fields before reaching the EDA column.
+				mMalformedLines++;
+				return false;
+			} else {
+				break;
+			}
+		}
+		if (column <= COLUMN_EVENT) {
+			out.event = 0;
+		}
+		mLinesParsed++;
+		return true;
+	}
+
+	private void store(int column, QSensorSample out) {
+		switch (column) {
+		case COLUMN_Z:
+			out.z = mNumber;
+			break;
+		case COLUMN_Y:
+			out.y = mNumber;
+			break;
+		case COLUMN_X:
+			out.x = mNumber;
+			break;
+		case COLUMN_BATTERY:
+			out.battery = mNumber;
+			break;
+		case COLUMN_TEMP:
+			out.temp = mNumber;
+			break;
+		case COLUMN_EDA:
+			out.eda = mNumber;
+			break;
+		case COLUMN_EVENT:
+			out.event = (int) mNumber;
+			break;
+		}
+	}
+
+	/**
+	 * Parses a decimal number like "-0.345" starting at pos.
+	 * @return the position of the first byte after the field (a ',' or end), or -1 if the field is not a number
+	 */
+	private int parseNumber(byte[] buffer, int pos, int end) {
+		while (pos < end && isBlank(buffer[pos])) {
+			pos++;
+		}
+		boolean negative = false;
+		if (pos < end && (buffer[pos] == '-' || buffer[pos] == '+')) {
+			negative = buffer[pos] == '-';
+			pos++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int fractionDigits = 0;
+		boolean seenPoint = false;
+		while (pos < end) {
+			byte b = buffer[pos];
+			if (b >= '0' && b <= '9') {
+				if (++digits > MAX_DIGITS) {
+					return -1;
+				}
+				mantissa = mantissa * 10 + (b - '0');
+				if (seenPoint) {
+					fractionDigits++;
+				}
+			} else if (b == '.' && !seenPoint) {
+				seenPoint = true;
+			} else {
+				break;
+			}
+			pos++;
+		}
+		while (pos < end && isBlank(buffer[pos])) {
+			pos++;
+		}
+		if (digits == 0 || (pos < end && buffer[pos] != ',')) {
+			return -1;
+		}
+		float value = (float) (mantissa / POWERS_OF_TEN[fractionDigits]);
+		mNumber = negative ? -value : value;
+		mNumberIsIntegral = fractionDigits == 0;
+		return pos;
+	}
+
+	private static int skipField(byte[] buffer, int pos, int end) {
+		while (pos < end && buffer[pos] != ',') {
+			pos++;
+		}
+		return pos;
+	}
+
+	private static boolean isBlank(byte b) {
+		return b == ' ' || b == '\r' || b == '\t';
+	}
+
+	/** Number of lines successfully parsed so far. */
+	public long getLinesParsed() {
+		return mLinesParsed;
+	}
+
+	/** Number of lines rejected because they were short or not numeric. */
+	public long getMalformedLines() {
+		return mMalformedLines;
+	}
+}
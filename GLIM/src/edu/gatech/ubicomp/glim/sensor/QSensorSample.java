@@ -0,0 +1,49 @@
+package edu.gatech.ubicomp.glim.sensor;
+
+/**
+ * One line of Affectiva Q sensor output, held in primitive fields so that the
+ * same instance can be refilled for every line the sensor sends.
+ * 
+ * The columns follow {@link edu.gatech.ubicomp.glim.GlimMainActivity#DATA_HEADER_TAGS}.
+ */
+public class QSensorSample {
+
+	/** Sample counter reported by the sensor, -1 if the column was not numeric. */
+	public long time;
+
+	/** Accelerometer axes, in g. */
+	public float z;
+	public float y;
+	public float x;
+
+	/** Battery level as reported by the sensor. */
+	public float battery;
+
+	/** Skin temperature in degrees Celsius. */
+	public float temp;
+
+	/** Electrodermal activity in microsiemens. */
+	public float eda;
+
+	/** Event marker, 0 when the line carries no event column. */
+	public int event;
+
+	/** Wall clock time (ms) at which the line was received on Glass. */
+	public long timestamp;
+
+	/**
+	 * Copies every field of another sample into this one.
+	 * @param other
+	 */
+	public void set(QSensorSample other) {
+		time = other.time;
+		z = other.z;
+		y = other.y;
+		x = other.x;
+		battery = other.battery;
+		temp = other.temp;
+		eda = other.eda;
+		event = other.event;
+		timestamp = other.timestamp;
+	}
+}
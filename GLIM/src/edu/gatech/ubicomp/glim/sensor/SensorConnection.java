@@ -0,0 +1,298 @@
+package edu.gatech.ubicomp.glim.sensor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.gatech.ubicomp.glim.pipeline.LatencyHistogram;
+
+/**
+ * Keeps one sensor connected while it is started.
+ *
+ * A thread of its own opens the sensor's {@link SensorTransport} and hands
+ * the stream to a {@link StreamHandler}, which reads it until the link drops.
+ * The connection then opens the link again: at once if the last link brought
+ * samples, otherwise after a wait that doubles with every attempt, from the
+ * minimum backoff up to the maximum, with random jitter. Every sensor has its
+ * own connection, so sensors connect in parallel and one that is out of range
+ * never holds up the others.
+ *
+ * Nothing downstream of the handler is reset by a reconnect. Queues, the
+ * session recording and uploads keep what they buffered, and only the line or
+ * packet the link dropped in the middle of is lost.
+ *
+ * The handler calls markSample() for every sample, from which the connection
+ * measures the time from opening the link to the first sample and from losing
+ * a link to the first sample of the next one.
+ */
+public class SensorConnection {
+
+	public interface StreamHandler {
+		/**
+		 * Reads the stream on the connection's thread until it ends or fails,
+		 * calling {@link SensorConnection#markSample()} for every sample.
+		 */
+		void onStream(InputStream inputStream) throws IOException;
+	}
+
+	public interface Listener {
+		/** Called on the connection's thread. */
+		void onStateChanged(SensorConnection connection, int state);
+	}
+
+	/** Not started. */
+	public static final int STATE_IDLE = 0;
+	/** Opening the link. */
+	public static final int STATE_CONNECTING = 1;
+	/** The link is up, no sample has arrived yet. */
+	public static final int STATE_CONNECTED = 2;
+	/** Samples are arriving. */
+	public static final int STATE_STREAMING = 3;
+	/** Waiting before the next attempt. */
+	public static final int STATE_BACKOFF = 4;
+	private static final String[] STATE_NAMES = { "idle", "connecting", "connected", "streaming", "backoff" };
+
+	public static final long DEFAULT_MIN_BACKOFF_MS = 500;
+	public static final long DEFAULT_MAX_BACKOFF_MS = 30000;
+
+	private static final long NEVER = -1;
+
+	private final String mName;
+	private final SensorTransport mTransport;
+	private final StreamHandler mHandler;
+	private final Listener mListener;
+	private final Random mRandom = new Random();
+
+	private long mMinBackoffMs = DEFAULT_MIN_BACKOFF_MS;
+	private long mMaxBackoffMs = DEFAULT_MAX_BACKOFF_MS;
+
+	private Thread mThread;
+	private volatile boolean mRunning;
+	private volatile int mState = STATE_IDLE;
+	private volatile IOException mError;
+
+	/** Connection thread only. */
+	private int mFailedAttempts;
+	private long mOpenNanos;
+	private long mLostNanos = NEVER;
+	private volatile boolean mAwaitingSample;
+
+	private volatile long mConnects;
+	private volatile long mFailures;
+	private volatile long mDrops;
+	private final LatencyHistogram mFirstSampleLatency = new LatencyHistogram();
+	private final LatencyHistogram mReconnectLatency = new LatencyHistogram();
+
+	/** @param listener told about state changes, may be null */
+	public SensorConnection(String name, SensorTransport transport, StreamHandler handler, Listener listener) {
+		mName = name;
+		mTransport = transport;
+		mHandler = handler;
+		mListener = listener;
+	}
+
+	/** Bounds of the wait between failed attempts. Call before start(). */
+	public void setBackoff(long minBackoffMs, long maxBackoffMs) {
+		mMinBackoffMs = minBackoffMs;
+		mMaxBackoffMs = Math.max(minBackoffMs, maxBackoffMs);
+	}
+
+	/** Starts connecting, and reconnecting until stop(). */
+	public synchronized void start() {
+		if (mThread != null) {
+			return;
+		}
+		mRunning = true;
+		mThread = new Thread(new Runnable() {
+			public void run() {
+				connectLoop();
+			}
+		}, mName + " connection");
+		mThread.start();
+	}
+
+	/** Closes the link and waits for the handler to return. */
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			thread = mThread;
+			mRunning = false;
+		}
+		if (thread == null) {
+			return;
+		}
+		mTransport.close();
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			mThread = null;
+		}
+	}
+
+	private void connectLoop() {
+		while (true) {
+			synchronized (this) {
+				// stop() clears mRunning under this lock before it closes the transport, so
+				// its close() either comes after this reset and fails open(), or the loop ends here.
+				if (!mRunning) {
+					break;
+				}
+				mTransport.reset();
+			}
+			setState(STATE_CONNECTING);
+			mOpenNanos = System.nanoTime();
+			InputStream inputStream;
+			try {
+				inputStream = mTransport.open();
+			} catch (IOException e) {
+				if (mRunning) {
+					mError = e;
+					mFailures++;
+					mFailedAttempts++;
+					backOff();
+				}
+				continue;
+			}
+			mConnects++;
+			mAwaitingSample = true;
+			setState(STATE_CONNECTED);
+			try {
+				// stop() may have closed the transport before open() returned.
+				if (mRunning) {
+					mHandler.onStream(inputStream);
+				}
+			} catch (IOException e) {
+				if (mRunning) {
+					mError = e;
+				}
+			} finally {
+				mTransport.close();
+			}
+			if (!mRunning) {
+				break;
+			}
+			mDrops++;
+			if (mAwaitingSample) {
+				// The link came up but never brought a sample.
+				mFailedAttempts++;
+				backOff();
+			} else {
+				mLostNanos = System.nanoTime();
+			}
+		}
+		// A session started later measures from its own start.
+		mAwaitingSample = false;
+		mFailedAttempts = 0;
+		mLostNanos = NEVER;
+		setState(STATE_IDLE);
+	}
+
+	private void backOff() {
+		setState(STATE_BACKOFF);
+		long wait = mMinBackoffMs << Math.min(mFailedAttempts - 1, 20);
+		wait = Math.min(wait, mMaxBackoffMs);
+		// Anywhere in the upper half, so sensors that failed together do not retry together.
+		wait -= (long) (mRandom.nextDouble() * wait / 2);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait);
+		long remaining;
+		while (mRunning && (remaining = deadline - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(remaining);
+		}
+	}
+
+	/** Called by the stream handler for every sample. Cheap once the first sample is in. */
+	public void markSample() {
+		if (!mAwaitingSample) {
+			return;
+		}
+		mAwaitingSample = false;
+		long now = System.nanoTime();
+		mFirstSampleLatency.record(now - mOpenNanos);
+		if (mLostNanos != NEVER) {
+			mReconnectLatency.record(now - mLostNanos);
+			mLostNanos = NEVER;
+		}
+		mFailedAttempts = 0;
+		setState(STATE_STREAMING);
+	}
+
+	private void setState(int state) {
+		if (state == mState) {
+			return;
+		}
+		mState = state;
+		if (mListener != null) {
+			mListener.onStateChanged(this, state);
+		}
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	public int getState() {
+		return mState;
+	}
+
+	public static String getStateName(int state) {
+		return STATE_NAMES[state];
+	}
+
+	/** The error that ended the last link or attempt, null if none did. */
+	public IOException getError() {
+		return mError;
+	}
+
+	/** Links opened. */
+	public long getConnects() {
+		return mConnects;
+	}
+
+	/** Attempts to open the link that failed. */
+	public long getFailures() {
+		return mFailures;
+	}
+
+	/** Links that were lost rather than closed by stop(). */
+	public long getDrops() {
+		return mDrops;
+	}
+
+	/** From opening a link to its first sample, for every link that brought one. */
+	public LatencyHistogram getFirstSampleLatency() {
+		return mFirstSampleLatency;
+	}
+
+	/** From losing a link that brought samples to the first sample of the next link. */
+	public LatencyHistogram getReconnectLatency() {
+		return mReconnectLatency;
+	}
+
+	/** Appends state, counts and latencies in one line. */
+	public StringBuilder dump(StringBuilder out) {
+		out.append(String.format(Locale.US, "%s %s: %d connects, %d failures, %d drops", mName,
+				STATE_NAMES[mState], mConnects, mFailures, mDrops));
+		appendLatency(out, ", first sample", mFirstSampleLatency);
+		appendLatency(out, ", reconnect", mReconnectLatency);
+		return out;
+	}
+
+	private static void appendLatency(StringBuilder out, String label, LatencyHistogram histogram) {
+		if (histogram.getCount() > 0) {
+			out.append(String.format(Locale.US, "%s p50 %.0f ms max %.0f ms", label,
+					histogram.getValueAtPercentile(50) / 1e6, histogram.getMax() / 1e6));
+		}
+	}
+
+	@Override
+	public String toString() {
+		return dump(new StringBuilder()).toString();
+	}
+}
@@ -0,0 +1,349 @@
+package edu.gatech.ubicomp.glim.sensor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads many sensor streams on a small, fixed pool of threads, for a hub that
+ * monitors several people at once.
+ *
+ * Bluetooth streams can only be read blocking, which takes a thread per
+ * stream. Instead, every pool thread takes turns over its own streams: it
+ * asks each for the bytes available, reads at most one buffer of them into
+ * the stream's own buffer and hands them to the stream's consumer, which
+ * keeps the framing state of that stream (a {@link LineFramer} or
+ * {@link HxmFrameReader}). Every pass starts one stream further on and reads
+ * each stream once at most, so a sensor sending a burst cannot hold up the
+ * others.
+ *
+ * Sensors send at a steady rate, so every stream keeps the average time
+ * between its reads. A pass that finds nothing parks the thread until shortly
+ * before the earliest read its streams are due for, so an idle thread wakes
+ * about once per expected read however few streams it has. Waking early
+ * keeps an empty poll before each read, which bounds when the data arrived
+ * and keeps the average from drifting with late reads. Once that time has passed
+ * without data, or while no stream has a rate yet, it parks twice as long
+ * after every idle pass, from MIN_PARK_NANOS up to the maximum park time,
+ * which bounds the latency added to a late sample; data resets the park time.
+ *
+ * Streams go to the thread with the fewest streams and can be attached and
+ * detached while the scheduler runs. A stream that fails is detached, as is
+ * one whose read() returns -1; a stream that only ever reports nothing
+ * available once it ends stays attached until detach(). A consumer is only
+ * ever called on the thread of its stream.
+ */
+public class SensorIoScheduler {
+
+	public interface StreamConsumer {
+		/** The bytes just read, only valid during the call. */
+		void onBytes(byte[] data, int offset, int length);
+
+		/**
+		 * The last call, once the stream is detached. The stream is not closed.
+		 * @param error what failed the stream, null if it ended or was detached
+		 */
+		void onClosed(IOException error);
+	}
+
+	/** A sensor stream attached to the scheduler. */
+	public static class Stream {
+		private final String mName;
+		private final InputStream mInputStream;
+		private final StreamConsumer mConsumer;
+		private final byte[] mBuffer;
+		private Worker mWorker;
+		private volatile boolean mDetached;
+		// Worker thread only. Data arrived between the last poll that found none and the read that found it;
+		// taking the earlier bound keeps parks from drifting later with every read.
+		private long mLastEmptyNanos;
+		private long mLastReadNanos;
+		private long mArrivalNanos;
+		private long mIntervalNanos;
+
+		private volatile long mBytesRead;
+		private volatile long mReads;
+
+		Stream(String name, InputStream inputStream, StreamConsumer consumer, int readBufferSize) {
+			mName = name;
+			mInputStream = inputStream;
+			mConsumer = consumer;
+			mBuffer = new byte[readBufferSize];
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public boolean isDetached() {
+			return mDetached;
+		}
+
+		public long getBytesRead() {
+			return mBytesRead;
+		}
+
+		/** Reads that returned data. */
+		public long getReads() {
+			return mReads;
+		}
+	}
+
+	public static final int DEFAULT_READ_BUFFER_SIZE = 1024;
+
+	/** Longest park of an idle thread while no read is due. A 32 Hz sensor sends every 31 ms. */
+	public static final long DEFAULT_MAX_PARK_NANOS = 4000000;
+
+	private static final long MIN_PARK_NANOS = 50000;
+	/** Longest park until a read is due, in case a stream's rate drops. */
+	private static final long MAX_DUE_PARK_NANOS = 250000000;
+	/** Weight of the newest interval in a stream's average, as a shift. */
+	private static final int INTERVAL_SHIFT = 3;
+	/** How early before a due read a thread wakes, as a shift of the interval. */
+	private static final int EARLY_WAKE_SHIFT = 5;
+
+	private final Worker[] mWorkers;
+	private final int mReadBufferSize;
+	private final long mMaxParkNanos;
+	private volatile boolean mRunning;
+
+	public SensorIoScheduler(int threads) {
+		this(threads, DEFAULT_READ_BUFFER_SIZE, DEFAULT_MAX_PARK_NANOS);
+	}
+
+	public SensorIoScheduler(int threads, int readBufferSize, long maxParkNanos) {
+		mWorkers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			mWorkers[i] = new Worker();
+		}
+		mReadBufferSize = readBufferSize;
+		mMaxParkNanos = Math.max(MIN_PARK_NANOS, maxParkNanos);
+	}
+
+	/** Starts the pool threads. */
+	public synchronized void start() {
+		if (mRunning) {
+			return;
+		}
+		mRunning = true;
+		for (int i = 0; i < mWorkers.length; i++) {
+			mWorkers[i].mThread = new Thread(mWorkers[i], "Sensor I/O " + i);
+			mWorkers[i].mThread.start();
+		}
+	}
+
+	/** Stops the pool threads, detaching every stream. */
+	public void stop() {
+		synchronized (this) {
+			if (!mRunning) {
+				return;
+			}
+			mRunning = false;
+		}
+		for (Worker worker : mWorkers) {
+			LockSupport.unpark(worker.mThread);
+		}
+		for (Worker worker : mWorkers) {
+			try {
+				worker.mThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			worker.mThread = null;
+		}
+	}
+
+	/**
+	 * Starts reading a stream. Its consumer is called on a pool thread from
+	 * now until onClosed().
+	 * @param name for stats and logs
+	 */
+	public Stream attach(String name, InputStream inputStream, StreamConsumer consumer) {
+		Stream stream = new Stream(name, inputStream, consumer, mReadBufferSize);
+		Worker worker;
+		synchronized (this) {
+			worker = mWorkers[0];
+			for (int i = 1; i < mWorkers.length; i++) {
+				if (mWorkers[i].mStreams.length < worker.mStreams.length) {
+					worker = mWorkers[i];
+				}
+			}
+			stream.mWorker = worker;
+			worker.add(stream);
+		}
+		LockSupport.unpark(worker.mThread);
+		return stream;
+	}
+
+	/**
+	 * Stops reading a stream. Its consumer gets onClosed() on the pool thread,
+	 * after any call that is in progress.
+	 */
+	public void detach(Stream stream) {
+		stream.mDetached = true;
+		LockSupport.unpark(stream.mWorker.mThread);
+	}
+
+	public int getThreadCount() {
+		return mWorkers.length;
+	}
+
+	public int getStreamCount() {
+		int count = 0;
+		for (Worker worker : mWorkers) {
+			count += worker.mStreams.length;
+		}
+		return count;
+	}
+
+	/** Passes over their streams the pool threads made. */
+	public long getPasses() {
+		long passes = 0;
+		for (Worker worker : mWorkers) {
+			passes += worker.mPasses;
+		}
+		return passes;
+	}
+
+	/** Parks that lasted until a read was due, rather than backing off. */
+	public long getDueParks() {
+		long parks = 0;
+		for (Worker worker : mWorkers) {
+			parks += worker.mDueParks;
+		}
+		return parks;
+	}
+
+	/** Passes that found no data and parked. */
+	public long getParks() {
+		long parks = 0;
+		for (Worker worker : mWorkers) {
+			parks += worker.mParks;
+		}
+		return parks;
+	}
+
+	private class Worker implements Runnable {
+		/** Copied on every change, so passes need no lock. */
+		private volatile Stream[] mStreams = new Stream[0];
+		private volatile Thread mThread;
+
+		/** Worker thread only. */
+		private int mNext;
+		private long mParkNanos;
+
+		private volatile long mPasses;
+		private volatile long mParks;
+		private volatile long mDueParks;
+
+		synchronized void add(Stream stream) {
+			Stream[] streams = new Stream[mStreams.length + 1];
+			System.arraycopy(mStreams, 0, streams, 0, mStreams.length);
+			streams[mStreams.length] = stream;
+			mStreams = streams;
+		}
+
+		synchronized void remove(Stream stream) {
+			Stream[] streams = mStreams;
+			for (int i = 0; i < streams.length; i++) {
+				if (streams[i] == stream) {
+					Stream[] remaining = new Stream[streams.length - 1];
+					System.arraycopy(streams, 0, remaining, 0, i);
+					System.arraycopy(streams, i + 1, remaining, i, remaining.length - i);
+					mStreams = remaining;
+					return;
+				}
+			}
+		}
+
+		public void run() {
+			while (mRunning) {
+				Stream[] streams = mStreams;
+				int count = streams.length;
+				boolean read = false;
+				if (count > 0) {
+					int first = mNext % count;
+					for (int i = 0; i < count; i++) {
+						read |= service(streams[(first + i) % count]);
+					}
+					mNext = first + 1;
+				}
+				mPasses++;
+				if (read) {
+					mParkNanos = 0;
+					continue;
+				}
+				mParks++;
+				long due = untilDue(streams);
+				if (due > mParkNanos) {
+					// Back off from the shortest park again if the read is late.
+					mParkNanos = 0;
+					mDueParks++;
+					LockSupport.parkNanos(Math.min(due, MAX_DUE_PARK_NANOS));
+				} else {
+					mParkNanos = mParkNanos == 0 ? MIN_PARK_NANOS : Math.min(mParkNanos * 2, mMaxParkNanos);
+					LockSupport.parkNanos(mParkNanos);
+				}
+			}
+			for (Stream stream : mStreams) {
+				close(stream, null);
+			}
+		}
+
+		/** Time until shortly before the earliest read of the streams is due, 0 if one is due or one has no rate. */
+		private long untilDue(Stream[] streams) {
+			long now = System.nanoTime();
+			long earliest = Long.MAX_VALUE;
+			for (Stream stream : streams) {
+				if (stream.mIntervalNanos == 0) {
+					return 0;
+				}
+				long interval = stream.mIntervalNanos;
+				earliest = Math.min(earliest, stream.mArrivalNanos + interval - (interval >> EARLY_WAKE_SHIFT) - now);
+			}
+			return earliest == Long.MAX_VALUE ? 0 : Math.max(0, earliest);
+		}
+
+		/** @return true if the stream had data */
+		private boolean service(Stream stream) {
+			if (stream.mDetached) {
+				close(stream, null);
+				return false;
+			}
+			try {
+				int available = stream.mInputStream.available();
+				if (available <= 0) {
+					stream.mLastEmptyNanos = System.nanoTime();
+					return false;
+				}
+				int count = stream.mInputStream.read(stream.mBuffer, 0, Math.min(available, stream.mBuffer.length));
+				if (count < 0) {
+					close(stream, null);
+					return false;
+				}
+				long now = System.nanoTime();
+				long arrival = stream.mLastEmptyNanos > stream.mLastReadNanos ? stream.mLastEmptyNanos : now;
+				if (stream.mReads > 0) {
+					long interval = arrival - stream.mArrivalNanos;
+					stream.mIntervalNanos = stream.mIntervalNanos == 0 ? interval
+							: stream.mIntervalNanos + ((interval - stream.mIntervalNanos) >> INTERVAL_SHIFT);
+				}
+				stream.mArrivalNanos = arrival;
+				stream.mLastReadNanos = now;
+				stream.mBytesRead += count;
+				stream.mReads++;
+				stream.mConsumer.onBytes(stream.mBuffer, 0, count);
+				return true;
+			} catch (IOException e) {
+				close(stream, e);
+				return false;
+			}
+		}
+
+		private void close(Stream stream, IOException error) {
+			remove(stream);
+			stream.mDetached = true;
+			stream.mConsumer.onClosed(error);
+		}
+	}
+}
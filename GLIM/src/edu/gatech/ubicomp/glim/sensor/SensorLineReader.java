@@ -0,0 +1,142 @@
+package edu.gatech.ubicomp.glim.sensor;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a sensor byte stream on its own thread and hands complete lines to a
+ * {@link LineFramer.LineListener}.
+ * 
+ * The reader blocks in {@link InputStream#read(byte[])} instead of polling
+ * {@link InputStream#available()}, so the thread sleeps between packets. All
+ * reads go into one buffer allocated up front. Closing the stream (or the
+ * Bluetooth socket it belongs to) unblocks the read and ends the loop.
+ */
+public class SensorLineReader implements Runnable {
+
+	/** Default size of the read buffer. Q sensor lines are around 50 bytes. */
+	public static final int DEFAULT_READ_BUFFER_SIZE = 1024;
+
+	/** Lines longer than this are considered garbage and dropped. */
+	public static final int DEFAULT_MAX_LINE_LENGTH = 16 * 1024;
+
+	/** How often the byte and line rates are recomputed. */
+	private static final long RATE_WINDOW_NANOS = 1000000000L;
+
+	private final InputStream mInputStream;
+	private final LineFramer mFramer;
+	private final byte[] mReadBuffer;
+	private volatile boolean mStopped;
+	private volatile IOException mError;
+
+	private volatile long mBytesRead;
+	private volatile long mProcessingNanos;
+	private volatile float mBytesPerSecond;
+	private volatile float mLinesPerSecond;
+
+	private long mReadNanos;
+	private long mWindowStartNanos;
+	private long mWindowStartBytes;
+	private long mWindowStartLines;
+
+	public SensorLineReader(InputStream inputStream, LineFramer.LineListener listener) {
+		this(inputStream, listener, DEFAULT_READ_BUFFER_SIZE, DEFAULT_MAX_LINE_LENGTH);
+	}
+
+	public SensorLineReader(InputStream inputStream, LineFramer.LineListener listener,
+			int readBufferSize, int maxLineLength) {
+		mInputStream = inputStream;
+		mReadBuffer = new byte[readBufferSize];
+		mFramer = new LineFramer(Math.min(readBufferSize, maxLineLength), maxLineLength, listener);
+	}
+
+	@Override
+	public void run() {
+		mWindowStartNanos = System.nanoTime();
+		try {
+			while (!mStopped && !Thread.currentThread().isInterrupted()) {
+				int count = mInputStream.read(mReadBuffer);
+				if (count < 0) {
+					break;
+				}
+				long start = System.nanoTime();
+				mReadNanos = start;
+				mFramer.feed(mReadBuffer, 0, count);
+				long now = System.nanoTime();
+				mProcessingNanos += now - start;
+				mBytesRead += count;
+				if (now - mWindowStartNanos >= RATE_WINDOW_NANOS) {
+					updateRates(now);
+				}
+			}
+		} catch (IOException e) {
+			// Expected when the stream is closed to stop the reader.
+			if (!mStopped) {
+				mError = e;
+			}
+		}
+		mStopped = true;
+	}
+
+	private void updateRates(long now) {
+		float seconds = (now - mWindowStartNanos) / 1e9f;
+		long lines = mFramer.getLines();
+		mBytesPerSecond = (mBytesRead - mWindowStartBytes) / seconds;
+		mLinesPerSecond = (lines - mWindowStartLines) / seconds;
+		mWindowStartNanos = now;
+		mWindowStartBytes = mBytesRead;
+		mWindowStartLines = lines;
+	}
+
+	/**
+	 * Asks the reader to stop. The blocking read only returns once the stream is
+	 * closed or more data arrives, so callers should close the stream too.
+	 */
+	public void stop() {
+		mStopped = true;
+	}
+
+	public boolean isStopped() {
+		return mStopped;
+	}
+
+	/** The error that ended the read loop, or null if it was stopped or reached the end of the stream. */
+	public IOException getError() {
+		return mError;
+	}
+
+	/**
+	 * System.nanoTime() at which the read that completed the current line
+	 * returned, i.e. when the line arrived. Only valid in the line listener.
+	 */
+	public long getReadNanos() {
+		return mReadNanos;
+	}
+
+	public LineFramer getFramer() {
+		return mFramer;
+	}
+
+	public long getBytesRead() {
+		return mBytesRead;
+	}
+
+	/** Bytes per second over the last rate window (about one second). */
+	public float getBytesPerSecond() {
+		return mBytesPerSecond;
+	}
+
+	/** Lines per second over the last rate window (about one second). */
+	public float getLinesPerSecond() {
+		return mLinesPerSecond;
+	}
+
+	/**
+	 * Average time spent framing and handling a line, in nanoseconds. Time spent
+	 * blocked in read() is not included, so this tracks the CPU cost per sample.
+	 */
+	public long getProcessingNanosPerLine() {
+		long lines = mFramer.getLines();
+		return lines == 0 ? 0 : mProcessingNanos / lines;
+	}
+}
@@ -0,0 +1,30 @@
+package edu.gatech.ubicomp.glim.sensor;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The link to one sensor, such as an RFCOMM socket. Keeping the Bluetooth
+ * calls behind this lets {@link SensorConnection} run against simulated links
+ * on a desktop JVM.
+ */
+public interface SensorTransport {
+
+	/**
+	 * Opens the link, blocking until it is up.
+	 * @return the sensor's byte stream, valid until close()
+	 * @throws IOException if the sensor cannot be reached, or close() was
+	 *         called since the last reset(); the caller retries later
+	 */
+	InputStream open() throws IOException;
+
+	/**
+	 * Closes the link, from any thread. A blocked open() or read of the stream
+	 * fails with an IOException, and so does every open() until reset(), so a
+	 * close() that races an open() about to start is not lost.
+	 */
+	void close();
+
+	/** Lets open() connect again after close(). */
+	void reset();
+}
@@ -0,0 +1,129 @@
+package edu.gatech.ubicomp.glim.signal;
+
+/**
+ * Maps the combined EDA/HR shift to one of seven arousal bands, from dark blue
+ * (lowest) through light green (base) to red (highest).
+ * 
+ * Every band covers SHIFTS_PER_BAND consecutive shift values, looked up in a
+ * table built once. To keep the display from flapping, leaving the current band
+ * takes a shift that is past the band's range by more than the hysteresis, and
+ * at least the minimum dwell time since the last change.
+ */
+public class BandClassifier {
+
+	public static final int BAND_COUNT = 7;
+	public static final int LOWEST_BAND = 0;
+	public static final int BASE_BAND = 3;
+	public static final int HIGHEST_BAND = BAND_COUNT - 1;
+
+	/** Shift values -6..-5 are the lowest band, 0..1 the base band and 6..7 the highest. */
+	public static final int MIN_SHIFT = -6;
+	public static final int SHIFTS_PER_BAND = 2;
+	public static final int MAX_SHIFT = MIN_SHIFT + BAND_COUNT * SHIFTS_PER_BAND - 1;
+
+	private static final int[] SHIFT_TO_BAND = new int[MAX_SHIFT - MIN_SHIFT + 1];
+	private static final int[] BAND_LOWEST_SHIFT = new int[BAND_COUNT];
+	private static final int[] BAND_HIGHEST_SHIFT = new int[BAND_COUNT];
+
+	static {
+		for (int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++) {
+			SHIFT_TO_BAND[shift - MIN_SHIFT] = (shift - MIN_SHIFT) / SHIFTS_PER_BAND;
+		}
+		for (int band = 0; band < BAND_COUNT; band++) {
+			BAND_LOWEST_SHIFT[band] = MIN_SHIFT + band * SHIFTS_PER_BAND;
+			BAND_HIGHEST_SHIFT[band] = BAND_LOWEST_SHIFT[band] + SHIFTS_PER_BAND - 1;
+		}
+	}
+
+	private int mHysteresis;
+	private long mMinDwellMs;
+
+	private int mBand = BASE_BAND;
+	private long mBandSince = Long.MIN_VALUE;
+	private int mChanges;
+	private int mSuppressed;
+
+	/**
+	 * @param hysteresis how many shift steps past its range the current band is kept, 0 for none
+	 * @param minDwellMs minimum time between two band changes
+	 */
+	public BandClassifier(int hysteresis, long minDwellMs) {
+		setHysteresis(hysteresis);
+		setMinDwellTime(minDwellMs);
+	}
+
+	public void setHysteresis(int hysteresis) {
+		if (hysteresis < 0) {
+			throw new IllegalArgumentException("Hysteresis must not be negative: " + hysteresis);
+		}
+		mHysteresis = hysteresis;
+	}
+
+	public void setMinDwellTime(long minDwellMs) {
+		mMinDwellMs = minDwellMs;
+	}
+
+	/**
+	 * Total shift from the base levels: every percentageStep percent that EDA or
+	 * HR is above (or below) its base level counts as one step, and either signal
+	 * can compensate for the other.
+	 */
+	public static int totalShift(float eda, float baseEda, float heartRate, float baseHeartRate, float percentageStep) {
+		float percentageIncrEda = ((eda - baseEda) / baseEda) * 100;
+		float percentageIncrHr = ((heartRate - baseHeartRate) / baseHeartRate) * 100;
+		return (int) (percentageIncrEda / percentageStep) + (int) (percentageIncrHr / percentageStep);
+	}
+
+	/** Band for a shift without hysteresis, out of range shifts go to the outer bands. */
+	public static int bandForShift(int shift) {
+		if (shift < MIN_SHIFT) {
+			return LOWEST_BAND;
+		}
+		if (shift > MAX_SHIFT) {
+			return HIGHEST_BAND;
+		}
+		return SHIFT_TO_BAND[shift - MIN_SHIFT];
+	}
+
+	/**
+	 * @param shift current total shift
+	 * @param timeMs monotonic time of the update
+	 * @return true if the band changed, getBand() has the new one
+	 */
+	public boolean update(int shift, long timeMs) {
+		if (shift >= BAND_LOWEST_SHIFT[mBand] - mHysteresis && shift <= BAND_HIGHEST_SHIFT[mBand] + mHysteresis) {
+			return false;
+		}
+		int band = bandForShift(shift);
+		if (band == mBand) {
+			return false;
+		}
+		if (mBandSince != Long.MIN_VALUE && timeMs - mBandSince < mMinDwellMs) {
+			mSuppressed++;
+			return false;
+		}
+		mBand = band;
+		mBandSince = timeMs;
+		mChanges++;
+		return true;
+	}
+
+	public int getBand() {
+		return mBand;
+	}
+
+	/** Goes back to the base band, the next change is not held back by the dwell time. */
+	public void reset() {
+		mBand = BASE_BAND;
+		mBandSince = Long.MIN_VALUE;
+	}
+
+	public int getChangeCount() {
+		return mChanges;
+	}
+
+	/** Changes held back because the current band had not been shown long enough. */
+	public int getSuppressedCount() {
+		return mSuppressed;
+	}
+}
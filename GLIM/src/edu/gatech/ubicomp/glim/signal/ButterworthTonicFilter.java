@@ -0,0 +1,79 @@
+package edu.gatech.ubicomp.glim.signal;
+
+/**
+ * Butterworth low-pass IIR filter built from a cascade of second order sections
+ * (biquads), used to keep only the slow tonic part of the signal.
+ * 
+ * Each section runs in transposed direct form II with double precision state.
+ * On the first sample the state is set to the steady state for that value, so
+ * the output does not ramp up from zero.
+ */
+public class ButterworthTonicFilter implements TonicFilter {
+
+	/** Coefficients and state, five coefficients and two state values per section. */
+	private final double[] mB0, mB1, mB2, mA1, mA2;
+	private final double[] mZ1, mZ2;
+	private boolean mStarted;
+
+	/**
+	 * @param cutoffHz cutoff frequency; around 0.05 Hz separates tonic from phasic EDA
+	 * @param sampleRateHz sampling rate of the input
+	 * @param order filter order, a positive even number
+	 */
+	public ButterworthTonicFilter(double cutoffHz, double sampleRateHz, int order) {
+		if (order <= 0 || order % 2 != 0) {
+			throw new IllegalArgumentException("Order must be positive and even: " + order);
+		}
+		if (!(cutoffHz > 0 && cutoffHz < sampleRateHz / 2)) {
+			throw new IllegalArgumentException("Cutoff must be between 0 and " + sampleRateHz / 2 + " Hz: " + cutoffHz);
+		}
+		int sections = order / 2;
+		mB0 = new double[sections];
+		mB1 = new double[sections];
+		mB2 = new double[sections];
+		mA1 = new double[sections];
+		mA2 = new double[sections];
+		mZ1 = new double[sections];
+		mZ2 = new double[sections];
+
+		double w0 = 2 * Math.PI * cutoffHz / sampleRateHz;
+		double cosW0 = Math.cos(w0);
+		double sinW0 = Math.sin(w0);
+		for (int k = 0; k < sections; k++) {
+			// Quality factor of the k-th pole pair of a Butterworth filter of this order.
+			double q = 1.0 / (2.0 * Math.cos(Math.PI * (2 * k + 1) / (2.0 * order)));
+			double alpha = sinW0 / (2 * q);
+			double a0 = 1 + alpha;
+			mB0[k] = (1 - cosW0) / 2 / a0;
+			mB1[k] = (1 - cosW0) / a0;
+			mB2[k] = (1 - cosW0) / 2 / a0;
+			mA1[k] = -2 * cosW0 / a0;
+			mA2[k] = (1 - alpha) / a0;
+		}
+	}
+
+	@Override
+	public float update(float value) {
+		double x = value;
+		if (!mStarted) {
+			// Unity DC gain: start every section as if it had seen this value forever.
+			for (int k = 0; k < mB0.length; k++) {
+				mZ2[k] = (mB2[k] - mA2[k]) * x;
+				mZ1[k] = (mB1[k] - mA1[k]) * x + mZ2[k];
+			}
+			mStarted = true;
+		}
+		for (int k = 0; k < mB0.length; k++) {
+			double y = mB0[k] * x + mZ1[k];
+			mZ1[k] = mB1[k] * x - mA1[k] * y + mZ2[k];
+			mZ2[k] = mB2[k] * x - mA2[k] * y;
+			x = y;
+		}
+		return (float) x;
+	}
+
+	@Override
+	public void reset() {
+		mStarted = false;
+	}
+}
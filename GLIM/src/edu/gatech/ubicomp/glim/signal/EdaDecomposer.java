@@ -0,0 +1,58 @@
+package edu.gatech.ubicomp.glim.signal;
+
+/**
+ * Splits a raw EDA stream into its tonic and phasic components with a pluggable
+ * {@link TonicFilter}, and keeps running statistics of the raw signal.
+ * 
+ * Plain Java with no Android dependency: one instance per stream, fed from a
+ * single thread, with the results of the last sample kept in fields.
+ */
+public class EdaDecomposer {
+
+	/** Weight of the EMA filter used by the waveform view. */
+	public static final float DEFAULT_EMA_ALPHA = 0.02f;
+
+	private final TonicFilter mTonicFilter;
+	private final RunningStats mRawStats = new RunningStats();
+	private float mRaw;
+	private float mTonic;
+	private float mPhasic;
+
+	public EdaDecomposer(TonicFilter tonicFilter) {
+		mTonicFilter = tonicFilter;
+	}
+
+	/**
+	 * Processes the next raw sample.
+	 * @return the phasic component of the sample
+	 */
+	public float update(float raw) {
+		mRaw = raw;
+		mTonic = mTonicFilter.update(raw);
+		mPhasic = raw - mTonic;
+		mRawStats.add(raw);
+		return mPhasic;
+	}
+
+	public void reset() {
+		mTonicFilter.reset();
+		mRawStats.reset();
+	}
+
+	public float getRaw() {
+		return mRaw;
+	}
+
+	public float getTonic() {
+		return mTonic;
+	}
+
+	public float getPhasic() {
+		return mPhasic;
+	}
+
+	/** Statistics of every raw sample since the last reset. */
+	public RunningStats getRawStats() {
+		return mRawStats;
+	}
+}
@@ -0,0 +1,42 @@
+package edu.gatech.ubicomp.glim.signal;
+
+/**
+ * Exponential moving average used by the first versions of the waveform view:
+ * the tonic level moves towards the previous raw sample by a factor alpha.
+ */
+public class EmaTonicFilter implements TonicFilter {
+
+	private final float mAlpha;
+	private boolean mStarted;
+	private float mLastValue;
+	private float mLastTonic;
+
+	/**
+	 * @param alpha weight of the previous raw sample, between 0 and 1
+	 */
+	public EmaTonicFilter(float alpha) {
+		if (!(alpha > 0 && alpha <= 1)) {
+			throw new IllegalArgumentException("Invalid alpha " + alpha);
+		}
+		mAlpha = alpha;
+	}
+
+	@Override
+	public float update(float value) {
+		float tonic;
+		if (!mStarted) {
+			tonic = value;
+			mStarted = true;
+		} else {
+			tonic = mAlpha*mLastValue + (1 - mAlpha)*mLastTonic;
+		}
+		mLastValue = value;
+		mLastTonic = tonic;
+		return tonic;
+	}
+
+	@Override
+	public void reset() {
+		mStarted = false;
+	}
+}
@@ -0,0 +1,114 @@
+package edu.gatech.ubicomp.glim.signal;
+
+/**
+ * Heart rate variability over a sliding window of the most recent R-R intervals.
+ * 
+ * RMSSD, SDNN and pNN50 are maintained incrementally: adding a beat updates a few
+ * running sums and, once the window is full, removes the contribution of the
+ * beat that leaves it. Intervals are whole milliseconds, so the sums are kept in
+ * longs and stay exact however long the session runs.
+ */
+public class HrvWindow {
+
+	/** Successive differences larger than this count towards pNN50. */
+	private static final int NN50_THRESHOLD = 50;
+
+	private final int[] mIntervals;
+	private int mHead;
+	private int mSize;
+
+	private long mSum;
+	private long mSumOfSquares;
+	/** Sums over the successive differences of the intervals in the window. */
+	private long mDiffSumOfSquares;
+	private int mNn50Count;
+
+	/**
+	 * @param windowBeats number of intervals in the window, e.g. 60 for about a minute
+	 */
+	public HrvWindow(int windowBeats) {
+		if (windowBeats < 2) {
+			throw new IllegalArgumentException("Window needs at least 2 beats: " + windowBeats);
+		}
+		mIntervals = new int[windowBeats];
+	}
+
+	/**
+	 * Adds an R-R interval, evicting the oldest one if the window is full.
+	 * @param interval in milliseconds
+	 */
+	public void add(int interval) {
+		int capacity = mIntervals.length;
+		if (mSize == capacity) {
+			int tail = mHead;
+			int oldest = mIntervals[tail];
+			int next = mIntervals[(tail + 1) % capacity];
+			mSum -= oldest;
+			mSumOfSquares -= (long) oldest * oldest;
+			removeDifference(next - oldest);
+			mSize--;
+		}
+		if (mSize > 0) {
+			int newest = mIntervals[(mHead + capacity - 1) % capacity];
+			addDifference(interval - newest);
+		}
+		mIntervals[mHead] = interval;
+		mHead = (mHead + 1) % capacity;
+		mSize++;
+		mSum += interval;
+		mSumOfSquares += (long) interval * interval;
+	}
+
+	private void addDifference(int difference) {
+		mDiffSumOfSquares += (long) difference * difference;
+		if (Math.abs(difference) > NN50_THRESHOLD) {
+			mNn50Count++;
+		}
+	}
+
+	private void removeDifference(int difference) {
+		mDiffSumOfSquares -= (long) difference * difference;
+		if (Math.abs(difference) > NN50_THRESHOLD) {
+			mNn50Count--;
+		}
+	}
+
+	public void clear() {
+		mHead = 0;
+		mSize = 0;
+		mSum = 0;
+		mSumOfSquares = 0;
+		mDiffSumOfSquares = 0;
+		mNn50Count = 0;
+	}
+
+	/** Number of intervals in the window. */
+	public int size() {
+		return mSize;
+	}
+
+	/** Mean R-R interval in milliseconds. */
+	public float getMeanInterval() {
+		return mSize == 0 ? 0 : (float) mSum / mSize;
+	}
+
+	/** Root mean square of successive differences, in milliseconds. */
+	public float getRmssd() {
+		return mSize < 2 ? 0 : (float) Math.sqrt((double) mDiffSumOfSquares / (mSize - 1));
+	}
+
+	/** Standard deviation of the intervals, in milliseconds. */
+	public float getSdnn() {
+		if (mSize < 2) {
+			return 0;
+		}
+		// n * sum(x^2) - sum(x)^2 is exact in long for any realistic window.
+		double variance = (double) (mSize * mSumOfSquares - mSum * mSum) / ((double) mSize * mSize);
+		return (float) Math.sqrt(Math.max(0, variance));
+	}
+
+	/** Percentage of successive differences larger than 50 ms. */
+	public float getPnn50() {
+		return mSize < 2 ? 0 : 100f * mNn50Count / (mSize - 1);
+	}
+}
@@ -0,0 +1,59 @@
+package edu.gatech.ubicomp.glim.signal;
+
+import java.util.Arrays;
+
+/**
+ * Estimates the tonic level as the median of a sliding window of samples, which
+ * ignores short phasic responses entirely instead of smoothing them in.
+ * 
+ * The window is kept both in arrival order (to know which sample leaves) and
+ * sorted (to read the median). Each sample costs two binary searches and two
+ * array shifts bounded by the window size, with no allocation.
+ */
+public class MedianTonicFilter implements TonicFilter {
+
+	private final float[] mWindow;
+	private final float[] mSorted;
+	private int mHead;
+	private int mSize;
+
+	/**
+	 * @param windowSize number of samples in the window, e.g. 4 seconds of data
+	 */
+	public MedianTonicFilter(int windowSize) {
+		if (windowSize <= 0) {
+			throw new IllegalArgumentException("Invalid window size " + windowSize);
+		}
+		mWindow = new float[windowSize];
+		mSorted = new float[windowSize];
+	}
+
+	@Override
+	public float update(float value) {
+		if (mSize == mWindow.length) {
+			float evicted = mWindow[mHead];
+			int index = Arrays.binarySearch(mSorted, 0, mSize, evicted);
+			System.arraycopy(mSorted, index + 1, mSorted, index, mSize - index - 1);
+			mSize--;
+		}
+		mWindow[mHead] = value;
+		mHead = mHead + 1 == mWindow.length ? 0 : mHead + 1;
+
+		int index = Arrays.binarySearch(mSorted, 0, mSize, value);
+		if (index < 0) {
+			index = -index - 1;
+		}
+		System.arraycopy(mSorted, index, mSorted, index + 1, mSize - index);
+		mSorted[index] = value;
+		mSize++;
+
+		int middle = mSize / 2;
+		return (mSize & 1) == 1 ? mSorted[middle] : (mSorted[middle - 1] + mSorted[middle]) / 2;
+	}
+
+	@Override
+	public void reset() {
+		mHead = 0;
+		mSize = 0;
+	}
+}
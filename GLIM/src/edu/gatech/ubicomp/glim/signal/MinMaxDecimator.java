@@ -0,0 +1,99 @@
+package edu.gatech.ubicomp.glim.signal;
+
+/**
+ * Reduces a stream of samples to two points per bucket of samples: the minimum
+ * and the maximum of the bucket, in the order they occurred.
+ * 
+ * Drawing these points instead of every sample keeps every peak and trough
+ * visible, so a window of N samples can be drawn with about two points per
+ * pixel column. Work is O(1) per sample: only the bucket being filled is
+ * updated, completed buckets are never revisited. The extremes of the bucket
+ * being filled can be drawn provisionally, so the newest samples show up
+ * before their bucket is complete.
+ */
+public class MinMaxDecimator {
+
+	private int mSamplesPerBucket;
+
+	/** State of the bucket being filled. */
+	private int mCount;
+	private float mMin, mMax;
+	private boolean mMinFirst;
+
+	/** Extremes of the last completed bucket, in time order. */
+	private float mFirst, mSecond;
+
+	/**
+	 * @param samplesPerBucket number of input samples reduced to one pair of points
+	 */
+	public MinMaxDecimator(int samplesPerBucket) {
+		setSamplesPerBucket(samplesPerBucket);
+	}
+
+	/**
+	 * Changes the bucket size, dropping the bucket being filled.
+	 */
+	public void setSamplesPerBucket(int samplesPerBucket) {
+		if (samplesPerBucket <= 0) {
+			throw new IllegalArgumentException("Invalid bucket size " + samplesPerBucket);
+		}
+		mSamplesPerBucket = samplesPerBucket;
+		mCount = 0;
+	}
+
+	public int getSamplesPerBucket() {
+		return mSamplesPerBucket;
+	}
+
+	/**
+	 * Adds a sample to the current bucket.
+	 * @return true if the sample completed the bucket; its points are then
+	 *         available from {@link #getFirst()} and {@link #getSecond()}
+	 */
+	public boolean add(float value) {
+		if (mCount == 0) {
+			mMin = value;
+			mMax = value;
+			mMinFirst = true;
+		} else if (value < mMin) {
+			mMin = value;
+			// A new extreme is always later than the opposite one.
+			mMinFirst = false;
+		} else if (value > mMax) {
+			mMax = value;
+			mMinFirst = true;
+		}
+		if (++mCount < mSamplesPerBucket) {
+			return false;
+		}
+		mFirst = mMinFirst ? mMin : mMax;
+		mSecond = mMinFirst ? mMax : mMin;
+		mCount = 0;
+		return true;
+	}
+
+	/** Earlier of the two extremes of the last completed bucket. */
+	public float getFirst() {
+		return mFirst;
+	}
+
+	/** Later of the two extremes of the last completed bucket. */
+	public float getSecond() {
+		return mSecond;
+	}
+
+	/** Number of samples in the bucket being filled. */
+	public int getPendingCount() {
+		return mCount;
+	}
+
+	/** Earlier of the two extremes of the bucket being filled. Only meaningful if getPendingCount() > 0. */
+	public float getPendingFirst() {
+		return mMinFirst ? mMin : mMax;
+	}
+
+	/** Later of the two extremes of the bucket being filled. Only meaningful if getPendingCount() > 0. */
+	public float getPendingSecond() {
+		return mMinFirst ? mMax : mMin;
+	}
+}
@@ -0,0 +1,94 @@
+package edu.gatech.ubicomp.glim.signal;
+
+/**
+ * Turns the heartbeat number and heartbeat timestamps carried by every HxM
+ * standard data message into a stream of R-R intervals.
+ * 
+ * Each message repeats the timestamps of the last 15 beats (newest first, in
+ * milliseconds modulo 65536) and a beat counter modulo 256. Comparing the counter
+ * with the previous message tells how many of those beats are new; their
+ * intervals are emitted oldest first. Intervals outside the physiological range
+ * are counted as artifacts and not emitted.
+ */
+public class RrIntervalExtractor {
+
+	/** Receives the R-R intervals. */
+	public interface RrListener {
+		/**
+		 * @param beatTimestamp sensor timestamp of the beat ending the interval, in ms modulo 65536
+		 * @param rrInterval interval in milliseconds
+		 */
+		void onRrInterval(int beatTimestamp, int rrInterval);
+	}
+
+	/** Number of heartbeat timestamps in a message. */
+	public static final int TIMESTAMP_COUNT = 15;
+
+	/** Intervals outside this range (30 to 240 bpm) are treated as artifacts. */
+	public static final int MIN_RR_INTERVAL = 250;
+	public static final int MAX_RR_INTERVAL = 2000;
+
+	private final RrListener mListener;
+	private boolean mStarted;
+	private int mLastBeatNumber;
+
+	private long mIntervals;
+	private long mArtifacts;
+	private long mMissedBeats;
+
+	public RrIntervalExtractor(RrListener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Processes one message.
+	 * @param beatNumber heartbeat counter of the message, 0 to 255
+	 * @param timestamps the 15 heartbeat timestamps, newest first
+	 * @return the number of intervals emitted
+	 */
+	public int update(int beatNumber, int[] timestamps) {
+		beatNumber &= 0xFF;
+		if (!mStarted) {
+			mStarted = true;
+			mLastBeatNumber = beatNumber;
+			return 0;
+		}
+		int newBeats = (beatNumber - mLastBeatNumber) & 0xFF;
+		mLastBeatNumber = beatNumber;
+		// 15 timestamps only give the intervals of the 14 newest beats.
+		if (newBeats > TIMESTAMP_COUNT - 1) {
+			mMissedBeats += newBeats - (TIMESTAMP_COUNT - 1);
+			newBeats = TIMESTAMP_COUNT - 1;
+		}
+		int emitted = 0;
+		for (int i = newBeats - 1; i >= 0; i--) {
+			int interval = (timestamps[i] - timestamps[i + 1]) & 0xFFFF;
+			if (interval < MIN_RR_INTERVAL || interval > MAX_RR_INTERVAL) {
+				mArtifacts++;
+				continue;
+			}
+			mIntervals++;
+			emitted++;
+			mListener.onRrInterval(timestamps[i], interval);
+		}
+		return emitted;
+	}
+
+	/** Forgets the last beat counter, e.g. after a reconnection. */
+	public void reset() {
+		mStarted = false;
+	}
+
+	public long getIntervals() {
+		return mIntervals;
+	}
+
+	public long getArtifacts() {
+		return mArtifacts;
+	}
+
+	/** Beats that happened while more than 14 beats passed between two messages. */
+	public long getMissedBeats() {
+		return mMissedBeats;
+	}
+}
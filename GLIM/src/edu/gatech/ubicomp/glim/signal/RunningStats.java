@@ -0,0 +1,47 @@
+package edu.gatech.ubicomp.glim.signal;
+
+/**
+ * Running mean and variance using Welford's online algorithm.
+ * 
+ * Unlike keeping sums of values and squared values, the updates stay accurate
+ * however many samples are added, so statistics over multi-hour sessions do not
+ * drift or overflow.
+ */
+public class RunningStats {
+
+	private long mCount;
+	private double mMean;
+	/** Sum of squared distances from the mean. */
+	private double mM2;
+
+	public void add(double value) {
+		mCount++;
+		double delta = value - mMean;
+		mMean += delta / mCount;
+		mM2 += delta * (value - mMean);
+	}
+
+	public void reset() {
+		mCount = 0;
+		mMean = 0;
+		mM2 = 0;
+	}
+
+	public long getCount() {
+		return mCount;
+	}
+
+	public double getMean() {
+		return mMean;
+	}
+
+	/** Population variance, 0 until a sample was added. */
+	public double getVariance() {
+		return mCount == 0 ? 0 : mM2 / mCount;
+	}
+
+	/** Population standard deviation. */
+	public double getStandardDeviation() {
+		return Math.sqrt(getVariance());
+	}
+}
@@ -0,0 +1,154 @@
+package edu.gatech.ubicomp.glim.signal;
+
+/**
+ * Fixed capacity circular history of float samples for several aligned channels.
+ * 
+ * All channels share one write position, so row i of every channel belongs to
+ * the same instant. Appending is O(1): once the history is full the oldest row
+ * is overwritten instead of shifting the array. Values are stored in a single
+ * primitive array, so reading them never boxes.
+ * 
+ * Not thread safe; callers that share a history between threads must lock around it.
+ */
+public class SampleHistory {
+
+	private final int mChannels;
+	private int mCapacity;
+	private float[] mData;
+
+	/** Slot the next row is written to. */
+	private int mHead;
+	private int mSize;
+	private long mTotalAppended;
+
+	/**
+	 * @param channels number of aligned channels
+	 * @param capacity number of rows kept before the oldest is evicted
+	 */
+	public SampleHistory(int channels, int capacity) {
+		if (channels <= 0 || capacity <= 0) {
+			throw new IllegalArgumentException("Invalid history size " + channels + "x" + capacity);
+		}
+		mChannels = channels;
+		mCapacity = capacity;
+		mData = new float[channels * capacity];
+	}
+
+	/**
+	 * Appends one row, evicting the oldest row if the history is full.
+	 * @param row one value per channel; extra values are ignored
+	 */
+	public void append(float[] row) {
+		int slot = mHead;
+		for (int channel = 0; channel < mChannels; channel++) {
+			mData[channel * mCapacity + slot] = row[channel];
+		}
+		advance();
+	}
+
+	/**
+	 * Appends one row of a three channel history without needing a row array.
+	 */
+	public void append(float value0, float value1, float value2) {
+		if (mChannels != 3) {
+			throw new IllegalStateException("History has " + mChannels + " channels");
+		}
+		int slot = mHead;
+		mData[slot] = value0;
+		mData[mCapacity + slot] = value1;
+		mData[2 * mCapacity + slot] = value2;
+		advance();
+	}
+
+	private void advance() {
+		mHead = mHead + 1 == mCapacity ? 0 : mHead + 1;
+		if (mSize < mCapacity) {
+			mSize++;
+		}
+		mTotalAppended++;
+	}
+
+	/**
+	 * Returns a value by age.
+	 * @param channel channel to read
+	 * @param index 0 for the oldest row still held, size() - 1 for the newest
+	 */
+	public float get(int channel, int index) {
+		if (index < 0 || index >= mSize) {
+			throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+		}
+		int slot = mHead - mSize + index;
+		if (slot < 0) {
+			slot += mCapacity;
+		}
+		return mData[channel * mCapacity + slot];
+	}
+
+	/** Newest value of a channel. The history must not be empty. */
+	public float getLatest(int channel) {
+		return get(channel, mSize - 1);
+	}
+
+	/**
+	 * Copies the newest values of a channel into dst, oldest first.
+	 * @return the number of values copied, which is min(size(), dst.length - dstOffset)
+	 */
+	public int copyChannel(int channel, float[] dst, int dstOffset) {
+		int count = Math.min(mSize, dst.length - dstOffset);
+		int start = mHead - count;
+		if (start < 0) {
+			start += mCapacity;
+		}
+		int base = channel * mCapacity;
+		int firstPart = Math.min(count, mCapacity - start);
+		System.arraycopy(mData, base + start, dst, dstOffset, firstPart);
+		System.arraycopy(mData, base, dst, dstOffset + firstPart, count - firstPart);
+		return count;
+	}
+
+	/**
+	 * Changes the capacity, keeping the newest rows that still fit.
+	 */
+	public void setCapacity(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Invalid capacity " + capacity);
+		}
+		if (capacity == mCapacity) {
+			return;
+		}
+		float[] data = new float[mChannels * capacity];
+		int kept = Math.min(mSize, capacity);
+		float[] channelValues = new float[kept];
+		for (int channel = 0; channel < mChannels; channel++) {
+			// copyChannel() takes the newest values when the destination is shorter than the history.
+			copyChannel(channel, channelValues, 0);
+			System.arraycopy(channelValues, 0, data, channel * capacity, kept);
+		}
+		mData = data;
+		mCapacity = capacity;
+		mSize = kept;
+		mHead = kept == capacity ? 0 : kept;
+	}
+
+	public void clear() {
+		mHead = 0;
+		mSize = 0;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public int capacity() {
+		return mCapacity;
+	}
+
+	public int channels() {
+		return mChannels;
+	}
+
+	/** Number of rows appended since creation, including the evicted ones. */
+	public long getTotalAppended() {
+		return mTotalAppended;
+	}
+}
@@ -0,0 +1,170 @@
+package edu.gatech.ubicomp.glim.signal;
+
+/**
+ * Detects skin conductance responses (SCRs) in the phasic EDA signal as it streams in.
+ * 
+ * A response starts when the smoothed signal rises faster than the onset slope,
+ * and ends at its peak, i.e. at the first sample where the signal stops rising.
+ * It is reported if its amplitude reaches the minimum amplitude. A rise lasting
+ * longer than the maximum rise time is abandoned, so an event is reported at most
+ * that long after its onset. Work per sample is constant and the only memory is
+ * a fixed ring of recent peak times used for the rate per minute.
+ *
+ * Samples are timed by their index at the sensor's sample rate, not by when
+ * they arrive: Bluetooth delivers lines in bursts, so arrival times bunch up
+ * and would distort the slope.
+ */
+public class ScrDetector {
+
+	/** Receives detected responses. */
+	public interface ScrListener {
+		/**
+		 * @param event the response; the instance is reused, copy what needs to be kept
+		 */
+		void onScr(ScrEvent event);
+	}
+
+	/**
+	 * A detected response. Times are in milliseconds of sensor time since the
+	 * first sample, values in microsiemens.
+	 */
+	public static class ScrEvent {
+		public long onsetTime;
+		public long peakTime;
+		public float onsetValue;
+		public float peakValue;
+
+		public float getAmplitude() {
+			return peakValue - onsetValue;
+		}
+
+		public long getRiseTime() {
+			return peakTime - onsetTime;
+		}
+	}
+
+	public static final float DEFAULT_ONSET_SLOPE = 0.01f;
+	public static final float DEFAULT_MIN_AMPLITUDE = 0.02f;
+	public static final long DEFAULT_MAX_RISE_TIME = 5000;
+
+	/** Weight of the newest sample in the smoothing applied before taking the slope. */
+	private static final float SMOOTHING_ALPHA = 0.25f;
+
+	/** Window of the rate per minute. */
+	private static final long RATE_WINDOW_MS = 60000;
+
+	/** More responses than this in one minute are not physiological; the rate saturates. */
+	private static final int MAX_EVENTS_PER_WINDOW = 64;
+
+	private final int mSampleRate;
+	private final float mOnsetSlope;
+	private final float mMinAmplitude;
+	private final long mMaxRiseTime;
+	private final ScrListener mListener;
+	private final ScrEvent mEvent = new ScrEvent();
+
+	private long mSamples;
+	private float mSmoothed;
+	private boolean mRising;
+
+	/** Peak times of the responses in the last minute, oldest at mRateTail. */
+	private final long[] mRecentPeaks = new long[MAX_EVENTS_PER_WINDOW];
+	private int mRateHead;
+	private int mRateTail;
+	private int mRateCount;
+
+	private long mEventCount;
+
+	/** @param sampleRate samples per second of the phasic signal */
+	public ScrDetector(int sampleRate, ScrListener listener) {
+		this(sampleRate, DEFAULT_ONSET_SLOPE, DEFAULT_MIN_AMPLITUDE, DEFAULT_MAX_RISE_TIME, listener);
+	}
+
+	/**
+	 * @param sampleRate samples per second of the phasic signal
+	 * @param onsetSlope rise rate in microsiemens per second that starts a response
+	 * @param minAmplitude smallest rise in microsiemens reported as a response
+	 * @param maxRiseTime longest rise in milliseconds before the response is abandoned
+	 * @param listener receives the responses, may be null
+	 */
+	public ScrDetector(int sampleRate, float onsetSlope, float minAmplitude, long maxRiseTime, ScrListener listener) {
+		mSampleRate = sampleRate;
+		mOnsetSlope = onsetSlope;
+		mMinAmplitude = minAmplitude;
+		mMaxRiseTime = maxRiseTime;
+		mListener = listener;
+	}
+
+	/**
+	 * Processes the next phasic sample.
+	 * @param phasic phasic EDA in microsiemens
+	 * @return true if the sample completed a response
+	 */
+	public boolean update(float phasic) {
+		long time = mSamples * 1000 / mSampleRate;
+		if (mSamples++ == 0) {
+			mSmoothed = phasic;
+			return false;
+		}
+		float previous = mSmoothed;
+		mSmoothed += SMOOTHING_ALPHA * (phasic - mSmoothed);
+		float slope = (mSmoothed - previous) * mSampleRate;
+
+		boolean detected = false;
+		if (!mRising) {
+			if (slope > mOnsetSlope) {
+				mRising = true;
+				mEvent.onsetTime = time;
+				mEvent.onsetValue = previous;
+				mEvent.peakTime = time;
+				mEvent.peakValue = mSmoothed;
+			}
+		} else if (slope > 0) {
+			mEvent.peakTime = time;
+			mEvent.peakValue = mSmoothed;
+			if (time - mEvent.onsetTime > mMaxRiseTime) {
+				// Too slow for a response; most likely a tonic drift.
+				mRising = false;
+			}
+		} else {
+			mRising = false;
+			if (mEvent.getAmplitude() >= mMinAmplitude) {
+				detected = true;
+				mEventCount++;
+				recordPeak(mEvent.peakTime);
+				if (mListener != null) {
+					mListener.onScr(mEvent);
+				}
+			}
+		}
+		expirePeaks(time);
+		return detected;
+	}
+
+	private void recordPeak(long peakTime) {
+		if (mRateCount == mRecentPeaks.length) {
+			mRateTail = (mRateTail + 1) % mRecentPeaks.length;
+			mRateCount--;
+		}
+		mRecentPeaks[mRateHead] = peakTime;
+		mRateHead = (mRateHead + 1) % mRecentPeaks.length;
+		mRateCount++;
+	}
+
+	private void expirePeaks(long now) {
+		while (mRateCount > 0 && now - mRecentPeaks[mRateTail] > RATE_WINDOW_MS) {
+			mRateTail = (mRateTail + 1) % mRecentPeaks.length;
+			mRateCount--;
+		}
+	}
+
+	/** Number of responses whose peak was in the minute of samples before the last one. */
+	public int getRatePerMinute() {
+		return mRateCount;
+	}
+
+	/** Number of responses detected since creation. */
+	public long getEventCount() {
+		return mEventCount;
+	}
+}
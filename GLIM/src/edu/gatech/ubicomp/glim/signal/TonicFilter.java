@@ -0,0 +1,23 @@
+package edu.gatech.ubicomp.glim.signal;
+
+/**
+ * Estimates the slowly varying tonic level of an EDA signal, one sample at a
+ * time. The phasic component is what is left after removing the tonic level.
+ * 
+ * Implementations do O(1) (or bounded) work per sample and allocate nothing after
+ * construction, so they can run on the sensor thread for hours.
+ */
+public interface TonicFilter {
+
+	/**
+	 * Feeds the next sample.
+	 * @param value raw EDA sample
+	 * @return the tonic level for this sample
+	 */
+	float update(float value);
+
+	/**
+	 * Forgets all previous samples; the next sample starts the filter again.
+	 */
+	void reset();
+}
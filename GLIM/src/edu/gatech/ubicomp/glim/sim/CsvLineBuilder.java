@@ -0,0 +1,81 @@
+package edu.gatech.ubicomp.glim.sim;
+
+/**
+ * Formats comma separated numeric lines straight into a reusable byte array,
+ * without going through Strings.
+ */
+class CsvLineBuilder {
+
+	private byte[] mData = new byte[128];
+	private int mLength;
+
+	void reset() {
+		mLength = 0;
+	}
+
+	CsvLineBuilder separator() {
+		return put((byte) ',');
+	}
+
+	CsvLineBuilder endLine() {
+		return put((byte) '\n');
+	}
+
+	CsvLineBuilder appendLong(long value) {
+		if (value < 0) {
+			put((byte) '-');
+			value = -value;
+		}
+		int start = mLength;
+		do {
+			put((byte) ('0' + (int) (value % 10)));
+			value /= 10;
+		} while (value > 0);
+		// Digits were written least significant first.
+		for (int i = start, j = mLength - 1; i < j; i++, j--) {
+			byte digit = mData[i];
+			mData[i] = mData[j];
+			mData[j] = digit;
+		}
+		return this;
+	}
+
+	/** Appends value rounded to the given number of decimals, at most 6. */
+	CsvLineBuilder appendFixed(float value, int decimals) {
+		long scale = 1;
+		for (int i = 0; i < decimals; i++) {
+			scale *= 10;
+		}
+		long scaled = Math.round(Math.abs((double) value) * scale);
+		if (value < 0 && scaled != 0) {
+			put((byte) '-');
+		}
+		appendLong(scaled / scale);
+		if (decimals > 0) {
+			put((byte) '.');
+			long fraction = scaled % scale;
+			for (long digit = scale / 10; digit > 0; digit /= 10) {
+				put((byte) ('0' + (int) (fraction / digit % 10)));
+			}
+		}
+		return this;
+	}
+
+	private CsvLineBuilder put(byte b) {
+		if (mLength == mData.length) {
+			byte[] grown = new byte[mData.length * 2];
+			System.arraycopy(mData, 0, grown, 0, mLength);
+			mData = grown;
+		}
+		mData[mLength++] = b;
+		return this;
+	}
+
+	byte[] getData() {
+		return mData;
+	}
+
+	int getLength() {
+		return mLength;
+	}
+}
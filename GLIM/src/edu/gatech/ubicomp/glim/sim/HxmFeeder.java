@@ -0,0 +1,96 @@
+package edu.gatech.ubicomp.glim.sim;
+
+import java.io.IOException;
+import java.util.Random;
+
+import edu.gatech.ubicomp.glim.sensor.HxmPacketDecoder;
+
+/**
+ * Plays HxM frames from a {@link TimedSource} in (scaled) real time and hands
+ * the payload of every valid frame to a listener, the way the Zephyr library's
+ * ZephyrProtocol hands on packets. Frames failing the framing or CRC checks are
+ * counted and dropped.
+ */
+public class HxmFeeder implements Runnable {
+
+	public interface PayloadListener {
+		/**
+		 * Called on the feeder thread for every valid frame.
+		 * @param payload the 55 byte payload, reused for the next frame
+		 */
+		void onPayload(byte[] payload);
+	}
+
+	private final TimedSource mSource;
+	private final Pacer mPacer;
+	private final Random mRandom;
+	private final PayloadListener mListener;
+	private final byte[] mFrame = new byte[HxmSource.FRAME_LENGTH];
+	private final byte[] mPayload = new byte[HxmSource.PAYLOAD_LENGTH];
+
+	private double mMalformedProbability;
+	private volatile boolean mStopped;
+	private volatile IOException mError;
+
+	private volatile long mFrames;
+	private volatile long mBadFrames;
+
+	public HxmFeeder(TimedSource source, double speed, long seed, PayloadListener listener) {
+		mSource = source;
+		mPacer = new Pacer(speed);
+		mRandom = new Random(seed);
+		mListener = listener;
+	}
+
+	/** Fraction of frames that get a byte garbled on the way. */
+	public void setMalformedRate(double probability) {
+		mMalformedProbability = probability;
+	}
+
+	public void run() {
+		try {
+			long due;
+			while (!mStopped && (due = mSource.next()) >= 0) {
+				mPacer.await(due);
+				int length = Math.min(mSource.getLength(), mFrame.length);
+				System.arraycopy(mSource.getData(), 0, mFrame, 0, length);
+				if (mMalformedProbability > 0 && mRandom.nextDouble() < mMalformedProbability) {
+					mFrame[mRandom.nextInt(length)] ^= 1 << mRandom.nextInt(8);
+				}
+				mFrames++;
+				if (!HxmPacketDecoder.isValidFrame(mFrame, 0, mSource.getLength())) {
+					mBadFrames++;
+					continue;
+				}
+				System.arraycopy(mFrame, HxmSource.PAYLOAD_OFFSET, mPayload, 0, HxmSource.PAYLOAD_LENGTH);
+				mListener.onPayload(mPayload);
+			}
+		} catch (IOException e) {
+			mError = e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		mStopped = true;
+	}
+
+	public void stop() {
+		mStopped = true;
+	}
+
+	public boolean isStopped() {
+		return mStopped;
+	}
+
+	public IOException getError() {
+		return mError;
+	}
+
+	public long getFrames() {
+		return mFrames;
+	}
+
+	/** Frames dropped for bad framing or CRC. */
+	public long getBadFrames() {
+		return mBadFrames;
+	}
+}
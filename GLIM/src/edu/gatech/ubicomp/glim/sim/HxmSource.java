@@ -0,0 +1,133 @@
+package edu.gatech.ubicomp.glim.sim;
+
+import java.util.Random;
+
+import edu.gatech.ubicomp.glim.sensor.HxmPacket;
+import edu.gatech.ubicomp.glim.sensor.HxmPacketDecoder;
+
+/**
+ * Synthesizes the HR_SPD_DIST frames a Zephyr HxM sends once a second.
+ * 
+ * A frame is STX, message id, payload length, the 55 byte payload, a CRC-8 of
+ * the payload and ETX. The payload carries heart rate, a beat counter and the
+ * timestamps of the last 15 beats, which come from a beat generator with
+ * normal R-R variability so HRV code gets sensible input. The layout is the
+ * one {@link HxmPacketDecoder} reads.
+ */
+public class HxmSource implements TimedSource {
+
+	public static final int STX = HxmPacketDecoder.STX;
+	public static final int ETX = HxmPacketDecoder.ETX;
+	public static final int MSG_HR_SPD_DIST = HxmPacketDecoder.MSG_HR_SPD_DIST;
+	public static final int PAYLOAD_OFFSET = HxmPacketDecoder.PAYLOAD_OFFSET;
+	public static final int PAYLOAD_LENGTH = HxmPacketDecoder.PAYLOAD_LENGTH;
+	public static final int FRAME_LENGTH = HxmPacketDecoder.FRAME_LENGTH;
+	public static final long FRAME_INTERVAL = 1000;
+
+	/** Offsets within the payload. */
+	public static final int BATTERY = HxmPacketDecoder.BATTERY;
+	public static final int HEART_RATE = HxmPacketDecoder.HEART_RATE;
+	public static final int BEAT_NUMBER = HxmPacketDecoder.HEART_BEAT_NUMBER;
+	public static final int BEAT_TIMESTAMPS = HxmPacketDecoder.HEART_BEAT_TIMESTAMPS;
+	public static final int BEAT_TIMESTAMP_COUNT = HxmPacket.BEAT_TIMESTAMP_COUNT;
+	public static final int DISTANCE = HxmPacketDecoder.DISTANCE;
+	public static final int INSTANT_SPEED = HxmPacketDecoder.INSTANT_SPEED;
+	public static final int STRIDES = HxmPacketDecoder.STRIDES;
+
+	/** Standard deviation of successive R-R intervals, in ms. */
+	private static final double RR_JITTER = 25;
+
+	private final long mMaxFrames;
+	private final Random mRandom;
+	private final byte[] mFrame = new byte[FRAME_LENGTH];
+	private final int[] mBeatTimestamps = new int[BEAT_TIMESTAMP_COUNT];
+
+	private long mFrames;
+	private volatile int mHeartRate = 72;
+	private volatile float mSpeed;
+	private long mNextBeat;
+	private int mBeatNumber;
+	private double mDistance;
+	private int mStrides;
+
+	/** @param maxFrames number of frames before the end of the source, -1 for no end */
+	public HxmSource(long maxFrames, long seed) {
+		mMaxFrames = maxFrames;
+		mRandom = new Random(seed);
+	}
+
+	/** Heart rate the beat generator follows from now on, in beats per minute. */
+	public void setHeartRate(int heartRate) {
+		mHeartRate = Math.max(30, Math.min(240, heartRate));
+	}
+
+	/** Speed reported from now on, in m/s. */
+	public void setSpeed(float speed) {
+		mSpeed = Math.max(0, speed);
+	}
+
+	public long next() {
+		if (mMaxFrames >= 0 && mFrames >= mMaxFrames) {
+			return -1;
+		}
+		long due = mFrames * FRAME_INTERVAL;
+		buildFrame(due);
+		mFrames++;
+		return due;
+	}
+
+	/**
+	 * Generates the beats up to timeMs and builds the frame reporting them.
+	 * Times must not go backwards.
+	 */
+	public void buildFrame(long timeMs) {
+		int meanInterval = 60000 / mHeartRate;
+		while (mNextBeat <= timeMs) {
+			System.arraycopy(mBeatTimestamps, 0, mBeatTimestamps, 1, BEAT_TIMESTAMP_COUNT - 1);
+			mBeatTimestamps[0] = (int) (mNextBeat & 0xFFFF);
+			mBeatNumber = (mBeatNumber + 1) & 0xFF;
+			mNextBeat += Math.max(250, (long) (meanInterval + mRandom.nextGaussian() * RR_JITTER));
+		}
+		float speed = mSpeed;
+		mDistance += speed * FRAME_INTERVAL / 1000.0;
+		mStrides += (int) (speed * FRAME_INTERVAL / 1000);
+
+		byte[] frame = mFrame;
+		frame[0] = STX;
+		frame[1] = MSG_HR_SPD_DIST;
+		frame[2] = PAYLOAD_LENGTH;
+		int p = PAYLOAD_OFFSET;
+		for (int i = 0; i < PAYLOAD_LENGTH; i++) {
+			frame[p + i] = 0;
+		}
+		frame[p + BATTERY] = 90;
+		frame[p + HEART_RATE] = (byte) mHeartRate;
+		frame[p + BEAT_NUMBER] = (byte) mBeatNumber;
+		for (int i = 0; i < BEAT_TIMESTAMP_COUNT; i++) {
+			putUint16(frame, p + BEAT_TIMESTAMPS + i * 2, mBeatTimestamps[i]);
+		}
+		// Distance in 1/16 m and speed in 1/256 m/s, as the HxM reports them.
+		putUint16(frame, p + DISTANCE, (int) (mDistance * 16) & 0xFFFF);
+		putUint16(frame, p + INSTANT_SPEED, Math.min(0xFFFF, (int) (speed * 256)));
+		frame[p + STRIDES] = (byte) mStrides;
+		frame[p + PAYLOAD_LENGTH] = (byte) HxmPacketDecoder.crc8(frame, p, PAYLOAD_LENGTH);
+		frame[p + PAYLOAD_LENGTH + 1] = ETX;
+	}
+
+	public byte[] getData() {
+		return mFrame;
+	}
+
+	public int getLength() {
+		return FRAME_LENGTH;
+	}
+
+	public long getFrames() {
+		return mFrames;
+	}
+
+	private static void putUint16(byte[] data, int offset, int value) {
+		data[offset] = (byte) value;
+		data[offset + 1] = (byte) (value >>> 8);
+	}
+}
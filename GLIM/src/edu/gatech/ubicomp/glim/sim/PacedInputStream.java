@@ -0,0 +1,193 @@
+package edu.gatech.ubicomp.glim.sim;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Random;
+
+/**
+ * Serves the chunks of a {@link TimedSource} as a blocking InputStream, the
+ * way a Bluetooth socket would, so simulated sensors can be handed to the same
+ * readers as real ones.
+ * 
+ * Delivery can be disturbed the way RFCOMM links are: jitter moves each chunk's
+ * delivery time, bursts hold chunks back and release several at once, and a
+ * fraction of chunks can be corrupted or cut short.
+ *
+ * available() does not block: it reports the buffered chunk once it is due,
+ * so the stream can also be polled like a socket by a multiplexing reader.
+ */
+public class PacedInputStream extends InputStream {
+
+	private final TimedSource mSource;
+	private final Pacer mPacer;
+	private final Random mRandom;
+
+	private int mJitterMs;
+	private double mBurstProbability;
+	private int mMaxBurst = 1;
+	private double mMalformedProbability;
+
+	private byte[] mBuffer = new byte[256];
+	private int mStart;
+	private int mEnd;
+	/** Buffered bytes may only be read from this stream time on. */
+	private long mDue;
+	private boolean mDueReached;
+	private long mLastDue;
+	private boolean mEndOfSource;
+	private volatile boolean mClosed;
+
+	private volatile long mChunks;
+	private volatile long mBursts;
+	private volatile long mMalformed;
+
+	public PacedInputStream(TimedSource source, double speed, long seed) {
+		mSource = source;
+		mPacer = new Pacer(speed);
+		mRandom = new Random(seed);
+	}
+
+	/** Moves every chunk by up to jitterMs either way. */
+	public void setJitter(int jitterMs) {
+		mJitterMs = jitterMs;
+	}
+
+	/** With the given probability a chunk is held back and sent with up to maxBurst - 1 following ones. */
+	public void setBurstiness(double probability, int maxBurst) {
+		mBurstProbability = probability;
+		mMaxBurst = Math.max(1, maxBurst);
+	}
+
+	/** Fraction of chunks that get a byte garbled or are cut short. */
+	public void setMalformedRate(double probability) {
+		mMalformedProbability = probability;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] one = new byte[1];
+		return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		while (mStart == mEnd || !mDueReached) {
+			if (mClosed) {
+				return -1;
+			}
+			if (!prepare()) {
+				return -1;
+			}
+			if (!mDueReached) {
+				try {
+					mPacer.await(mDue);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				mDueReached = true;
+			}
+		}
+		int count = Math.min(length, mEnd - mStart);
+		System.arraycopy(mBuffer, mStart, buffer, offset, count);
+		mStart += count;
+		return count;
+	}
+
+	/** Bytes that can be read without blocking: the buffered chunk once it is due. */
+	@Override
+	public int available() throws IOException {
+		if (mClosed || !prepare()) {
+			return 0;
+		}
+		if (!mDueReached && mPacer.isDue(mDue)) {
+			mDueReached = true;
+		}
+		return mDueReached ? mEnd - mStart : 0;
+	}
+
+	/**
+	 * Buffers the next chunk if the buffer is empty.
+	 * @return false at the end of the source
+	 */
+	private boolean prepare() throws IOException {
+		while (mStart == mEnd) {
+			if (mEndOfSource) {
+				return false;
+			}
+			fill();
+		}
+		return true;
+	}
+
+	/** Buffers the next chunk, or the next burst of chunks, with the time it is due. */
+	private void fill() throws IOException {
+		mStart = 0;
+		mEnd = 0;
+		int chunks = 1;
+		if (mMaxBurst > 1 && mRandom.nextDouble() < mBurstProbability) {
+			chunks = 2 + mRandom.nextInt(mMaxBurst - 1);
+			mBursts++;
+		}
+		long due = -1;
+		for (int i = 0; i < chunks; i++) {
+			due = mSource.next();
+			if (due < 0) {
+				mEndOfSource = true;
+				break;
+			}
+			append(mSource.getData(), mSource.getLength());
+		}
+		if (due >= 0 && mJitterMs > 0) {
+			due += mRandom.nextInt(2 * mJitterMs + 1) - mJitterMs;
+		}
+		// Jitter never reorders chunks.
+		due = Math.max(due, mLastDue);
+		mLastDue = due;
+		mDue = due;
+		mDueReached = false;
+	}
+
+	private void append(byte[] data, int length) {
+		if (mEnd + length > mBuffer.length) {
+			byte[] grown = new byte[Math.max(mBuffer.length * 2, mEnd + length)];
+			System.arraycopy(mBuffer, 0, grown, 0, mEnd);
+			mBuffer = grown;
+		}
+		System.arraycopy(data, 0, mBuffer, mEnd, length);
+		int start = mEnd;
+		mEnd += length;
+		mChunks++;
+		if (mMalformedProbability > 0 && length > 1 && mRandom.nextDouble() < mMalformedProbability) {
+			mMalformed++;
+			if (mRandom.nextBoolean()) {
+				// Garbled byte, never the line terminator.
+				mBuffer[start + mRandom.nextInt(length - 1)] = (byte) 'x';
+			} else {
+				// Cut short; the remainder merges into the next chunk.
+				mEnd = start + 1 + mRandom.nextInt(length - 1);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		mClosed = true;
+	}
+
+	public long getChunks() {
+		return mChunks;
+	}
+
+	public long getBursts() {
+		return mBursts;
+	}
+
+	public long getMalformed() {
+		return mMalformed;
+	}
+}
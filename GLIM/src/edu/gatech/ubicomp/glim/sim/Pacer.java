@@ -0,0 +1,46 @@
+package edu.gatech.ubicomp.glim.sim;
+
+/**
+ * Holds a simulated stream to real time, or a multiple of it.
+ */
+public class Pacer {
+
+	/** Speed at which await() never sleeps. */
+	public static final double AS_FAST_AS_POSSIBLE = 0;
+
+	private final double mSpeed;
+	private long mStartNanos = -1;
+
+	/** @param speed 1 for real time, 10 for ten times faster, AS_FAST_AS_POSSIBLE for no pacing */
+	public Pacer(double speed) {
+		mSpeed = speed;
+	}
+
+	/** Sleeps until dueMs of stream time has passed since the first call. */
+	public void await(long dueMs) throws InterruptedException {
+		long wait = remainingNanos(dueMs);
+		if (wait > 0) {
+			Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+		}
+	}
+
+	/** True if dueMs of stream time has passed since the first call, without waiting. */
+	public boolean isDue(long dueMs) {
+		return remainingNanos(dueMs) <= 0;
+	}
+
+	private long remainingNanos(long dueMs) {
+		if (mSpeed <= 0) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		if (mStartNanos < 0) {
+			mStartNanos = now;
+		}
+		return mStartNanos + (long) (dueMs * 1000000.0 / mSpeed) - now;
+	}
+
+	public double getSpeed() {
+		return mSpeed;
+	}
+}
@@ -0,0 +1,87 @@
+package edu.gatech.ubicomp.glim.sim;
+
+import java.util.Random;
+
+/**
+ * Synthesizes the CSV lines of an Affectiva Q sensor: a sample counter,
+ * accelerometer z, y and x, battery, skin temperature and EDA, in the column
+ * order of GlimMainActivity.DATA_HEADER_TAGS.
+ * 
+ * EDA follows a slow random walk with occasional skin conductance responses,
+ * so the tonic/phasic and SCR code sees realistic input.
+ */
+public class QSensorSource implements TimedSource {
+
+	public static final int DEFAULT_SAMPLE_RATE = 32;
+
+	private final int mSampleRate;
+	private final long mMaxSamples;
+	private final Random mRandom;
+	private final CsvLineBuilder mLine = new CsvLineBuilder();
+
+	private long mSample;
+	private float mTonic = 0.45f;
+	private float mResponse;
+	private float mTemperature = 32.5f;
+	private float mBattery = 100;
+	private int mEventEvery;
+
+	/**
+	 * @param sampleRate lines per second of stream time
+	 * @param maxSamples number of lines before the end of the source, -1 for no end
+	 */
+	public QSensorSource(int sampleRate, long maxSamples, long seed) {
+		mSampleRate = sampleRate;
+		mMaxSamples = maxSamples;
+		mRandom = new Random(seed);
+	}
+
+	/** Adds the optional event column, set to 1 on every n-th line; 0 for none. */
+	public void setEventEvery(int n) {
+		mEventEvery = n;
+	}
+
+	public long next() {
+		if (mMaxSamples >= 0 && mSample >= mMaxSamples) {
+			return -1;
+		}
+		long due = mSample * 1000 / mSampleRate;
+
+		mTonic = Math.max(0.05f, mTonic + (float) (mRandom.nextGaussian() * 0.0015));
+		if (mRandom.nextInt(mSampleRate * 20) == 0) {
+			// A response every twenty seconds on average, decaying over a few seconds.
+			mResponse += 0.03f + mRandom.nextFloat() * 0.08f;
+		}
+		mResponse *= 1 - 1f / (mSampleRate * 3);
+		mTemperature += (float) (mRandom.nextGaussian() * 0.005);
+		mBattery = Math.max(0, mBattery - 0.0001f);
+
+		mLine.reset();
+		mLine.appendLong(mSample).separator();
+		mLine.appendFixed((float) (mRandom.nextGaussian() * 0.05 - 1), 2).separator();
+		mLine.appendFixed((float) (mRandom.nextGaussian() * 0.05), 2).separator();
+		mLine.appendFixed((float) (mRandom.nextGaussian() * 0.05), 2).separator();
+		mLine.appendFixed(mBattery, 0).separator();
+		mLine.appendFixed(mTemperature, 1).separator();
+		mLine.appendFixed(mTonic + mResponse, 3);
+		if (mEventEvery > 0) {
+			mLine.separator().appendLong(mSample % mEventEvery == 0 ? 1 : 0);
+		}
+		mLine.endLine();
+		mSample++;
+		return due;
+	}
+
+	public byte[] getData() {
+		return mLine.getData();
+	}
+
+	public int getLength() {
+		return mLine.getLength();
+	}
+
+	/** Lines produced so far. */
+	public long getSamples() {
+		return mSample;
+	}
+}
@@ -0,0 +1,107 @@
+package edu.gatech.ubicomp.glim.sim;
+
+import java.io.File;
+import java.io.IOException;
+
+import edu.gatech.ubicomp.glim.data.RecordReader;
+import edu.gatech.ubicomp.glim.data.SessionRecorder;
+
+/**
+ * Replays the samples of a recorded session as the sensor would have sent
+ * them: EDA records become Q sensor CSV lines, heart rate records become HxM
+ * frames. Samples keep their recorded spacing, except that pauses in the
+ * recording are cut short.
+ */
+public class RecordedSessionSource implements TimedSource {
+
+	/** Longest gap between two replayed samples, in ms. */
+	public static final long MAX_GAP_MS = 5000;
+
+	/** Column order of the values recorded for an EDA sample, see GlimMainActivity. */
+	private static final int EDA_Z = 0;
+	private static final int EDA_Y = 1;
+	private static final int EDA_X = 2;
+	private static final int EDA_BATTERY = 3;
+	private static final int EDA_TEMP = 4;
+	private static final int EDA_EDA = 5;
+	private static final int EDA_EVENT = 6;
+
+	private final RecordReader mReader;
+	private final int mRecordType;
+	private final CsvLineBuilder mLine = new CsvLineBuilder();
+	private final HxmSource mHxmSource = new HxmSource(-1, 0);
+
+	private long mLastTimestamp = -1;
+	private long mDue;
+	private long mSamples;
+
+	/**
+	 * @param recordType SessionRecorder.RECORD_EDA_SAMPLE or SessionRecorder.RECORD_HEART_RATE
+	 */
+	public RecordedSessionSource(File directory, int recordType) {
+		if (recordType != SessionRecorder.RECORD_EDA_SAMPLE
+				&& recordType != SessionRecorder.RECORD_HEART_RATE) {
+			throw new IllegalArgumentException("Cannot replay records of type " + recordType);
+		}
+		mReader = new RecordReader(directory);
+		mRecordType = recordType;
+	}
+
+	public long next() throws IOException {
+		while (mReader.next()) {
+			if (mReader.getType() != mRecordType) {
+				continue;
+			}
+			long timestamp = mReader.getTimestamp();
+			if (mLastTimestamp >= 0) {
+				mDue += Math.max(0, Math.min(MAX_GAP_MS, timestamp - mLastTimestamp));
+			}
+			mLastTimestamp = timestamp;
+			if (mRecordType == SessionRecorder.RECORD_EDA_SAMPLE) {
+				buildLine();
+			} else {
+				mHxmSource.setHeartRate((int) mReader.getValue(0));
+				if (mReader.getValueCount() > 1) {
+					mHxmSource.setSpeed(mReader.getValue(1));
+				}
+				mHxmSource.buildFrame(mDue);
+			}
+			mSamples++;
+			return mDue;
+		}
+		return -1;
+	}
+
+	private void buildLine() {
+		RecordReader reader = mReader;
+		mLine.reset();
+		mLine.appendLong(mSamples).separator();
+		mLine.appendFixed(reader.getValue(EDA_Z), 2).separator();
+		mLine.appendFixed(reader.getValue(EDA_Y), 2).separator();
+		mLine.appendFixed(reader.getValue(EDA_X), 2).separator();
+		mLine.appendFixed(reader.getValue(EDA_BATTERY), 0).separator();
+		mLine.appendFixed(reader.getValue(EDA_TEMP), 1).separator();
+		mLine.appendFixed(reader.getValue(EDA_EDA), 3);
+		if (reader.getValueCount() > EDA_EVENT) {
+			mLine.separator().appendLong((long) reader.getValue(EDA_EVENT));
+		}
+		mLine.endLine();
+	}
+
+	public byte[] getData() {
+		return mRecordType == SessionRecorder.RECORD_EDA_SAMPLE ? mLine.getData() : mHxmSource.getData();
+	}
+
+	public int getLength() {
+		return mRecordType == SessionRecorder.RECORD_EDA_SAMPLE ? mLine.getLength() : mHxmSource.getLength();
+	}
+
+	public long getSamples() {
+		return mSamples;
+	}
+
+	/** Segments of the recording that could not be read to the end. */
+	public int getDamagedSegments() {
+		return mReader.getDamagedSegments();
+	}
+}
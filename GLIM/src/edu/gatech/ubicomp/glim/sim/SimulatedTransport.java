@@ -0,0 +1,152 @@
+package edu.gatech.ubicomp.glim.sim;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import edu.gatech.ubicomp.glim.sensor.SensorTransport;
+
+/**
+ * A {@link SensorTransport} to a simulated sensor, for running connections
+ * without Bluetooth. Every link plays a fresh source at (scaled) real time
+ * through a {@link PacedInputStream}.
+ *
+ * Links behave like RFCOMM ones: opening takes a random time around the
+ * connect delay, a fraction of attempts fail after it, and an open link is
+ * lost after a random time around the mean link time. All times are in
+ * stream time, so they scale with the speed.
+ */
+public class SimulatedTransport implements SensorTransport {
+
+	public interface SourceFactory {
+		/** The sensor's output from the moment a link opens. */
+		TimedSource newSource(long seed);
+	}
+
+	private final SourceFactory mFactory;
+	private final double mSpeed;
+	private final Random mRandom;
+
+	private long mConnectDelayMs;
+	private double mFailureProbability;
+	private long mMeanLinkMs = -1;
+
+	private final Object mLock = new Object();
+	private boolean mClosed;
+	private PacedInputStream mInputStream;
+	private volatile long mOpens;
+
+	public SimulatedTransport(SourceFactory factory, double speed, long seed) {
+		mFactory = factory;
+		mSpeed = speed;
+		mRandom = new Random(seed);
+	}
+
+	/** Opening a link takes between half and one and a half times delayMs. */
+	public void setConnectDelay(long delayMs) {
+		mConnectDelayMs = delayMs;
+	}
+
+	/** Fraction of attempts that fail once the connect delay is over. */
+	public void setFailureRate(double probability) {
+		mFailureProbability = probability;
+	}
+
+	/** Links are lost after an exponentially distributed time with this mean, -1 to keep them. */
+	public void setMeanLinkTime(long meanLinkMs) {
+		mMeanLinkMs = meanLinkMs;
+	}
+
+	public InputStream open() throws IOException {
+		long delayMs = toWallTime(mConnectDelayMs * (0.5 + mRandom.nextDouble()));
+		synchronized (mLock) {
+			long deadline = System.currentTimeMillis() + delayMs;
+			long remaining;
+			try {
+				while (!mClosed && (remaining = deadline - System.currentTimeMillis()) > 0) {
+					mLock.wait(remaining);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted");
+			}
+			if (mClosed) {
+				throw new IOException("Closed while connecting");
+			}
+			if (mRandom.nextDouble() < mFailureProbability) {
+				throw new IOException("Connection refused");
+			}
+			mOpens++;
+			long seed = mRandom.nextLong();
+			mInputStream = new PacedInputStream(mFactory.newSource(seed), mSpeed, seed);
+			InputStream inputStream = mInputStream;
+			if (mMeanLinkMs >= 0) {
+				long linkMs = toWallTime(-mMeanLinkMs * Math.log(1 - mRandom.nextDouble()));
+				inputStream = new DroppingInputStream(inputStream, System.currentTimeMillis() + linkMs);
+			}
+			return inputStream;
+		}
+	}
+
+	public void close() {
+		synchronized (mLock) {
+			mClosed = true;
+			mLock.notifyAll();
+			if (mInputStream != null) {
+				mInputStream.close();
+				mInputStream = null;
+			}
+		}
+	}
+
+	public void reset() {
+		synchronized (mLock) {
+			mClosed = false;
+		}
+	}
+
+	private long toWallTime(double streamMs) {
+		return mSpeed <= 0 ? 0 : (long) (streamMs / mSpeed);
+	}
+
+	/** Links opened. */
+	public long getOpens() {
+		return mOpens;
+	}
+
+	/** Fails reads once the link time is over, the way a sensor going out of range does. */
+	private static class DroppingInputStream extends InputStream {
+		private final InputStream mInputStream;
+		private final long mDropTime;
+
+		DroppingInputStream(InputStream inputStream, long dropTime) {
+			mInputStream = inputStream;
+			mDropTime = dropTime;
+		}
+
+		@Override
+		public int read() throws IOException {
+			checkLink();
+			return mInputStream.read();
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			checkLink();
+			int count = mInputStream.read(buffer, offset, length);
+			checkLink();
+			return count;
+		}
+
+		private void checkLink() throws IOException {
+			if (System.currentTimeMillis() >= mDropTime) {
+				throw new IOException("Connection reset");
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			mInputStream.close();
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package edu.gatech.ubicomp.glim.sim;
+
+import java.io.IOException;
+
+/**
+ * A sequence of byte chunks (sensor lines or packets), each due at a time
+ * relative to the start of the stream.
+ */
+public interface TimedSource {
+
+	/**
+	 * Prepares the next chunk.
+	 * @return its due time in ms after the start, or -1 at the end of the source
+	 */
+	long next() throws IOException;
+
+	/** Bytes of the current chunk, valid until the next call to next(). */
+	byte[] getData();
+
+	int getLength();
+}
@@ -0,0 +1,90 @@
+package edu.gatech.ubicomp.glim.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.gatech.ubicomp.glim.pipeline.PhysioState;
+import edu.gatech.ubicomp.glim.signal.BandClassifier;
+import edu.gatech.ubicomp.glim.signal.EdaDecomposer;
+import edu.gatech.ubicomp.glim.signal.EmaTonicFilter;
+import edu.gatech.ubicomp.glim.signal.ScrDetector;
+
+/**
+ * The per-sample state updates behind the band indicator: what the EDA reader
+ * thread publishes for every sample, and what GlimMainActivity.updateBand()
+ * does with it through totalShift() and the BandClassifier.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BandUpdateBenchmark {
+
+	/** Same constants as GlimMainActivity. */
+	private static final float BASE_EDA_VALUE = 0.45f;
+	private static final float BASE_HR_VALUE = 65;
+	private static final float MIN_PERCENTAGE_LEVEL_SHIFT = 10;
+
+	private float[] mEda;
+	private final PhysioState mPhysioState = new PhysioState();
+	private final PhysioState.Snapshot mSnapshot = mPhysioState.newSnapshot();
+	private final EdaDecomposer mDecomposer = new EdaDecomposer(new EmaTonicFilter(EdaDecomposer.DEFAULT_EMA_ALPHA));
+	private final ScrDetector mScrDetector = new ScrDetector(32, null);
+	private final BandClassifier mClassifier = new BandClassifier(1, 1000);
+	private long mTime;
+
+	@Setup
+	public void setUp() {
+		mEda = SensorData.edaValues(2);
+		mPhysioState.set(PhysioState.HEART_RATE, 0, 72);
+	}
+
+	/** Decomposition, SCR detection and publishing to PhysioState, on the EDA reader thread. */
+	@Benchmark
+	@OperationsPerInvocation(SensorData.SAMPLES)
+	public void publishEda() {
+		float[] eda = mEda;
+		for (int i = 0; i < eda.length; i++) {
+			long time = mTime += 31;
+			float phasic = mDecomposer.update(eda[i]);
+			mScrDetector.update(phasic);
+			mPhysioState.beginWrite();
+			mPhysioState.put(PhysioState.EDA, time, eda[i]);
+			mPhysioState.put(PhysioState.TONIC, time, mDecomposer.getTonic());
+			mPhysioState.put(PhysioState.PHASIC, time, phasic);
+			mPhysioState.put(PhysioState.SCR_RATE, time, mScrDetector.getRatePerMinute());
+			mPhysioState.endWrite();
+		}
+	}
+
+	/** Snapshot, totalShift() and classification, on the UI thread, without touching views. */
+	@Benchmark
+	@OperationsPerInvocation(SensorData.SAMPLES)
+	public void updateBand(Blackhole blackhole) {
+		float[] eda = mEda;
+		for (int i = 0; i < eda.length; i++) {
+			long time = mTime += 31;
+			mPhysioState.set(PhysioState.EDA, time, eda[i]);
+			mPhysioState.read(mSnapshot);
+			int shift = BandClassifier.totalShift(
+					mSnapshot.getValue(PhysioState.EDA, BASE_EDA_VALUE), BASE_EDA_VALUE,
+					mSnapshot.getValue(PhysioState.HEART_RATE, BASE_HR_VALUE), BASE_HR_VALUE,
+					MIN_PERCENTAGE_LEVEL_SHIFT);
+			blackhole.consume(mClassifier.update(shift, time));
+		}
+	}
+}
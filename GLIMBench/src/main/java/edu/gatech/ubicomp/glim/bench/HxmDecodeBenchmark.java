@@ -0,0 +1,83 @@
+package edu.gatech.ubicomp.glim.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.gatech.ubicomp.glim.sensor.HxmPacket;
+import edu.gatech.ubicomp.glim.sensor.HxmPacketDecoder;
+import edu.gatech.ubicomp.glim.sim.HxmSource;
+import zephyr.android.HxMBT.ConnectListenerImpl;
+
+/**
+ * Decoding HR_SPD_DIST payloads: every field with {@link HxmPacketDecoder},
+ * against the HxMBT getters HRMListener used to call for heart rate, speed,
+ * beat number and beat timestamps.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HxmDecodeBenchmark {
+
+	private static final int PACKETS = 256;
+
+	private final byte[][] mPayloads = new byte[PACKETS][];
+	private final HxmPacket mPacket = new HxmPacket();
+	private ConnectListenerImpl.HRSpeedDistPacketInfo mPacketInfo;
+
+	@Setup
+	public void setUp() throws Exception {
+		HxmSource source = new HxmSource(PACKETS, 1);
+		for (int i = 0; i < PACKETS; i++) {
+			source.setHeartRate(60 + i % 140);
+			source.setSpeed(i % 50 / 10f);
+			source.buildFrame(i * HxmSource.FRAME_INTERVAL);
+			byte[] payload = new byte[HxmPacketDecoder.PAYLOAD_LENGTH];
+			System.arraycopy(source.getData(), HxmPacketDecoder.PAYLOAD_OFFSET, payload, 0, payload.length);
+			mPayloads[i] = payload;
+		}
+		// ConnectListenerImpl needs an android.os.Handler; the getters never use the outer instance.
+		mPacketInfo = ConnectListenerImpl.HRSpeedDistPacketInfo.class
+				.getConstructor(ConnectListenerImpl.class).newInstance((Object) null);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PACKETS)
+	public void decoder(Blackhole blackhole) {
+		HxmPacket packet = mPacket;
+		for (int i = 0; i < PACKETS; i++) {
+			HxmPacketDecoder.decode(mPayloads[i], 0, packet);
+			blackhole.consume(packet.heartRate);
+			blackhole.consume(packet.instantSpeed);
+			blackhole.consume(packet.heartBeatNumber);
+			blackhole.consume(packet.heartBeatTimestamps);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PACKETS)
+	public void hxmbt(Blackhole blackhole) {
+		ConnectListenerImpl.HRSpeedDistPacketInfo info = mPacketInfo;
+		for (int i = 0; i < PACKETS; i++) {
+			byte[] payload = mPayloads[i];
+			blackhole.consume(info.GetHeartRate(payload));
+			blackhole.consume(info.GetInstantSpeed(payload));
+			blackhole.consume(info.GetHeartBeatNum(payload));
+			blackhole.consume(info.GetHeartBeatTS(payload));
+		}
+	}
+}
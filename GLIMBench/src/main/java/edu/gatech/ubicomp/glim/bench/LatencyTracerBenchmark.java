@@ -0,0 +1,66 @@
+package edu.gatech.ubicomp.glim.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.gatech.ubicomp.glim.pipeline.LatencyHistogram;
+import edu.gatech.ubicomp.glim.pipeline.LatencyTracer;
+
+/**
+ * What latency tracing costs per sample: recording into a histogram alone,
+ * and the read, parse and classify stages the EDA reader thread traces for
+ * every line, clock reads included.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LatencyTracerBenchmark {
+
+	private static final int LATENCIES = 4096;
+
+	private final long[] mLatencies = new long[LATENCIES];
+	private final LatencyHistogram mHistogram = new LatencyHistogram();
+	private final LatencyTracer mTracer = new LatencyTracer();
+
+	@Setup
+	public void setUp() {
+		// Log-normal around 50 us, like the reader thread's stages.
+		Random random = new Random(1);
+		for (int i = 0; i < LATENCIES; i++) {
+			mLatencies[i] = (long) (50000 * Math.exp(random.nextGaussian()));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LATENCIES)
+	public void record() {
+		long[] latencies = mLatencies;
+		for (int i = 0; i < latencies.length; i++) {
+			mHistogram.record(latencies[i]);
+		}
+	}
+
+	/** Three stages of one sample. */
+	@Benchmark
+	public void traceSample() {
+		long arrival = System.nanoTime();
+		mTracer.recordSince(LatencyTracer.STAGE_READ, arrival);
+		mTracer.recordSince(LatencyTracer.STAGE_PARSE, arrival);
+		mTracer.recordSince(LatencyTracer.STAGE_CLASSIFY, arrival);
+	}
+}
@@ -0,0 +1,69 @@
+package edu.gatech.ubicomp.glim.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.gatech.ubicomp.glim.sensor.LineFramer;
+import edu.gatech.ubicomp.glim.sensor.QSensorLineParser;
+import edu.gatech.ubicomp.glim.sensor.QSensorSample;
+
+/**
+ * Framing and parsing of Q sensor lines, the work the EDA reader thread does in
+ * GlimMainActivity.listenForEdaData() before any signal processing.
+ * 
+ * The stream is fed in reads of readSize bytes, like the reads from the
+ * Bluetooth socket, so partial lines are carried over between reads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineParsingBenchmark {
+
+	/** Bytes per read; the Q sensor's RFCOMM reads are usually well under a line. */
+	@Param({"16", "1024"})
+	public int readSize;
+
+	private byte[] mStream;
+	private LineFramer mFramer;
+	private final QSensorLineParser mParser = new QSensorLineParser();
+	private final QSensorSample mSample = new QSensorSample();
+	private Blackhole mBlackhole;
+
+	@Setup
+	public void setUp(Blackhole blackhole) {
+		mBlackhole = blackhole;
+		mStream = SensorData.qSensorLines(1);
+		mFramer = new LineFramer(1024, 16 * 1024, new LineFramer.LineListener() {
+			public void onLine(byte[] line, int offset, int length) {
+				if (mParser.parse(line, offset, length, mSample)) {
+					mBlackhole.consume(mSample.eda);
+				}
+			}
+		});
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SensorData.SAMPLES)
+	public void frameAndParse() {
+		byte[] stream = mStream;
+		for (int offset = 0; offset < stream.length; offset += readSize) {
+			mFramer.feed(stream, offset, Math.min(readSize, stream.length - offset));
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package edu.gatech.ubicomp.glim.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import edu.gatech.ubicomp.glim.sensor.HxmFrameReader;
+import edu.gatech.ubicomp.glim.sensor.HxmPacket;
+import edu.gatech.ubicomp.glim.sensor.HxmPacketDecoder;
+import edu.gatech.ubicomp.glim.sensor.LineFramer;
+import edu.gatech.ubicomp.glim.sensor.QSensorLineParser;
+import edu.gatech.ubicomp.glim.sensor.QSensorSample;
+import edu.gatech.ubicomp.glim.sensor.SensorConnection;
+import edu.gatech.ubicomp.glim.sensor.SensorLineReader;
+import edu.gatech.ubicomp.glim.sim.HxmSource;
+import edu.gatech.ubicomp.glim.sim.QSensorSource;
+import edu.gatech.ubicomp.glim.sim.SimulatedTransport;
+import edu.gatech.ubicomp.glim.sim.TimedSource;
+
+/**
+ * Connects a simulated Q sensor and HxM the way GlimMainActivity connects the
+ * real ones, over links that are slow to open, sometimes refuse and drop now
+ * and then, and reports time to first sample and reconnect latency.
+ *
+ *     java -cp target/benchmarks.jar edu.gatech.ubicomp.glim.bench.ReconnectTest -speed 10
+ *
+ * Options: -speed x, -seconds n, -connect ms (mean connect delay), -link ms
+ * (mean time until a link drops), -refuse rate, -backoff ms (minimum backoff).
+ * Connect delays and link times are in sensor time and scale with the speed;
+ * the backoff is in real time, as on Glass.
+ */
+public class ReconnectTest {
+
+	private static final long STATS_INTERVAL = 5000;
+
+	private static volatile long sEdaSamples;
+	private static volatile long sHxmPackets;
+
+	public static void main(String[] args) throws InterruptedException {
+		double speed = 1;
+		long seconds = 60;
+		long connectDelayMs = 2000;
+		long meanLinkMs = 20000;
+		double refuseRate = 0.2;
+		long minBackoffMs = SensorConnection.DEFAULT_MIN_BACKOFF_MS;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			if ("-speed".equals(args[i])) {
+				speed = Double.parseDouble(value);
+			} else if ("-seconds".equals(args[i])) {
+				seconds = Long.parseLong(value);
+			} else if ("-connect".equals(args[i])) {
+				connectDelayMs = Long.parseLong(value);
+			} else if ("-link".equals(args[i])) {
+				meanLinkMs = Long.parseLong(value);
+			} else if ("-refuse".equals(args[i])) {
+				refuseRate = Double.parseDouble(value);
+			} else if ("-backoff".equals(args[i])) {
+				minBackoffMs = Long.parseLong(value);
+			} else {
+				System.err.println("Unknown option " + args[i]);
+				System.exit(1);
+			}
+		}
+		if (args.length % 2 != 0) {
+			System.err.println("Missing value for " + args[args.length - 1]);
+			System.exit(1);
+		}
+
+		SimulatedTransport edaTransport = new SimulatedTransport(new SimulatedTransport.SourceFactory() {
+			public TimedSource newSource(long seed) {
+				return new QSensorSource(QSensorSource.DEFAULT_SAMPLE_RATE, -1, seed);
+			}
+		}, speed, 1);
+		SimulatedTransport hxmTransport = new SimulatedTransport(new SimulatedTransport.SourceFactory() {
+			public TimedSource newSource(long seed) {
+				return new HxmSource(-1, seed);
+			}
+		}, speed, 2);
+		for (SimulatedTransport transport : new SimulatedTransport[] { edaTransport, hxmTransport }) {
+			transport.setConnectDelay(connectDelayMs);
+			transport.setMeanLinkTime(meanLinkMs);
+			transport.setFailureRate(refuseRate);
+		}
+
+		final SensorConnection[] connections = new SensorConnection[2];
+		final QSensorLineParser parser = new QSensorLineParser();
+		final QSensorSample sample = new QSensorSample();
+		final LineFramer.LineListener edaListener = new LineFramer.LineListener() {
+			public void onLine(byte[] line, int offset, int length) {
+				if (parser.parse(line, offset, length, sample)) {
+					sEdaSamples++;
+					connections[0].markSample();
+				}
+			}
+		};
+		connections[0] = new SensorConnection("EDA", edaTransport, new SensorConnection.StreamHandler() {
+			public void onStream(InputStream inputStream) throws IOException {
+				SensorLineReader reader = new SensorLineReader(inputStream, edaListener);
+				reader.run();
+				if (reader.getError() != null) {
+					throw reader.getError();
+				}
+			}
+		}, null);
+		final HxmFrameReader hxmReader = new HxmFrameReader(new HxmPacketDecoder(new HxmPacketDecoder.Listener() {
+			public void onHxmPacket(HxmPacket packet) {
+				sHxmPackets++;
+				connections[1].markSample();
+			}
+		}));
+		connections[1] = new SensorConnection("HRM", hxmTransport, new SensorConnection.StreamHandler() {
+			public void onStream(InputStream inputStream) throws IOException {
+				hxmReader.read(inputStream);
+			}
+		}, null);
+
+		long start = System.currentTimeMillis();
+		for (SensorConnection connection : connections) {
+			connection.setBackoff(minBackoffMs, SensorConnection.DEFAULT_MAX_BACKOFF_MS);
+			connection.start();
+		}
+		long deadline = start + seconds * 1000;
+		long nextStats = start + STATS_INTERVAL;
+		while (System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+			long now = System.currentTimeMillis();
+			if (now >= nextStats) {
+				System.out.println(stats(connections, now - start));
+				nextStats += STATS_INTERVAL;
+			}
+		}
+		for (SensorConnection connection : connections) {
+			connection.stop();
+		}
+		System.out.println("Done. " + stats(connections, System.currentTimeMillis() - start));
+		for (SensorConnection connection : connections) {
+			System.out.println(connection);
+		}
+	}
+
+	private static String stats(SensorConnection[] connections, long elapsedMs) {
+		StringBuilder out = new StringBuilder();
+		out.append(elapsedMs / 1000).append(" s: ").append(sEdaSamples).append(" EDA samples, ")
+				.append(sHxmPackets).append(" HxM packets");
+		for (SensorConnection connection : connections) {
+			out.append(", ").append(connection.getName()).append(' ')
+					.append(SensorConnection.getStateName(connection.getState()));
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,44 @@
+package edu.gatech.ubicomp.glim.bench;
+
+import java.io.ByteArrayOutputStream;
+
+import edu.gatech.ubicomp.glim.sensor.QSensorLineParser;
+import edu.gatech.ubicomp.glim.sensor.QSensorSample;
+import edu.gatech.ubicomp.glim.sim.QSensorSource;
+
+/**
+ * Deterministic input shared by the benchmarks, generated by the sensor
+ * simulator so it looks like what a Q sensor sends.
+ */
+final class SensorData {
+
+	/** Samples every benchmark invocation processes; JMH reports per sample. */
+	static final int SAMPLES = 1024;
+
+	private SensorData() {
+	}
+
+	/** SAMPLES Q sensor lines, back to back, as they arrive on the Bluetooth stream. */
+	static byte[] qSensorLines(long seed) {
+		QSensorSource source = new QSensorSource(QSensorSource.DEFAULT_SAMPLE_RATE, SAMPLES, seed);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(SAMPLES * 40);
+		while (source.next() >= 0) {
+			out.write(source.getData(), 0, source.getLength());
+		}
+		return out.toByteArray();
+	}
+
+	/** EDA values of qSensorLines(seed), in microsiemens. */
+	static float[] edaValues(long seed) {
+		QSensorSource source = new QSensorSource(QSensorSource.DEFAULT_SAMPLE_RATE, SAMPLES, seed);
+		QSensorLineParser parser = new QSensorLineParser();
+		QSensorSample sample = new QSensorSample();
+		float[] values = new float[SAMPLES];
+		for (int i = 0; source.next() >= 0; i++) {
+			// Without the line terminator, as LineFramer passes lines on.
+			parser.parse(source.getData(), 0, source.getLength() - 1, sample);
+			values[i] = sample.eda;
+		}
+		return values;
+	}
+}
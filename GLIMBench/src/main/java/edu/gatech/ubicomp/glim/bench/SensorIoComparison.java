@@ -0,0 +1,202 @@
+package edu.gatech.ubicomp.glim.bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+import edu.gatech.ubicomp.glim.pipeline.LatencyHistogram;
+import edu.gatech.ubicomp.glim.sensor.LineFramer;
+import edu.gatech.ubicomp.glim.sensor.QSensorLineParser;
+import edu.gatech.ubicomp.glim.sensor.QSensorSample;
+import edu.gatech.ubicomp.glim.sensor.SensorIoScheduler;
+import edu.gatech.ubicomp.glim.sensor.SensorLineReader;
+import edu.gatech.ubicomp.glim.sim.PacedInputStream;
+import edu.gatech.ubicomp.glim.sim.QSensorSource;
+
+/**
+ * Reads N simulated 32 Hz Q sensors in real time, first with a
+ * SensorLineReader thread per sensor, then with a {@link SensorIoScheduler},
+ * and compares the threads, process CPU time and delivery lag of the two.
+ *
+ * Lag is how late a line is parsed against the 32 Hz schedule of its sensor,
+ * taking the earliest line of each sensor as on time. Not a JMH benchmark,
+ * since both runs are paced by the wall clock:
+ *
+ *     java -cp target/benchmarks.jar edu.gatech.ubicomp.glim.bench.SensorIoComparison
+ *
+ * Options: -streams n, -threads n (scheduler threads), -seconds n (per run),
+ * -park us (longest park of an idle scheduler thread).
+ */
+public class SensorIoComparison {
+
+	private static final long PERIOD_NANOS = 1000000000L / QSensorSource.DEFAULT_SAMPLE_RATE;
+
+	public static void main(String[] args) throws InterruptedException {
+		int streams = 16;
+		int threads = 1;
+		long seconds = 20;
+		long maxParkNanos = SensorIoScheduler.DEFAULT_MAX_PARK_NANOS;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			if ("-streams".equals(args[i])) {
+				streams = Integer.parseInt(value);
+			} else if ("-threads".equals(args[i])) {
+				threads = Integer.parseInt(value);
+			} else if ("-seconds".equals(args[i])) {
+				seconds = Long.parseLong(value);
+			} else if ("-park".equals(args[i])) {
+				maxParkNanos = Long.parseLong(value) * 1000;
+			} else {
+				System.err.println("Unknown option " + args[i]);
+				System.exit(1);
+			}
+		}
+		if (args.length % 2 != 0) {
+			System.err.println("Missing value for " + args[args.length - 1]);
+			System.exit(1);
+		}
+
+		System.out.println(streams + " sensors at " + QSensorSource.DEFAULT_SAMPLE_RATE + " Hz, " + seconds
+				+ " s per run");
+		System.out.println(runThreadPerSensor(streams, seconds));
+		System.out.println(runScheduler(streams, threads, maxParkNanos, seconds));
+	}
+
+	private static String runThreadPerSensor(int streams, long seconds) throws InterruptedException {
+		Run run = new Run("thread per sensor", streams);
+		SensorLineReader[] readers = new SensorLineReader[streams];
+		Thread[] readerThreads = new Thread[streams];
+		run.begin();
+		for (int i = 0; i < streams; i++) {
+			readers[i] = new SensorLineReader(run.mInputStreams[i], run.mReceivers[i]);
+			readerThreads[i] = new Thread(readers[i], "EDA reader " + i);
+			readerThreads[i].start();
+		}
+		Thread.sleep(seconds * 1000);
+		run.measure();
+		for (int i = 0; i < streams; i++) {
+			readers[i].stop();
+			run.mInputStreams[i].close();
+		}
+		for (Thread thread : readerThreads) {
+			thread.join();
+		}
+		return run.toString();
+	}
+
+	private static String runScheduler(int streams, int threads, long maxParkNanos, long seconds)
+			throws InterruptedException {
+		Run run = new Run(threads + " scheduler thread" + (threads == 1 ? "" : "s") + ", park <= "
+				+ maxParkNanos / 1000 + " us", streams);
+		SensorIoScheduler scheduler = new SensorIoScheduler(threads, SensorIoScheduler.DEFAULT_READ_BUFFER_SIZE,
+				maxParkNanos);
+		run.begin();
+		scheduler.start();
+		for (int i = 0; i < streams; i++) {
+			final LineFramer framer = new LineFramer(SensorIoScheduler.DEFAULT_READ_BUFFER_SIZE,
+					SensorLineReader.DEFAULT_MAX_LINE_LENGTH, run.mReceivers[i]);
+			scheduler.attach("EDA " + i, run.mInputStreams[i], new SensorIoScheduler.StreamConsumer() {
+				public void onBytes(byte[] data, int offset, int length) {
+					framer.feed(data, offset, length);
+				}
+
+				public void onClosed(IOException error) {
+					if (error != null) {
+						System.err.println("Stream failed: " + error);
+					}
+				}
+			});
+		}
+		Thread.sleep(seconds * 1000);
+		run.measure();
+		scheduler.stop();
+		long passes = Math.max(1, scheduler.getPasses());
+		return run + String.format(Locale.US, ", %.0f passes/s, %.0f%% parked, %.0f%% until a read was due",
+				scheduler.getPasses() / (double) seconds, 100.0 * scheduler.getParks() / passes,
+				100.0 * scheduler.getDueParks() / passes);
+	}
+
+	/** The sensors of one run and what they cost. */
+	private static class Run {
+		final String mName;
+		final PacedInputStream[] mInputStreams;
+		final Receiver[] mReceivers;
+
+		private final ThreadMXBean mThreadBean = ManagementFactory.getThreadMXBean();
+		private int mStartThreads;
+		private long mStartCpuNanos;
+		private long mStartNanos;
+		private int mThreads;
+		private double mCpuPercent;
+
+		Run(String name, int streams) {
+			mName = name;
+			mInputStreams = new PacedInputStream[streams];
+			mReceivers = new Receiver[streams];
+			for (int i = 0; i < streams; i++) {
+				mInputStreams[i] = new PacedInputStream(new QSensorSource(QSensorSource.DEFAULT_SAMPLE_RATE, -1, i), 1, i);
+				mReceivers[i] = new Receiver();
+			}
+		}
+
+		void begin() {
+			mStartThreads = mThreadBean.getThreadCount();
+			mStartCpuNanos = processCpuNanos();
+			mStartNanos = System.nanoTime();
+		}
+
+		void measure() {
+			mThreads = mThreadBean.getThreadCount() - mStartThreads;
+			long elapsed = System.nanoTime() - mStartNanos;
+			mCpuPercent = 100.0 * (processCpuNanos() - mStartCpuNanos) / elapsed;
+		}
+
+		@Override
+		public String toString() {
+			LatencyHistogram lag = new LatencyHistogram();
+			long samples = 0;
+			for (Receiver receiver : mReceivers) {
+				lag.add(receiver.mLag);
+				samples += receiver.mSamples;
+			}
+			return String.format(Locale.US,
+					"%s: %d threads, %.2f%% CPU, %d samples, lag p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+					mName, mThreads, mCpuPercent, samples, lag.getValueAtPercentile(50) / 1e6,
+					lag.getValueAtPercentile(99) / 1e6, lag.getMax() / 1e6);
+		}
+	}
+
+	/** Parses the lines of one sensor and records how late each one is. */
+	private static class Receiver implements LineFramer.LineListener {
+		final QSensorLineParser mParser = new QSensorLineParser();
+		final QSensorSample mSample = new QSensorSample();
+		final LatencyHistogram mLag = new LatencyHistogram();
+		volatile long mSamples;
+		/** Time line 0 was due, from the earliest line so far. */
+		private long mOrigin = Long.MAX_VALUE;
+		private long mLines;
+
+		public void onLine(byte[] line, int offset, int length) {
+			long now = System.nanoTime();
+			long due = now - mLines++ * PERIOD_NANOS;
+			if (due < mOrigin) {
+				mOrigin = due;
+			}
+			mLag.record(due - mOrigin);
+			if (mParser.parse(line, offset, length, mSample)) {
+				mSamples++;
+			}
+		}
+	}
+
+	/** CPU time of the whole process, or -1 if the JVM does not tell. */
+	private static long processCpuNanos() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,302 @@
+package edu.gatech.ubicomp.glim.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+
+import edu.gatech.ubicomp.glim.data.SessionRecorder;
+import edu.gatech.ubicomp.glim.data.UploadPipeline;
+import edu.gatech.ubicomp.glim.pipeline.EdaPipeline;
+import edu.gatech.ubicomp.glim.pipeline.HrmPipeline;
+import edu.gatech.ubicomp.glim.pipeline.LatencyTracer;
+import edu.gatech.ubicomp.glim.pipeline.PhysioState;
+import edu.gatech.ubicomp.glim.sensor.HxmPacketDecoder;
+import edu.gatech.ubicomp.glim.sensor.QSensorSample;
+import edu.gatech.ubicomp.glim.sensor.SensorLineReader;
+import edu.gatech.ubicomp.glim.signal.BandClassifier;
+import edu.gatech.ubicomp.glim.sim.HxmFeeder;
+import edu.gatech.ubicomp.glim.sim.HxmSource;
+import edu.gatech.ubicomp.glim.sim.PacedInputStream;
+import edu.gatech.ubicomp.glim.sim.QSensorSource;
+import edu.gatech.ubicomp.glim.sim.RecordedSessionSource;
+import edu.gatech.ubicomp.glim.sim.TimedSource;
+
+/**
+ * Runs the sensor pipeline against simulated or replayed sensors on a plain
+ * JVM, so parsing, signal processing, recording and upload can be soak tested
+ * without Glass or any Bluetooth hardware.
+ *
+ * Every simulated subject wears a Q sensor and an HxM. Their data goes through
+ * the EdaPipeline and HrmPipeline GlimMainActivity runs, from line framing to
+ * band classification, and optionally to a session recording and an upload
+ * endpoint such as the LIMServer stand-in. The stage latencies of all EDA
+ * samples are reported at the end.
+ *
+ *     java -cp target/benchmarks.jar edu.gatech.ubicomp.glim.bench.SoakTest -sensors 8
+ *
+ * Options: -sensors n, -speed x (0 for as fast as possible), -seconds n,
+ * -malformed rate, -jitter ms, -burst probability, -replay dir, -record dir,
+ * -upload url, -binary.
+ */
+public class SoakTest {
+
+	private static final float BASE_EDA_VALUE = 0.45f;
+	private static final float BASE_HR_VALUE = 65;
+	private static final float MIN_PERCENTAGE_LEVEL_SHIFT = 10;
+	private static final int MAX_BURST = 8;
+	private static final long STATS_INTERVAL = 5000;
+
+	/** One subject: a Q sensor and an HxM feeding their own pipelines. */
+	static class Subject {
+
+		final PacedInputStream mEdaStream;
+		final SensorLineReader mEdaReader;
+		final HxmFeeder mHxmFeeder;
+		final Thread mEdaThread;
+		final Thread mHxmThread;
+
+		final PhysioState mPhysioState = new PhysioState();
+		final PhysioState.Snapshot mSnapshot = mPhysioState.newSnapshot();
+		final BandClassifier mBandClassifier = new BandClassifier(1, 1000);
+		final LatencyTracer mTracer = new LatencyTracer();
+		final EdaPipeline mEdaPipeline;
+		final HrmPipeline mHrmPipeline;
+		final HxmPacketDecoder mHxmDecoder;
+
+		SessionRecorder mRecorder;
+		SessionRecorder.Channel mBandChannel;
+		UploadPipeline mUploadPipeline;
+
+		volatile long mEdaSamples;
+		volatile long mHrmPackets;
+
+		Subject(int index, TimedSource edaSource, TimedSource hxmSource, double speed) {
+			mEdaStream = new PacedInputStream(edaSource, speed, index);
+			mEdaPipeline = new EdaPipeline(QSensorSource.DEFAULT_SAMPLE_RATE, mPhysioState, mTracer,
+					new EdaPipeline.SampleListener() {
+						public void onEdaSample(long arrival, QSensorSample sample, int scrRate) {
+							classify(arrival, sample.timestamp);
+						}
+					});
+			mEdaReader = new SensorLineReader(mEdaStream, mEdaPipeline);
+			mEdaPipeline.setReader(mEdaReader);
+			mHrmPipeline = new HrmPipeline(mPhysioState, new HrmPipeline.SampleListener() {
+				public void onHrmSample(long timestamp, int heartRate, float instantSpeed) {
+					mHrmPackets++;
+				}
+			});
+			mHxmDecoder = new HxmPacketDecoder(mHrmPipeline);
+			mHxmFeeder = new HxmFeeder(hxmSource, speed, index, new HxmFeeder.PayloadListener() {
+				public void onPayload(byte[] payload) {
+					mHxmDecoder.onPayload(payload, 0, payload.length, true);
+				}
+			});
+			mEdaThread = new Thread(mEdaReader, "EDA reader " + index);
+			mHxmThread = new Thread(mHxmFeeder, "HxM feeder " + index);
+		}
+
+		void record(File directory) {
+			mRecorder = new SessionRecorder(directory);
+			mRecorder.setLatencyTracer(mTracer, SessionRecorder.RECORD_EDA_SAMPLE);
+			mEdaPipeline.setRecordChannel(mRecorder.openChannel(SessionRecorder.RECORD_EDA_SAMPLE,
+					EdaPipeline.RECORD_WIDTH, SessionRecorder.DEFAULT_CHANNEL_CAPACITY));
+			mHrmPipeline.setRecordChannel(mRecorder.openChannel(SessionRecorder.RECORD_HEART_RATE,
+					HrmPipeline.RECORD_WIDTH, SessionRecorder.DEFAULT_CHANNEL_CAPACITY));
+			mBandChannel = mRecorder.openChannel(SessionRecorder.RECORD_BAND_CHANGE, 2,
+					SessionRecorder.DEFAULT_CHANNEL_CAPACITY);
+		}
+
+		void start() throws IOException {
+			if (mRecorder != null) {
+				mRecorder.start();
+			}
+			if (mUploadPipeline != null) {
+				mUploadPipeline.start();
+			}
+			mEdaThread.start();
+			mHxmThread.start();
+		}
+
+		boolean isFinished() {
+			return !mEdaThread.isAlive() && !mHxmThread.isAlive();
+		}
+
+		void stop() throws InterruptedException {
+			mEdaReader.stop();
+			mEdaStream.close();
+			mHxmFeeder.stop();
+			mEdaThread.join();
+			mHxmThread.join();
+			if (mRecorder != null) {
+				mRecorder.stop();
+			}
+			if (mUploadPipeline != null) {
+				mUploadPipeline.stop();
+			}
+		}
+
+		/** What the activity does with a sample on the UI thread, minus the views. */
+		void classify(long arrival, long timestamp) {
+			// The activity classifies once per frame; once per sample is the worst case.
+			mPhysioState.read(mSnapshot);
+			int shift = BandClassifier.totalShift(
+					mSnapshot.getValue(PhysioState.EDA, BASE_EDA_VALUE), BASE_EDA_VALUE,
+					mSnapshot.getValue(PhysioState.HEART_RATE, BASE_HR_VALUE), BASE_HR_VALUE,
+					MIN_PERCENTAGE_LEVEL_SHIFT);
+			if (mBandClassifier.update(shift, System.nanoTime() / 1000000) && mBandChannel != null) {
+				mBandChannel.record(timestamp, mBandClassifier.getBand(), shift);
+			}
+			mTracer.recordSince(LatencyTracer.STAGE_CLASSIFY, arrival);
+			mEdaSamples++;
+		}
+	}
+
+	private static String stats(Subject[] subjects, long elapsedMs) {
+		long edaSamples = 0, hrmPackets = 0, malformedLines = 0, injected = 0;
+		long badFrames = 0, bandChanges = 0, recordDropped = 0, uploaded = 0, uploadDropped = 0, spooled = 0;
+		for (Subject subject : subjects) {
+			edaSamples += subject.mEdaSamples;
+			hrmPackets += subject.mHrmPackets;
+			malformedLines += subject.mEdaPipeline.getParser().getMalformedLines();
+			injected += subject.mEdaStream.getMalformed();
+			badFrames += subject.mHxmFeeder.getBadFrames();
+			bandChanges += subject.mBandClassifier.getChangeCount();
+			if (subject.mRecorder != null) {
+				recordDropped += subject.mRecorder.getDropped();
+			}
+			if (subject.mUploadPipeline != null) {
+				uploaded += subject.mUploadPipeline.getSamplesSent();
+				uploadDropped += subject.mUploadPipeline.getDroppedSamples();
+				spooled += subject.mUploadPipeline.getSpoolCount();
+			}
+		}
+		Runtime runtime = Runtime.getRuntime();
+		long heapKb = (runtime.totalMemory() - runtime.freeMemory()) / 1024;
+		float seconds = Math.max(1, elapsedMs) / 1000f;
+		return (elapsedMs / 1000) + " s: " + edaSamples + " EDA samples (" + (int) (edaSamples / seconds) + "/s), "
+				+ hrmPackets + " HxM packets, " + injected + " corrupted chunks -> " + malformedLines
+				+ " malformed lines, " + badFrames + " bad frames, "
+				+ bandChanges + " band changes, " + recordDropped + " records dropped, " + uploaded
+				+ " samples uploaded, " + uploadDropped + " upload drops, " + spooled + " spooled, heap "
+				+ heapKb + " KB";
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int sensors = 1;
+		double speed = 1;
+		long seconds = 60;
+		double malformedRate = 0;
+		int jitterMs = 0;
+		double burstProbability = 0;
+		File replayDirectory = null;
+		File recordDirectory = null;
+		URL uploadUrl = null;
+		boolean binary = false;
+		for (int i = 0; i < args.length; i++) {
+			if ("-binary".equals(args[i])) {
+				binary = true;
+				continue;
+			}
+			if (i + 1 >= args.length) {
+				System.err.println("Missing value for " + args[i]);
+				System.exit(1);
+			}
+			String value = args[++i];
+			if ("-sensors".equals(args[i - 1])) {
+				sensors = Integer.parseInt(value);
+			} else if ("-speed".equals(args[i - 1])) {
+				speed = Double.parseDouble(value);
+			} else if ("-seconds".equals(args[i - 1])) {
+				seconds = Long.parseLong(value);
+			} else if ("-malformed".equals(args[i - 1])) {
+				malformedRate = Double.parseDouble(value);
+			} else if ("-jitter".equals(args[i - 1])) {
+				jitterMs = Integer.parseInt(value);
+			} else if ("-burst".equals(args[i - 1])) {
+				burstProbability = Double.parseDouble(value);
+			} else if ("-replay".equals(args[i - 1])) {
+				replayDirectory = new File(value);
+			} else if ("-record".equals(args[i - 1])) {
+				recordDirectory = new File(value);
+			} else if ("-upload".equals(args[i - 1])) {
+				uploadUrl = new URL(value);
+			} else {
+				System.err.println("Unknown option " + args[i - 1]);
+				System.exit(1);
+			}
+		}
+
+		Subject[] subjects = new Subject[sensors];
+		for (int i = 0; i < sensors; i++) {
+			TimedSource edaSource, hxmSource;
+			if (replayDirectory != null) {
+				edaSource = new RecordedSessionSource(replayDirectory, SessionRecorder.RECORD_EDA_SAMPLE);
+				hxmSource = new RecordedSessionSource(replayDirectory, SessionRecorder.RECORD_HEART_RATE);
+			} else {
+				edaSource = new QSensorSource(QSensorSource.DEFAULT_SAMPLE_RATE, -1, i);
+				HxmSource hxm = new HxmSource(-1, i);
+				hxm.setHeartRate(60 + i % 40);
+				hxmSource = hxm;
+			}
+			Subject subject = new Subject(i, edaSource, hxmSource, speed);
+			subject.mEdaStream.setJitter(jitterMs);
+			subject.mEdaStream.setBurstiness(burstProbability, MAX_BURST);
+			subject.mEdaStream.setMalformedRate(malformedRate);
+			subject.mHxmFeeder.setMalformedRate(malformedRate);
+			if (recordDirectory != null) {
+				subject.record(new File(recordDirectory, "subject-" + i));
+			}
+			if (uploadUrl != null) {
+				File spool = new File(System.getProperty("java.io.tmpdir"), "glim-soak-spool-" + i);
+				subject.mUploadPipeline = new UploadPipeline(uploadUrl, spool);
+				subject.mUploadPipeline.setSubjectId("soak-" + i);
+				subject.mUploadPipeline.setLatencyTracer(subject.mTracer);
+				if (binary) {
+					subject.mUploadPipeline.setWireFormat(UploadPipeline.FORMAT_BINARY);
+				}
+				subject.mEdaPipeline.setUploadPipeline(subject.mUploadPipeline);
+			}
+			subjects[i] = subject;
+		}
+
+		long start = System.currentTimeMillis();
+		for (Subject subject : subjects) {
+			subject.start();
+		}
+		long deadline = start + seconds * 1000;
+		long nextStats = start + STATS_INTERVAL;
+		while (System.currentTimeMillis() < deadline) {
+			boolean finished = true;
+			for (Subject subject : subjects) {
+				finished &= subject.isFinished();
+			}
+			if (finished) {
+				break;
+			}
+			Thread.sleep(100);
+			long now = System.currentTimeMillis();
+			if (now >= nextStats) {
+				System.out.println(stats(subjects, now - start));
+				nextStats += STATS_INTERVAL;
+			}
+		}
+		for (Subject subject : subjects) {
+			subject.stop();
+		}
+		System.out.println("Done. " + stats(subjects, System.currentTimeMillis() - start));
+		LatencyTracer latency = new LatencyTracer();
+		for (Subject subject : subjects) {
+			latency.add(subject.mTracer);
+		}
+		System.out.print("Sample age per stage\n" + latency);
+		for (Subject subject : subjects) {
+			IOException error = subject.mEdaReader.getError();
+			if (error == null && subject.mRecorder != null) {
+				error = subject.mRecorder.getError();
+			}
+			if (error != null) {
+				System.err.println("Error: " + error);
+			}
+		}
+	}
+}
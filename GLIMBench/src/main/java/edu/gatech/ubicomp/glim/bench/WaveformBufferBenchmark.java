@@ -0,0 +1,108 @@
+package edu.gatech.ubicomp.glim.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.gatech.ubicomp.glim.signal.EdaDecomposer;
+import edu.gatech.ubicomp.glim.signal.EmaTonicFilter;
+import edu.gatech.ubicomp.glim.signal.MinMaxDecimator;
+import edu.gatech.ubicomp.glim.signal.SampleHistory;
+
+/**
+ * The buffer work of EDAWaveformView without the drawing: every sample is
+ * decomposed and appended to the history (through the min/max decimators for
+ * long windows), and every frame copies the history out for the render thread.
+ * Mirrors updateEDADataSimple(), setTimeWindow() and takeFrameSnapshot(), which
+ * cannot run off-device because the view is a SurfaceView.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WaveformBufferBenchmark {
+
+	private static final int SAMPLING_RATE = 32;
+	/** Pixel columns of the Glass display. */
+	private static final int COLUMNS = 640;
+
+	/** Time window shown, in seconds: 20 s is drawn as is, 5 minutes is decimated. */
+	@Param({"20", "300"})
+	public int windowSeconds;
+
+	private float[] mEda;
+	private final EdaDecomposer mDecomposer = new EdaDecomposer(new EmaTonicFilter(EdaDecomposer.DEFAULT_EMA_ALPHA));
+	private final MinMaxDecimator mRawDecimator = new MinMaxDecimator(1);
+	private final MinMaxDecimator mTonicDecimator = new MinMaxDecimator(1);
+	private final MinMaxDecimator mPhasicDecimator = new MinMaxDecimator(1);
+	private SampleHistory mHistory;
+	private float[] mFrameRaw, mFrameTonic, mFramePhasic;
+
+	@Setup
+	public void setUp() {
+		mEda = SensorData.edaValues(3);
+		int windowSamples = windowSeconds * SAMPLING_RATE;
+		int samplesPerBucket = 1;
+		int capacity = windowSamples;
+		if (windowSamples > 2 * COLUMNS) {
+			samplesPerBucket = (windowSamples + COLUMNS - 1) / COLUMNS;
+			capacity = 2 * ((windowSamples + samplesPerBucket - 1) / samplesPerBucket);
+		}
+		mRawDecimator.setSamplesPerBucket(samplesPerBucket);
+		mTonicDecimator.setSamplesPerBucket(samplesPerBucket);
+		mPhasicDecimator.setSamplesPerBucket(samplesPerBucket);
+		mHistory = new SampleHistory(3, capacity);
+		mFrameRaw = new float[capacity];
+		mFrameTonic = new float[capacity];
+		mFramePhasic = new float[capacity];
+		// Start from a full history, as after the first window.
+		while (mHistory.size() < capacity) {
+			appendSamples();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SensorData.SAMPLES)
+	public void appendSamples() {
+		float[] eda = mEda;
+		for (int i = 0; i < eda.length; i++) {
+			float phasic = mDecomposer.update(eda[i]);
+			float tonic = mDecomposer.getTonic();
+			if (mRawDecimator.getSamplesPerBucket() == 1) {
+				mHistory.append(eda[i], tonic, phasic);
+				continue;
+			}
+			boolean bucketComplete = mRawDecimator.add(eda[i]);
+			mTonicDecimator.add(tonic);
+			mPhasicDecimator.add(phasic);
+			if (bucketComplete) {
+				mHistory.append(mRawDecimator.getFirst(), mTonicDecimator.getFirst(), mPhasicDecimator.getFirst());
+				mHistory.append(mRawDecimator.getSecond(), mTonicDecimator.getSecond(), mPhasicDecimator.getSecond());
+			}
+		}
+	}
+
+	/** One frame's copy of the history; reported per frame, not per sample. */
+	@Benchmark
+	public int frameSnapshot(Blackhole blackhole) {
+		int size = mHistory.copyChannel(0, mFrameRaw, 0);
+		mHistory.copyChannel(1, mFrameTonic, 0);
+		mHistory.copyChannel(2, mFramePhasic, 0);
+		blackhole.consume(mHistory.getTotalAppended());
+		return size;
+	}
+}
@@ -0,0 +1,131 @@
+package edu.gatech.ubicomp.glim.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import edu.gatech.ubicomp.glim.data.codec.BatchDecoder;
+import edu.gatech.ubicomp.glim.data.codec.BatchEncoder;
+import edu.gatech.ubicomp.glim.data.codec.BatchSchema;
+import edu.gatech.ubicomp.glim.data.codec.BitWriter;
+import edu.gatech.ubicomp.glim.data.codec.SampleBatch;
+
+/**
+ * Compares bytes per sample and encode time of the JSON-wrapped CSV upload
+ * format with the binary batch encodings, on synthetic 32 Hz EDA batches.
+ * 
+ *     java -cp target/benchmarks.jar edu.gatech.ubicomp.glim.bench.WireFormatComparison [batchRows] [batches]
+ */
+public class WireFormatComparison {
+
+	private static final int SAMPLE_PERIOD_MS = 1000 / 32;
+
+	public static void main(String[] args) throws IOException {
+		int rows = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		int batches = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+		SampleBatch[] data = new SampleBatch[16];
+		Random random = new Random(42);
+		long time = 1392300000000L;
+		float eda = 0.45f;
+		for (int b = 0; b < data.length; b++) {
+			data[b] = new SampleBatch(1, rows);
+			for (int i = 0; i < rows; i++) {
+				time += SAMPLE_PERIOD_MS + (random.nextInt(8) == 0 ? random.nextInt(3) - 1 : 0);
+				eda += (float) (random.nextGaussian() * 0.002);
+				if (random.nextInt(400) == 0) {
+					eda += 0.05f;
+				}
+				eda = Math.max(0.01f, eda);
+				// The Q sensor reports three decimals.
+				data[b].add(time, Math.round(eda * 1000) / 1000f);
+			}
+		}
+
+		System.out.println("format            bytes/sample   ns/sample (encode)");
+		report("json+csv", measureJson(data, batches, false), rows);
+		report("json+csv gzip", measureJson(data, batches, true), rows);
+		report("binary raw", measureBinary(data, batches, BatchSchema.ENCODING_RAW), rows);
+		report("binary xor", measureBinary(data, batches, BatchSchema.ENCODING_XOR), rows);
+		report("binary quantized", measureBinary(data, batches, BatchSchema.ENCODING_QUANTIZED), rows);
+	}
+
+	/** @return {average bytes per batch, average ns per batch} */
+	private static double[] measureJson(SampleBatch[] data, int batches, boolean gzip) throws IOException {
+		StringBuilder json = new StringBuilder();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		long bytes = 0;
+		long nanos = 0;
+		for (int round = 0; round < 2; round++) {
+			bytes = 0;
+			long started = System.nanoTime();
+			for (int n = 0; n < batches; n++) {
+				SampleBatch batch = data[n % data.length];
+				json.setLength(0);
+				json.append("{\"edasignal\":\"{");
+				for (int i = 0; i < batch.size(); i++) {
+					if (i > 0) {
+						json.append("\\n");
+					}
+					json.append(batch.getTimestamp(i)).append(',').append(batch.getValue(0, i));
+				}
+				json.append("}\"}");
+				body.reset();
+				if (gzip) {
+					GZIPOutputStream out = new GZIPOutputStream(body);
+					for (int i = 0; i < json.length(); i++) {
+						out.write(json.charAt(i));
+					}
+					out.close();
+				} else {
+					for (int i = 0; i < json.length(); i++) {
+						body.write(json.charAt(i));
+					}
+				}
+				bytes += body.size();
+			}
+			// The first round only warms up the JIT.
+			nanos = System.nanoTime() - started;
+		}
+		return new double[] { (double) bytes / batches, (double) nanos / batches };
+	}
+
+	private static double[] measureBinary(SampleBatch[] data, int batches, int encoding) throws IOException {
+		BatchSchema schema = new BatchSchema();
+		schema.addChannel(BatchSchema.CHANNEL_EDA, encoding, 0.001f);
+		BatchEncoder encoder = new BatchEncoder(schema);
+		BitWriter writer = new BitWriter(4096);
+		long bytes = 0;
+		long nanos = 0;
+		for (int round = 0; round < 2; round++) {
+			bytes = 0;
+			long started = System.nanoTime();
+			for (int n = 0; n < batches; n++) {
+				writer.reset();
+				encoder.encode(data[n % data.length], writer);
+				bytes += writer.size();
+			}
+			nanos = System.nanoTime() - started;
+		}
+		verify(encoder, data[0], encoding);
+		return new double[] { (double) bytes / batches, (double) nanos / batches };
+	}
+
+	/** Decodes one batch and checks it against the input, within the quantization step. */
+	private static void verify(BatchEncoder encoder, SampleBatch batch, int encoding) throws IOException {
+		byte[] encoded = encoder.encode(batch);
+		SampleBatch decoded = new BatchDecoder().decode(encoded, 0, encoded.length);
+		float tolerance = encoding == BatchSchema.ENCODING_QUANTIZED ? 0.0005001f : 0;
+		for (int i = 0; i < batch.size(); i++) {
+			if (decoded.getTimestamp(i) != batch.getTimestamp(i)
+					|| Math.abs(decoded.getValue(0, i) - batch.getValue(0, i)) > tolerance) {
+				throw new IllegalStateException("Round trip mismatch at row " + i);
+			}
+		}
+	}
+
+	private static void report(String name, double[] result, int rows) {
+		System.out.println(String.format("%-18s%12.2f%14.1f", name, result[0] / rows, result[1] / rows));
+	}
+}
@@ -0,0 +1,67 @@
+package edu.gatech.ubicomp.glim.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.gatech.ubicomp.glim.data.codec.SampleBatch;
+
+/**
+ * Request body encoding of the UploadPipeline, which replaced the CSV building
+ * of convertArraytoCSV() and dataPOST(). Lives in the data package to reach
+ * UploadPipeline.encodeBody() without going through the network.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UploadSerializationBenchmark {
+
+	@Param({"json", "binary"})
+	public String format;
+
+	private UploadPipeline mPipeline;
+	private final SampleBatch mSamples = new SampleBatch(1, UploadPipeline.DEFAULT_MAX_BATCH_SAMPLES);
+	private final SampleBatch mAnnotations = new SampleBatch(1, 1);
+	private boolean mBinary;
+
+	@Setup
+	public void setUp() throws IOException {
+		// Never started, so nothing is sent or spooled.
+		mPipeline = new UploadPipeline(new URL("http://localhost/"), new File("target/spool"));
+		mBinary = "binary".equals(format);
+		// A 32 Hz random walk with the Q sensor's three decimals, as in WireFormatComparison.
+		Random random = new Random(4);
+		long time = 1392300000000L;
+		float eda = 0.45f;
+		for (int i = 0; i < UploadPipeline.DEFAULT_MAX_BATCH_SAMPLES; i++) {
+			time += 31 + (random.nextInt(8) == 0 ? 1 : 0);
+			eda = Math.max(0.01f, eda + (float) (random.nextGaussian() * 0.002));
+			mSamples.add(time, Math.round(eda * 1000) / 1000f);
+		}
+	}
+
+	/** One full batch; reported per sample. */
+	@Benchmark
+	@OperationsPerInvocation(UploadPipeline.DEFAULT_MAX_BATCH_SAMPLES)
+	public byte[] encodeBatch() throws IOException {
+		return mPipeline.encodeBody(mSamples, mAnnotations, mBinary);
+	}
+}
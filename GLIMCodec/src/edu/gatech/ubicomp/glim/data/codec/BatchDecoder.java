@@ -0,0 +1,160 @@
+package edu.gatech.ubicomp.glim.data.codec;
+
+/**
+ * Decodes batches written by {@link BatchEncoder}.
+ */
+public class BatchDecoder {
+
+	private final BitReader mReader = new BitReader();
+	private final BatchSchema mSchema = new BatchSchema();
+	private int mEnd;
+
+	/**
+	 * Decodes the batch starting at offset.
+	 * @return the batch, with the schema available from getSchema() until the next call
+	 * @throws BatchFormatException if the data is not a valid batch
+	 */
+	public SampleBatch decode(byte[] data, int offset, int length) throws BatchFormatException {
+		return decode(data, offset, length, null);
+	}
+
+	/**
+	 * Decodes the batch starting at offset into reuse, if it has the batch's
+	 * channel count, replacing its rows.
+	 * @return reuse, or a new batch if reuse is null or has other channels
+	 * @throws BatchFormatException if the data is not a valid batch
+	 */
+	public SampleBatch decode(byte[] data, int offset, int length, SampleBatch reuse) throws BatchFormatException {
+		BitReader in = mReader;
+		in.setInput(data, offset, length);
+		if (in.readBits(16) != BatchEncoder.MAGIC) {
+			throw new BatchFormatException("Not a GLIM batch");
+		}
+		int version = (int) in.readBits(8);
+		if (version != BatchEncoder.VERSION) {
+			throw new BatchFormatException("Unsupported batch version " + version);
+		}
+		long channels = in.readVarLong();
+		if (channels < 0 || channels > BatchSchema.MAX_CHANNELS) {
+			throw new BatchFormatException("Bad channel count " + channels);
+		}
+		mSchema.clear();
+		for (int c = 0; c < channels; c++) {
+			int id = (int) in.readVarLong();
+			int encoding = (int) in.readBits(8);
+			float step = 0;
+			if (encoding == BatchSchema.ENCODING_QUANTIZED) {
+				step = Float.intBitsToFloat((int) in.readBits(32));
+			}
+			try {
+				mSchema.addChannel(id, encoding, step);
+			} catch (IllegalArgumentException e) {
+				throw new BatchFormatException(e.getMessage());
+			}
+		}
+		long rows = in.readVarLong();
+		// Every row takes at least one bit per column, which bounds a sane row count.
+		if (rows < 0 || rows > (long) length * 8) {
+			throw new BatchFormatException("Bad row count " + rows);
+		}
+		SampleBatch batch = reuse;
+		if (batch == null || batch.channels() != channels) {
+			batch = new SampleBatch((int) channels, (int) Math.max(rows, 1));
+		}
+		batch.setSize((int) rows);
+		if (rows > 0) {
+			readTimestamps(batch.timestamps(), (int) rows, in);
+			for (int c = 0; c < channels; c++) {
+				float[] column = batch.column(c);
+				switch (mSchema.getEncoding(c)) {
+				case BatchSchema.ENCODING_QUANTIZED:
+					readQuantized(column, (int) rows, mSchema.getQuantizationStep(c), in);
+					break;
+				case BatchSchema.ENCODING_XOR:
+					readXor(column, (int) rows, in);
+					break;
+				default:
+					for (int i = 0; i < rows; i++) {
+						column[i] = Float.intBitsToFloat((int) in.readBits(32));
+					}
+					break;
+				}
+			}
+		}
+		in.alignToByte();
+		mEnd = in.getBytePosition();
+		return batch;
+	}
+
+	/** Schema of the last decoded batch. */
+	public BatchSchema getSchema() {
+		return mSchema;
+	}
+
+	/** Offset just past the last decoded batch, where a following batch would start. */
+	public int getEnd() {
+		return mEnd;
+	}
+
+	private static void readTimestamps(long[] timestamps, int rows, BitReader in) throws BatchFormatException {
+		timestamps[0] = in.readBits(64);
+		long delta = 0;
+		for (int i = 1; i < rows; i++) {
+			delta += readSigned(in);
+			timestamps[i] = timestamps[i - 1] + delta;
+		}
+	}
+
+	private static void readQuantized(float[] values, int rows, float step, BitReader in) throws BatchFormatException {
+		// A decimal step such as 0.001 is not exact as a float; dividing by its
+		// whole reciprocal gives back the float the decimal text parses to.
+		double reciprocal = 1.0 / step;
+		double whole = Math.rint(reciprocal);
+		boolean divide = whole >= 1 && Math.abs(reciprocal - whole) < 1e-4 * whole;
+		long quantized = 0;
+		for (int i = 0; i < rows; i++) {
+			quantized += readSigned(in);
+			values[i] = (float) (divide ? quantized / whole : quantized * (double) step);
+		}
+	}
+
+	private static void readXor(float[] values, int rows, BitReader in) throws BatchFormatException {
+		int previous = (int) in.readBits(32);
+		values[0] = Float.intBitsToFloat(previous);
+		int windowLeading = -1;
+		int windowTrailing = 0;
+		for (int i = 1; i < rows; i++) {
+			if (in.readBit()) {
+				if (in.readBit()) {
+					windowLeading = (int) in.readBits(5);
+					int significant = (int) in.readBits(5) + 1;
+					windowTrailing = 32 - windowLeading - significant;
+					if (windowTrailing < 0) {
+						throw new BatchFormatException("Bad XOR window");
+					}
+				} else if (windowLeading < 0) {
+					throw new BatchFormatException("XOR window used before being set");
+				}
+				int significant = 32 - windowLeading - windowTrailing;
+				previous ^= (int) in.readBits(significant) << windowTrailing;
+			}
+			values[i] = Float.intBitsToFloat(previous);
+		}
+	}
+
+	static long readSigned(BitReader in) throws BatchFormatException {
+		long zigzag;
+		if (!in.readBit()) {
+			return 0;
+		} else if (!in.readBit()) {
+			zigzag = in.readBits(7);
+		} else if (!in.readBit()) {
+			zigzag = in.readBits(9);
+		} else if (!in.readBit()) {
+			zigzag = in.readBits(12);
+		} else {
+			zigzag = in.readBits(64);
+		}
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+}
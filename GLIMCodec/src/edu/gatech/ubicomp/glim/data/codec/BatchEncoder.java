@@ -0,0 +1,153 @@
+package edu.gatech.ubicomp.glim.data.codec;
+
+/**
+ * Encodes a {@link SampleBatch} into the binary batch format, version 1.
+ * 
+ * <pre>
+ * 16 bits   magic "GB"
+ *  8 bits   version
+ * varint    channel count, then per channel: varint id, 8 bit encoding,
+ *           and for ENCODING_QUANTIZED the 32 bit float step
+ * varint    row count
+ * 64 bits   first timestamp, then delta-of-delta of every further timestamp
+ * columns   one per channel, in schema order
+ * </pre>
+ * 
+ * Signed integers (delta-of-delta timestamps, quantized deltas) are zigzag
+ * mapped and written with a prefix code: 0 for zero, 10 + 7 bits, 110 + 9 bits,
+ * 1110 + 12 bits, or 1111 + 64 bits. A 32 Hz timestamp column therefore costs
+ * about one bit per row. XOR columns follow the Gorilla scheme on the float bits.
+ * The batch ends on a byte boundary, so batches can be concatenated.
+ */
+public class BatchEncoder {
+
+	public static final int MAGIC = 0x4742;
+	public static final int VERSION = 1;
+
+	private final BatchSchema mSchema;
+	private final BitWriter mWriter = new BitWriter(1024);
+
+	public BatchEncoder(BatchSchema schema) {
+		mSchema = schema;
+	}
+
+	public BatchSchema getSchema() {
+		return mSchema;
+	}
+
+	/** Encodes into a new array. */
+	public byte[] encode(SampleBatch batch) {
+		mWriter.reset();
+		encode(batch, mWriter);
+		return mWriter.toByteArray();
+	}
+
+	/** Appends the encoded batch to out. */
+	public void encode(SampleBatch batch, BitWriter out) {
+		int channels = mSchema.getChannelCount();
+		if (batch.channels() != channels) {
+			throw new IllegalArgumentException("Batch has " + batch.channels() + " channels, schema " + channels);
+		}
+		out.writeBits(MAGIC, 16);
+		out.writeBits(VERSION, 8);
+		out.writeVarLong(channels);
+		for (int c = 0; c < channels; c++) {
+			out.writeVarLong(mSchema.getChannelId(c));
+			out.writeBits(mSchema.getEncoding(c), 8);
+			if (mSchema.getEncoding(c) == BatchSchema.ENCODING_QUANTIZED) {
+				out.writeBits(Float.floatToRawIntBits(mSchema.getQuantizationStep(c)), 32);
+			}
+		}
+		int rows = batch.size();
+		out.writeVarLong(rows);
+		if (rows > 0) {
+			writeTimestamps(batch.timestamps(), rows, out);
+			for (int c = 0; c < channels; c++) {
+				switch (mSchema.getEncoding(c)) {
+				case BatchSchema.ENCODING_QUANTIZED:
+					writeQuantized(batch.column(c), rows, mSchema.getQuantizationStep(c), out);
+					break;
+				case BatchSchema.ENCODING_XOR:
+					writeXor(batch.column(c), rows, out);
+					break;
+				default:
+					for (int i = 0; i < rows; i++) {
+						out.writeBits(Float.floatToRawIntBits(batch.column(c)[i]), 32);
+					}
+					break;
+				}
+			}
+		}
+		out.alignToByte();
+	}
+
+	private static void writeTimestamps(long[] timestamps, int rows, BitWriter out) {
+		out.writeBits(timestamps[0], 64);
+		long previousDelta = 0;
+		for (int i = 1; i < rows; i++) {
+			long delta = timestamps[i] - timestamps[i - 1];
+			writeSigned(delta - previousDelta, out);
+			previousDelta = delta;
+		}
+	}
+
+	private static void writeQuantized(float[] values, int rows, float step, BitWriter out) {
+		long previous = 0;
+		for (int i = 0; i < rows; i++) {
+			long quantized = Math.round((double) values[i] / step);
+			writeSigned(quantized - previous, out);
+			previous = quantized;
+		}
+	}
+
+	private static void writeXor(float[] values, int rows, BitWriter out) {
+		int previous = Float.floatToRawIntBits(values[0]);
+		out.writeBits(previous, 32);
+		int windowLeading = -1;
+		int windowTrailing = 0;
+		for (int i = 1; i < rows; i++) {
+			int bits = Float.floatToRawIntBits(values[i]);
+			int xor = bits ^ previous;
+			previous = bits;
+			if (xor == 0) {
+				out.writeBits(0, 1);
+				continue;
+			}
+			int leading = Math.min(Integer.numberOfLeadingZeros(xor), 31);
+			int trailing = Integer.numberOfTrailingZeros(xor);
+			if (windowLeading >= 0 && leading >= windowLeading && trailing >= windowTrailing) {
+				// Fits the previous window: 10 + the window's bits.
+				out.writeBits(2, 2);
+				out.writeBits(xor >>> windowTrailing, 32 - windowLeading - windowTrailing);
+			} else {
+				int significant = 32 - leading - trailing;
+				out.writeBits(3, 2);
+				out.writeBits(leading, 5);
+				out.writeBits(significant - 1, 5);
+				out.writeBits(xor >>> trailing, significant);
+				windowLeading = leading;
+				windowTrailing = trailing;
+			}
+		}
+	}
+
+	/** Zigzag maps value and writes it with the prefix code. */
+	static void writeSigned(long value, BitWriter out) {
+		long zigzag = (value << 1) ^ (value >> 63);
+		if (zigzag == 0) {
+			out.writeBits(0, 1);
+		} else if (zigzag >>> 7 == 0) {
+			out.writeBits(2, 2);
+			out.writeBits(zigzag, 7);
+		} else if (zigzag >>> 9 == 0) {
+			out.writeBits(6, 3);
+			out.writeBits(zigzag, 9);
+		} else if (zigzag >>> 12 == 0) {
+			out.writeBits(14, 4);
+			out.writeBits(zigzag, 12);
+		} else {
+			out.writeBits(15, 4);
+			out.writeBits(zigzag, 64);
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package edu.gatech.ubicomp.glim.data.codec;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a binary batch is truncated, has an unknown version or is otherwise malformed.
+ */
+public class BatchFormatException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public BatchFormatException(String message) {
+		super(message);
+	}
+}
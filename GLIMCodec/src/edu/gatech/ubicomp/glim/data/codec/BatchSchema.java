@@ -0,0 +1,78 @@
+package edu.gatech.ubicomp.glim.data.codec;
+
+/**
+ * Channels of a binary batch and how each value column is encoded. The schema
+ * is written at the start of every batch, so decoders need no prior agreement.
+ */
+public class BatchSchema {
+
+	/** 32 bit IEEE floats, lossless. */
+	public static final int ENCODING_RAW = 0;
+	/** Multiples of a fixed step, delta coded; loses up to half a step. */
+	public static final int ENCODING_QUANTIZED = 1;
+	/** XOR with the previous value (Gorilla style), lossless. */
+	public static final int ENCODING_XOR = 2;
+
+	/** Channel ids GLIM uses. */
+	public static final int CHANNEL_EDA = 1;
+	public static final int CHANNEL_TONIC = 2;
+	public static final int CHANNEL_PHASIC = 3;
+	public static final int CHANNEL_HEART_RATE = 4;
+	public static final int CHANNEL_ANNOTATION = 16;
+
+	public static final int MAX_CHANNELS = 64;
+
+	private final int[] mIds = new int[MAX_CHANNELS];
+	private final int[] mEncodings = new int[MAX_CHANNELS];
+	private final float[] mSteps = new float[MAX_CHANNELS];
+	private int mCount;
+
+	/**
+	 * @param step quantization step, only used by ENCODING_QUANTIZED
+	 */
+	public void addChannel(int id, int encoding, float step) {
+		if (mCount == MAX_CHANNELS) {
+			throw new IllegalStateException("Too many channels");
+		}
+		if (encoding < ENCODING_RAW || encoding > ENCODING_XOR) {
+			throw new IllegalArgumentException("Unknown encoding " + encoding);
+		}
+		if (encoding == ENCODING_QUANTIZED && !(step > 0)) {
+			throw new IllegalArgumentException("Quantization step must be positive: " + step);
+		}
+		mIds[mCount] = id;
+		mEncodings[mCount] = encoding;
+		mSteps[mCount] = step;
+		mCount++;
+	}
+
+	public void clear() {
+		mCount = 0;
+	}
+
+	public int getChannelCount() {
+		return mCount;
+	}
+
+	public int getChannelId(int channel) {
+		return mIds[channel];
+	}
+
+	public int getEncoding(int channel) {
+		return mEncodings[channel];
+	}
+
+	public float getQuantizationStep(int channel) {
+		return mSteps[channel];
+	}
+
+	/** @return the channel with the given id, or -1 */
+	public int indexOf(int id) {
+		for (int i = 0; i < mCount; i++) {
+			if (mIds[i] == id) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,75 @@
+package edu.gatech.ubicomp.glim.data.codec;
+
+/**
+ * Reads the bit fields written by {@link BitWriter}.
+ */
+public class BitReader {
+
+	private byte[] mBuffer;
+	private int mEnd;
+	private int mBytePosition;
+	private int mBitOffset;
+
+	public BitReader() {
+	}
+
+	public BitReader(byte[] buffer, int offset, int length) {
+		setInput(buffer, offset, length);
+	}
+
+	public void setInput(byte[] buffer, int offset, int length) {
+		mBuffer = buffer;
+		mBytePosition = offset;
+		mEnd = offset + length;
+		mBitOffset = 0;
+	}
+
+	public boolean readBit() throws BatchFormatException {
+		return readBits(1) != 0;
+	}
+
+	/** Reads count bits, count from 0 to 64. */
+	public long readBits(int count) throws BatchFormatException {
+		long value = 0;
+		while (count > 0) {
+			if (mBytePosition >= mEnd) {
+				throw new BatchFormatException("Batch truncated");
+			}
+			int available = 8 - mBitOffset;
+			int take = Math.min(count, available);
+			int bits = ((mBuffer[mBytePosition] & 0xFF) >>> (available - take)) & ((1 << take) - 1);
+			value = (value << take) | bits;
+			mBitOffset += take;
+			count -= take;
+			if (mBitOffset == 8) {
+				mBytePosition++;
+				mBitOffset = 0;
+			}
+		}
+		return value;
+	}
+
+	public long readVarLong() throws BatchFormatException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			long group = readBits(8);
+			value |= (group & 0x7F) << shift;
+			if ((group & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new BatchFormatException("Varint too long");
+	}
+
+	public void alignToByte() {
+		if (mBitOffset != 0) {
+			mBytePosition++;
+			mBitOffset = 0;
+		}
+	}
+
+	/** Offset of the next unread byte in the input array. */
+	public int getBytePosition() {
+		return mBitOffset == 0 ? mBytePosition : mBytePosition + 1;
+	}
+}
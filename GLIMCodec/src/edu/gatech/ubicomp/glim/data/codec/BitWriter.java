@@ -0,0 +1,87 @@
+package edu.gatech.ubicomp.glim.data.codec;
+
+/**
+ * Appends bit fields, most significant bit first, to a growable byte array.
+ * Reused across batches with reset().
+ */
+public class BitWriter {
+
+	private byte[] mBuffer;
+	private int mBytePosition;
+	/** Bits still free in mBuffer[mBytePosition], 8 when it is untouched. */
+	private int mFreeBits = 8;
+
+	public BitWriter(int initialCapacity) {
+		mBuffer = new byte[Math.max(16, initialCapacity)];
+	}
+
+	public void reset() {
+		for (int i = 0; i <= mBytePosition && i < mBuffer.length; i++) {
+			mBuffer[i] = 0;
+		}
+		mBytePosition = 0;
+		mFreeBits = 8;
+	}
+
+	public void writeBit(boolean bit) {
+		writeBits(bit ? 1 : 0, 1);
+	}
+
+	/** Writes the low count bits of value, count from 0 to 64. */
+	public void writeBits(long value, int count) {
+		while (count > 0) {
+			ensureCapacity();
+			int take = Math.min(count, mFreeBits);
+			int shift = count - take;
+			int bits = (int) ((value >>> shift) & ((1L << take) - 1));
+			mBuffer[mBytePosition] |= bits << (mFreeBits - take);
+			mFreeBits -= take;
+			count -= take;
+			if (mFreeBits == 0) {
+				mBytePosition++;
+				mFreeBits = 8;
+			}
+		}
+	}
+
+	/** Unsigned LEB128 style varint, 7 bits per group. */
+	public void writeVarLong(long value) {
+		while ((value & ~0x7FL) != 0) {
+			writeBits((value & 0x7F) | 0x80, 8);
+			value >>>= 7;
+		}
+		writeBits(value, 8);
+	}
+
+	/** Pads with zero bits to the next byte boundary. */
+	public void alignToByte() {
+		if (mFreeBits != 8) {
+			mBytePosition++;
+			mFreeBits = 8;
+		}
+	}
+
+	private void ensureCapacity() {
+		if (mBytePosition >= mBuffer.length) {
+			byte[] grown = new byte[mBuffer.length * 2];
+			System.arraycopy(mBuffer, 0, grown, 0, mBuffer.length);
+			mBuffer = grown;
+		}
+	}
+
+	/** Bytes written so far, counting a partly written last byte. */
+	public int size() {
+		return mFreeBits == 8 ? mBytePosition : mBytePosition + 1;
+	}
+
+	/** The backing array, valid up to size(). */
+	public byte[] getBuffer() {
+		return mBuffer;
+	}
+
+	public byte[] toByteArray() {
+		byte[] bytes = new byte[size()];
+		System.arraycopy(mBuffer, 0, bytes, 0, bytes.length);
+		return bytes;
+	}
+}
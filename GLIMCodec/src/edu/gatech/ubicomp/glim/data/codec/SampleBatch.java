@@ -0,0 +1,89 @@
+package edu.gatech.ubicomp.glim.data.codec;
+
+/**
+ * Rows of samples sharing one timestamp column, held column by column in
+ * growable primitive arrays. Cleared and refilled between batches.
+ */
+public class SampleBatch {
+
+	private final int mChannels;
+	private long[] mTimestamps;
+	private float[][] mValues;
+	private int mSize;
+
+	public SampleBatch(int channels, int initialCapacity) {
+		mChannels = channels;
+		mTimestamps = new long[Math.max(1, initialCapacity)];
+		mValues = new float[channels][mTimestamps.length];
+	}
+
+	/** Adds a row to a one channel batch. */
+	public void add(long timestamp, float value0) {
+		int row = nextRow(timestamp);
+		mValues[0][row] = value0;
+	}
+
+	/** Adds a row; values holds one value per channel. */
+	public void add(long timestamp, float[] values) {
+		int row = nextRow(timestamp);
+		for (int c = 0; c < mChannels; c++) {
+			mValues[c][row] = values[c];
+		}
+	}
+
+	private int nextRow(long timestamp) {
+		if (mSize == mTimestamps.length) {
+			grow(mSize * 2);
+		}
+		mTimestamps[mSize] = timestamp;
+		return mSize++;
+	}
+
+	/** Makes room for size rows, used by the decoder before filling the columns. */
+	void setSize(int size) {
+		if (size > mTimestamps.length) {
+			grow(size);
+		}
+		mSize = size;
+	}
+
+	private void grow(int capacity) {
+		long[] timestamps = new long[capacity];
+		System.arraycopy(mTimestamps, 0, timestamps, 0, mSize);
+		mTimestamps = timestamps;
+		for (int c = 0; c < mChannels; c++) {
+			float[] column = new float[capacity];
+			System.arraycopy(mValues[c], 0, column, 0, mSize);
+			mValues[c] = column;
+		}
+	}
+
+	public void clear() {
+		mSize = 0;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public int channels() {
+		return mChannels;
+	}
+
+	public long getTimestamp(int row) {
+		return mTimestamps[row];
+	}
+
+	public float getValue(int channel, int row) {
+		return mValues[channel][row];
+	}
+
+	/** Column arrays, valid up to size(); for the codec. */
+	long[] timestamps() {
+		return mTimestamps;
+	}
+
+	float[] column(int channel) {
+		return mValues[channel];
+	}
+}
@@ -0,0 +1,261 @@
+package edu.gatech.ubicomp.lim.server;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import edu.gatech.ubicomp.glim.data.codec.BatchDecoder;
+import edu.gatech.ubicomp.glim.data.codec.BatchFormatException;
+import edu.gatech.ubicomp.glim.data.codec.BatchSchema;
+import edu.gatech.ubicomp.glim.data.codec.SampleBatch;
+
+/**
+ * Decodes the request bodies GLIM posts into sample and annotation rows:
+ * binary batches (CONTENT_TYPE_BINARY), or the JSON body, gzip compressed or
+ * not, whose "edasignal" string holds "timestamp,eda" rows separated by
+ * escaped newlines.
+ * 
+ * Parses straight from the body bytes and reuses its buffers, so decoding a
+ * request allocates little beyond what the binary decoder needs. Not thread
+ * safe; each partition has its own.
+ */
+public class BatchBodyDecoder {
+
+	private static final byte[] SIGNAL_KEY = ascii("\"edasignal\":\"");
+	private static final byte[] ANNOTATION_KEY = ascii("\"annotation\":");
+	private static final int GZIP_HEADER_SIZE = 10;
+	private static final int GZIP_FLAG_EXTRA = 4;
+	private static final int GZIP_FLAG_NAME = 8;
+	private static final int GZIP_FLAG_COMMENT = 16;
+	private static final int GZIP_FLAG_HEADER_CRC = 2;
+	private static final double[] POWERS_OF_TEN = new double[23];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	private final BatchDecoder mBinaryDecoder = new BatchDecoder();
+	private final Inflater mInflater = new Inflater(true);
+	private byte[] mInflated = new byte[16 * 1024];
+	private final int mMaxInflatedBytes;
+
+	/** Parse position, shared by the JSON helpers. */
+	private int mPosition;
+
+	/** @param maxInflatedBytes gzip bodies that expand beyond this are rejected */
+	public BatchBodyDecoder(int maxInflatedBytes) {
+		mMaxInflatedBytes = maxInflatedBytes;
+	}
+
+	/**
+	 * Decodes a request body, adding its rows to samples and annotations.
+	 * @throws BatchFormatException if the body cannot be decoded; rows added so far are kept
+	 */
+	public void decode(byte[] body, int length, boolean binary, boolean gzip, SampleBatch samples,
+			SampleBatch annotations) throws BatchFormatException {
+		if (binary) {
+			decodeBinary(body, length, samples, annotations);
+		} else if (gzip) {
+			int inflated = inflate(body, length);
+			decodeJson(mInflated, inflated, samples, annotations);
+		} else {
+			decodeJson(body, length, samples, annotations);
+		}
+	}
+
+	private void decodeBinary(byte[] body, int length, SampleBatch samples, SampleBatch annotations)
+			throws BatchFormatException {
+		int offset = 0;
+		while (offset < length) {
+			SampleBatch batch = mBinaryDecoder.decode(body, offset, length - offset);
+			offset = mBinaryDecoder.getEnd();
+			BatchSchema schema = mBinaryDecoder.getSchema();
+			int eda = schema.indexOf(BatchSchema.CHANNEL_EDA);
+			boolean annotation = schema.indexOf(BatchSchema.CHANNEL_ANNOTATION) >= 0;
+			for (int i = 0; i < batch.size(); i++) {
+				if (annotation) {
+					annotations.add(batch.getTimestamp(i), 0);
+				} else if (eda >= 0) {
+					samples.add(batch.getTimestamp(i), batch.getValue(eda, i));
+				}
+			}
+		}
+	}
+
+	/** Inflates a gzip member into mInflated, skipping the header and ignoring the trailer. */
+	private int inflate(byte[] body, int length) throws BatchFormatException {
+		if (length < GZIP_HEADER_SIZE || (body[0] & 0xFF) != 0x1F || (body[1] & 0xFF) != 0x8B || body[2] != 8) {
+			throw new BatchFormatException("Not gzip");
+		}
+		int flags = body[3];
+		int offset = GZIP_HEADER_SIZE;
+		if ((flags & GZIP_FLAG_EXTRA) != 0) {
+			offset += 2 + ((body[offset] & 0xFF) | (body[offset + 1] & 0xFF) << 8);
+		}
+		if ((flags & GZIP_FLAG_NAME) != 0) {
+			while (offset < length && body[offset++] != 0) {
+			}
+		}
+		if ((flags & GZIP_FLAG_COMMENT) != 0) {
+			while (offset < length && body[offset++] != 0) {
+			}
+		}
+		if ((flags & GZIP_FLAG_HEADER_CRC) != 0) {
+			offset += 2;
+		}
+		if (offset >= length) {
+			throw new BatchFormatException("Truncated gzip header");
+		}
+		mInflater.reset();
+		mInflater.setInput(body, offset, length - offset);
+		int size = 0;
+		try {
+			while (!mInflater.finished()) {
+				if (size == mInflated.length) {
+					if (size >= mMaxInflatedBytes) {
+						throw new BatchFormatException("Body inflates beyond " + mMaxInflatedBytes + " bytes");
+					}
+					byte[] grown = new byte[Math.min(size * 2, mMaxInflatedBytes)];
+					System.arraycopy(mInflated, 0, grown, 0, size);
+					mInflated = grown;
+				}
+				int count = mInflater.inflate(mInflated, size, mInflated.length - size);
+				if (count == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+					throw new BatchFormatException("Truncated gzip body");
+				}
+				size += count;
+			}
+		} catch (DataFormatException e) {
+			throw new BatchFormatException("Bad gzip body: " + e.getMessage());
+		}
+		return size;
+	}
+
+	private void decodeJson(byte[] json, int length, SampleBatch samples, SampleBatch annotations)
+			throws BatchFormatException {
+		int signal = indexOf(json, length, SIGNAL_KEY, 0);
+		if (signal >= 0) {
+			mPosition = signal + SIGNAL_KEY.length;
+			if (mPosition < length && json[mPosition] == '{') {
+				mPosition++;
+			}
+			while (mPosition < length && json[mPosition] != '}' && json[mPosition] != '"') {
+				long timestamp = parseLong(json, length);
+				expect(json, length, ',');
+				float value = (float) parseDouble(json, length);
+				samples.add(timestamp, value);
+				// Rows are separated by an escaped newline, a backslash and an 'n'.
+				if (mPosition + 1 < length && json[mPosition] == '\\' && json[mPosition + 1] == 'n') {
+					mPosition += 2;
+				}
+			}
+		}
+		int annotation = indexOf(json, length, ANNOTATION_KEY, 0);
+		if (annotation >= 0) {
+			mPosition = annotation + ANNOTATION_KEY.length;
+			if (mPosition < length && json[mPosition] == '[') {
+				mPosition++;
+				while (mPosition < length && json[mPosition] != ']') {
+					annotations.add(parseLong(json, length), 0);
+					if (mPosition < length && json[mPosition] == ',') {
+						mPosition++;
+					}
+				}
+			} else {
+				annotations.add(parseLong(json, length), 0);
+			}
+		}
+	}
+
+	private void expect(byte[] data, int length, char c) throws BatchFormatException {
+		if (mPosition >= length || data[mPosition] != c) {
+			throw new BatchFormatException("Expected '" + c + "' at " + mPosition);
+		}
+		mPosition++;
+	}
+
+	private long parseLong(byte[] data, int length) throws BatchFormatException {
+		int start = mPosition;
+		boolean negative = mPosition < length && data[mPosition] == '-';
+		if (negative) {
+			mPosition++;
+		}
+		long value = 0;
+		while (mPosition < length && data[mPosition] >= '0' && data[mPosition] <= '9') {
+			value = value * 10 + (data[mPosition++] - '0');
+		}
+		if (mPosition == start + (negative ? 1 : 0) || mPosition - start > 19) {
+			throw new BatchFormatException("Expected an integer at " + start);
+		}
+		return negative ? -value : value;
+	}
+
+	/** Parses the decimal notation Float.toString() produces, exponent included. */
+	private double parseDouble(byte[] data, int length) throws BatchFormatException {
+		int start = mPosition;
+		boolean negative = mPosition < length && data[mPosition] == '-';
+		if (negative) {
+			mPosition++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int scale = 0;
+		boolean fraction = false;
+		for (; mPosition < length; mPosition++) {
+			byte b = data[mPosition];
+			if (b >= '0' && b <= '9') {
+				// Digits past the 18th cannot change a float.
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (b - '0');
+					digits += mantissa > 0 ? 1 : 0;
+					scale -= fraction ? 1 : 0;
+				} else if (!fraction) {
+					scale++;
+				}
+			} else if (b == '.' && !fraction) {
+				fraction = true;
+			} else {
+				break;
+			}
+		}
+		if (mPosition == start + (negative ? 1 : 0)) {
+			throw new BatchFormatException("Expected a number at " + start);
+		}
+		if (mPosition < length && (data[mPosition] == 'E' || data[mPosition] == 'e')) {
+			mPosition++;
+			if (mPosition < length && data[mPosition] == '+') {
+				mPosition++;
+			}
+			scale += (int) parseLong(data, length);
+		}
+		double value = mantissa;
+		if (scale < 0) {
+			value = -scale < POWERS_OF_TEN.length ? value / POWERS_OF_TEN[-scale] : value / Math.pow(10, -scale);
+		} else if (scale > 0) {
+			value = scale < POWERS_OF_TEN.length ? value * POWERS_OF_TEN[scale] : value * Math.pow(10, scale);
+		}
+		return negative ? -value : value;
+	}
+
+	private static int indexOf(byte[] data, int length, byte[] key, int from) {
+		outer: for (int i = from; i <= length - key.length; i++) {
+			for (int k = 0; k < key.length; k++) {
+				if (data[i + k] != key[k]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static byte[] ascii(String s) {
+		byte[] bytes = new byte[s.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) s.charAt(i);
+		}
+		return bytes;
+	}
+}
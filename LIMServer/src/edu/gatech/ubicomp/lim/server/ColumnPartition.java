@@ -0,0 +1,128 @@
+package edu.gatech.ubicomp.lim.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One hour of one series of one subject: a data file of chunks and an index
+ * file with one fixed size entry per chunk, read through memory maps.
+ *
+ * <pre>
+ * start.col   chunks, each a binary batch (see BatchEncoder) of one channel
+ * start.idx   32 bit magic "GLCI", 32 bit version, then per chunk:
+ *             64 bit data offset, 32 bit length, 32 bit rows,
+ *             64 bit first and last time, 32 bit float min and max value
+ * </pre>
+ *
+ * A chunk's index entry is written after its data, so a reader never sees
+ * an entry for a chunk that is not complete.
+ */
+class ColumnPartition {
+
+	static final String DATA_SUFFIX = ".col";
+	static final String INDEX_SUFFIX = ".idx";
+	static final int INDEX_MAGIC = 0x474C4349;
+	static final int INDEX_VERSION = 1;
+	static final int HEADER_BYTES = 8;
+	static final int ENTRY_BYTES = 40;
+
+	private static final int OFFSET = 0;
+	private static final int LENGTH = 8;
+	private static final int ROWS = 12;
+	private static final int MIN_TIME = 16;
+	private static final int MAX_TIME = 24;
+	private static final int MIN_VALUE = 32;
+	private static final int MAX_VALUE = 36;
+
+	private final MappedByteBuffer mIndex;
+	private final MappedByteBuffer mData;
+	private final int mChunks;
+
+	/** Maps the chunks written so far. */
+	ColumnPartition(File indexFile, File dataFile) throws IOException {
+		RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+		RandomAccessFile data = new RandomAccessFile(dataFile, "r");
+		try {
+			mIndex = index.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, index.length());
+			mData = data.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, data.length());
+		} finally {
+			index.close();
+			data.close();
+		}
+		if (mIndex.capacity() < HEADER_BYTES || mIndex.getInt(0) != INDEX_MAGIC) {
+			throw new IOException("Not a chunk index: " + indexFile);
+		}
+		if (mIndex.getInt(4) != INDEX_VERSION) {
+			throw new IOException("Unsupported chunk index version " + mIndex.getInt(4) + ": " + indexFile);
+		}
+		// An entry may be half written, or ahead of data not yet mapped.
+		int chunks = (mIndex.capacity() - HEADER_BYTES) / ENTRY_BYTES;
+		while (chunks > 0 && getOffset(chunks - 1) + getLength(chunks - 1) > mData.capacity()) {
+			chunks--;
+		}
+		mChunks = chunks;
+	}
+
+	int getChunkCount() {
+		return mChunks;
+	}
+
+	long getOffset(int chunk) {
+		return mIndex.getLong(entry(chunk) + OFFSET);
+	}
+
+	int getLength(int chunk) {
+		return mIndex.getInt(entry(chunk) + LENGTH);
+	}
+
+	int getRows(int chunk) {
+		return mIndex.getInt(entry(chunk) + ROWS);
+	}
+
+	long getMinTime(int chunk) {
+		return mIndex.getLong(entry(chunk) + MIN_TIME);
+	}
+
+	long getMaxTime(int chunk) {
+		return mIndex.getLong(entry(chunk) + MAX_TIME);
+	}
+
+	float getMinValue(int chunk) {
+		return mIndex.getFloat(entry(chunk) + MIN_VALUE);
+	}
+
+	float getMaxValue(int chunk) {
+		return mIndex.getFloat(entry(chunk) + MAX_VALUE);
+	}
+
+	private static int entry(int chunk) {
+		return HEADER_BYTES + chunk * ENTRY_BYTES;
+	}
+
+	/**
+	 * Copies a chunk's bytes out of the map.
+	 * @return buffer, or a larger array if the chunk does not fit
+	 */
+	byte[] readChunk(int chunk, byte[] buffer) {
+		int length = getLength(chunk);
+		if (buffer.length < length) {
+			buffer = new byte[Math.max(length, buffer.length * 2)];
+		}
+		mData.position((int) getOffset(chunk));
+		mData.get(buffer, 0, length);
+		return buffer;
+	}
+
+	/** Writes an index entry into entry, which must hold ENTRY_BYTES. */
+	static void putEntry(ByteBuffer entry, long offset, int length, int rows, long minTime, long maxTime,
+			float minValue, float maxValue) {
+		entry.clear();
+		entry.putLong(offset).putInt(length).putInt(rows).putLong(minTime).putLong(maxTime).putFloat(minValue)
+				.putFloat(maxValue);
+		entry.flip();
+	}
+}
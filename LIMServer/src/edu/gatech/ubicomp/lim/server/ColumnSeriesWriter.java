@@ -0,0 +1,170 @@
+package edu.gatech.ubicomp.lim.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import edu.gatech.ubicomp.glim.data.codec.BatchEncoder;
+import edu.gatech.ubicomp.glim.data.codec.BitWriter;
+import edu.gatech.ubicomp.glim.data.codec.SampleBatch;
+
+/**
+ * Appends one subject's samples of one series to the partition files of
+ * their hour. Rows are buffered until a chunk is full, then encoded and
+ * written with their index entry.
+ *
+ * Opening a partition that was written before drops anything after its last
+ * complete chunk, such as the tail of a crashed writer.
+ */
+class ColumnSeriesWriter {
+
+	private final File mDirectory;
+	private final BatchEncoder mEncoder;
+	private final BitWriter mOut;
+	private final int mChunkRows;
+	private final SampleBatch mBuffer;
+	private final ByteBuffer mEntry = ByteBuffer.allocate(ColumnPartition.ENTRY_BYTES);
+
+	private long mPartition = Long.MIN_VALUE;
+	private FileChannel mData;
+	private FileChannel mIndex;
+	private long mDataEnd;
+	private long mIndexEnd;
+	private long mBufferedSince;
+
+	/**
+	 * @param encoder encodes the series' single channel
+	 * @param out scratch space for encoded chunks, shared by the writers of a store
+	 */
+	ColumnSeriesWriter(File directory, BatchEncoder encoder, BitWriter out, int chunkRows) {
+		mDirectory = directory;
+		mEncoder = encoder;
+		mOut = out;
+		mChunkRows = chunkRows;
+		mBuffer = new SampleBatch(1, chunkRows);
+	}
+
+	void append(long timestamp, float value) throws IOException {
+		long partition = ColumnStore.partitionOf(timestamp);
+		if (partition != mPartition) {
+			writeChunk();
+			openPartition(partition);
+		}
+		if (mBuffer.size() == 0) {
+			mBufferedSince = System.currentTimeMillis();
+		}
+		mBuffer.add(timestamp, value);
+		if (mBuffer.size() == mChunkRows) {
+			writeChunk();
+		}
+	}
+
+	/** Wall clock time the oldest buffered row was appended. */
+	long getBufferedSince() {
+		return mBufferedSince;
+	}
+
+	/** Rows appended but not yet written as a chunk. */
+	SampleBatch getBuffer() {
+		return mBuffer;
+	}
+
+	/** Writes the buffered rows as a chunk, however few. */
+	void writeChunk() throws IOException {
+		int rows = mBuffer.size();
+		if (rows == 0) {
+			return;
+		}
+		long minTime = Long.MAX_VALUE, maxTime = Long.MIN_VALUE;
+		float minValue = Float.POSITIVE_INFINITY, maxValue = Float.NEGATIVE_INFINITY;
+		for (int i = 0; i < rows; i++) {
+			long time = mBuffer.getTimestamp(i);
+			float value = mBuffer.getValue(0, i);
+			minTime = Math.min(minTime, time);
+			maxTime = Math.max(maxTime, time);
+			minValue = Math.min(minValue, value);
+			maxValue = Math.max(maxValue, value);
+		}
+		mOut.reset();
+		mEncoder.encode(mBuffer, mOut);
+		int length = mOut.size();
+		writeFully(mData, ByteBuffer.wrap(mOut.getBuffer(), 0, length), mDataEnd);
+		ColumnPartition.putEntry(mEntry, mDataEnd, length, rows, minTime, maxTime, minValue, maxValue);
+		writeFully(mIndex, mEntry, mIndexEnd);
+		mDataEnd += length;
+		mIndexEnd += ColumnPartition.ENTRY_BYTES;
+		mBuffer.clear();
+	}
+
+	private void openPartition(long partition) throws IOException {
+		closeFiles();
+		mDirectory.mkdirs();
+		String name = Long.toString(partition);
+		mIndex = new RandomAccessFile(new File(mDirectory, name + ColumnPartition.INDEX_SUFFIX), "rw").getChannel();
+		mData = new RandomAccessFile(new File(mDirectory, name + ColumnPartition.DATA_SUFFIX), "rw").getChannel();
+		ByteBuffer header = ByteBuffer.allocate(ColumnPartition.HEADER_BYTES);
+		long chunks = 0;
+		if (mIndex.size() < ColumnPartition.HEADER_BYTES) {
+			header.putInt(ColumnPartition.INDEX_MAGIC).putInt(ColumnPartition.INDEX_VERSION).flip();
+			writeFully(mIndex, header, 0);
+		} else {
+			mIndex.read(header, 0);
+			if (header.getInt(0) != ColumnPartition.INDEX_MAGIC) {
+				closeFiles();
+				throw new IOException("Not a chunk index in " + mDirectory + ": " + name);
+			}
+			chunks = (mIndex.size() - ColumnPartition.HEADER_BYTES) / ColumnPartition.ENTRY_BYTES;
+		}
+		// Keep the chunks whose data made it to disk along with their entry.
+		long dataEnd = 0;
+		long dataSize = mData.size();
+		while (chunks > 0) {
+			mEntry.clear();
+			mIndex.read(mEntry, ColumnPartition.HEADER_BYTES + (chunks - 1) * ColumnPartition.ENTRY_BYTES);
+			dataEnd = mEntry.getLong(0) + mEntry.getInt(8);
+			if (dataEnd <= dataSize) {
+				break;
+			}
+			dataEnd = 0;
+			chunks--;
+		}
+		mIndexEnd = ColumnPartition.HEADER_BYTES + chunks * ColumnPartition.ENTRY_BYTES;
+		mDataEnd = dataEnd;
+		mIndex.truncate(mIndexEnd);
+		mData.truncate(mDataEnd);
+		mPartition = partition;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	void close() throws IOException {
+		try {
+			if (mData != null) {
+				writeChunk();
+			}
+		} finally {
+			closeFiles();
+		}
+	}
+
+	private void closeFiles() throws IOException {
+		try {
+			if (mData != null) {
+				mData.close();
+			}
+		} finally {
+			mData = null;
+			mPartition = Long.MIN_VALUE;
+			if (mIndex != null) {
+				mIndex.close();
+				mIndex = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package edu.gatech.ubicomp.lim.server;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.gatech.ubicomp.glim.data.codec.BatchDecoder;
+import edu.gatech.ubicomp.glim.data.codec.BatchEncoder;
+import edu.gatech.ubicomp.glim.data.codec.BatchFormatException;
+import edu.gatech.ubicomp.glim.data.codec.BatchSchema;
+import edu.gatech.ubicomp.glim.data.codec.BitWriter;
+import edu.gatech.ubicomp.glim.data.codec.SampleBatch;
+
+/**
+ * Compressed time series storage for every subject's EDA, heart rate and
+ * annotations, laid out as root/subject/series/hourStart.col and .idx.
+ *
+ * Each series is stored in chunks of up to CHUNK_ROWS rows encoded as binary
+ * batches: delta-of-delta timestamps, and per series either Gorilla style
+ * XOR values or, for EDA, deltas of the value in steps of the Q sensor's
+ * 0.001 uS resolution. The index of every hour keeps each chunk's time and
+ * value range, so scans decode only the chunks they need.
+ *
+ * A store is used by one thread. Another store on the same root can scan
+ * while this one writes, and sees the chunks written so far.
+ */
+public class ColumnStore {
+
+	public static final long PARTITION_MS = 60 * 60 * 1000L;
+	public static final int CHUNK_ROWS = 1024;
+	/** Buffered rows older than this are written as a chunk on flush(). */
+	public static final long MAX_BUFFER_MS = 30 * 1000L;
+	public static final int MAX_OPEN_WRITERS = 256;
+
+	private final File mRoot;
+	private final Series[] mSeries = new Series[BatchSchema.MAX_CHANNELS];
+	private final LinkedHashMap<String, ColumnSeriesWriter> mWriters = new LinkedHashMap<String, ColumnSeriesWriter>(
+			16, 0.75f, true);
+	private final BitWriter mOut = new BitWriter(8 * 1024);
+	private final BatchDecoder mDecoder = new BatchDecoder();
+	private SampleBatch mChunk = new SampleBatch(1, CHUNK_ROWS);
+	private byte[] mChunkBytes = new byte[8 * 1024];
+
+	private long mChunksRead;
+	private long mChunksSkipped;
+
+	public ColumnStore(File root) {
+		mRoot = root;
+		root.mkdirs();
+		addSeries(BatchSchema.CHANNEL_EDA, "eda", BatchSchema.ENCODING_QUANTIZED, 0.001f);
+		addSeries(BatchSchema.CHANNEL_HEART_RATE, "hr", BatchSchema.ENCODING_XOR, 0);
+		addSeries(BatchSchema.CHANNEL_ANNOTATION, "annotation", BatchSchema.ENCODING_XOR, 0);
+	}
+
+	/**
+	 * Stores channel as its own series, or changes how it is encoded from now on.
+	 * @param step quantization step, only used by ENCODING_QUANTIZED
+	 */
+	public void addSeries(int channel, String name, int encoding, float step) {
+		BatchSchema schema = new BatchSchema();
+		schema.addChannel(channel, encoding, step);
+		int slot = slotOf(channel);
+		if (slot < 0) {
+			slot = Arrays.asList(mSeries).indexOf(null);
+			if (slot < 0) {
+				throw new IllegalStateException("Too many series");
+			}
+		}
+		mSeries[slot] = new Series(channel, name, new BatchEncoder(schema));
+	}
+
+	private int slotOf(int channel) {
+		for (int i = 0; i < mSeries.length && mSeries[i] != null; i++) {
+			if (mSeries[i].channel == channel) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private Series series(int channel) {
+		int slot = slotOf(channel);
+		if (slot < 0) {
+			throw new IllegalArgumentException("No series for channel " + channel);
+		}
+		return mSeries[slot];
+	}
+
+	/** Start of the partition holding timestamp. */
+	static long partitionOf(long timestamp) {
+		return timestamp - ((timestamp % PARTITION_MS) + PARTITION_MS) % PARTITION_MS;
+	}
+
+	public void append(String subject, int channel, long timestamp, float value) throws IOException {
+		writer(subject, series(channel)).append(timestamp, value);
+	}
+
+	/** Appends the rows of a one channel batch. */
+	public void append(String subject, int channel, SampleBatch batch) throws IOException {
+		if (batch.size() == 0) {
+			return;
+		}
+		ColumnSeriesWriter writer = writer(subject, series(channel));
+		for (int i = 0; i < batch.size(); i++) {
+			writer.append(batch.getTimestamp(i), batch.getValue(0, i));
+		}
+	}
+
+	private ColumnSeriesWriter writer(String subject, Series series) throws IOException {
+		String key = subject + '\n' + series.name;
+		ColumnSeriesWriter writer = mWriters.get(key);
+		if (writer == null) {
+			if (mWriters.size() >= MAX_OPEN_WRITERS) {
+				Iterator<Map.Entry<String, ColumnSeriesWriter>> eldest = mWriters.entrySet().iterator();
+				ColumnSeriesWriter evicted = eldest.next().getValue();
+				eldest.remove();
+				evicted.close();
+			}
+			writer = new ColumnSeriesWriter(directory(subject, series), series.encoder, mOut, CHUNK_ROWS);
+			mWriters.put(key, writer);
+		}
+		return writer;
+	}
+
+	private File directory(String subject, Series series) {
+		return new File(new File(mRoot, CsvIngestSink.fileName(subject)), series.name);
+	}
+
+	/**
+	 * Writes rows buffered for longer than MAX_BUFFER_MS as chunks, which
+	 * bounds what a crash loses without making chunks small under light load.
+	 */
+	public void flush() throws IOException {
+		long now = System.currentTimeMillis();
+		for (ColumnSeriesWriter writer : mWriters.values()) {
+			if (writer.getBuffer().size() > 0 && now - writer.getBufferedSince() >= MAX_BUFFER_MS) {
+				writer.writeChunk();
+			}
+		}
+	}
+
+	/** Writes every buffered row and closes all files. */
+	public void close() throws IOException {
+		IOException error = null;
+		for (ColumnSeriesWriter writer : mWriters.values()) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+		mWriters.clear();
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * Adds the subject's rows with from <= time < to to out, including rows
+	 * this store has buffered but not written yet. Rows come in the order they
+	 * were appended, which is time order unless data arrived late.
+	 * @return rows added
+	 */
+	public int scan(String subject, int channel, long from, long to, SampleBatch out) throws IOException {
+		return scan(subject, channel, from, to, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, out);
+	}
+
+	/**
+	 * Like scan(subject, channel, from, to, out), but only adds rows with
+	 * minValue <= value <= maxValue. Chunks whose value range misses that
+	 * interval are skipped without decoding.
+	 */
+	public int scan(String subject, int channel, long from, long to, float minValue, float maxValue, SampleBatch out)
+			throws IOException {
+		Series series = series(channel);
+		File directory = directory(subject, series);
+		int added = 0;
+		for (long partition : partitions(directory, from, to)) {
+			String name = Long.toString(partition);
+			ColumnPartition chunks = new ColumnPartition(new File(directory, name + ColumnPartition.INDEX_SUFFIX),
+					new File(directory, name + ColumnPartition.DATA_SUFFIX));
+			for (int c = 0; c < chunks.getChunkCount(); c++) {
+				if (chunks.getMaxTime(c) < from || chunks.getMinTime(c) >= to || chunks.getMaxValue(c) < minValue
+						|| chunks.getMinValue(c) > maxValue) {
+					mChunksSkipped++;
+					continue;
+				}
+				mChunksRead++;
+				mChunkBytes = chunks.readChunk(c, mChunkBytes);
+				try {
+					mChunk = mDecoder.decode(mChunkBytes, 0, chunks.getLength(c), mChunk);
+				} catch (BatchFormatException e) {
+					throw new IOException("Bad chunk " + c + " in " + directory + ": " + name + ": " + e.getMessage());
+				}
+				added += select(mChunk, from, to, minValue, maxValue, out);
+			}
+		}
+		ColumnSeriesWriter writer = mWriters.get(subject + '\n' + series.name);
+		if (writer != null) {
+			added += select(writer.getBuffer(), from, to, minValue, maxValue, out);
+		}
+		return added;
+	}
+
+	private static int select(SampleBatch rows, long from, long to, float minValue, float maxValue, SampleBatch out) {
+		int added = 0;
+		for (int i = 0; i < rows.size(); i++) {
+			long time = rows.getTimestamp(i);
+			float value = rows.getValue(0, i);
+			if (time >= from && time < to && value >= minValue && value <= maxValue) {
+				out.add(time, value);
+				added++;
+			}
+		}
+		return added;
+	}
+
+	/** Starts of the partitions in directory that may hold rows in [from, to), in order. */
+	private static long[] partitions(File directory, long from, long to) {
+		String[] names = directory.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(ColumnPartition.INDEX_SUFFIX);
+			}
+		});
+		if (names == null) {
+			return new long[0];
+		}
+		long[] starts = new long[names.length];
+		int count = 0;
+		for (String name : names) {
+			try {
+				long start = Long.parseLong(name.substring(0, name.length() - ColumnPartition.INDEX_SUFFIX.length()));
+				if (start < to && start + PARTITION_MS > from) {
+					starts[count++] = start;
+				}
+			} catch (NumberFormatException e) {
+				// Not a partition.
+			}
+		}
+		starts = Arrays.copyOf(starts, count);
+		Arrays.sort(starts);
+		return starts;
+	}
+
+	/** Chunks decoded by scans so far. */
+	public long getChunksRead() {
+		return mChunksRead;
+	}
+
+	/** Chunks scans passed over using the index alone. */
+	public long getChunksSkipped() {
+		return mChunksSkipped;
+	}
+
+	private static class Series {
+		final int channel;
+		final String name;
+		final BatchEncoder encoder;
+
+		Series(int channel, String name, BatchEncoder encoder) {
+			this.channel = channel;
+			this.name = name;
+			this.encoder = encoder;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package edu.gatech.ubicomp.lim.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import edu.gatech.ubicomp.glim.data.codec.BatchSchema;
+import edu.gatech.ubicomp.glim.data.codec.SampleBatch;
+
+/**
+ * Writes hours of synthetic 32 Hz EDA and per packet heart rate for a few
+ * subjects into a {@link ColumnStore}, then reports bytes per sample and
+ * how long scans of one subject's hour take.
+ *
+ * Usage: ColumnStoreBenchmark dir [hours] [subjects]
+ */
+public class ColumnStoreBenchmark {
+
+	private static final int SAMPLE_PERIOD_MS = 1000 / 32;
+	private static final int HR_PERIOD_MS = 1000;
+	private static final int SCAN_RUNS = 50;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: ColumnStoreBenchmark dir [hours] [subjects]");
+			System.exit(1);
+		}
+		File root = new File(args[0]);
+		int hours = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int subjects = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		long start = ColumnStore.partitionOf(1392300000000L);
+		long end = start + hours * ColumnStore.PARTITION_MS;
+
+		ColumnStore store = new ColumnStore(root);
+		Random random = new Random(42);
+		long edaSamples = 0, hrSamples = 0;
+		long started = System.nanoTime();
+		for (int s = 0; s < subjects; s++) {
+			String subject = "subject-" + s;
+			float eda = 0.45f;
+			long nextHr = start;
+			float hr = 72;
+			for (long time = start; time < end;) {
+				eda += (float) (random.nextGaussian() * 0.002);
+				if (random.nextInt(400) == 0) {
+					eda += 0.05f;
+				}
+				eda = Math.max(0.01f, eda);
+				// The Q sensor reports three decimals.
+				store.append(subject, BatchSchema.CHANNEL_EDA, time, Math.round(eda * 1000) / 1000f);
+				edaSamples++;
+				if (time >= nextHr) {
+					hr = Math.max(50, Math.min(180, hr + random.nextInt(3) - 1));
+					store.append(subject, BatchSchema.CHANNEL_HEART_RATE, time, hr);
+					hrSamples++;
+					nextHr += HR_PERIOD_MS;
+				}
+				time += SAMPLE_PERIOD_MS + (random.nextInt(8) == 0 ? random.nextInt(3) - 1 : 0);
+			}
+		}
+		store.close();
+		double writeSeconds = (System.nanoTime() - started) / 1e9;
+
+		long edaBytes = 0, hrBytes = 0;
+		for (int s = 0; s < subjects; s++) {
+			File subjectDirectory = new File(root, "subject-" + s);
+			edaBytes += size(new File(subjectDirectory, "eda"));
+			hrBytes += size(new File(subjectDirectory, "hr"));
+		}
+		System.out.printf("wrote %d EDA and %d HR samples in %.2f s (%.0f samples/s)%n", edaSamples, hrSamples,
+				writeSeconds, (edaSamples + hrSamples) / writeSeconds);
+		System.out.printf("EDA %.3f bytes/sample, HR %.3f bytes/sample, including the index%n",
+				(double) edaBytes / edaSamples, (double) hrBytes / hrSamples);
+
+		ColumnStore reader = new ColumnStore(root);
+		SampleBatch out = new SampleBatch(1, 128 * 1024);
+		long hourStart = start + (hours / 2) * ColumnStore.PARTITION_MS;
+		scan(reader, "one hour", hourStart, hourStart + ColumnStore.PARTITION_MS, Float.NEGATIVE_INFINITY, out);
+		scan(reader, "five minutes", hourStart + 20 * 60 * 1000L, hourStart + 25 * 60 * 1000L,
+				Float.NEGATIVE_INFINITY, out);
+		// A threshold most of the hour stays below, as when looking for responses.
+		out.clear();
+		reader.scan("subject-0", BatchSchema.CHANNEL_EDA, hourStart, hourStart + ColumnStore.PARTITION_MS, out);
+		float threshold = Float.NEGATIVE_INFINITY;
+		for (int i = 0; i < out.size(); i++) {
+			threshold = Math.max(threshold, out.getValue(0, i));
+		}
+		scan(reader, "one hour above " + (threshold - 0.02f), hourStart, hourStart + ColumnStore.PARTITION_MS,
+				threshold - 0.02f, out);
+	}
+
+	private static void scan(ColumnStore reader, String name, long from, long to, float minValue, SampleBatch out)
+			throws IOException {
+		long chunksRead = reader.getChunksRead();
+		long chunksSkipped = reader.getChunksSkipped();
+		int rows = 0;
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run < SCAN_RUNS; run++) {
+			out.clear();
+			long started = System.nanoTime();
+			rows = reader.scan("subject-0", BatchSchema.CHANNEL_EDA, from, to, minValue, Float.POSITIVE_INFINITY, out);
+			best = Math.min(best, System.nanoTime() - started);
+		}
+		System.out.printf("scan %s: %d rows in %.3f ms, %d chunks decoded, %d skipped%n", name, rows, best / 1e6,
+				(reader.getChunksRead() - chunksRead) / SCAN_RUNS, (reader.getChunksSkipped() - chunksSkipped)
+						/ SCAN_RUNS);
+	}
+
+	private static long size(File directory) {
+		long size = 0;
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				size += file.length();
+			}
+		}
+		return size;
+	}
+}
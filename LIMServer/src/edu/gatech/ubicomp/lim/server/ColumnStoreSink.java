@@ -0,0 +1,34 @@
+package edu.gatech.ubicomp.lim.server;
+
+import java.io.File;
+import java.io.IOException;
+
+import edu.gatech.ubicomp.glim.data.codec.BatchSchema;
+import edu.gatech.ubicomp.glim.data.codec.SampleBatch;
+
+/**
+ * Stores every subject's uploads in a {@link ColumnStore}: samples as the EDA
+ * series and annotation times as the annotation series. Glass only uploads
+ * EDA, so no heart rate series is written.
+ */
+public class ColumnStoreSink implements IngestSink {
+
+	private final ColumnStore mStore;
+
+	public ColumnStoreSink(File root) {
+		mStore = new ColumnStore(root);
+	}
+
+	public void append(String subject, SampleBatch samples, SampleBatch annotations) throws IOException {
+		mStore.append(subject, BatchSchema.CHANNEL_EDA, samples);
+		mStore.append(subject, BatchSchema.CHANNEL_ANNOTATION, annotations);
+	}
+
+	public void flush() throws IOException {
+		mStore.flush();
+	}
+
+	public void close() throws IOException {
+		mStore.close();
+	}
+}
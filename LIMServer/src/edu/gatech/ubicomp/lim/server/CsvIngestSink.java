@@ -0,0 +1,130 @@
+package edu.gatech.ubicomp.lim.server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.gatech.ubicomp.glim.data.codec.SampleBatch;
+
+/**
+ * Appends every subject's samples to subject.csv and annotations to
+ * subject.annotations.csv in one directory, one "timestamp,eda" row per line.
+ * 
+ * Files of the most recently written subjects are kept open; the least
+ * recently used one is closed when there are more than MAX_OPEN_SUBJECTS.
+ */
+public class CsvIngestSink implements IngestSink {
+
+	public static final int MAX_OPEN_SUBJECTS = 256;
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	private final File mDirectory;
+	private final LinkedHashMap<String, OutputStream[]> mOpen = new LinkedHashMap<String, OutputStream[]>(16, 0.75f, true);
+	private final StringBuilder mLine = new StringBuilder();
+
+	public CsvIngestSink(File directory) {
+		mDirectory = directory;
+		directory.mkdirs();
+	}
+
+	public void append(String subject, SampleBatch samples, SampleBatch annotations) throws IOException {
+		OutputStream[] out = open(subject);
+		if (samples.size() > 0) {
+			write(out[0], samples, true);
+		}
+		if (annotations.size() > 0) {
+			if (out[1] == null) {
+				out[1] = new BufferedOutputStream(new FileOutputStream(
+						new File(mDirectory, fileName(subject) + ".annotations.csv"), true), 1024);
+			}
+			write(out[1], annotations, false);
+		}
+	}
+
+	private void write(OutputStream out, SampleBatch batch, boolean withValue) throws IOException {
+		for (int i = 0; i < batch.size(); i++) {
+			mLine.setLength(0);
+			mLine.append(batch.getTimestamp(i));
+			if (withValue) {
+				mLine.append(',').append(batch.getValue(0, i));
+			}
+			mLine.append('\n');
+			for (int c = 0; c < mLine.length(); c++) {
+				out.write(mLine.charAt(c));
+			}
+		}
+	}
+
+	private OutputStream[] open(String subject) throws IOException {
+		OutputStream[] out = mOpen.get(subject);
+		if (out != null) {
+			return out;
+		}
+		if (mOpen.size() >= MAX_OPEN_SUBJECTS) {
+			Iterator<Map.Entry<String, OutputStream[]>> eldest = mOpen.entrySet().iterator();
+			close(eldest.next().getValue());
+			eldest.remove();
+		}
+		out = new OutputStream[2];
+		out[0] = new BufferedOutputStream(new FileOutputStream(new File(mDirectory, fileName(subject) + ".csv"), true),
+				BUFFER_SIZE);
+		mOpen.put(subject, out);
+		return out;
+	}
+
+	/**
+	 * Subject ids come from the network; only letters, digits, '-', '_' and
+	 * '.' (but not a leading one) reach the file system. Every other
+	 * character is written as '%' and the hex of its UTF-8 bytes, '%' itself
+	 * included, so distinct subjects never share a file.
+	 */
+	static String fileName(String subject) {
+		StringBuilder name = new StringBuilder(subject.length());
+		for (int i = 0; i < subject.length(); i++) {
+			char c = subject.charAt(i);
+			boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+					|| c == '-' || c == '_' || (c == '.' && i > 0);
+			if (safe) {
+				name.append(c);
+				continue;
+			}
+			int end = Character.isHighSurrogate(c) && i + 1 < subject.length() ? i + 2 : i + 1;
+			for (byte b : subject.substring(i, end).getBytes(UTF_8)) {
+				name.append('%').append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+			}
+			i = end - 1;
+		}
+		return name.toString();
+	}
+
+	public void flush() throws IOException {
+		for (OutputStream[] out : mOpen.values()) {
+			out[0].flush();
+			if (out[1] != null) {
+				out[1].flush();
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		for (OutputStream[] out : mOpen.values()) {
+			close(out);
+		}
+		mOpen.clear();
+	}
+
+	private static void close(OutputStream[] out) throws IOException {
+		out[0].close();
+		if (out[1] != null) {
+			out[1].close();
+		}
+	}
+}
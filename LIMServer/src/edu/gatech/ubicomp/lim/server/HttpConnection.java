@@ -0,0 +1,241 @@
+package edu.gatech.ubicomp.lim.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * State of one keep-alive HTTP/1.x connection on the ingest I/O loop: parses
+ * request headers, collects the body, and writes the response. Requests are
+ * handled one at a time; the connection is not read while its request is being
+ * processed, which holds back a client that sends faster than its partition
+ * keeps up.
+ * 
+ * Only used on the I/O thread.
+ */
+class HttpConnection {
+
+	static final int READING_HEADERS = 0;
+	static final int READING_BODY = 1;
+	static final int DISCARDING_BODY = 2;
+	static final int PROCESSING = 3;
+	static final int WRITING = 4;
+
+	/** Headers must fit this buffer, request line included. */
+	static final int MAX_HEADER_BYTES = 8 * 1024;
+
+	/** Parse result of parseHeaders(). */
+	static final int HEADERS_INCOMPLETE = 0;
+	static final int HEADERS_COMPLETE = 1;
+	static final int HEADERS_TOO_LARGE = 2;
+	static final int HEADERS_MALFORMED = 3;
+
+	final SocketChannel channel;
+	final SelectionKey key;
+	final String remoteAddress;
+	private final ByteBuffer mInput = ByteBuffer.allocate(MAX_HEADER_BYTES);
+	private ByteBuffer mOutput;
+
+	int state = READING_HEADERS;
+	long lastActiveMs;
+	boolean closed;
+
+	/** Fields of the request being read. */
+	String method;
+	String path;
+	String query;
+	long contentLength;
+	boolean chunked;
+	String contentType;
+	String contentEncoding;
+	String subject;
+	boolean keepAlive;
+
+	byte[] body;
+	int bodyPosition;
+	long discardRemaining;
+	/** Budget reserved for the body, released when the request is answered. */
+	int reservedBytes;
+	boolean closeAfterResponse;
+
+	HttpConnection(SocketChannel channel, SelectionKey key, String remoteAddress, long nowMs) {
+		this.channel = channel;
+		this.key = key;
+		this.remoteAddress = remoteAddress;
+		lastActiveMs = nowMs;
+	}
+
+	/**
+	 * Reads what the socket has for the current state.
+	 * @return bytes read, -1 at the end of the stream
+	 */
+	int read() throws IOException {
+		int count;
+		if (state == READING_BODY && mInput.position() == 0) {
+			count = channel.read(ByteBuffer.wrap(body, bodyPosition, body.length - bodyPosition));
+			if (count > 0) {
+				bodyPosition += count;
+			}
+		} else {
+			count = channel.read(mInput);
+		}
+		return count;
+	}
+
+	/** True if input is buffered, e.g. a pipelined request behind the one just answered. */
+	boolean hasBufferedInput() {
+		return mInput.position() > 0;
+	}
+
+	/**
+	 * Looks for the end of the headers in the buffered input and parses them.
+	 * The bytes after the headers stay buffered for takeBody().
+	 */
+	int parseHeaders() {
+		byte[] data = mInput.array();
+		int end = -1;
+		for (int i = 3; i < mInput.position(); i++) {
+			if (data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n' && data[i - 3] == '\r') {
+				end = i + 1;
+				break;
+			}
+		}
+		if (end < 0) {
+			return mInput.hasRemaining() ? HEADERS_INCOMPLETE : HEADERS_TOO_LARGE;
+		}
+		method = null;
+		path = null;
+		query = null;
+		contentLength = -1;
+		chunked = false;
+		contentType = null;
+		contentEncoding = null;
+		subject = null;
+		int lineStart = 0;
+		boolean http11 = false;
+		Boolean connectionKeepAlive = null;
+		while (lineStart < end - 2) {
+			int lineEnd = lineStart;
+			while (data[lineEnd] != '\r' || data[lineEnd + 1] != '\n') {
+				lineEnd++;
+			}
+			if (method == null) {
+				// Request line: METHOD SP target SP HTTP/1.x
+				int space1 = indexOf(data, lineStart, lineEnd, ' ');
+				int space2 = space1 < 0 ? -1 : indexOf(data, space1 + 1, lineEnd, ' ');
+				if (space2 < 0) {
+					return HEADERS_MALFORMED;
+				}
+				method = ascii(data, lineStart, space1);
+				String target = ascii(data, space1 + 1, space2);
+				int question = target.indexOf('?');
+				path = question < 0 ? target : target.substring(0, question);
+				query = question < 0 ? null : target.substring(question + 1);
+				http11 = ascii(data, space2 + 1, lineEnd).equals("HTTP/1.1");
+			} else {
+				int colon = indexOf(data, lineStart, lineEnd, ':');
+				if (colon < 0) {
+					return HEADERS_MALFORMED;
+				}
+				String name = ascii(data, lineStart, colon).trim();
+				String value = ascii(data, colon + 1, lineEnd).trim();
+				if (name.equalsIgnoreCase("Content-Length")) {
+					try {
+						contentLength = Long.parseLong(value);
+					} catch (NumberFormatException e) {
+						return HEADERS_MALFORMED;
+					}
+				} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+					chunked = !value.equalsIgnoreCase("identity");
+				} else if (name.equalsIgnoreCase("Content-Type")) {
+					contentType = value;
+				} else if (name.equalsIgnoreCase("Content-Encoding")) {
+					contentEncoding = value;
+				} else if (name.equalsIgnoreCase(IngestServer.HEADER_SUBJECT)) {
+					subject = value;
+				} else if (name.equalsIgnoreCase("Connection")) {
+					connectionKeepAlive = value.equalsIgnoreCase("close") ? Boolean.FALSE
+							: value.equalsIgnoreCase("keep-alive") ? Boolean.TRUE : null;
+				}
+			}
+			lineStart = lineEnd + 2;
+		}
+		if (method == null) {
+			return HEADERS_MALFORMED;
+		}
+		keepAlive = connectionKeepAlive != null ? connectionKeepAlive.booleanValue() : http11;
+		consumeInput(end);
+		return HEADERS_COMPLETE;
+	}
+
+	/** Starts reading a body of the given length into a new array, using what is already buffered. */
+	void startBody(int length) {
+		body = new byte[length];
+		bodyPosition = Math.min(length, mInput.position());
+		System.arraycopy(mInput.array(), 0, body, 0, bodyPosition);
+		consumeInput(bodyPosition);
+		state = READING_BODY;
+	}
+
+	boolean isBodyComplete() {
+		return bodyPosition == body.length;
+	}
+
+	/** Skips a body the server will not process, so the connection stays usable. */
+	void startDiscard(long length) {
+		int buffered = (int) Math.min(length, mInput.position());
+		consumeInput(buffered);
+		discardRemaining = length - buffered;
+		state = DISCARDING_BODY;
+	}
+
+	/** Drops buffered input counting towards the discarded body. */
+	void discardBuffered() {
+		int buffered = (int) Math.min(discardRemaining, mInput.position());
+		consumeInput(buffered);
+		discardRemaining -= buffered;
+	}
+
+	private void consumeInput(int count) {
+		mInput.flip();
+		mInput.position(count);
+		mInput.compact();
+	}
+
+	void startResponse(byte[] response) {
+		mOutput = ByteBuffer.wrap(response);
+		state = WRITING;
+	}
+
+	/** @return true once the whole response is written */
+	boolean write() throws IOException {
+		channel.write(mOutput);
+		return !mOutput.hasRemaining();
+	}
+
+	/** Gets ready for the next request on the connection. */
+	void reset() {
+		body = null;
+		bodyPosition = 0;
+		mOutput = null;
+		state = READING_HEADERS;
+	}
+
+	private static int indexOf(byte[] data, int from, int to, char c) {
+		for (int i = from; i < to; i++) {
+			if (data[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static String ascii(byte[] data, int from, int to) {
+		char[] chars = new char[to - from];
+		for (int i = from; i < to; i++) {
+			chars[i - from] = (char) (data[i] & 0xFF);
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,29 @@
+package edu.gatech.ubicomp.lim.server;
+
+/**
+ * A complete upload request on its way from the I/O loop through a partition
+ * and back. Owned by one thread at a time.
+ */
+public class IngestRequest {
+
+	/** Connection to answer on; only touched by the I/O loop. */
+	final HttpConnection connection;
+	public final String subject;
+	public final byte[] body;
+	public final int bodyLength;
+	public final boolean binary;
+	public final boolean gzip;
+	/** When the request was complete, for latency accounting. */
+	public final long receivedNanos;
+
+	IngestRequest(HttpConnection connection, String subject, byte[] body, int bodyLength, boolean binary, boolean gzip,
+			long receivedNanos) {
+		this.connection = connection;
+		this.subject = subject;
+		this.body = body;
+		this.bodyLength = bodyLength;
+		this.binary = binary;
+		this.gzip = gzip;
+		this.receivedNanos = receivedNanos;
+	}
+}
@@ -0,0 +1,595 @@
+package edu.gatech.ubicomp.lim.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.gatech.ubicomp.glim.data.codec.SampleBatch;
+
+/**
+ * Ingest service for the batches many GLIM devices upload at once, replacing
+ * annotateglasseda.php. Accepts the same requests as StandInServer: JSON (gzip
+ * compressed or not) and binary batches.
+ *
+ * One non-blocking I/O thread accepts connections, parses requests and writes
+ * responses. Complete requests go to the partition their subject hashes to,
+ * whose single writer thread decodes and stores them, so every subject's data
+ * is written by one thread in arrival order. The subject is the
+ * X-Glim-Subject header, or the "subject" query parameter, or else the client
+ * address.
+ *
+ * Memory is bounded by the connection limit, the body size limit and a budget
+ * for the bodies of all requests in flight. Load beyond what the partitions
+ * keep up with is shed with 503 and a Retry-After header rather than queued,
+ * and no new connections are accepted while the connection limit is reached.
+ *
+ * Usage: IngestServer [-port 8080] [-out dir | -store dir] [-partitions n]
+ *   [-queue n] [-maxConnections n] [-maxInFlightMB n] [-synchrony seconds]
+ *
+ * -out appends CSV files, -store writes a {@link ColumnStore}; without
+ * either, data is decoded and discarded. -synchrony scores every pair of
+ * subjects with a {@link SynchronyEngine} over windows of that many seconds;
+ * 120 is the shortest that finds the lag of every pair in SynchronyBenchmark.
+ */
+public class IngestServer implements SubjectPartition.Completion {
+
+	public static final int DEFAULT_PORT = 8080;
+	public static final String CONTEXT_PATH = StandInServer.CONTEXT_PATH;
+	public static final String INGEST_PATH = "/ingest";
+	/** Same as UploadPipeline.HEADER_SUBJECT on Glass. */
+	public static final String HEADER_SUBJECT = "X-Glim-Subject";
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 4096;
+	public static final int DEFAULT_MAX_BODY_BYTES = 1024 * 1024;
+	public static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 64L * 1024 * 1024;
+	public static final int DEFAULT_QUEUE_CAPACITY = 256;
+	public static final long IDLE_TIMEOUT_MS = 60000;
+	/** Seconds a client is asked to wait after a 503. */
+	public static final int RETRY_AFTER_SECONDS = 1;
+
+	private static final long SELECT_TIMEOUT_MS = 1000;
+	/** Gzip bodies are small; anything inflating beyond this is not a GLIM batch. */
+	private static final int MAX_INFLATED_BYTES = 16 * 1024 * 1024;
+
+	private final int mPort;
+	private final SubjectPartition[] mPartitions;
+	private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+	private int mMaxBodyBytes = DEFAULT_MAX_BODY_BYTES;
+	private long mMaxInFlightBytes = DEFAULT_MAX_IN_FLIGHT_BYTES;
+
+	private Selector mSelector;
+	private ServerSocketChannel mServerChannel;
+	private SelectionKey mServerKey;
+	private Thread mIoThread;
+	private volatile boolean mRunning;
+	private final ConcurrentLinkedQueue<Object[]> mCompleted = new ConcurrentLinkedQueue<Object[]>();
+
+	/** Only touched on the I/O thread. */
+	private int mConnections;
+	private long mInFlightBytes;
+	private long mLastIdleCheck;
+
+	private volatile long mConnectionsAccepted;
+	private volatile long mRequests;
+	private volatile long mShed;
+	private volatile long mRejected;
+	private volatile long mBytesReceived;
+	private final AtomicLong mSamples = new AtomicLong();
+	private final AtomicLong mAnnotations = new AtomicLong();
+	private final AtomicLong mProcessingNanos = new AtomicLong();
+
+	public IngestServer(int port, int partitions, int queueCapacity, IngestSink.Factory sinks) throws IOException {
+		mPort = port;
+		mPartitions = new SubjectPartition[partitions];
+		for (int i = 0; i < partitions; i++) {
+			mPartitions[i] = new SubjectPartition(i, queueCapacity, MAX_INFLATED_BYTES, sinks.create(i), this);
+		}
+	}
+
+	/** Limits, set before start(). */
+	public void setLimits(int maxConnections, int maxBodyBytes, long maxInFlightBytes) {
+		mMaxConnections = maxConnections;
+		mMaxBodyBytes = maxBodyBytes;
+		mMaxInFlightBytes = maxInFlightBytes;
+	}
+
+	public synchronized void start() throws IOException {
+		for (SubjectPartition partition : mPartitions) {
+			partition.start();
+		}
+		mSelector = Selector.open();
+		mServerChannel = ServerSocketChannel.open();
+		mServerChannel.socket().setReuseAddress(true);
+		mServerChannel.socket().bind(new InetSocketAddress(mPort), 1024);
+		mServerChannel.configureBlocking(false);
+		mServerKey = mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+		mRunning = true;
+		mIoThread = new Thread(new Runnable() {
+			public void run() {
+				ioLoop();
+			}
+		}, "Ingest I/O");
+		mIoThread.start();
+	}
+
+	/** Stops accepting, closes every connection and stores what the partitions accepted. */
+	public void stop() throws InterruptedException {
+		mRunning = false;
+		mSelector.wakeup();
+		mIoThread.join();
+		for (SubjectPartition partition : mPartitions) {
+			partition.stop();
+		}
+	}
+
+	private void ioLoop() {
+		try {
+			while (mRunning) {
+				mSelector.select(SELECT_TIMEOUT_MS);
+				Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key == mServerKey) {
+						accept();
+						continue;
+					}
+					HttpConnection connection = (HttpConnection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							onReadable(connection);
+						} else if (key.isWritable()) {
+							onWritable(connection);
+						}
+					} catch (IOException e) {
+						close(connection);
+					}
+				}
+				respondCompleted();
+				long now = System.currentTimeMillis();
+				if (now - mLastIdleCheck >= SELECT_TIMEOUT_MS) {
+					mLastIdleCheck = now;
+					closeIdle(now);
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Ingest I/O loop failed: " + e);
+		} finally {
+			for (SelectionKey key : mSelector.keys()) {
+				if (key.attachment() instanceof HttpConnection) {
+					close((HttpConnection) key.attachment());
+				}
+			}
+			try {
+				mServerChannel.close();
+				mSelector.close();
+			} catch (IOException e) {
+				// Shutting down anyway.
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while (mConnections < mMaxConnections && (channel = mServerChannel.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+			String address = channel.socket().getInetAddress().getHostAddress();
+			key.attach(new HttpConnection(channel, key, address, System.currentTimeMillis()));
+			mConnections++;
+			mConnectionsAccepted++;
+		}
+		if (mConnections >= mMaxConnections) {
+			// Further clients wait in the listen backlog until a connection closes.
+			mServerKey.interestOps(0);
+		}
+	}
+
+	private void close(HttpConnection connection) {
+		if (connection.closed) {
+			return;
+		}
+		connection.closed = true;
+		connection.key.cancel();
+		try {
+			connection.channel.close();
+		} catch (IOException e) {
+			// Nothing left to do with it.
+		}
+		// A request still in a partition keeps its budget until it completes.
+		if (connection.state != HttpConnection.PROCESSING) {
+			releaseBudget(connection);
+		}
+		if (mConnections-- == mMaxConnections && mServerKey.isValid()) {
+			mServerKey.interestOps(SelectionKey.OP_ACCEPT);
+		}
+	}
+
+	private void onReadable(HttpConnection connection) throws IOException {
+		int count = connection.read();
+		if (count < 0) {
+			close(connection);
+			return;
+		}
+		mBytesReceived += count;
+		connection.lastActiveMs = System.currentTimeMillis();
+		processInput(connection);
+	}
+
+	/** Advances the connection as far as the buffered input allows. */
+	private void processInput(HttpConnection connection) throws IOException {
+		while (!connection.closed) {
+			switch (connection.state) {
+			case HttpConnection.READING_HEADERS:
+				int parsed = connection.parseHeaders();
+				if (parsed == HttpConnection.HEADERS_INCOMPLETE) {
+					return;
+				}
+				if (parsed != HttpConnection.HEADERS_COMPLETE) {
+					reject(connection, parsed == HttpConnection.HEADERS_TOO_LARGE ? 431 : 400, true);
+					break;
+				}
+				admit(connection);
+				break;
+			case HttpConnection.READING_BODY:
+				if (!connection.isBodyComplete()) {
+					return;
+				}
+				dispatch(connection);
+				break;
+			case HttpConnection.DISCARDING_BODY:
+				connection.discardBuffered();
+				if (connection.discardRemaining > 0) {
+					return;
+				}
+				respond(connection, 503, errorJson("overloaded"));
+				break;
+			default:
+				return;
+			}
+		}
+	}
+
+	/** Decides what to do with the body of a request whose headers were just parsed. */
+	private void admit(HttpConnection connection) throws IOException {
+		mRequests++;
+		connection.closeAfterResponse = !connection.keepAlive;
+		if (!"POST".equals(connection.method)) {
+			reject(connection, 405, connection.contentLength != 0);
+			return;
+		}
+		if (!CONTEXT_PATH.equals(connection.path) && !INGEST_PATH.equals(connection.path)) {
+			reject(connection, 404, true);
+			return;
+		}
+		if (connection.chunked || connection.contentLength < 0) {
+			reject(connection, 411, true);
+			return;
+		}
+		if (connection.contentLength > mMaxBodyBytes) {
+			reject(connection, 413, true);
+			return;
+		}
+		int length = (int) connection.contentLength;
+		if (mInFlightBytes + length > mMaxInFlightBytes) {
+			// Read past the body without keeping it, then answer 503.
+			mShed++;
+			connection.startDiscard(length);
+			return;
+		}
+		mInFlightBytes += length;
+		connection.reservedBytes = length;
+		connection.startBody(length);
+	}
+
+	/** Hands a complete request to its subject's partition, or sheds it if the partition is full. */
+	private void dispatch(HttpConnection connection) throws IOException {
+		String subject = subjectOf(connection);
+		boolean binary = StandInServer.CONTENT_TYPE_BINARY.equals(connection.contentType);
+		boolean gzip = "gzip".equalsIgnoreCase(connection.contentEncoding);
+		IngestRequest request = new IngestRequest(connection, subject, connection.body, connection.body.length, binary,
+				gzip, System.nanoTime());
+		SubjectPartition partition = mPartitions[(subject.hashCode() & Integer.MAX_VALUE) % mPartitions.length];
+		connection.state = HttpConnection.PROCESSING;
+		if (!partition.offer(request)) {
+			mShed++;
+			releaseBudget(connection);
+			respond(connection, 503, errorJson("overloaded"));
+			return;
+		}
+		// Not read again until the partition has answered.
+		connection.key.interestOps(0);
+	}
+
+	private static String subjectOf(HttpConnection connection) {
+		if (connection.subject != null && connection.subject.length() > 0) {
+			return connection.subject;
+		}
+		if (connection.query != null) {
+			for (String parameter : connection.query.split("&")) {
+				if (parameter.startsWith("subject=") && parameter.length() > "subject=".length()) {
+					return parameter.substring("subject=".length());
+				}
+			}
+		}
+		return connection.remoteAddress;
+	}
+
+	public void onComplete(IngestRequest request, int status, int samples, int annotations) {
+		if (status == 200) {
+			mSamples.addAndGet(samples);
+			mAnnotations.addAndGet(annotations);
+		}
+		mProcessingNanos.addAndGet(System.nanoTime() - request.receivedNanos);
+		mCompleted.add(new Object[] { request, status, samples, annotations });
+		mSelector.wakeup();
+	}
+
+	/** Answers the requests the partitions finished, on the I/O thread. */
+	private void respondCompleted() {
+		Object[] completed;
+		while ((completed = mCompleted.poll()) != null) {
+			IngestRequest request = (IngestRequest) completed[0];
+			int status = (Integer) completed[1];
+			HttpConnection connection = request.connection;
+			releaseBudget(connection);
+			if (connection.closed) {
+				continue;
+			}
+			String json = status == 200 ? "{\"status\":\"ok\",\"samples\":" + completed[2] + ",\"annotations\":"
+					+ completed[3] + "}" : errorJson(status == 400 ? "bad body" : "storage failed");
+			try {
+				respond(connection, status, json);
+				// A pipelined request may be waiting behind the one just answered.
+				processInput(connection);
+			} catch (IOException e) {
+				close(connection);
+			}
+		}
+	}
+
+	private void reject(HttpConnection connection, int status, boolean close) throws IOException {
+		mRejected++;
+		connection.closeAfterResponse |= close;
+		respond(connection, status, errorJson(reasonPhrase(status).toLowerCase()));
+	}
+
+	private void respond(HttpConnection connection, int status, String json) throws IOException {
+		StringBuilder response = new StringBuilder(160 + json.length());
+		response.append("HTTP/1.1 ").append(status).append(' ').append(reasonPhrase(status)).append("\r\n");
+		response.append("Content-Type: application/json\r\n");
+		response.append("Content-Length: ").append(json.length()).append("\r\n");
+		if (status == 503) {
+			response.append("Retry-After: ").append(RETRY_AFTER_SECONDS).append("\r\n");
+		}
+		if (connection.closeAfterResponse) {
+			response.append("Connection: close\r\n");
+		}
+		response.append("\r\n").append(json);
+		byte[] bytes = new byte[response.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) response.charAt(i);
+		}
+		connection.startResponse(bytes);
+		writeResponse(connection);
+	}
+
+	private void onWritable(HttpConnection connection) throws IOException {
+		writeResponse(connection);
+		processInput(connection);
+	}
+
+	/** Writes what the socket takes; once the response is out, the connection reads the next request. */
+	private void writeResponse(HttpConnection connection) throws IOException {
+		if (!connection.write()) {
+			connection.key.interestOps(SelectionKey.OP_WRITE);
+			return;
+		}
+		if (connection.closeAfterResponse) {
+			close(connection);
+			return;
+		}
+		connection.reset();
+		connection.lastActiveMs = System.currentTimeMillis();
+		connection.key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void releaseBudget(HttpConnection connection) {
+		mInFlightBytes -= connection.reservedBytes;
+		connection.reservedBytes = 0;
+	}
+
+	private void closeIdle(long now) {
+		for (SelectionKey key : mSelector.keys()) {
+			Object attachment = key.attachment();
+			if (!(attachment instanceof HttpConnection)) {
+				continue;
+			}
+			HttpConnection connection = (HttpConnection) attachment;
+			if (connection.state != HttpConnection.PROCESSING && now - connection.lastActiveMs > IDLE_TIMEOUT_MS) {
+				close(connection);
+			}
+		}
+	}
+
+	private static String errorJson(String message) {
+		return "{\"status\":\"error\",\"message\":\"" + message + "\"}";
+	}
+
+	private static String reasonPhrase(int status) {
+		switch (status) {
+		case 200: return "OK";
+		case 400: return "Bad Request";
+		case 404: return "Not Found";
+		case 405: return "Method Not Allowed";
+		case 411: return "Length Required";
+		case 413: return "Payload Too Large";
+		case 431: return "Request Header Fields Too Large";
+		case 503: return "Service Unavailable";
+		default: return "Error";
+		}
+	}
+
+	public long getSamples() {
+		return mSamples.get();
+	}
+
+	public String getStats() {
+		StringBuilder queues = new StringBuilder();
+		long bad = 0, storeErrors = 0;
+		for (SubjectPartition partition : mPartitions) {
+			queues.append(queues.length() > 0 ? "/" : "").append(partition.getQueueSize());
+			bad += partition.getBadRequests();
+			storeErrors += partition.getStoreErrors();
+		}
+		long requests = mRequests;
+		long processed = 0;
+		for (SubjectPartition partition : mPartitions) {
+			processed += partition.getRequests();
+		}
+		return "connections " + mConnectionsAccepted + " accepted, requests " + requests + ", shed " + mShed
+				+ ", rejected " + mRejected + ", bad " + bad + ", store errors " + storeErrors + ", samples "
+				+ mSamples.get() + ", annotations " + mAnnotations.get() + ", bytes " + mBytesReceived
+				+ ", queues " + queues + ", avg processing "
+				+ (processed == 0 ? 0 : mProcessingNanos.get() / processed / 1000) + " us";
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int port = DEFAULT_PORT;
+		String outPath = null;
+		String storePath = null;
+		int partitions = Runtime.getRuntime().availableProcessors();
+		int queue = DEFAULT_QUEUE_CAPACITY;
+		int maxConnections = DEFAULT_MAX_CONNECTIONS;
+		long maxInFlightBytes = DEFAULT_MAX_IN_FLIGHT_BYTES;
+		long synchronyWindowMs = 0;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if ("-port".equals(args[i])) {
+				port = Integer.parseInt(args[i + 1]);
+			} else if ("-out".equals(args[i])) {
+				outPath = args[i + 1];
+			} else if ("-store".equals(args[i])) {
+				storePath = args[i + 1];
+			} else if ("-partitions".equals(args[i])) {
+				partitions = Integer.parseInt(args[i + 1]);
+			} else if ("-queue".equals(args[i])) {
+				queue = Integer.parseInt(args[i + 1]);
+			} else if ("-maxConnections".equals(args[i])) {
+				maxConnections = Integer.parseInt(args[i + 1]);
+			} else if ("-maxInFlightMB".equals(args[i])) {
+				maxInFlightBytes = Long.parseLong(args[i + 1]) * 1024 * 1024;
+			} else if ("-synchrony".equals(args[i])) {
+				synchronyWindowMs = Long.parseLong(args[i + 1]) * 1000;
+			} else {
+				System.err.println("Unknown option " + args[i]);
+				System.exit(1);
+			}
+		}
+		final File out = outPath == null ? null : new File(outPath);
+		final File store = storePath == null ? null : new File(storePath);
+		final SynchronyEngine synchrony = synchronyWindowMs <= 0 ? null : new SynchronyEngine(
+				SynchronyEngine.DEFAULT_BIN_MS, synchronyWindowMs, SynchronyEngine.DEFAULT_MAX_LAG_MS,
+				SynchronyEngine.DEFAULT_DELAY_MS, SynchronyEngine.DEFAULT_TICK_MS, new SynchronyReport());
+		final IngestServer server = new IngestServer(port, partitions, queue, new IngestSink.Factory() {
+			public IngestSink create(int partition) {
+				IngestSink sink;
+				if (store != null) {
+					sink = new ColumnStoreSink(store);
+				} else {
+					sink = out == null ? new DiscardingSink() : new CsvIngestSink(out);
+				}
+				return synchrony == null ? sink : new SynchronySink(synchrony, sink);
+			}
+		});
+		server.setLimits(maxConnections, DEFAULT_MAX_BODY_BYTES, maxInFlightBytes);
+		server.start();
+		if (synchrony != null) {
+			synchrony.start();
+		}
+		System.out.println("Listening on http://localhost:" + port + CONTEXT_PATH + " with " + partitions
+				+ " partitions" + (store != null ? ", storing in " + store
+						: out == null ? ", discarding data" : ", writing to " + out));
+		// Partitions buffer rows, so store them when the server is killed.
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				try {
+					server.stop();
+				} catch (InterruptedException e) {
+					// Exiting anyway.
+				}
+			}
+		});
+
+		long lastSamples = 0;
+		long lastTime = System.currentTimeMillis();
+		while (true) {
+			try {
+				Thread.sleep(10000);
+			} catch (InterruptedException e) {
+				break;
+			}
+			long now = System.currentTimeMillis();
+			long samples = server.getSamples();
+			System.out.println(server.getStats() + ", " + (samples - lastSamples) * 1000 / (now - lastTime)
+					+ " samples/s");
+			lastSamples = samples;
+			lastTime = now;
+		}
+	}
+
+	/** Prints the strongest pair and the tick time every REPORT_TICKS ticks. */
+	static class SynchronyReport implements SynchronyEngine.Listener {
+		private static final int REPORT_TICKS = 10;
+
+		public void onScores(SynchronyEngine engine, long time, long computeNanos) {
+			if (engine.getTicks() % REPORT_TICKS != 0) {
+				return;
+			}
+			int scored = 0;
+			int strongest = -1;
+			for (int p = 0; p < engine.getPairCount(); p++) {
+				if (engine.isPairValid(p)) {
+					scored++;
+					if (strongest < 0 || engine.getCorrelation(p) > engine.getCorrelation(strongest)) {
+						strongest = p;
+					}
+				}
+			}
+			StringBuilder report = new StringBuilder("synchrony: ").append(engine.getSubjectCount())
+					.append(" subjects, ").append(scored).append(" of ").append(engine.getPairCount())
+					.append(" pairs scored");
+			if (strongest >= 0) {
+				report.append(", strongest ").append(engine.getSubject(engine.getPairSubjectA(strongest)))
+						.append(" ~ ").append(engine.getSubject(engine.getPairSubjectB(strongest))).append(" r ")
+						.append(engine.getCorrelation(strongest)).append(" at ")
+						.append(engine.getLagMs(strongest)).append(" ms");
+			}
+			report.append(", tick ").append(computeNanos / 1000).append(" us (max ")
+					.append(engine.getMaxTickNanos() / 1000).append(" us)");
+			System.out.println(report);
+		}
+	}
+
+	/** Decodes and counts, but keeps nothing; for load tests of the server itself. */
+	static class DiscardingSink implements IngestSink {
+		public void append(String subject, SampleBatch samples, SampleBatch annotations) {
+		}
+
+		public void flush() {
+		}
+
+		public void close() {
+		}
+	}
+}
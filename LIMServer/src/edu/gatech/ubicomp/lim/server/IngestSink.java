@@ -0,0 +1,29 @@
+package edu.gatech.ubicomp.lim.server;
+
+import java.io.IOException;
+
+import edu.gatech.ubicomp.glim.data.codec.SampleBatch;
+
+/**
+ * Where a partition writes the batches of its subjects. Every sink is used by
+ * its partition's writer thread only, so implementations need no locking.
+ */
+public interface IngestSink {
+
+	/** Creates the sink of each partition. */
+	interface Factory {
+		IngestSink create(int partition) throws IOException;
+	}
+
+	/**
+	 * Stores one request's samples and annotations, in the order they arrived.
+	 * @param samples timestamp and EDA rows
+	 * @param annotations annotation times, usually empty
+	 */
+	void append(String subject, SampleBatch samples, SampleBatch annotations) throws IOException;
+
+	/** Called when the partition has no more work queued. */
+	void flush() throws IOException;
+
+	void close() throws IOException;
+}
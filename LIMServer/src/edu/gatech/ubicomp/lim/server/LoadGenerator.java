@@ -0,0 +1,339 @@
+package edu.gatech.ubicomp.lim.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import edu.gatech.ubicomp.glim.data.codec.BatchEncoder;
+import edu.gatech.ubicomp.glim.data.codec.BatchSchema;
+import edu.gatech.ubicomp.glim.data.codec.BitWriter;
+import edu.gatech.ubicomp.glim.data.codec.SampleBatch;
+
+/**
+ * Simulates many GLIM devices uploading to an ingest server at once and
+ * reports the sustained rate the server accepts.
+ *
+ * Every device has its own thread and keep-alive connection and posts the
+ * bodies UploadPipeline would send, gzipped JSON or binary, as its own
+ * subject. Devices wait as long as a 503's Retry-After asks.
+ *
+ * Usage: LoadGenerator [-url http://localhost:8080/ingest] [-devices 200]
+ *   [-seconds 30] [-samples 256] [-interval ms] [-binary]
+ *
+ * With -interval 0 (the default) every device posts as fast as the server
+ * answers; with the 8000 ms a 256 sample batch takes at 32 Hz, devices post
+ * at the rate real ones do.
+ */
+public class LoadGenerator {
+
+	private static final int BODY_VARIANTS = 16;
+	private static final int SAMPLE_PERIOD_MS = 1000 / 32;
+	private static final int SOCKET_TIMEOUT_MS = 30000;
+
+	private final String mHost;
+	private final int mPort;
+	private final String mPath;
+	private final boolean mBinary;
+	private final int mSamplesPerBody;
+	private final long mIntervalMs;
+	private final byte[][] mBodies = new byte[BODY_VARIANTS][];
+
+	private volatile boolean mRunning = true;
+	private final AtomicLong mRequests = new AtomicLong();
+	private final AtomicLong mSamplesAccepted = new AtomicLong();
+	private final AtomicLong mShed = new AtomicLong();
+	private final AtomicLong mErrors = new AtomicLong();
+	private final AtomicLong mLatencyNanos = new AtomicLong();
+	private final AtomicLong mMaxLatencyNanos = new AtomicLong();
+
+	public LoadGenerator(URL url, boolean binary, int samplesPerBody, long intervalMs) throws IOException {
+		mHost = url.getHost();
+		mPort = url.getPort() < 0 ? 80 : url.getPort();
+		mPath = url.getFile().length() == 0 ? "/" : url.getFile();
+		mBinary = binary;
+		mSamplesPerBody = samplesPerBody;
+		mIntervalMs = intervalMs;
+		Random random = new Random(42);
+		BatchSchema schema = new BatchSchema();
+		schema.addChannel(BatchSchema.CHANNEL_EDA, BatchSchema.ENCODING_QUANTIZED, 0.001f);
+		BatchEncoder encoder = new BatchEncoder(schema);
+		BitWriter out = new BitWriter(1024);
+		long time = System.currentTimeMillis();
+		float eda = 0.45f;
+		for (int b = 0; b < BODY_VARIANTS; b++) {
+			SampleBatch batch = new SampleBatch(1, samplesPerBody);
+			for (int i = 0; i < samplesPerBody; i++) {
+				time += SAMPLE_PERIOD_MS;
+				eda = Math.max(0.01f, eda + (float) (random.nextGaussian() * 0.002));
+				batch.add(time, Math.round(eda * 1000) / 1000f);
+			}
+			out.reset();
+			encoder.encode(batch, out);
+			byte[] binaryBody = out.toByteArray();
+			mBodies[b] = binary ? binaryBody : gzip(StandInServer.binaryToJson(binaryBody));
+		}
+	}
+
+	private static byte[] gzip(String json) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(body);
+		out.write(json.getBytes("US-ASCII"));
+		out.close();
+		return body.toByteArray();
+	}
+
+	/** Runs one device until stop(). */
+	void runDevice(int device) {
+		String subject = "device-" + device;
+		byte[][] requests = new byte[BODY_VARIANTS][];
+		for (int b = 0; b < BODY_VARIANTS; b++) {
+			requests[b] = request(subject, mBodies[b]);
+		}
+		byte[] buffer = new byte[4096];
+		Response response = new Response();
+		Socket socket = null;
+		int next = device % BODY_VARIANTS;
+		long nextPost = System.currentTimeMillis();
+		while (mRunning) {
+			try {
+				long wait = nextPost - System.currentTimeMillis();
+				if (wait > 0) {
+					Thread.sleep(wait);
+				}
+				if (socket == null) {
+					socket = new Socket();
+					socket.setTcpNoDelay(true);
+					socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+					socket.connect(new InetSocketAddress(mHost, mPort), SOCKET_TIMEOUT_MS);
+				}
+				long started = System.nanoTime();
+				OutputStream out = socket.getOutputStream();
+				out.write(requests[next]);
+				out.flush();
+				readResponse(socket.getInputStream(), buffer, response);
+				int status = response.status;
+				long latency = System.nanoTime() - started;
+				mRequests.incrementAndGet();
+				mLatencyNanos.addAndGet(latency);
+				long max;
+				while (latency > (max = mMaxLatencyNanos.get()) && !mMaxLatencyNanos.compareAndSet(max, latency)) {
+				}
+				if (status == 200) {
+					mSamplesAccepted.addAndGet(mSamplesPerBody);
+					next = (next + 1) % BODY_VARIANTS;
+					nextPost += mIntervalMs;
+				} else if (status == 503) {
+					mShed.incrementAndGet();
+					nextPost = System.currentTimeMillis() + IngestServer.RETRY_AFTER_SECONDS * 1000L;
+				} else {
+					mErrors.incrementAndGet();
+					nextPost = System.currentTimeMillis() + 1000;
+				}
+				if (response.close) {
+					socket.close();
+					socket = null;
+				}
+			} catch (IOException e) {
+				mErrors.incrementAndGet();
+				nextPost = System.currentTimeMillis() + 1000;
+				if (socket != null) {
+					try {
+						socket.close();
+					} catch (IOException ignored) {
+					}
+					socket = null;
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	private byte[] request(String subject, byte[] body) {
+		StringBuilder headers = new StringBuilder();
+		headers.append("POST ").append(mPath).append(" HTTP/1.1\r\n");
+		headers.append("Host: ").append(mHost).append(':').append(mPort).append("\r\n");
+		if (mBinary) {
+			headers.append("Content-Type: ").append(StandInServer.CONTENT_TYPE_BINARY).append("\r\n");
+		} else {
+			headers.append("Content-Type: application/json\r\nContent-Encoding: gzip\r\n");
+		}
+		headers.append(IngestServer.HEADER_SUBJECT).append(": ").append(subject).append("\r\n");
+		headers.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+		byte[] request = new byte[headers.length() + body.length];
+		for (int i = 0; i < headers.length(); i++) {
+			request[i] = (byte) headers.charAt(i);
+		}
+		System.arraycopy(body, 0, request, headers.length(), body.length);
+		return request;
+	}
+
+	/** Status of the last response and whether the server closes the connection after it. */
+	private static class Response {
+		int status;
+		boolean close;
+	}
+
+	/** Reads a response with a Content-Length body into response. */
+	private static void readResponse(InputStream in, byte[] buffer, Response response) throws IOException {
+		int length = 0;
+		int headerEnd = -1;
+		while (headerEnd < 0) {
+			int count = in.read(buffer, length, buffer.length - length);
+			if (count < 0) {
+				throw new IOException("Connection closed");
+			}
+			length += count;
+			for (int i = 3; i < length; i++) {
+				if (buffer[i] == '\n' && buffer[i - 2] == '\n') {
+					headerEnd = i + 1;
+					break;
+				}
+			}
+			if (headerEnd < 0 && length == buffer.length) {
+				throw new IOException("Response headers too long");
+			}
+		}
+		String headers = new String(buffer, 0, headerEnd, "US-ASCII");
+		int status = Integer.parseInt(headers.substring(9, 12));
+		int contentLength = 0;
+		boolean close = false;
+		for (String line : headers.split("\r\n")) {
+			int colon = line.indexOf(':');
+			if (colon < 0) {
+				continue;
+			}
+			String name = line.substring(0, colon).trim();
+			if (name.equalsIgnoreCase("Content-Length")) {
+				contentLength = Integer.parseInt(line.substring(colon + 1).trim());
+			} else if (name.equalsIgnoreCase("Connection")) {
+				close = line.substring(colon + 1).trim().equalsIgnoreCase("close");
+			}
+		}
+		long remaining = contentLength - (length - headerEnd);
+		while (remaining > 0) {
+			int count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (count < 0) {
+				throw new IOException("Connection closed");
+			}
+			remaining -= count;
+		}
+		response.status = status;
+		response.close = close;
+	}
+
+	public void stop() {
+		mRunning = false;
+	}
+
+	/** The counters at one moment; stats are the difference of two snapshots. */
+	public static class Snapshot {
+		final long timeMs;
+		final long requests;
+		final long samples;
+		final long shed;
+		final long errors;
+		final long latencyNanos;
+
+		Snapshot(long timeMs, long requests, long samples, long shed, long errors, long latencyNanos) {
+			this.timeMs = timeMs;
+			this.requests = requests;
+			this.samples = samples;
+			this.shed = shed;
+			this.errors = errors;
+			this.latencyNanos = latencyNanos;
+		}
+	}
+
+	public Snapshot snapshot() {
+		return new Snapshot(System.currentTimeMillis(), mRequests.get(), mSamplesAccepted.get(), mShed.get(),
+				mErrors.get(), mLatencyNanos.get());
+	}
+
+	/**
+	 * Requests, samples, sheds, errors and average latency between two
+	 * snapshots, stamped with the time since start. The maximum latency is of
+	 * the whole run.
+	 */
+	public String getStats(Snapshot start, Snapshot from, Snapshot to) {
+		long requests = to.requests - from.requests;
+		long samples = to.samples - from.samples;
+		long elapsedMs = to.timeMs - from.timeMs;
+		return ((to.timeMs - start.timeMs) / 1000) + " s: " + requests + " requests, " + samples
+				+ " samples accepted (" + samples * 1000 / Math.max(1, elapsedMs) + "/s), " + (to.shed - from.shed)
+				+ " shed, " + (to.errors - from.errors) + " errors, latency avg "
+				+ (requests == 0 ? 0 : (to.latencyNanos - from.latencyNanos) / requests / 1000) + " us, max so far "
+				+ mMaxLatencyNanos.get() / 1000 + " us";
+	}
+
+	public static void main(String[] args) throws Exception {
+		URL url = new URL("http://localhost:" + IngestServer.DEFAULT_PORT + IngestServer.INGEST_PATH);
+		int devices = 200;
+		long seconds = 30;
+		int samples = 256;
+		long intervalMs = 0;
+		boolean binary = false;
+		for (int i = 0; i < args.length; i++) {
+			if ("-binary".equals(args[i])) {
+				binary = true;
+			} else if (i + 1 >= args.length) {
+				System.err.println("Missing value for " + args[i]);
+				System.exit(1);
+			} else if ("-url".equals(args[i])) {
+				url = new URL(args[++i]);
+			} else if ("-devices".equals(args[i])) {
+				devices = Integer.parseInt(args[++i]);
+			} else if ("-seconds".equals(args[i])) {
+				seconds = Long.parseLong(args[++i]);
+			} else if ("-samples".equals(args[i])) {
+				samples = Integer.parseInt(args[++i]);
+			} else if ("-interval".equals(args[i])) {
+				intervalMs = Long.parseLong(args[++i]);
+			} else {
+				System.err.println("Unknown option " + args[i]);
+				System.exit(1);
+			}
+		}
+		final LoadGenerator generator = new LoadGenerator(url, binary, samples, intervalMs);
+		Thread[] threads = new Thread[devices];
+		for (int i = 0; i < devices; i++) {
+			final int device = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					generator.runDevice(device);
+				}
+			}, "Device " + i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		System.out.println(devices + " devices posting " + samples + " sample " + (binary ? "binary" : "gzip JSON")
+				+ " batches to " + url);
+
+		Snapshot start = generator.snapshot();
+		Snapshot last = start;
+		while (System.currentTimeMillis() - start.timeMs < seconds * 1000) {
+			Thread.sleep(5000);
+			Snapshot now = generator.snapshot();
+			System.out.println(generator.getStats(start, last, now));
+			last = now;
+		}
+		generator.stop();
+		for (Thread thread : threads) {
+			thread.join(SOCKET_TIMEOUT_MS);
+		}
+		System.out.println("Total: " + generator.getStats(start, start, generator.snapshot()));
+	}
+}
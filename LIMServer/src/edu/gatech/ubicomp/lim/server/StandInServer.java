@@ -0,0 +1,238 @@
+package edu.gatech.ubicomp.lim.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.gatech.ubicomp.glim.data.codec.BatchDecoder;
+import edu.gatech.ubicomp.glim.data.codec.BatchSchema;
+import edu.gatech.ubicomp.glim.data.codec.SampleBatch;
+
+/**
+ * Local stand-in for annotateglasseda.php, for testing the Glass upload
+ * pipeline without the real server.
+ * 
+ * Accepts the batches GLIM posts, JSON (gzip compressed or not) or binary
+ * (CONTENT_TYPE_BINARY), answers with a small JSON status and optionally
+ * appends every batch to a file as one JSON line. Failures can be injected
+ * to exercise the spool and backoff.
+ * 
+ * Usage: StandInServer [-port 8080] [-out batches.jsonl] [-failRate 0.2] [-delayMs 0]
+ */
+public class StandInServer implements HttpHandler {
+
+	public static final String CONTEXT_PATH = "/AnnotateEDAServer/annotateglasseda.php";
+	/** Same as UploadPipeline.CONTENT_TYPE_BINARY on Glass. */
+	public static final String CONTENT_TYPE_BINARY = "application/vnd.glim.batch";
+
+	private final OutputStream mOut;
+	private final double mFailRate;
+	private final long mDelayMs;
+	private final Random mRandom = new Random();
+
+	private final AtomicLong mRequests = new AtomicLong();
+	private final AtomicLong mRejected = new AtomicLong();
+	private final AtomicLong mSamples = new AtomicLong();
+	private final AtomicLong mAnnotations = new AtomicLong();
+	private final AtomicLong mWireBytes = new AtomicLong();
+	private final AtomicLong mJsonBytes = new AtomicLong();
+
+	public StandInServer(OutputStream out, double failRate, long delayMs) {
+		mOut = out;
+		mFailRate = failRate;
+		mDelayMs = delayMs;
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			mRequests.incrementAndGet();
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				respond(exchange, 405, "{\"status\":\"error\",\"message\":\"POST only\"}");
+				return;
+			}
+			byte[] wire = readFully(exchange.getRequestBody());
+			mWireBytes.addAndGet(wire.length);
+			if (mDelayMs > 0) {
+				Thread.sleep(mDelayMs);
+			}
+			if (mFailRate > 0 && nextDouble() < mFailRate) {
+				mRejected.incrementAndGet();
+				respond(exchange, 503, "{\"status\":\"error\",\"message\":\"injected failure\"}");
+				return;
+			}
+			byte[] json = wire;
+			if (CONTENT_TYPE_BINARY.equals(exchange.getRequestHeaders().getFirst("Content-Type"))) {
+				json = binaryToJson(wire).getBytes("US-ASCII");
+			} else if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+				json = readFully(new GZIPInputStream(new ByteArrayInputStream(wire)));
+			}
+			mJsonBytes.addAndGet(json.length);
+			String body = new String(json, "US-ASCII");
+			int samples = countSamples(body);
+			int annotations = countAnnotations(body);
+			mSamples.addAndGet(samples);
+			mAnnotations.addAndGet(annotations);
+			if (mOut != null) {
+				synchronized (mOut) {
+					mOut.write(json);
+					mOut.write('\n');
+					mOut.flush();
+				}
+			}
+			respond(exchange, 200, "{\"status\":\"ok\",\"samples\":" + samples + ",\"annotations\":" + annotations + "}");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			respond(exchange, 500, "{\"status\":\"error\"}");
+		} catch (IOException e) {
+			respond(exchange, 400, "{\"status\":\"error\",\"message\":\"bad body\"}");
+		}
+	}
+
+	private synchronized double nextDouble() {
+		return mRandom.nextDouble();
+	}
+
+	/** Rewrites the binary batches of a request as the JSON body GLIM would have sent. */
+	static String binaryToJson(byte[] wire) throws IOException {
+		BatchDecoder decoder = new BatchDecoder();
+		StringBuilder signal = new StringBuilder();
+		StringBuilder annotations = new StringBuilder();
+		int offset = 0;
+		while (offset < wire.length) {
+			SampleBatch batch = decoder.decode(wire, offset, wire.length - offset);
+			offset = decoder.getEnd();
+			int eda = decoder.getSchema().indexOf(BatchSchema.CHANNEL_EDA);
+			boolean annotation = decoder.getSchema().indexOf(BatchSchema.CHANNEL_ANNOTATION) >= 0;
+			for (int i = 0; i < batch.size(); i++) {
+				if (annotation) {
+					annotations.append(annotations.length() > 0 ? "," : "").append(batch.getTimestamp(i));
+				} else if (eda >= 0) {
+					signal.append(signal.length() > 0 ? "\\n" : "").append(batch.getTimestamp(i)).append(',')
+							.append(batch.getValue(eda, i));
+				}
+			}
+		}
+		StringBuilder json = new StringBuilder("{\"edasignal\":\"{").append(signal).append("}\"");
+		if (annotations.length() > 0) {
+			json.append(",\"annotation\":[").append(annotations).append(']');
+		}
+		return json.append('}').toString();
+	}
+
+	/** Samples in the edasignal string are separated by escaped newlines. */
+	static int countSamples(String body) {
+		int start = body.indexOf("\"edasignal\":\"{");
+		if (start < 0) {
+			return 0;
+		}
+		start += "\"edasignal\":\"{".length();
+		int end = body.indexOf("}\"", start);
+		if (end <= start) {
+			return 0;
+		}
+		int count = 1;
+		for (int i = body.indexOf("\\n", start); i >= 0 && i < end; i = body.indexOf("\\n", i + 2)) {
+			count++;
+		}
+		return count;
+	}
+
+	static int countAnnotations(String body) {
+		int start = body.indexOf("\"annotation\":");
+		if (start < 0) {
+			return 0;
+		}
+		start += "\"annotation\":".length();
+		if (body.charAt(start) != '[') {
+			return 1;
+		}
+		int end = body.indexOf(']', start);
+		if (end == start + 1) {
+			return 0;
+		}
+		int count = 1;
+		for (int i = start; i < end; i++) {
+			if (body.charAt(i) == ',') {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] bytes = json.getBytes("US-ASCII");
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int count;
+		while ((count = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, count);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	public String getStats() {
+		return "requests " + mRequests.get() + ", rejected " + mRejected.get() + ", samples " + mSamples.get()
+				+ ", annotations " + mAnnotations.get() + ", bytes " + mWireBytes.get() + " on the wire / "
+				+ mJsonBytes.get() + " json";
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = 8080;
+		String outPath = null;
+		double failRate = 0;
+		long delayMs = 0;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if ("-port".equals(args[i])) {
+				port = Integer.parseInt(args[i + 1]);
+			} else if ("-out".equals(args[i])) {
+				outPath = args[i + 1];
+			} else if ("-failRate".equals(args[i])) {
+				failRate = Double.parseDouble(args[i + 1]);
+			} else if ("-delayMs".equals(args[i])) {
+				delayMs = Long.parseLong(args[i + 1]);
+			} else {
+				System.err.println("Unknown option " + args[i]);
+				System.exit(1);
+			}
+		}
+		OutputStream out = outPath == null ? null : new FileOutputStream(outPath, true);
+		final StandInServer handler = new StandInServer(out, failRate, delayMs);
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 64);
+		server.createContext(CONTEXT_PATH, handler);
+		server.setExecutor(Executors.newFixedThreadPool(4));
+		server.start();
+		System.out.println("Listening on http://localhost:" + port + CONTEXT_PATH);
+
+		while (true) {
+			try {
+				Thread.sleep(10000);
+			} catch (InterruptedException e) {
+				break;
+			}
+			System.out.println(handler.getStats());
+		}
+		server.stop(0);
+	}
+}
@@ -0,0 +1,156 @@
+package edu.gatech.ubicomp.lim.server;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.gatech.ubicomp.glim.data.codec.BatchFormatException;
+import edu.gatech.ubicomp.glim.data.codec.SampleBatch;
+
+/**
+ * A bounded queue of requests and the single thread that decodes and stores
+ * them. Every subject hashes to one partition, so a subject's batches are
+ * written by one thread, in the order they were accepted.
+ */
+public class SubjectPartition implements Runnable {
+
+	/** A decoded request, handed back to the I/O loop to answer. */
+	public interface Completion {
+		/**
+		 * Called on the partition thread.
+		 * @param status HTTP status to answer with
+		 * @param samples samples stored, 0 unless status is 200
+		 */
+		void onComplete(IngestRequest request, int status, int samples, int annotations);
+	}
+
+	/**
+	 * Queued by stop() behind the requests accepted so far. The writer is not
+	 * interrupted: an interrupt closes a FileChannel the sink is writing to.
+	 */
+	private static final IngestRequest STOP = new IngestRequest(null, null, null, 0, false, false, 0);
+
+	private final int mIndex;
+	private final ArrayBlockingQueue<IngestRequest> mQueue;
+	private final IngestSink mSink;
+	private final Completion mCompletion;
+	private final BatchBodyDecoder mDecoder;
+	private final SampleBatch mSamples = new SampleBatch(1, 256);
+	private final SampleBatch mAnnotations = new SampleBatch(1, 4);
+	private Thread mThread;
+
+	private final AtomicLong mRequests = new AtomicLong();
+	private final AtomicLong mSamplesStored = new AtomicLong();
+	private final AtomicLong mBadRequests = new AtomicLong();
+	private volatile long mStoreErrors;
+	private volatile IOException mLastError;
+
+	public SubjectPartition(int index, int queueCapacity, int maxInflatedBytes, IngestSink sink,
+			Completion completion) {
+		mIndex = index;
+		mQueue = new ArrayBlockingQueue<IngestRequest>(queueCapacity);
+		mSink = sink;
+		mCompletion = completion;
+		mDecoder = new BatchBodyDecoder(maxInflatedBytes);
+	}
+
+	/**
+	 * Queues a request without blocking.
+	 * @return false if the partition is full; the caller should shed the request
+	 */
+	public boolean offer(IngestRequest request) {
+		return mQueue.offer(request);
+	}
+
+	public synchronized void start() {
+		mThread = new Thread(this, "Partition " + mIndex);
+		mThread.start();
+	}
+
+	/**
+	 * Stores what is queued, then stops the writer and closes the sink. No
+	 * requests may be offered once this is called.
+	 */
+	public void stop() throws InterruptedException {
+		mQueue.put(STOP);
+		mThread.join();
+	}
+
+	public void run() {
+		while (true) {
+			IngestRequest request;
+			try {
+				request = mQueue.take();
+			} catch (InterruptedException e) {
+				// Only stop() ends the writer, once what was accepted is stored.
+				continue;
+			}
+			if (request == STOP) {
+				break;
+			}
+			process(request);
+			if (mQueue.isEmpty()) {
+				try {
+					mSink.flush();
+				} catch (IOException e) {
+					mStoreErrors++;
+					mLastError = e;
+				}
+			}
+		}
+		try {
+			mSink.close();
+		} catch (IOException e) {
+			mLastError = e;
+		}
+	}
+
+	private void process(IngestRequest request) {
+		mRequests.incrementAndGet();
+		mSamples.clear();
+		mAnnotations.clear();
+		int status = 200;
+		try {
+			mDecoder.decode(request.body, request.bodyLength, request.binary, request.gzip, mSamples, mAnnotations);
+			mSink.append(request.subject, mSamples, mAnnotations);
+			mSamplesStored.addAndGet(mSamples.size());
+		} catch (BatchFormatException e) {
+			mBadRequests.incrementAndGet();
+			status = 400;
+		} catch (IOException e) {
+			mStoreErrors++;
+			mLastError = e;
+			status = 500;
+		}
+		mCompletion.onComplete(request, status, status == 200 ? mSamples.size() : 0,
+				status == 200 ? mAnnotations.size() : 0);
+	}
+
+	public int getIndex() {
+		return mIndex;
+	}
+
+	public int getQueueSize() {
+		return mQueue.size();
+	}
+
+	public long getRequests() {
+		return mRequests.get();
+	}
+
+	public long getSamplesStored() {
+		return mSamplesStored.get();
+	}
+
+	public long getBadRequests() {
+		return mBadRequests.get();
+	}
+
+	public long getStoreErrors() {
+		return mStoreErrors;
+	}
+
+	public IOException getLastError() {
+		return mLastError;
+	}
+}
@@ -0,0 +1,139 @@
+package edu.gatech.ubicomp.lim.server;
+
+import java.util.Random;
+
+/**
+ * Drives a {@link SynchronyEngine} with simulated 32 Hz EDA for sessions of
+ * growing size and reports the compute time per tick. Subjects come in
+ * pairs that respond to the same events, the second one LAG_MS later, so
+ * the report also shows whether those pairs are found with the right lag:
+ * at the end of the run, and over every tick they were scored in.
+ *
+ * Usage: SynchronyBenchmark [minutes] [sizes, e.g. 5,10,20,40,64]
+ *   [window seconds, e.g. 30,60,120]
+ */
+public class SynchronyBenchmark {
+
+	private static final int SAMPLE_PERIOD_MS = 1000 / 32;
+	private static final long LAG_MS = 2000;
+	private static final double EVENTS_PER_SECOND = 1 / 15.0;
+	private static final double RISE_SECONDS = 0.75;
+	private static final double DECAY_SECONDS = 4;
+
+	public static void main(String[] args) {
+		int minutes = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		String sizes = args.length > 1 ? args[1] : "5,10,20,40,64";
+		String windows = args.length > 2 ? args[2] : "60,120";
+		System.out.println("subjects window  pairs  ticks  avg tick us  max tick us  lag found  over ticks");
+		for (String window : windows.split(",")) {
+			for (String size : sizes.split(",")) {
+				run(Integer.parseInt(size.trim()), minutes, Integer.parseInt(window.trim()) * 1000L);
+			}
+		}
+	}
+
+	private static void run(int subjects, int minutes, long windowMs) {
+		SynchronyEngine engine = new SynchronyEngine(SynchronyEngine.DEFAULT_BIN_MS, windowMs,
+				SynchronyEngine.DEFAULT_MAX_LAG_MS, SynchronyEngine.DEFAULT_DELAY_MS, SynchronyEngine.DEFAULT_TICK_MS,
+				null);
+		Random random = new Random(subjects);
+		long start = 1392300000000L;
+		long end = start + minutes * 60 * 1000L;
+		engine.tick(start);
+
+		// Shared events per pair of subjects, own events per subject.
+		double[][] shared = events(random, (subjects + 1) / 2, start, end);
+		double[][] own = events(random, subjects, start, end);
+		String[] names = new String[subjects];
+		int[] nextShared = new int[subjects];
+		int[] nextOwn = new int[subjects];
+		double[] fast = new double[subjects];
+		double[] slow = new double[subjects];
+		double[] tonic = new double[subjects];
+		for (int s = 0; s < subjects; s++) {
+			names[s] = "subject-" + s;
+			tonic[s] = 0.5 + random.nextDouble() * 5;
+		}
+		double fastDecay = Math.exp(-SAMPLE_PERIOD_MS / 1000.0 / RISE_SECONDS);
+		double slowDecay = Math.exp(-SAMPLE_PERIOD_MS / 1000.0 / DECAY_SECONDS);
+
+		long nextTick = start + SynchronyEngine.DEFAULT_TICK_MS;
+		long scoredTicks = 0, foundTicks = 0;
+		for (long time = start; time < end; time += SAMPLE_PERIOD_MS) {
+			for (int s = 0; s < subjects; s++) {
+				double[] pairEvents = shared[s / 2];
+				long delay = s % 2 == 1 ? LAG_MS : 0;
+				while (nextShared[s] < pairEvents.length && pairEvents[nextShared[s]] + delay <= time) {
+					fast[s] -= 0.15;
+					slow[s] += 0.15;
+					nextShared[s]++;
+				}
+				while (nextOwn[s] < own[s].length && own[s][nextOwn[s]] <= time) {
+					fast[s] -= 0.1;
+					slow[s] += 0.1;
+					nextOwn[s]++;
+				}
+				fast[s] *= fastDecay;
+				slow[s] *= slowDecay;
+				tonic[s] = Math.max(0.05, tonic[s] + random.nextGaussian() * 0.001);
+				double eda = tonic[s] + slow[s] + fast[s] + random.nextGaussian() * 0.002;
+				// The Q sensor reports three decimals.
+				engine.offer(names[s], time, Math.round(eda * 1000) / 1000f);
+			}
+			if (time >= nextTick) {
+				engine.tick(time);
+				nextTick += SynchronyEngine.DEFAULT_TICK_MS;
+				int[] found = findPartners(engine);
+				scoredTicks += found[1];
+				foundTicks += found[0];
+			}
+		}
+
+		int[] found = findPartners(engine);
+		System.out.printf("%8d %5ds %6d %6d %12.1f %12.1f %6d/%-3d %9.0f%%%n", subjects, windowMs / 1000,
+				engine.getPairCount(), engine.getTicks(), engine.getAverageTickNanos() / 1000.0,
+				engine.getMaxTickNanos() / 1000.0, found[0], found[1], 100.0 * foundTicks / Math.max(1, scoredTicks));
+	}
+
+	/** Partnered pairs scored with the right lag, and partnered pairs scored. */
+	private static int[] findPartners(SynchronyEngine engine) {
+		int partners = 0, found = 0;
+		for (int p = 0; p < engine.getPairCount(); p++) {
+			int a = engine.getPairSubjectA(p);
+			int b = engine.getPairSubjectB(p);
+			if (a / 2 == b / 2 && engine.isPairValid(p)) {
+				partners++;
+				// The odd subject, B, responds later.
+				if (Math.abs(engine.getLagMs(p) + LAG_MS) <= SynchronyEngine.DEFAULT_BIN_MS) {
+					found++;
+				}
+			}
+		}
+		return new int[] { found, partners };
+	}
+
+	/** Poisson event times for count streams. */
+	private static double[][] events(Random random, int count, long start, long end) {
+		double[][] events = new double[count][];
+		for (int i = 0; i < count; i++) {
+			int n = 0;
+			double[] times = new double[16];
+			double time = start;
+			while (true) {
+				time += -Math.log(1 - random.nextDouble()) / EVENTS_PER_SECOND * 1000;
+				if (time >= end) {
+					break;
+				}
+				if (n == times.length) {
+					double[] grown = new double[n * 2];
+					System.arraycopy(times, 0, grown, 0, n);
+					times = grown;
+				}
+				times[n++] = time;
+			}
+			events[i] = new double[n];
+			System.arraycopy(times, 0, events[i], 0, n);
+		}
+		return events;
+	}
+}
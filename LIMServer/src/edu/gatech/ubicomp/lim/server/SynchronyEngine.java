@@ -0,0 +1,595 @@
+package edu.gatech.ubicomp.lim.server;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live physiological synchrony between every pair of subjects in a session:
+ * the windowed cross-correlation of their signals over a range of lags, and
+ * the lag where it peaks.
+ *
+ * Samples from any thread are averaged into fixed bins. Every tick closes the
+ * bins older than the delay, which leaves time for batched uploads to arrive,
+ * and slides each pair's window along by adding the newest products and
+ * subtracting the oldest, so a bin costs one multiply-add per pair and lag
+ * however long the window. Window sums are recomputed exactly once per
+ * window length to keep rounding from accumulating, staggered across pairs.
+ *
+ * By default the engine correlates bin-to-bin changes rather than levels,
+ * since two drifting EDA levels correlate whether or not the wearers respond
+ * together.
+ *
+ * A subject's pairs are scored once it has a full window of data; a subject
+ * silent for longer than MAX_GAP_MS leaves its pairs until it has a full
+ * window again. A subject silent for longer than the idle timeout is evicted
+ * and its slot goes to the next new subject, so a long-running server sees
+ * MAX_SUBJECTS at a time rather than in total. A subject that comes back
+ * after eviction starts over as a new one.
+ */
+public class SynchronyEngine implements Runnable {
+
+	/** Called on the tick thread after every tick. */
+	public interface Listener {
+		/**
+		 * Scores are read from the engine, and valid until the call returns.
+		 * @param time end of the last closed bin
+		 * @param computeNanos time this tick took
+		 */
+		void onScores(SynchronyEngine engine, long time, long computeNanos);
+	}
+
+	public static final int MAX_SUBJECTS = 64;
+	public static final long DEFAULT_BIN_MS = 250;
+	/** With a response every 15 s or so, 60 s windows hold too few to pin down the lag; see SynchronyBenchmark. */
+	public static final long DEFAULT_WINDOW_MS = 120 * 1000L;
+	public static final long DEFAULT_MAX_LAG_MS = 5 * 1000L;
+	public static final long DEFAULT_DELAY_MS = 10 * 1000L;
+	public static final long DEFAULT_TICK_MS = 1000;
+	public static final long MAX_GAP_MS = 5000;
+	public static final long DEFAULT_IDLE_TIMEOUT_MS = 5 * 60 * 1000L;
+
+	private final long mBinMs;
+	private final long mDelayMs;
+	private final long mTickMs;
+	private final int mWindow;
+	private final int mMaxLag;
+	private final int mLags;
+	private final int mMaxGapBins;
+	private final int mRingMask;
+	private final int mOpenBins;
+	private boolean mDifferences = true;
+	private long mIdleTimeoutBins;
+
+	private final ConcurrentHashMap<String, Stream> mBySubject = new ConcurrentHashMap<String, Stream>();
+	/** Slots of the subjects, null where one was evicted. Guarded by this. */
+	private final Stream[] mStreams = new Stream[MAX_SUBJECTS];
+	private int mStreamCount;
+	/** What the tick thread works on: the slots as of the start of the last tick. */
+	private final Stream[] mTickStreams = new Stream[MAX_SUBJECTS];
+	private volatile int mTickStreamCount;
+	private volatile long mBin = Long.MIN_VALUE;
+
+	// Per pair, pair (a, b) with a < b at b * (b - 1) / 2 + a.
+	private final int[] mPairA;
+	private final int[] mPairB;
+	private final double[][] mCross;
+	private final boolean[] mSynced;
+	private final boolean[] mValid;
+	private final float[] mCorrelation;
+	private final float[] mZeroLagCorrelation;
+	private final int[] mLag;
+
+	// Per subject and window end t - d, for d up to twice the maximum lag.
+	private final double[][] mWindowSum;
+	private final double[][] mWindowNorm;
+
+	private final Listener mListener;
+	private Thread mThread;
+	private volatile boolean mRunning;
+	private final AtomicLong mDroppedSamples = new AtomicLong();
+	private volatile long mTicks;
+	private volatile long mLastTickNanos;
+	private volatile long mMaxTickNanos;
+	private volatile long mTotalTickNanos;
+	private volatile long mEvictedSubjects;
+
+	public SynchronyEngine(Listener listener) {
+		this(DEFAULT_BIN_MS, DEFAULT_WINDOW_MS, DEFAULT_MAX_LAG_MS, DEFAULT_DELAY_MS, DEFAULT_TICK_MS, listener);
+	}
+
+	/**
+	 * @param delayMs how long after a bin ends its samples are still accepted
+	 * @param tickMs how often scores are published by start()
+	 */
+	public SynchronyEngine(long binMs, long windowMs, long maxLagMs, long delayMs, long tickMs, Listener listener) {
+		mBinMs = binMs;
+		mDelayMs = delayMs;
+		mTickMs = tickMs;
+		mWindow = (int) Math.max(2, windowMs / binMs);
+		mMaxLag = (int) (maxLagMs / binMs);
+		mLags = 2 * mMaxLag + 1;
+		mMaxGapBins = (int) Math.max(1, MAX_GAP_MS / binMs);
+		mIdleTimeoutBins = Math.max(1, DEFAULT_IDLE_TIMEOUT_MS / binMs);
+		mRingMask = powerOfTwoAtLeast(mWindow + 2 * mMaxLag + 2) - 1;
+		mOpenBins = powerOfTwoAtLeast((int) (2 * (delayMs + tickMs) / binMs) + 2);
+		mListener = listener;
+
+		int pairs = MAX_SUBJECTS * (MAX_SUBJECTS - 1) / 2;
+		mPairA = new int[pairs];
+		mPairB = new int[pairs];
+		for (int b = 1, p = 0; b < MAX_SUBJECTS; b++) {
+			for (int a = 0; a < b; a++, p++) {
+				mPairA[p] = a;
+				mPairB[p] = b;
+			}
+		}
+		mCross = new double[pairs][mLags];
+		mSynced = new boolean[pairs];
+		mValid = new boolean[pairs];
+		mCorrelation = new float[pairs];
+		mZeroLagCorrelation = new float[pairs];
+		mLag = new int[pairs];
+		mWindowSum = new double[MAX_SUBJECTS][mLags];
+		mWindowNorm = new double[MAX_SUBJECTS][mLags];
+	}
+
+	private static int powerOfTwoAtLeast(int n) {
+		return Integer.highestOneBit(Math.max(1, n - 1)) << 1;
+	}
+
+	/** Correlate bin-to-bin changes (the default) or levels; set before the first tick. */
+	public void setDifferences(boolean differences) {
+		mDifferences = differences;
+	}
+
+	/** How long a subject may send nothing before its slot is freed; set before the first tick. */
+	public void setIdleTimeout(long idleTimeoutMs) {
+		mIdleTimeoutBins = Math.max(1, idleTimeoutMs / mBinMs);
+	}
+
+	/**
+	 * Adds a sample; safe from any thread. Samples before the first tick, for
+	 * bins already closed, or too far ahead of the clock are dropped.
+	 * @return false if the sample was dropped
+	 */
+	public boolean offer(String subject, long timestamp, float value) {
+		long bin = floorDiv(timestamp, mBinMs);
+		while (true) {
+			Stream stream = mBySubject.get(subject);
+			if (stream == null) {
+				stream = addStream(subject);
+				if (stream == null) {
+					mDroppedSamples.incrementAndGet();
+					return false;
+				}
+			}
+			synchronized (stream) {
+				if (stream.evicted) {
+					// Evicted since the lookup; the next one finds or adds its successor.
+					continue;
+				}
+				if (bin <= stream.closedBin || bin > stream.closedBin + mOpenBins) {
+					stream.dropped++;
+					return false;
+				}
+				int slot = (int) bin & (mOpenBins - 1);
+				stream.openSum[slot] += value;
+				stream.openCount[slot]++;
+			}
+			return true;
+		}
+	}
+
+	/** Puts a new subject in the first free slot. */
+	private synchronized Stream addStream(String subject) {
+		Stream stream = mBySubject.get(subject);
+		if (stream != null) {
+			return stream;
+		}
+		int slot = 0;
+		while (slot < mStreamCount && mStreams[slot] != null) {
+			slot++;
+		}
+		if (slot == MAX_SUBJECTS) {
+			return null;
+		}
+		stream = new Stream(subject, mOpenBins, mRingMask + 1);
+		synchronized (stream) {
+			stream.closedBin = mBin;
+		}
+		stream.activeBin = mBin;
+		mStreams[slot] = stream;
+		mStreamCount = Math.max(mStreamCount, slot + 1);
+		mBySubject.put(subject, stream);
+		return stream;
+	}
+
+	/**
+	 * Frees the slots of subjects idle for longer than the idle timeout, and
+	 * takes the slots the tick works on. Called on the tick thread. A new subject in a freed slot only
+	 * gets scored once it has a full window, like any other.
+	 */
+	private synchronized void updateSlots(long bin) {
+		for (int s = 0; s < mStreamCount; s++) {
+			Stream stream = mStreams[s];
+			if (stream != null && bin != Long.MIN_VALUE && bin - stream.activeBin > mIdleTimeoutBins) {
+				mBySubject.remove(stream.subject);
+				synchronized (stream) {
+					stream.evicted = true;
+					mDroppedSamples.addAndGet(stream.dropped);
+				}
+				mStreams[s] = null;
+				for (int other = 0; other < MAX_SUBJECTS; other++) {
+					if (other != s) {
+						int pair = other < s ? s * (s - 1) / 2 + other : other * (other - 1) / 2 + s;
+						mSynced[pair] = false;
+						mValid[pair] = false;
+					}
+				}
+				mEvictedSubjects++;
+			}
+		}
+		while (mStreamCount > 0 && mStreams[mStreamCount - 1] == null) {
+			mStreamCount--;
+		}
+		System.arraycopy(mStreams, 0, mTickStreams, 0, MAX_SUBJECTS);
+		mTickStreamCount = mStreamCount;
+	}
+
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+	}
+
+	/** Ticks now, then every tickMs on a thread of its own. */
+	public synchronized void start() {
+		tick(System.currentTimeMillis());
+		mRunning = true;
+		mThread = new Thread(this, "Synchrony");
+		mThread.start();
+	}
+
+	public void stop() throws InterruptedException {
+		mRunning = false;
+		if (mThread != null) {
+			mThread.interrupt();
+			mThread.join();
+		}
+	}
+
+	public void run() {
+		long next = System.currentTimeMillis();
+		while (mRunning) {
+			next += mTickMs;
+			long wait = next - System.currentTimeMillis();
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					continue;
+				}
+			} else if (wait < -mTickMs) {
+				// Fell behind; skip the missed ticks rather than burst.
+				next = System.currentTimeMillis();
+			}
+			tick(System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Closes every bin that ended more than the delay before now, updates the
+	 * scores and calls the listener. Called by the tick thread, or directly
+	 * when driving the engine with another clock.
+	 */
+	public void tick(long now) {
+		long started = System.nanoTime();
+		long target = floorDiv(now - mDelayMs, mBinMs) - 1;
+		updateSlots(mBin);
+		if (mBin == Long.MIN_VALUE || target - mBin > mRingMask) {
+			// First tick, or too far behind to slide: start over from here.
+			reset(target);
+		} else {
+			for (long bin = mBin + 1; bin <= target; bin++) {
+				advance(bin);
+			}
+		}
+		score();
+		long nanos = System.nanoTime() - started;
+		mTicks++;
+		mLastTickNanos = nanos;
+		mTotalTickNanos += nanos;
+		mMaxTickNanos = Math.max(mMaxTickNanos, nanos);
+		if (mListener != null) {
+			mListener.onScores(this, (mBin + 1) * mBinMs, nanos);
+		}
+	}
+
+	private void reset(long bin) {
+		int streams = mTickStreamCount;
+		for (int s = 0; s < streams; s++) {
+			Stream stream = mTickStreams[s];
+			if (stream != null) {
+				stream.reset();
+				stream.activeBin = bin;
+				close(stream, bin);
+			}
+		}
+		for (int p = 0; p < mSynced.length; p++) {
+			mSynced[p] = false;
+			mValid[p] = false;
+		}
+		mBin = bin;
+	}
+
+	private void advance(long bin) {
+		int streams = mTickStreamCount;
+		for (int s = 0; s < streams; s++) {
+			Stream stream = mTickStreams[s];
+			if (stream == null) {
+				continue;
+			}
+			int count = close(stream, bin);
+			double level = count > 0 ? stream.closedSum / count : stream.level;
+			double value;
+			if (count > 0 && stream.lastDataBin < bin - mMaxGapBins) {
+				// First data, or back after a gap.
+				stream.firstBin = bin;
+				value = mDifferences ? 0 : level;
+			} else if (stream.lastDataBin < bin - mMaxGapBins) {
+				stream.firstBin = Long.MAX_VALUE;
+				value = mDifferences ? 0 : level;
+			} else {
+				value = mDifferences ? level - stream.level : level;
+			}
+			if (count > 0) {
+				stream.lastDataBin = bin;
+				stream.activeBin = bin;
+			}
+			stream.level = level;
+			stream.push(bin, value, mWindow, mRingMask, (bin + s) % mWindow == 0);
+		}
+
+		long firstNeeded = bin - 2 * mMaxLag - mWindow + 1;
+		long end = bin - mMaxLag;
+		int pairs = streams * (streams - 1) / 2;
+		for (int p = 0; p < pairs; p++) {
+			Stream x = mTickStreams[mPairA[p]];
+			Stream y = mTickStreams[mPairB[p]];
+			if (x == null || y == null || x.firstBin > firstNeeded || y.firstBin > firstNeeded) {
+				mSynced[p] = false;
+				continue;
+			}
+			double[] cross = mCross[p];
+			double[] xs = x.values;
+			double[] ys = y.values;
+			if (!mSynced[p] || (bin + p) % mWindow == 0) {
+				for (int k = -mMaxLag; k <= mMaxLag; k++) {
+					double sum = 0;
+					for (int i = 0; i < mWindow; i++) {
+						sum += xs[(int) (end - i) & mRingMask] * ys[(int) (end - i - k) & mRingMask];
+					}
+					cross[k + mMaxLag] = sum;
+				}
+				mSynced[p] = true;
+			} else {
+				double xNew = xs[(int) end & mRingMask];
+				double xOld = xs[(int) (end - mWindow) & mRingMask];
+				for (int k = -mMaxLag; k <= mMaxLag; k++) {
+					cross[k + mMaxLag] += xNew * ys[(int) (end - k) & mRingMask]
+							- xOld * ys[(int) (end - mWindow - k) & mRingMask];
+				}
+			}
+		}
+		mBin = bin;
+	}
+
+	/** Takes a stream's samples for bin, dropping any left in bins it skipped. */
+	private int close(Stream stream, long bin) {
+		synchronized (stream) {
+			long from = Math.max(stream.closedBin + 1, bin - mOpenBins + 1);
+			for (long skipped = from; skipped < bin; skipped++) {
+				stream.clearSlot((int) skipped & (mOpenBins - 1));
+			}
+			int slot = (int) bin & (mOpenBins - 1);
+			stream.closedSum = stream.openSum[slot];
+			int count = stream.openCount[slot];
+			stream.clearSlot(slot);
+			stream.closedBin = bin;
+			return count;
+		}
+	}
+
+	/** Pearson correlation of every valid pair at every lag, and the peak. */
+	private void score() {
+		int streams = mTickStreamCount;
+		long bin = mBin;
+		double n = mWindow;
+		for (int s = 0; s < streams; s++) {
+			Stream stream = mTickStreams[s];
+			if (stream == null) {
+				continue;
+			}
+			for (int d = 0; d < mLags; d++) {
+				int slot = (int) (bin - d) & mRingMask;
+				double sum = stream.sums[slot];
+				double variance = n * stream.squares[slot] - sum * sum;
+				mWindowSum[s][d] = sum;
+				mWindowNorm[s][d] = variance > 0 ? Math.sqrt(variance) : 0;
+			}
+		}
+		int pairs = streams * (streams - 1) / 2;
+		for (int p = 0; p < pairs; p++) {
+			mValid[p] = mSynced[p];
+			if (!mSynced[p]) {
+				continue;
+			}
+			int a = mPairA[p];
+			int b = mPairB[p];
+			double sumX = mWindowSum[a][mMaxLag];
+			double normX = mWindowNorm[a][mMaxLag];
+			double[] cross = mCross[p];
+			float best = -2;
+			int bestLag = 0;
+			for (int k = -mMaxLag; k <= mMaxLag; k++) {
+				int d = mMaxLag + k;
+				double norm = normX * mWindowNorm[b][d];
+				float r = norm > 0 ? (float) ((n * cross[d] - sumX * mWindowSum[b][d]) / norm) : 0;
+				if (r > best) {
+					best = r;
+					bestLag = k;
+				}
+				if (k == 0) {
+					mZeroLagCorrelation[p] = r;
+				}
+			}
+			mCorrelation[p] = best;
+			mLag[p] = bestLag;
+		}
+	}
+
+	/** Subject slots as of the last tick, free ones between them included. */
+	public int getSubjectCount() {
+		return mTickStreamCount;
+	}
+
+	/** The subject in a slot as of the last tick, null if the slot is free. */
+	public String getSubject(int index) {
+		Stream stream = mTickStreams[index];
+		return stream == null ? null : stream.subject;
+	}
+
+	/**
+	 * Pairs of the subject slots as of the last tick. Pair indexes stay valid
+	 * as subjects join; a pair with a free slot is never valid.
+	 */
+	public int getPairCount() {
+		int streams = mTickStreamCount;
+		return streams * (streams - 1) / 2;
+	}
+
+	public int getPairSubjectA(int pair) {
+		return mPairA[pair];
+	}
+
+	public int getPairSubjectB(int pair) {
+		return mPairB[pair];
+	}
+
+	/** Whether both subjects of the pair had a full window at the last tick. */
+	public boolean isPairValid(int pair) {
+		return mValid[pair];
+	}
+
+	/** Peak correlation over all lags. */
+	public float getCorrelation(int pair) {
+		return mCorrelation[pair];
+	}
+
+	public float getZeroLagCorrelation(int pair) {
+		return mZeroLagCorrelation[pair];
+	}
+
+	/** Lag of the peak; positive when subject B's changes come before subject A's. */
+	public long getLagMs(int pair) {
+		return mLag[pair] * mBinMs;
+	}
+
+	public long getDroppedSamples() {
+		long dropped = mDroppedSamples.get();
+		for (int s = 0; s < mTickStreamCount; s++) {
+			Stream stream = mTickStreams[s];
+			if (stream != null) {
+				dropped += stream.dropped;
+			}
+		}
+		return dropped;
+	}
+
+	/** Subjects whose slot was freed after they went idle. */
+	public long getEvictedSubjects() {
+		return mEvictedSubjects;
+	}
+
+	public long getTicks() {
+		return mTicks;
+	}
+
+	public long getLastTickNanos() {
+		return mLastTickNanos;
+	}
+
+	public long getMaxTickNanos() {
+		return mMaxTickNanos;
+	}
+
+	public long getAverageTickNanos() {
+		long ticks = mTicks;
+		return ticks == 0 ? 0 : mTotalTickNanos / ticks;
+	}
+
+	/** One subject's open bins, written by ingest threads, and its history, used by the tick thread. */
+	private static class Stream {
+		final String subject;
+
+		// Guarded by this.
+		final double[] openSum;
+		final int[] openCount;
+		long closedBin;
+		double closedSum;
+		long dropped;
+		boolean evicted;
+
+		final double[] values;
+		final double[] sums;
+		final double[] squares;
+		double level;
+		long firstBin = Long.MAX_VALUE;
+		long lastDataBin = Long.MIN_VALUE;
+		/** Last bin with data, or the bin the subject joined in; tick thread only once it has the stream. */
+		long activeBin;
+
+		Stream(String subject, int openBins, int historyBins) {
+			this.subject = subject;
+			openSum = new double[openBins];
+			openCount = new int[openBins];
+			values = new double[historyBins];
+			sums = new double[historyBins];
+			squares = new double[historyBins];
+		}
+
+		void clearSlot(int slot) {
+			openSum[slot] = 0;
+			openCount[slot] = 0;
+		}
+
+		void reset() {
+			Arrays.fill(values, 0);
+			Arrays.fill(sums, 0);
+			Arrays.fill(squares, 0);
+			firstBin = Long.MAX_VALUE;
+			lastDataBin = Long.MIN_VALUE;
+		}
+
+		/** Adds bin's value and the sums of the window ending there, exactly if resync. */
+		void push(long bin, double value, int window, int mask, boolean resync) {
+			int slot = (int) bin & mask;
+			values[slot] = value;
+			if (resync) {
+				double sum = 0, sumSquares = 0;
+				for (int i = 0; i < window; i++) {
+					double v = values[(int) (bin - i) & mask];
+					sum += v;
+					sumSquares += v * v;
+				}
+				sums[slot] = sum;
+				squares[slot] = sumSquares;
+			} else {
+				int previous = (int) (bin - 1) & mask;
+				double old = values[(int) (bin - window) & mask];
+				sums[slot] = sums[previous] + value - old;
+				squares[slot] = squares[previous] + value * value - old * old;
+			}
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package edu.gatech.ubicomp.lim.server;
+
+import java.io.IOException;
+
+import edu.gatech.ubicomp.glim.data.codec.SampleBatch;
+
+/**
+ * Feeds every subject's EDA samples to a {@link SynchronyEngine} on their way
+ * to another sink. One engine is shared by all partitions.
+ */
+public class SynchronySink implements IngestSink {
+
+	private final SynchronyEngine mEngine;
+	private final IngestSink mSink;
+
+	public SynchronySink(SynchronyEngine engine, IngestSink sink) {
+		mEngine = engine;
+		mSink = sink;
+	}
+
+	public void append(String subject, SampleBatch samples, SampleBatch annotations) throws IOException {
+		for (int i = 0; i < samples.size(); i++) {
+			mEngine.offer(subject, samples.getTimestamp(i), samples.getValue(0, i));
+		}
+		mSink.append(subject, samples, annotations);
+	}
+
+	public void flush() throws IOException {
+		mSink.flush();
+	}
+
+	public void close() throws IOException {
+		mSink.close();
+	}
+}